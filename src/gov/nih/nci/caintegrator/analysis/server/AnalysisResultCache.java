@@ -0,0 +1,252 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import gov.nih.nci.caintegrator.analysis.messaging.AnalysisRequest;
+import gov.nih.nci.caintegrator.analysis.messaging.AnalysisResult;
+import gov.nih.nci.caintegrator.analysis.messaging.ClassComparisonRequest;
+import gov.nih.nci.caintegrator.analysis.messaging.FTestRequest;
+import gov.nih.nci.caintegrator.analysis.messaging.HierarchicalClusteringRequest;
+import gov.nih.nci.caintegrator.analysis.messaging.PrincipalComponentAnalysisRequest;
+import gov.nih.nci.caintegrator.exceptions.AnalysisServerException;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A least recently used cache of analysis results, bounded by the total size of the cached
+ * results in bytes.  Results are stored in serialized form, which is also what is counted 
+ * against the size limit, so image bytes are included.  Results are keyed by the 
+ * CanonicalRequestKey of the request plus the size and modification time of the request's 
+ * data file, so an entry is not used once the data file in the data file directory changes.
+ * Nothing is cached for a data file whose version is not known.
+ * 
+ * Class comparison, F-test, PCA and hierarchical clustering results are cached.
+ * 
+ * @see gov.nih.nci.caintegrator.analysis.server.CanonicalRequestKey
+ * 
+ * @author caIntegrator Team
+ *
+ */
+public class AnalysisResultCache {
+
+	private String rDataFileDirectory;
+	
+	private long maxBytes;
+	
+	private long numBytes = 0L;
+	
+	//access ordered so iteration starts at the least recently used entry
+	private LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+	
+	private long hits = 0L;
+	private long misses = 0L;
+	private long evictions = 0L;
+	private long invalidations = 0L;
+	
+	//the versions of the data files read by R, keyed by data file name
+	private static ConcurrentHashMap<String, String> loadedDataFileVersions = new ConcurrentHashMap<String, String>();
+	
+	private static Logger logger = Logger.getLogger(AnalysisResultCache.class);
+	
+	/**
+	 * 
+	 * @param rDataFileDirectory the directory the data files are loaded from
+	 * @param maxBytes the maximum total size of the cached results
+	 */
+	public AnalysisResultCache(String rDataFileDirectory, long maxBytes) {
+		this.rDataFileDirectory = rDataFileDirectory;
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * @param request
+	 * @return true if results of this type of request are cached
+	 */
+	public boolean isCacheable(AnalysisRequest request) {
+		return ((request instanceof ClassComparisonRequest) || (request instanceof FTestRequest) ||
+		        (request instanceof PrincipalComponentAnalysisRequest) || (request instanceof HierarchicalClusteringRequest)) &&
+		       (request.getDataFileName() != null);
+	}
+	
+	/**
+	 * Get a copy of the cached result for a request.
+	 * @param request
+	 * @return the result stamped with the request's sessionId and taskId or null if there is no valid cached result
+	 */
+	public AnalysisResult get(AnalysisRequest request) {
+		if (!isCacheable(request)) {
+			return null;
+		}
+		String key = CanonicalRequestKey.getKey(request);
+		String dataFileVersion = getDataFileVersion(request.getDataFileName());
+		CacheEntry entry;
+		synchronized (this) {
+			entry = entries.get(key);
+			if ((entry != null) && (!entry.dataFileVersion.equals(dataFileVersion))) {
+				//the data file has changed since the result was computed
+				remove(key);
+				invalidations++;
+				entry = null;
+			}
+			if (entry == null) {
+				misses++;
+				return null;
+			}
+			hits++;
+		}
+		
+		try {
+			AnalysisResult result = ResultCopier.copyResult(entry.serializedResult, request);
+			logger.info("Result cache hit request=" + request + " " + getStatistics());
+			return result;
+		}
+		catch (AnalysisServerException ex) {
+			logger.error("Could not read cached result for request=" + request + " msg=" + ex.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * Cache the result of a completed task. Results of failed tasks are not cached.
+	 * The data file version is read when the result is stored, so a result computed 
+	 * while the data file was replaced may be kept until the data file changes again.
+	 * @param task
+	 */
+	public void put(AnalysisTask task) {
+		AnalysisRequest request = task.getRequest();
+		if ((task.getException() != null) || (task.getResult() == null) || (!isCacheable(request))) {
+			return;
+		}
+		
+		byte[] serializedResult;
+		try {
+			serializedResult = ResultCopier.serialize(task.getResult());
+		}
+		catch (AnalysisServerException ex) {
+			logger.warn("Could not cache result for request=" + request + " msg=" + ex.getMessage());
+			return;
+		}
+		if (serializedResult.length > maxBytes) {
+			return;
+		}
+		
+		String key = CanonicalRequestKey.getKey(request);
+		String dataFileVersion = getDataFileVersion(request.getDataFileName());
+		if (dataFileVersion == null) {
+			//entries for a data file of unknown version could never be invalidated
+			return;
+		}
+		CacheEntry entry = new CacheEntry(serializedResult, dataFileVersion);
+		synchronized (this) {
+			remove(key);
+			entries.put(key, entry);
+			numBytes += serializedResult.length;
+			
+			for (Iterator<Map.Entry<String, CacheEntry>> i = entries.entrySet().iterator(); (numBytes > maxBytes) && (i.hasNext()); ) {
+				numBytes -= i.next().getValue().serializedResult.length;
+				i.remove();
+				evictions++;
+			}
+		}
+	}
+	
+	public synchronized long getHits() {
+		return hits;
+	}
+	
+	public synchronized long getMisses() {
+		return misses;
+	}
+	
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+	
+	/**
+	 * @return the number of entries removed because their data file changed
+	 */
+	public synchronized long getInvalidations() {
+		return invalidations;
+	}
+	
+	public synchronized int getNumEntries() {
+		return entries.size();
+	}
+	
+	public synchronized long getNumBytes() {
+		return numBytes;
+	}
+	
+	public synchronized String getStatistics() {
+		return "hits=" + hits + " misses=" + misses + " evictions=" + evictions + " invalidations=" + invalidations + 
+		       " entries=" + entries.size() + " bytes=" + numBytes + " maxBytes=" + maxBytes;
+	}
+	
+	private void remove(String key) {
+		CacheEntry old = entries.remove(key);
+		if (old != null) {
+			numBytes -= old.serializedResult.length;
+		}
+	}
+	
+	/**
+	 * Identify the current contents of a data file by its length and modification time.
+	 */
+	private String getDataFileVersion(String dataFileName) {
+		return getDataFileVersion(rDataFileDirectory, dataFileName);
+	}
+	
+	/**
+	 * Identify the current contents of a data file by its length and modification time.  The
+	 * data file directory is a path on the Rserve hosts, so when the data file is not visible
+	 * to this JVM the version read by R the last time a compute connection loaded the data
+	 * file is used.  A data file replaced on a remote host is then seen as changed once a
+	 * connection loads it again.
+	 * @param rDataFileDirectory the directory the data files are loaded from
+	 * @param dataFileName
+	 * @return a string that changes when the data file is replaced, or null if the version is
+	 * not known, in which case nothing derived from the data file may be cached
+	 */
+	static String getDataFileVersion(String rDataFileDirectory, String dataFileName) {
+		File dataFile = new File(rDataFileDirectory + dataFileName);
+		if (dataFile.exists()) {
+			return dataFile.length() + ":" + dataFile.lastModified();
+		}
+		return loadedDataFileVersions.get(dataFileName);
+	}
+
+	/**
+	 * Record the version of a data file read by R when a compute connection loaded it.
+	 * @param dataFileName
+	 * @param dataFileVersion the size and modification time of the file on the Rserve host
+	 */
+	static void setLoadedDataFileVersion(String dataFileName, String dataFileVersion) {
+		String previous = loadedDataFileVersions.put(dataFileName, dataFileVersion);
+		if ((previous != null) && (!previous.equals(dataFileVersion))) {
+			logger.info("Data file=" + dataFileName + " changed from version=" + previous + " to version=" + dataFileVersion);
+		}
+	}
+	
+	private static class CacheEntry {
+		
+		private byte[] serializedResult;
+		
+		private String dataFileVersion;
+		
+		private CacheEntry(byte[] serializedResult, String dataFileVersion) {
+			this.serializedResult = serializedResult;
+			this.dataFileVersion = dataFileVersion;
+		}
+	}
+}
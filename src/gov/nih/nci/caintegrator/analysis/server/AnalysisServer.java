@@ -26,8 +26,13 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.jms.DeliveryMode;
 import javax.jms.Destination;
@@ -66,7 +71,7 @@ import org.apache.log4j.PropertyConfigurator;
 
 
 
-public class AnalysisServer implements MessageListener, ExceptionListener, AnalysisResultSender {
+public class AnalysisServer implements MessageListener, ExceptionListener, AnalysisResultSender, RequestAdmissionListener {
 
 	/**
 	 * The server version number.
@@ -83,10 +88,22 @@ public class AnalysisServer implements MessageListener, ExceptionListener, Analy
 	private static int numComputeThreads = -1;
 	
 	private static int defaultNumComputeThreads = 1;
+	
+	private static int minComputeThreads = -1;
+	
+	private static int maxComputeThreads = -1;
+	
+	private static long computeThreadKeepAliveMS = 600000L;
+	
+	private static long threadGrowQueueWaitMS = 5000L;
 
 	private static String RserverIp = null;
 	
 	private static String defaultRserverIp = "localhost";
+	
+	private static String RserveEndpoints = null;
+	
+	private static long failedRserveEndpointRetryMS = 60000L;
 
 	private static String RinitializationFileName = null;
 	
@@ -113,6 +130,57 @@ public class AnalysisServer implements MessageListener, ExceptionListener, Analy
 	private static long reconnectWaitTimeMS = -1L;
 	
 	private static long defaultReconnectWaitTimeMS = 10000L;
+	
+	private static boolean dataFileAffinityScheduling = true;
+	
+	private static long defaultDataFileLoadTimeMS = 30000L;
+	
+	private static int interactiveQueueWeight = 8;
+	
+	private static int standardQueueWeight = 3;
+	
+	private static int batchQueueWeight = 1;
+	
+	private static int numReservedInteractiveThreads = 0;
+	
+	private static int maxPendingRequests = 0;
+	
+	private static long maxPendingRequestBytes = 0L;
+	
+	private static int requestAdmissionResumePercent = 50;
+	
+	private static long defaultTaskTimeoutMS = 0L;
+	
+	private static boolean parallelCompoundRequests = true;
+	
+	private static boolean requestCoalescing = true;
+	
+	private RequestCoalescer requestCoalescer = null;
+	
+	private static long resultCacheMaxBytes = 67108864L;
+	
+	private AnalysisResultCache resultCache = null;
+	
+	private static int statisticsCacheEntries = 16;
+	
+	private static int dictionaryCacheEntries = 4;
+	
+	private static int dendrogramCacheEntries = 16;
+	
+	private static int correlationRowStatisticsCacheEntries = 8;
+	
+	private static long dataMatrixCacheMaxBytes = 268435456L;
+	
+	private static Map<String, Long> taskTimeouts = new HashMap<String, Long>();
+	
+	private RequestAdmissionController admissionController;
+	
+	//closes and re-creates the request receiver off the JMS delivery thread
+	private ExecutorService receiverControlExecutor = Executors.newSingleThreadExecutor();
+	
+	private boolean requestConsumptionPaused = false;
+	
+	private Object receiverLock = new Object();
 
 	private static Logger logger = Logger.getLogger(AnalysisServer.class);
 	
@@ -157,8 +225,20 @@ public class AnalysisServer implements MessageListener, ExceptionListener, Analy
 
 			RserverIp = getStringProperty(analysisServerConfigProps,"rserve_location", defaultRserverIp);
 			
+			RserveEndpoints = getStringProperty(analysisServerConfigProps,"rserve_endpoints", RserverIp + ":6311");
+			
+			failedRserveEndpointRetryMS = getLongProperty(analysisServerConfigProps, "failed_rserve_endpoint_retry_ms", failedRserveEndpointRetryMS);
+			
 			numComputeThreads = getIntegerProperty(analysisServerConfigProps,"num_compute_threads", defaultNumComputeThreads);
 			
+			minComputeThreads = getIntegerProperty(analysisServerConfigProps,"min_compute_threads", numComputeThreads);
+			
+			maxComputeThreads = getIntegerProperty(analysisServerConfigProps,"max_compute_threads", numComputeThreads);
+			
+			computeThreadKeepAliveMS = getLongProperty(analysisServerConfigProps, "compute_thread_keep_alive_ms", computeThreadKeepAliveMS);
+			
+			threadGrowQueueWaitMS = getLongProperty(analysisServerConfigProps, "thread_grow_queue_wait_ms", threadGrowQueueWaitMS);
+			
 			RinitializationFileName = getMandatoryStringProperty(analysisServerConfigProps,"RinitializationFile");
 			
 			RdataFileDirectory = getMandatoryStringProperty(analysisServerConfigProps, "RdataFileDirectory" );
@@ -169,6 +249,68 @@ public class AnalysisServer implements MessageListener, ExceptionListener, Analy
 			
 			requestQueueName = getMandatoryStringProperty(analysisServerConfigProps, "analysis_request_queue");
 			
+			dataFileAffinityScheduling = getBooleanProperty(analysisServerConfigProps, "data_file_affinity_scheduling", true);
+			
+			defaultDataFileLoadTimeMS = getLongProperty(analysisServerConfigProps, "default_data_file_load_time_ms", defaultDataFileLoadTimeMS);
+			
+			interactiveQueueWeight = getIntegerProperty(analysisServerConfigProps, "interactive_queue_weight", interactiveQueueWeight);
+			
+			standardQueueWeight = getIntegerProperty(analysisServerConfigProps, "standard_queue_weight", standardQueueWeight);
+			
+			batchQueueWeight = getIntegerProperty(analysisServerConfigProps, "batch_queue_weight", batchQueueWeight);
+			
+			numReservedInteractiveThreads = getIntegerProperty(analysisServerConfigProps, "interactive_reserved_threads", numReservedInteractiveThreads);
+			
+			maxPendingRequests = getIntegerProperty(analysisServerConfigProps, "max_pending_requests", maxPendingRequests);
+			
+			maxPendingRequestBytes = getLongProperty(analysisServerConfigProps, "max_pending_request_bytes", maxPendingRequestBytes);
+			
+			requestAdmissionResumePercent = getIntegerProperty(analysisServerConfigProps, "request_admission_resume_percent", requestAdmissionResumePercent);
+			
+			resultCacheMaxBytes = getLongProperty(analysisServerConfigProps, "result_cache_max_bytes", resultCacheMaxBytes);
+			
+			statisticsCacheEntries = getIntegerProperty(analysisServerConfigProps, "unfiltered_statistics_cache_entries", statisticsCacheEntries);
+			
+			dictionaryCacheEntries = getIntegerProperty(analysisServerConfigProps, "data_file_dictionary_entries", dictionaryCacheEntries);
+			
+			dendrogramCacheEntries = getIntegerProperty(analysisServerConfigProps, "dendrogram_cache_entries", dendrogramCacheEntries);
+			
+			correlationRowStatisticsCacheEntries = getIntegerProperty(analysisServerConfigProps, "correlation_row_statistics_cache_entries", correlationRowStatisticsCacheEntries);
+			
+			dataMatrixCacheMaxBytes = getLongProperty(analysisServerConfigProps, "data_matrix_cache_max_bytes", dataMatrixCacheMaxBytes);
+			
+			ReporterBlockExecutor.setNumThreads(getIntegerProperty(analysisServerConfigProps, "native_statistics_threads", ReporterBlockExecutor.getNumThreads()));
+			
+			ClassComparisonTaskR.setNativeTTest(getBooleanProperty(analysisServerConfigProps, "native_ttest", ClassComparisonTaskR.isNativeTTest()));
+			
+			ClassComparisonTaskR.setWelchTTest(getBooleanProperty(analysisServerConfigProps, "ttest_welch", ClassComparisonTaskR.isWelchTTest()));
+			
+			ClassComparisonTaskR.setNativeWilcoxon(getBooleanProperty(analysisServerConfigProps, "native_wilcoxon", ClassComparisonTaskR.isNativeWilcoxon()));
+			
+			FTestTaskR.setNativeFTest(getBooleanProperty(analysisServerConfigProps, "native_ftest", FTestTaskR.isNativeFTest()));
+			
+			PValueAdjuster.setFdrMethod(PValueAdjuster.Method.valueOf(getStringProperty(analysisServerConfigProps, "fdr_adjustment_method", PValueAdjuster.getFdrMethod().name()).trim().toUpperCase()));
+			
+			PValueAdjuster.setFwerMethod(PValueAdjuster.Method.valueOf(getStringProperty(analysisServerConfigProps, "fwer_adjustment_method", PValueAdjuster.getFwerMethod().name()).trim().toUpperCase()));
+			
+			requestCoalescing = getBooleanProperty(analysisServerConfigProps, "request_coalescing", requestCoalescing);
+			
+			RComputeConnection.setWorkspaceObjectsMaxBytes(getLongProperty(analysisServerConfigProps, "r_workspace_objects_max_bytes", RComputeConnection.getWorkspaceObjectsMaxBytes()));
+			
+			AnalysisTaskR.setBinaryIdAssignment(getBooleanProperty(analysisServerConfigProps, "binary_id_assignment", AnalysisTaskR.isBinaryIdAssignment()));
+			
+			parallelCompoundRequests = getBooleanProperty(analysisServerConfigProps, "parallel_compound_requests", parallelCompoundRequests);
+			
+			defaultTaskTimeoutMS = getLongProperty(analysisServerConfigProps, "task_timeout_ms", defaultTaskTimeoutMS);
+			
+			//per request type timeouts e.g. task_timeout_ms.HierarchicalClusteringRequest=1800000
+			for (Enumeration e = analysisServerConfigProps.propertyNames(); e.hasMoreElements(); ) {
+			  String propertyName = (String) e.nextElement();
+			  if (propertyName.startsWith("task_timeout_ms.")) {
+			    taskTimeouts.put(propertyName.substring("task_timeout_ms.".length()), getLongProperty(analysisServerConfigProps, propertyName, defaultTaskTimeoutMS));
+			  }
+			}
+			
 			//responseQueueName = getMandatoryStringProperty(analysisServerConfigProps, "analysis_response_queue");
 			
 		} catch (Exception ex) {
@@ -187,11 +329,69 @@ public class AnalysisServer implements MessageListener, ExceptionListener, Analy
 		
 		// initialize the compute threads
 		
-		executor = new RThreadPoolExecutor(numComputeThreads, RserverIp,6311,
+		RserveEndpointPool endpointPool = RserveEndpointPool.parse(RserveEndpoints, 6311);
+		endpointPool.setFailedEndpointRetryMS(failedRserveEndpointRetryMS);
+		
+		if (maxComputeThreads > minComputeThreads) {
+		  executor = new RThreadPoolExecutor(minComputeThreads, maxComputeThreads, computeThreadKeepAliveMS, endpointPool,
 				RinitializationFileName, RdataFileDirectory, this);
+		  executor.setGrowQueueWaitTimeMS(threadGrowQueueWaitMS);
+		}
+		else {
+		  executor = new RThreadPoolExecutor(numComputeThreads, numComputeThreads, Long.MAX_VALUE, endpointPool,
+				RinitializationFileName, RdataFileDirectory, this);
+		}
 		
 		executor.setDebugRcommmands(debugRcommands);
 		
+		executor.setDataFileAffinityEnabled(dataFileAffinityScheduling);
+		
+		executor.setDefaultDataFileLoadTimeMS(defaultDataFileLoadTimeMS);
+		
+		executor.setQueueWeight(TaskCostClass.INTERACTIVE, interactiveQueueWeight);
+		
+		executor.setQueueWeight(TaskCostClass.STANDARD, standardQueueWeight);
+		
+		executor.setQueueWeight(TaskCostClass.BATCH, batchQueueWeight);
+		
+		executor.setNumReservedInteractiveThreads(numReservedInteractiveThreads);
+		
+		admissionController = new RequestAdmissionController(maxPendingRequests, maxPendingRequestBytes, requestAdmissionResumePercent, this);
+		
+		executor.setRequestAdmissionController(admissionController);
+		
+		executor.setTaskTimeouts(defaultTaskTimeoutMS, taskTimeouts);
+		
+		if (resultCacheMaxBytes > 0L) {
+		  resultCache = new AnalysisResultCache(RdataFileDirectory, resultCacheMaxBytes);
+		  executor.setResultCache(resultCache);
+		}
+		
+		if (statisticsCacheEntries > 0) {
+		  executor.setStatisticsCache(new UnfilteredStatisticsCache(RdataFileDirectory, statisticsCacheEntries));
+		}
+		
+		if (dictionaryCacheEntries > 0) {
+		  executor.setDictionaryCache(new DataFileDictionaryCache(RdataFileDirectory, dictionaryCacheEntries));
+		}
+		
+		if (dendrogramCacheEntries > 0) {
+		  executor.setDendrogramCache(new DendrogramCache(RdataFileDirectory, dendrogramCacheEntries));
+		}
+		
+		if (dataMatrixCacheMaxBytes > 0L) {
+		  executor.setDataMatrixCache(new DataMatrixCache(RdataFileDirectory, dataMatrixCacheMaxBytes));
+		}
+		
+		if (correlationRowStatisticsCacheEntries > 0) {
+		  executor.setCorrelationRowStatisticsCache(new CorrelationRowStatisticsCache(RdataFileDirectory, correlationRowStatisticsCacheEntries));
+		}
+		
+		if (requestCoalescing) {
+		  requestCoalescer = new RequestCoalescer(this);
+		  executor.setRequestCoalescer(requestCoalescer);
+		}
+		
 		//establish the JMS queue connections
 		contextProperties.put(Context.INITIAL_CONTEXT_FACTORY,
 		   "org.jnp.interfaces.NamingContextFactory");
@@ -202,7 +402,7 @@ public class AnalysisServer implements MessageListener, ExceptionListener, Analy
 		establishQueueConnection();
 		
 		logger.info("AnalysisServer version=" + version
-				+ " successfully initialized. numComputeThreads=" + numComputeThreads + " RserverIp=" + RserverIp + " RinitializationFileName=" + RinitializationFileName);
+				+ " successfully initialized. numComputeThreads=" + numComputeThreads + " minComputeThreads=" + minComputeThreads + " maxComputeThreads=" + maxComputeThreads + " RserveEndpoints=" + RserveEndpoints + " RinitializationFileName=" + RinitializationFileName);
 		
 
 	}
@@ -283,12 +483,16 @@ public class AnalysisServer implements MessageListener, ExceptionListener, Analy
 			  queueConnection = qcf.createQueueConnection();
 			  queueConnection.setExceptionListener(this);
 				
-			  queueSession = queueConnection.createQueueSession(false,
-						QueueSession.AUTO_ACKNOWLEDGE);
-				
-			  requestReceiver = queueSession.createReceiver(requestQueue);
-		
-			  requestReceiver.setMessageListener(this);
+			  synchronized (receiverLock) {
+			    if (requestConsumptionPaused) {
+			      //the session and receiver will be created when request consumption resumes
+			      queueSession = null;
+			      requestReceiver = null;
+			    }
+			    else {
+			      createRequestReceiver();
+			    }
+			  }
 				 
 			  //resultSender = queueSession.createSender(resultQueue);
 			  
@@ -388,6 +592,8 @@ public class AnalysisServer implements MessageListener, ExceptionListener, Analy
 				processExpressionLookupRequest((ExpressionLookupRequest) request, resultDestination);
 			} else if (request instanceof CopyNumberLookupRequest) {
 				processCopyNumberLookupRequest((CopyNumberLookupRequest) request, resultDestination);
+			} else if (request instanceof GenomeCorrelationRequest) {
+				processGenomeCorrelationRequest((GenomeCorrelationRequest) request, resultDestination);
 			}
 			
 
@@ -414,7 +620,7 @@ public class AnalysisServer implements MessageListener, ExceptionListener, Analy
 	  logger.debug("processGeneralizedLinearModelRequest request=" + request);
 	  GeneralizedLinearModelTaskR glmTaskR = new GeneralizedLinearModelTaskR(request, debugRcommands);
 	  glmTaskR.setJMSDestination(resultDestination);
-	  executor.execute(glmTaskR);
+	  submitTask(glmTaskR);
 		
 	}
 
@@ -422,42 +628,45 @@ public class AnalysisServer implements MessageListener, ExceptionListener, Analy
 	  logger.debug("processClassComparisonLookupRequest request=" + request);
 	  ClassComparisonLookupTaskR ccLookupTaskR = new ClassComparisonLookupTaskR(request, debugRcommands);
 	  ccLookupTaskR.setJMSDestination(resultDestination);
-	  executor.execute(ccLookupTaskR);
+	  submitTask(ccLookupTaskR);
 	}
 
 	private void processCategoricalCorrelationRequest(CategoricalCorrelationRequest request, Destination resultDestination) {
 	  logger.debug("processCategoricalCorrelationRequest request=" + request);
 	  CategoricalCorrelationTaskR catCorrTaskR = new CategoricalCorrelationTaskR(request, debugRcommands);
 	  catCorrTaskR.setJMSDestination(resultDestination);
-	  executor.execute(catCorrTaskR);
+	  submitTask(catCorrTaskR);
 	}
 	
 	private void processExpressionLookupRequest(ExpressionLookupRequest request, Destination resultDestination) {
 	  logger.debug("processExpressionLookupRequest request=" + request);
 	  ExpressionLookupTaskR lookupTaskR = new ExpressionLookupTaskR(request, debugRcommands);
 	  lookupTaskR.setJMSDestination(resultDestination);
-	  executor.execute(lookupTaskR);
+	  submitTask(lookupTaskR);
 	}
 	
 	private void processCopyNumberLookupRequest(CopyNumberLookupRequest request, Destination resultDestination) {
 		  logger.debug("processCopyNumberLookupRequest request=" + request);
 		  CopyNumberLookupTaskR lookupTaskR = new CopyNumberLookupTaskR(request, debugRcommands);
 		  lookupTaskR.setJMSDestination(resultDestination);
-		  executor.execute(lookupTaskR);
+		  submitTask(lookupTaskR);
 	}
 
 	private void processFTest(FTestRequest request, Destination resultDestination) {
 		logger.debug("processFTest=" + request);
 		FTestTaskR ftTaskR = new FTestTaskR(request, debugRcommands);
 		ftTaskR.setJMSDestination(resultDestination);
-		executor.execute(ftTaskR);
+		submitTask(ftTaskR);
 	}
 
 	private void processCompoundAnalysisReqeust(CompoundAnalysisRequest request, Destination resultDestination) {
 	  logger.debug("processCompoundAnalysisRequest request=" + request);
 	  CompoundRequestTaskR compoundTaskR = new CompoundRequestTaskR(request, debugRcommands);
 	  compoundTaskR.setJMSDestination(resultDestination);
-	  executor.execute(compoundTaskR);
+	  if (parallelCompoundRequests) {
+	    compoundTaskR.setSubTaskExecutor(executor);
+	  }
+	  submitTask(compoundTaskR);
 	}
 
 	/**
@@ -470,7 +679,7 @@ public class AnalysisServer implements MessageListener, ExceptionListener, Analy
 		logger.debug("processClassComparisionRequest request=" + ccRequest);
 		ClassComparisonTaskR ccTaskR = new ClassComparisonTaskR(ccRequest, debugRcommands);
 		ccTaskR.setJMSDestination(resultDestination);
-		executor.execute(ccTaskR);
+		submitTask(ccTaskR);
 	}
 
 	/**
@@ -483,7 +692,7 @@ public class AnalysisServer implements MessageListener, ExceptionListener, Analy
 		logger.debug("processHierarchicalClusteringRequest request=" + hcRequest);
 		HierarchicalClusteringTaskR hcTaskR = new HierarchicalClusteringTaskR(hcRequest, debugRcommands);
 		hcTaskR.setJMSDestination(resultDestination);
-		executor.execute(hcTaskR);
+		submitTask(hcTaskR);
 	}
 
 	/**
@@ -496,14 +705,122 @@ public class AnalysisServer implements MessageListener, ExceptionListener, Analy
 		logger.debug("processPrincipalComponentAnalysisRequest request=" + pcaRequest);
 		PrincipalComponentAnalysisTaskR pcaTaskR = new PrincipalComponentAnalysisTaskR(pcaRequest, debugRcommands);
 		pcaTaskR.setJMSDestination(resultDestination);
-		executor.execute(pcaTaskR);
+		submitTask(pcaTaskR);
 	}
 	
 	private void processCorrelationRequest(CorrelationRequest corrRequest, Destination resultDestination) {
 	  logger.debug("processCorrelationRequest request=" + corrRequest);
 	  CorrelationTaskR corrTaskR = new CorrelationTaskR(corrRequest, debugRcommands);
 	  corrTaskR.setJMSDestination(resultDestination);
-	  executor.execute(corrTaskR);
+	  submitTask(corrTaskR);
+	}
+	
+	private void processGenomeCorrelationRequest(GenomeCorrelationRequest gcRequest, Destination resultDestination) {
+	  logger.debug("processGenomeCorrelationRequest request=" + gcRequest);
+	  GenomeCorrelationTaskR gcTaskR = new GenomeCorrelationTaskR(gcRequest, debugRcommands);
+	  gcTaskR.setJMSDestination(resultDestination);
+	  submitTask(gcTaskR);
+	}
+
+	/**
+	 * Submit a task for execution. The task counts against the admission limits until it completes.
+	 * A task for the same analysis as a running task is not executed, it gets a copy of the running task's result.
+	 * A task whose result is cached is answered from the cache.
+	 * @param task
+	 */
+	private void submitTask(AnalysisTask task) {
+	  if (resultCache != null) {
+	    AnalysisResult cachedResult = resultCache.get(task.getRequest());
+	    if (cachedResult != null) {
+	      sendResult(cachedResult, task.getJMSDestination());
+	      return;
+	    }
+	  }
+	  if ((requestCoalescer != null) && (requestCoalescer.attachOrRegister(task))) {
+	    return;
+	  }
+	  admissionController.requestAdmitted(task);
+	  executor.execute(task);
+	}
+	
+	/**
+	 * @return the result cache or null if result caching is turned off
+	 */
+	public AnalysisResultCache getResultCache() {
+	  return resultCache;
+	}
+	
+	/**
+	 * Stop taking requests off the request queue. The receiver is closed so that 
+	 * the remaining requests stay on the broker for other server instances.
+	 * The receiver is closed on a separate thread because JMS does not allow a 
+	 * consumer to be closed from its own message listener.
+	 */
+	public void pauseRequestConsumption() {
+	  receiverControlExecutor.execute(new Runnable() {
+		public void run() {
+		  synchronized (receiverLock) {
+			requestConsumptionPaused = true;
+			if (queueSession != null) {
+			  try {
+			    //closing the session closes the receiver and waits for a message being delivered
+			    queueSession.close();
+			  }
+			  catch (JMSException ex) {
+			    logger.warn("Caught exception closing request session msg=" + ex.getMessage());
+			  }
+			  queueSession = null;
+			  requestReceiver = null;
+			}
+			logger.info("Paused request consumption");
+		  }
+		}
+	  });
+	}
+	
+	/**
+	 * Create the request receiver on a new session of its own.  A JMS session may only be 
+	 * used by one thread and the session of the receiver is used by the JMS delivery thread 
+	 * once the message listener is set, so the session is never reused to create a receiver
+	 * on another thread.  Must be called with receiverLock held.
+	 * @throws JMSException
+	 */
+	private void createRequestReceiver() throws JMSException {
+	  QueueSession session = queueConnection.createQueueSession(false, QueueSession.AUTO_ACKNOWLEDGE);
+	  try {
+	    requestReceiver = session.createReceiver(requestQueue);
+	    requestReceiver.setMessageListener(this);
+	  }
+	  catch (JMSException ex) {
+	    requestReceiver = null;
+	    session.close();
+	    throw ex;
+	  }
+	  queueSession = session;
+	}
+	
+	/**
+	 * Start taking requests off the request queue again.
+	 */
+	public void resumeRequestConsumption() {
+	  receiverControlExecutor.execute(new Runnable() {
+		public void run() {
+		  synchronized (receiverLock) {
+			requestConsumptionPaused = false;
+			if (requestReceiver == null) {
+			  try {
+			    createRequestReceiver();
+			    logger.info("Resumed request consumption");
+			  }
+			  catch (JMSException ex) {
+			    //the exception listener will re-establish the connection and create the receiver
+			    logger.error("Caught exception re-creating request receiver msg=" + ex.getMessage());
+			    logger.error(ex);
+			  }
+			}
+		  }
+		}
+	  });
 	}
 
 	/**
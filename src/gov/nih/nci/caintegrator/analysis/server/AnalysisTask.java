@@ -39,8 +39,11 @@ public abstract class AnalysisTask implements Runnable {
 
 	private AnalysisServerException ex = null;
 	
+	private Long queueTime = 0L;
 	private Long startTime = 0L;
 	private Long computeTime = 0L;
+	
+	private volatile boolean timedOut = false;
 
 	public AnalysisTask(AnalysisRequest request) {
 		this.request = request;
@@ -78,6 +81,26 @@ public abstract class AnalysisTask implements Runnable {
 		this.executingThreadName = executingThreadName;
 	}
 
+	/**
+	 * Get the name of the R data file that this task operates on. The executor
+	 * uses this to route the task to a thread that already has the file loaded.
+	 * 
+	 * @return the data file name or null if the task does not use a data file
+	 */
+	public String getDataFileName() {
+		return request.getDataFileName();
+	}
+
+	/**
+	 * Get the cost class used to schedule this task. Tasks are STANDARD unless
+	 * a subclass says otherwise.
+	 * 
+	 * @return the cost class of the task
+	 */
+	public TaskCostClass getCostClass() {
+		return TaskCostClass.STANDARD;
+	}
+
 	public AnalysisServerException getException() {
 		return ex;
 	}
@@ -86,6 +109,17 @@ public abstract class AnalysisTask implements Runnable {
 		this.ex = ex;
 	}
 
+	/**
+	 * @return true if the task was aborted because it ran longer than its timeout
+	 */
+	public boolean isTimedOut() {
+		return timedOut;
+	}
+
+	public void setTimedOut(boolean timedOut) {
+		this.timedOut = timedOut;
+	}
+
 	public Long getComputeTime() {
 		return computeTime;
 	}
@@ -94,6 +128,14 @@ public abstract class AnalysisTask implements Runnable {
 		this.computeTime = computeTime;
 	}
 
+	public Long getQueueTime() {
+		return queueTime;
+	}
+
+	public void setQueueTime(Long queueTime) {
+		this.queueTime = queueTime;
+	}
+
 	public Long getStartTime() {
 		return startTime;
 	}
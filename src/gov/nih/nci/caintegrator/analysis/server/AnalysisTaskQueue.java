@@ -0,0 +1,722 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The work queue used by the RThreadPoolExecutor.  Tasks are kept in one queue per
+ * TaskCostClass and the queues are served using weighted fair scheduling.  Each time a
+ * task is taken from a class the class is charged 1/weight, and the class with the least
+ * charge that has work waiting is served next.  A class that was idle starts again at
+ * the current charge level so it can not build up credit while it has nothing to run.
+ *
+ * Some threads can be reserved for INTERACTIVE tasks.  The reserved threads never
+ * run STANDARD or BATCH tasks so lookups always have a thread available even when
+ * the other threads are busy with long running jobs. At least one thread is always
+ * left unreserved.
+ *
+ * Within a class the queue tries to give each RThread a task whose R data file is already
+ * loaded on the thread's RComputeConnection, so that the expensive load() of the data file
+ * can be avoided. A thread will only pick up a task for a different data file when one of
+ * the following is true:
+ * <ul>
+ * <li>no other RThread currently has the data file loaded</li>
+ * <li>the task has already waited longer than it would take to reload the data file</li>
+ * </ul>
+ *
+ * When the Rserve compute is spread over several endpoints a thread will also leave a task 
+ * that needs a data file load to an idle thread on an endpoint that is running fewer tasks.
+ *
+ * The reload time for each data file is estimated from the load times observed by the
+ * executor.  Until a load has been observed the default load time is used.
+ *
+ * @see gov.nih.nci.caintegrator.analysis.server.RThreadPoolExecutor
+ * @see gov.nih.nci.caintegrator.analysis.server.TaskCostClass
+ *
+ * @author caIntegrator Team
+ *
+ */
+public class AnalysisTaskQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+	private Map<TaskCostClass, LinkedList<Runnable>> queues = new EnumMap<TaskCostClass, LinkedList<Runnable>>(TaskCostClass.class);
+
+	private Map<TaskCostClass, Integer> weights = new EnumMap<TaskCostClass, Integer>(TaskCostClass.class);
+
+	//the service charged to each class, in units of tasks/weight
+	private Map<TaskCostClass, Double> charges = new EnumMap<TaskCostClass, Double>(TaskCostClass.class);
+
+	//the charge of the most recently served class
+	private double currentCharge = 0.0;
+
+	private int numTasks = 0;
+
+	private ReentrantLock lock = new ReentrantLock();
+
+	private Condition taskAvailable = lock.newCondition();
+
+	//the threads that have asked for work, in the order they first asked
+	private List<Thread> threads = new ArrayList<Thread>();
+
+	//the threads currently blocked waiting for a task
+	private Set<Thread> waitingThreads = new HashSet<Thread>();
+
+	private int numReservedInteractiveThreads = 0;
+
+	//the data file that was loaded on each thread's connection the last time the thread asked for work
+	private Map<Thread, String> loadedDataFiles = new HashMap<Thread, String>();
+
+	//moving average of the observed load time (ms) for each data file
+	private Map<String, Long> dataFileLoadTimes = new HashMap<String, Long>();
+
+	private long defaultDataFileLoadTimeMS = 30000L;
+
+	//the number of tasks queued for each data file, used to pre-warm new threads
+	private Map<String, Integer> dataFileRequestCounts = new HashMap<String, Integer>();
+
+	private boolean affinityEnabled = true;
+
+	public AnalysisTaskQueue() {
+		super();
+		for (TaskCostClass costClass : TaskCostClass.values()) {
+			queues.put(costClass, new LinkedList<Runnable>());
+			charges.put(costClass, 0.0);
+		}
+		weights.put(TaskCostClass.INTERACTIVE, 8);
+		weights.put(TaskCostClass.STANDARD, 3);
+		weights.put(TaskCostClass.BATCH, 1);
+	}
+
+	public boolean offer(Runnable task) {
+		if (task == null) {
+			throw new NullPointerException();
+		}
+		lock.lock();
+		try {
+			if (task instanceof AnalysisTask) {
+				((AnalysisTask) task).setQueueTime(System.currentTimeMillis());
+			}
+			String dataFileName = getDataFileName(task);
+			if (dataFileName != null) {
+				Integer count = dataFileRequestCounts.get(dataFileName);
+				dataFileRequestCounts.put(dataFileName, (count == null) ? 1 : count.intValue() + 1);
+			}
+			TaskCostClass costClass = getCostClass(task);
+			LinkedList<Runnable> queue = queues.get(costClass);
+			if (queue.isEmpty()) {
+				//an idle class does not keep the credit it built up while it was idle
+				charges.put(costClass, Math.max(charges.get(costClass), currentCharge));
+			}
+			queue.addLast(task);
+			numTasks++;
+			//wake all waiting threads since only some of them may want this task
+			taskAvailable.signalAll();
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean offer(Runnable task, long timeout, TimeUnit unit) {
+		return offer(task);
+	}
+
+	public void put(Runnable task) {
+		offer(task);
+	}
+
+	/**
+	 * Non blocking poll.  This will never defer a task, if there is a task the
+	 * calling thread is allowed to run it is returned.
+	 */
+	public Runnable poll() {
+		lock.lock();
+		try {
+			Thread thread = Thread.currentThread();
+			Runnable task = selectTask(thread, System.currentTimeMillis());
+			if (task == null) {
+				List<TaskCostClass> order = getServiceOrder(thread);
+				if (!order.isEmpty()) {
+					task = dispatch(order.get(0), queues.get(order.get(0)).getFirst());
+				}
+			}
+			return task;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public Runnable take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			for (;;) {
+				long now = System.currentTimeMillis();
+				Runnable task = selectTask(Thread.currentThread(), now);
+				if (task != null) {
+					return task;
+				}
+				long timeUntilNextFallback = getTimeUntilNextFallback(Thread.currentThread(), now);
+				waitingThreads.add(Thread.currentThread());
+				try {
+					if (timeUntilNextFallback == Long.MAX_VALUE) {
+						taskAvailable.await();
+					}
+					else {
+						taskAvailable.await(timeUntilNextFallback, TimeUnit.MILLISECONDS);
+					}
+				}
+				finally {
+					waitingThreads.remove(Thread.currentThread());
+				}
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+		lock.lockInterruptibly();
+		try {
+			for (;;) {
+				long now = System.currentTimeMillis();
+				Runnable task = selectTask(Thread.currentThread(), now);
+				if (task != null) {
+					return task;
+				}
+				long remaining = deadline - now;
+				if (remaining <= 0L) {
+					return null;
+				}
+				remaining = Math.min(remaining, getTimeUntilNextFallback(Thread.currentThread(), now));
+				waitingThreads.add(Thread.currentThread());
+				try {
+					taskAvailable.await(remaining, TimeUnit.MILLISECONDS);
+				}
+				finally {
+					waitingThreads.remove(Thread.currentThread());
+				}
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public Runnable peek() {
+		lock.lock();
+		try {
+			for (LinkedList<Runnable> queue : queues.values()) {
+				if (!queue.isEmpty()) {
+					return queue.getFirst();
+				}
+			}
+			return null;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public int size() {
+		lock.lock();
+		try {
+			return numTasks;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the number of tasks waiting in one cost class.
+	 * @param costClass
+	 * @return the number of queued tasks of that class
+	 */
+	public int size(TaskCostClass costClass) {
+		lock.lock();
+		try {
+			return queues.get(costClass).size();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public int remainingCapacity() {
+		return Integer.MAX_VALUE;
+	}
+
+	public boolean remove(Object task) {
+		lock.lock();
+		try {
+			for (LinkedList<Runnable> queue : queues.values()) {
+				if (queue.remove(task)) {
+					numTasks--;
+					return true;
+				}
+			}
+			return false;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public int drainTo(Collection<? super Runnable> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	public int drainTo(Collection<? super Runnable> c, int maxElements) {
+		if (c == this) {
+			throw new IllegalArgumentException();
+		}
+		lock.lock();
+		try {
+			int n = 0;
+			for (LinkedList<Runnable> queue : queues.values()) {
+				while ((n < maxElements) && (!queue.isEmpty())) {
+					c.add(queue.removeFirst());
+					numTasks--;
+					n++;
+				}
+			}
+			return n;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns an iterator over a snapshot of the queued tasks.
+	 */
+	public Iterator<Runnable> iterator() {
+		lock.lock();
+		try {
+			List<Runnable> snapshot = new ArrayList<Runnable>(numTasks);
+			for (LinkedList<Runnable> queue : queues.values()) {
+				snapshot.addAll(queue);
+			}
+			return snapshot.iterator();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get how long the task that has been waiting the longest has been in the queue.
+	 * @return the wait time in milliseconds, 0 if the queue is empty
+	 */
+	public long getLongestWaitTime() {
+		lock.lock();
+		try {
+			long now = System.currentTimeMillis();
+			long longestWait = 0L;
+			for (LinkedList<Runnable> queue : queues.values()) {
+				if (!queue.isEmpty()) {
+					//tasks are queued in arrival order within a class
+					longestWait = Math.max(longestWait, getWaitTime(queue.getFirst(), now));
+				}
+			}
+			return longestWait;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the data file that has been requested by the most tasks.
+	 * @return the data file name or null if no task has used a data file yet
+	 */
+	public String getMostRequestedDataFile() {
+		lock.lock();
+		try {
+			String mostRequested = null;
+			int maxCount = 0;
+			for (Map.Entry<String, Integer> entry : dataFileRequestCounts.entrySet()) {
+				if (entry.getValue().intValue() > maxCount) {
+					mostRequested = entry.getKey();
+					maxCount = entry.getValue().intValue();
+				}
+			}
+			return mostRequested;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Record the time it took to load a data file.  This is used to estimate
+	 * how long a task should wait for a thread that already has the data file loaded.
+	 * @param dataFileName
+	 * @param loadTimeMS
+	 */
+	public void recordDataFileLoadTime(String dataFileName, long loadTimeMS) {
+		if (dataFileName == null) {
+			return;
+		}
+		lock.lock();
+		try {
+			Long previous = dataFileLoadTimes.get(dataFileName);
+			long estimate = loadTimeMS;
+			if (previous != null) {
+				//exponential moving average so one slow load does not dominate
+				estimate = (previous.longValue() * 3L + loadTimeMS) / 4L;
+			}
+			dataFileLoadTimes.put(dataFileName, estimate);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public long getEstimatedDataFileLoadTime(String dataFileName) {
+		lock.lock();
+		try {
+			return getEstimatedLoadTime(dataFileName);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Record the data file a thread is about to load. The thread's connection is checked
+	 * again the next time the thread asks for work.
+	 * @param thread
+	 * @param dataFileName
+	 */
+	public void setLoadedDataFile(Thread thread, String dataFileName) {
+		if (dataFileName == null) {
+			return;
+		}
+		lock.lock();
+		try {
+			loadedDataFiles.put(thread, dataFileName);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public void setDefaultDataFileLoadTimeMS(long defaultDataFileLoadTimeMS) {
+		this.defaultDataFileLoadTimeMS = defaultDataFileLoadTimeMS;
+	}
+
+	public long getDefaultDataFileLoadTimeMS() {
+		return defaultDataFileLoadTimeMS;
+	}
+
+	public void setAffinityEnabled(boolean affinityEnabled) {
+		this.affinityEnabled = affinityEnabled;
+	}
+
+	public boolean isAffinityEnabled() {
+		return affinityEnabled;
+	}
+
+	/**
+	 * Set the scheduling weight of a cost class. A class with weight 8 is served
+	 * eight times as often as a class with weight 1 when both have work waiting.
+	 * @param costClass
+	 * @param weight must be at least 1
+	 */
+	public void setWeight(TaskCostClass costClass, int weight) {
+		if (weight < 1) {
+			throw new IllegalArgumentException("Weight must be at least 1 costClass=" + costClass + " weight=" + weight);
+		}
+		lock.lock();
+		try {
+			weights.put(costClass, weight);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public int getWeight(TaskCostClass costClass) {
+		lock.lock();
+		try {
+			return weights.get(costClass);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Set the number of threads that will only run INTERACTIVE tasks.
+	 * @param numReservedInteractiveThreads
+	 */
+	public void setNumReservedInteractiveThreads(int numReservedInteractiveThreads) {
+		lock.lock();
+		try {
+			this.numReservedInteractiveThreads = numReservedInteractiveThreads;
+			taskAvailable.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public int getNumReservedInteractiveThreads() {
+		return numReservedInteractiveThreads;
+	}
+
+	/**
+	 * Choose the task the calling thread should run next and remove it from the queue.
+	 * Must be called with the lock held.
+	 * @param thread the thread asking for work
+	 * @param now the current time
+	 * @return the task to run or null if the thread should wait
+	 */
+	private Runnable selectTask(Thread thread, long now) {
+		if (!threads.contains(thread)) {
+			removeDeadThreads();
+			threads.add(thread);
+			//the reserved threads may have changed, waiting threads recompute what they wait for
+			taskAvailable.signalAll();
+		}
+
+		if (numTasks == 0) {
+			return null;
+		}
+
+		String loadedDataFile = updateLoadedDataFile(thread);
+
+		Runnable task;
+		for (TaskCostClass costClass : getServiceOrder(thread)) {
+			task = selectTask(queues.get(costClass), thread, loadedDataFile, isLessLoadedThreadWaiting(thread, costClass), now);
+			if (task != null) {
+				return dispatch(costClass, task);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Choose the task from a single class queue. Must be called with the lock held.
+	 */
+	private Runnable selectTask(LinkedList<Runnable> queue, Thread thread, String loadedDataFile, boolean lessLoadedThreadWaiting, long now) {
+		if ((!affinityEnabled) && (!queue.isEmpty())) {
+			return queue.getFirst();
+		}
+
+		Runnable fallback = null;
+		String dataFileName;
+		for (Runnable task : queue) {
+			dataFileName = getDataFileName(task);
+
+			if ((dataFileName == null) || (dataFileName.equals(loadedDataFile))) {
+				//no reload needed
+				return task;
+			}
+
+			if (getWaitTime(task, now) >= getEstimatedLoadTime(dataFileName)) {
+				//this task has waited longer than a reload would take
+				return task;
+			}
+
+			if ((fallback == null) && (!lessLoadedThreadWaiting) && (!isLoadedOnOtherThread(dataFileName, thread))) {
+				fallback = task;
+			}
+		}
+		return fallback;
+	}
+
+	/**
+	 * Remove the task from its class queue and charge the class for it.
+	 * Must be called with the lock held.
+	 */
+	private Runnable dispatch(TaskCostClass costClass, Runnable task) {
+		queues.get(costClass).remove(task);
+		numTasks--;
+		currentCharge = charges.get(costClass);
+		charges.put(costClass, currentCharge + 1.0 / weights.get(costClass));
+		return task;
+	}
+
+	/**
+	 * Get the non-empty classes the thread may run, least charged first.
+	 * Must be called with the lock held.
+	 */
+	private List<TaskCostClass> getServiceOrder(Thread thread) {
+		List<TaskCostClass> order = new ArrayList<TaskCostClass>(queues.size());
+		boolean reserved = isReservedForInteractive(thread);
+		for (TaskCostClass costClass : TaskCostClass.values()) {
+			if (queues.get(costClass).isEmpty()) {
+				continue;
+			}
+			if (reserved && (costClass != TaskCostClass.INTERACTIVE)) {
+				continue;
+			}
+			//insertion sort on the charge after serving one more task; ties go to the cheaper class
+			double charge = getNextCharge(costClass);
+			int i = 0;
+			while ((i < order.size()) && (getNextCharge(order.get(i)) <= charge)) {
+				i++;
+			}
+			order.add(i, costClass);
+		}
+		return order;
+	}
+
+	private double getNextCharge(TaskCostClass costClass) {
+		return charges.get(costClass) + 1.0 / weights.get(costClass);
+	}
+
+	private boolean isReservedForInteractive(Thread thread) {
+		int numReserved = Math.min(numReservedInteractiveThreads, threads.size() - 1);
+		int index = threads.indexOf(thread);
+		return (index >= 0) && (index < numReserved);
+	}
+
+	/**
+	 * Get the number of milliseconds until one of the deferred tasks the thread may run has
+	 * waited long enough to be taken by any thread.  Tasks of classes the thread may not run,
+	 * such as heavy tasks queued while the thread is reserved for INTERACTIVE tasks, are not
+	 * counted, the thread is woken when a task it may run is queued.  Must be called with the
+	 * lock held.
+	 * @return the wait time or Long.MAX_VALUE if the thread has no deferred task to wait for
+	 */
+	private long getTimeUntilNextFallback(Thread thread, long now) {
+		boolean reserved = isReservedForInteractive(thread);
+		long minWait = Long.MAX_VALUE;
+		for (Map.Entry<TaskCostClass, LinkedList<Runnable>> entry : queues.entrySet()) {
+			if (reserved && (entry.getKey() != TaskCostClass.INTERACTIVE)) {
+				continue;
+			}
+			for (Runnable task : entry.getValue()) {
+				long remaining = getEstimatedLoadTime(getDataFileName(task)) - getWaitTime(task, now);
+				minWait = Math.min(minWait, remaining);
+			}
+		}
+		return (minWait == Long.MAX_VALUE) ? minWait : Math.max(1L, minWait);
+	}
+
+	/**
+	 * Check whether another idle thread, that could run a task of the class, is connected to
+	 * an Rserve endpoint with fewer running tasks relative to its weight. Must be called with the lock held.
+	 */
+	private boolean isLessLoadedThreadWaiting(Thread thread, TaskCostClass costClass) {
+		double load = getEndpointTaskLoad(thread);
+		if (load < 0.0) {
+			return false;
+		}
+		for (Thread waitingThread : waitingThreads) {
+			if ((waitingThread == thread) || 
+			    ((costClass != TaskCostClass.INTERACTIVE) && (isReservedForInteractive(waitingThread)))) {
+				continue;
+			}
+			double waitingLoad = getEndpointTaskLoad(waitingThread);
+			if ((waitingLoad >= 0.0) && (waitingLoad < load)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the task load of the endpoint the thread is connected to or -1 if it is not known
+	 */
+	private static double getEndpointTaskLoad(Thread thread) {
+		if (thread instanceof RThread) {
+			RComputeConnection connection = ((RThread) thread).getRComputeConnection();
+			if ((connection != null) && (connection.getEndpoint() != null)) {
+				return connection.getEndpoint().getTaskLoad();
+			}
+		}
+		return -1.0;
+	}
+
+	/**
+	 * Forget threads that have exited, for example idle threads removed by an elastic pool.
+	 * Must be called with the lock held.
+	 */
+	private void removeDeadThreads() {
+		for (Iterator<Thread> i = threads.iterator(); i.hasNext(); ) {
+			Thread thread = i.next();
+			if (!thread.isAlive()) {
+				i.remove();
+				loadedDataFiles.remove(thread);
+			}
+		}
+	}
+
+	private String updateLoadedDataFile(Thread thread) {
+		String loadedDataFile = null;
+		if (thread instanceof RThread) {
+			RComputeConnection connection = ((RThread) thread).getRComputeConnection();
+			if (connection != null) {
+				loadedDataFile = connection.getRdataFileName();
+			}
+		}
+		loadedDataFiles.put(thread, loadedDataFile);
+		return loadedDataFile;
+	}
+
+	private boolean isLoadedOnOtherThread(String dataFileName, Thread thread) {
+		for (Map.Entry<Thread, String> entry : loadedDataFiles.entrySet()) {
+			if ((entry.getKey() != thread) && (dataFileName.equals(entry.getValue()))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private long getEstimatedLoadTime(String dataFileName) {
+		if (dataFileName == null) {
+			return 0L;
+		}
+		Long estimate = dataFileLoadTimes.get(dataFileName);
+		return (estimate != null) ? estimate.longValue() : defaultDataFileLoadTimeMS;
+	}
+
+	private static long getWaitTime(Runnable task, long now) {
+		if (task instanceof AnalysisTask) {
+			return now - ((AnalysisTask) task).getQueueTime().longValue();
+		}
+		return Long.MAX_VALUE;
+	}
+
+	private static String getDataFileName(Runnable task) {
+		if (task instanceof AnalysisTask) {
+			return ((AnalysisTask) task).getDataFileName();
+		}
+		return null;
+	}
+
+	private static TaskCostClass getCostClass(Runnable task) {
+		if (task instanceof AnalysisTask) {
+			return ((AnalysisTask) task).getCostClass();
+		}
+		return TaskCostClass.STANDARD;
+	}
+
+}
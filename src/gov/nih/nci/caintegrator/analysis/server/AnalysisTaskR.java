@@ -9,13 +9,18 @@ package gov.nih.nci.caintegrator.analysis.server;
 
 import gov.nih.nci.caintegrator.analysis.messaging.AnalysisRequest;
 import gov.nih.nci.caintegrator.analysis.messaging.IdGroup;
+import gov.nih.nci.caintegrator.analysis.messaging.SampleGroup;
 import gov.nih.nci.caintegrator.exceptions.AnalysisServerException;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 import org.rosuda.JRclient.REXP;
@@ -42,6 +47,39 @@ public abstract class AnalysisTaskR extends AnalysisTask {
 
 	private boolean debugRcommands = false;
 	
+	private String loadedDataFileName = null;
+	
+	private long dataFileLoadTimeMS = 0L;
+	
+	private UnfilteredStatisticsCache statisticsCache = null;
+	
+	private DataFileDictionaryCache dictionaryCache = null;
+	
+	private DendrogramCache dendrogramCache = null;
+	
+	private DataMatrixCache dataMatrixCache = null;
+	
+	private CorrelationRowStatisticsCache correlationRowStatisticsCache = null;
+	
+	//number of calls made to the Rserve by this task
+	private int numRoundTrips = 0;
+	
+	//send ID vectors to R as binary string vectors instead of as R source, on connections whose Rserve supports it
+	private static volatile boolean binaryIdAssignment = true;
+	
+	//the maximum number of missing IDs listed in an error message
+	private static final int MAX_IDS_IN_MESSAGE = 20;
+	
+	//makes the names of image files unique when tasks for the same session run at the same time
+	private static AtomicLong imageNumber = new AtomicLong();
+	
+	//the buffer used to read image files of unknown size, one per thread
+	private static ThreadLocal<byte[]> readBuffer = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {
+			return new byte[65536];
+		}
+	};
+	
 	private static Logger logger = Logger.getLogger(AnalysisTaskR.class);
 
 	public AnalysisTaskR(AnalysisRequest request) {
@@ -73,6 +111,8 @@ public abstract class AnalysisTaskR extends AnalysisTask {
 		  logger.info("AnalysisTaskR.setDataFile request=" + getRequest() + " switching data file from=" + connectionDataFileName + 
 				       " to=" + dataFileName);
 	      computeConnection.setRDataFile(dataFileName);
+	      loadedDataFileName = dataFileName;
+	      dataFileLoadTimeMS += computeConnection.getLastLoadTimeMS();
 		  
 		}
 		else {
@@ -81,6 +121,22 @@ public abstract class AnalysisTaskR extends AnalysisTask {
 		}
 	}
 	
+	/**
+	 * Get the name of the last data file this task had to load onto its connection.
+	 * @return the data file name or null if the task did not need to switch data files
+	 */
+	public String getLoadedDataFileName() {
+		return loadedDataFileName;
+	}
+	
+	/**
+	 * Get the total time this task spent loading data files.
+	 * @return the load time in milliseconds
+	 */
+	public long getDataFileLoadTimeMS() {
+		return dataFileLoadTimeMS;
+	}
+	
 	public void setRComputeConnection(RComputeConnection connection) throws AnalysisServerException {
 		this.computeConnection = connection;
 	}
@@ -96,6 +152,242 @@ public abstract class AnalysisTaskR extends AnalysisTask {
 	public void setDebugRcommands(boolean debugRcommands) {
 		this.debugRcommands = debugRcommands;
 	}
+	
+	/**
+	 * Get the number of evals and assignments this task has sent to the Rserve.
+	 * @return the number of round trips
+	 */
+	public int getNumRoundTrips() {
+		return numRoundTrips;
+	}
+
+	/**
+	 * Get the cache of unfiltered class comparison and F-test statistics.
+	 * @return the cache or null if statistics are not cached
+	 */
+	public UnfilteredStatisticsCache getStatisticsCache() {
+		return statisticsCache;
+	}
+
+	public void setStatisticsCache(UnfilteredStatisticsCache statisticsCache) {
+		this.statisticsCache = statisticsCache;
+	}
+
+	/**
+	 * Get the cache of the reporter and sample IDs of recently used data files.
+	 * @return the cache or null if IDs are not resolved in Java
+	 */
+	public DataFileDictionaryCache getDictionaryCache() {
+		return dictionaryCache;
+	}
+
+	public void setDictionaryCache(DataFileDictionaryCache dictionaryCache) {
+		this.dictionaryCache = dictionaryCache;
+	}
+
+	/**
+	 * Get the cache of recently computed clustering dendrograms.
+	 * @return the cache or null if dendrograms are not cached
+	 */
+	public DendrogramCache getDendrogramCache() {
+		return dendrogramCache;
+	}
+
+	public void setDendrogramCache(DendrogramCache dendrogramCache) {
+		this.dendrogramCache = dendrogramCache;
+	}
+
+	/**
+	 * Get the cache of the Java copies of the dataMatrix of recently used data files.
+	 * @return the cache or null if the Java statistics engines are not used
+	 */
+	public DataMatrixCache getDataMatrixCache() {
+		return dataMatrixCache;
+	}
+
+	public void setDataMatrixCache(DataMatrixCache dataMatrixCache) {
+		this.dataMatrixCache = dataMatrixCache;
+	}
+
+	/**
+	 * Get the cache of the per row means and norms of recent genome correlation sample sets.
+	 * @return the cache or null if they are not cached
+	 */
+	public CorrelationRowStatisticsCache getCorrelationRowStatisticsCache() {
+		return correlationRowStatisticsCache;
+	}
+
+	public void setCorrelationRowStatisticsCache(CorrelationRowStatisticsCache correlationRowStatisticsCache) {
+		this.correlationRowStatisticsCache = correlationRowStatisticsCache;
+	}
+
+	/**
+	 * Get the Java copy of the dataMatrix of a data file for the Java statistics engines.  If no
+	 * task has fetched it since the data file last changed the data file is loaded on this task's
+	 * connection and the IDs and values are fetched from R in one round trip.
+	 * @param dataFileName
+	 * @return the matrix or null if matrices are not kept or the matrix is larger than the cache
+	 * @throws AnalysisServerException
+	 */
+	protected DataMatrix getDataMatrix(String dataFileName) throws AnalysisServerException {
+		if (dataMatrixCache == null) {
+			return null;
+		}
+		DataMatrix matrix = dataMatrixCache.get(dataFileName);
+		if (matrix != null) {
+			return matrix;
+		}
+		setDataFile(dataFileName);
+		long numValues = (long) computeConnection.getNumDataMatrixRows() * computeConnection.getNumDataMatrixColumns();
+		if ((numValues < 0L) || (8L * numValues > dataMatrixCache.getMaxBytes())) {
+			logger.info("dataMatrix of data file=" + dataFileName + " rows=" + computeConnection.getNumDataMatrixRows() + 
+					    " columns=" + computeConnection.getNumDataMatrixColumns() + " does not fit in " + dataMatrixCache);
+			return null;
+		}
+		REXP fetched = doREval("list(dimnames(dataMatrix)[[1]], dimnames(dataMatrix)[[2]], as.double(as.matrix(dataMatrix)))");
+		Vector parts = (fetched != null) ? fetched.asVector() : null;
+		if ((parts == null) || (parts.size() != 3)) {
+			throw new AnalysisServerException("Internal Error. Could not get the dataMatrix values of data file=" + dataFileName);
+		}
+		DataFileDictionary dictionary = (dictionaryCache != null) ? dictionaryCache.get(dataFileName) : null;
+		if (dictionary == null) {
+			dictionary = new DataFileDictionary(dataFileName, RResultFrame.asStringArray((REXP) parts.get(0)), 
+					                            RResultFrame.asStringArray((REXP) parts.get(1)));
+			if (dictionaryCache != null) {
+				dictionaryCache.put(dictionary);
+			}
+		}
+		matrix = new DataMatrix(dictionary, RResultFrame.asDoubleArray((REXP) parts.get(2)));
+		dataMatrixCache.put(matrix);
+		return matrix;
+	}
+
+	/**
+	 * Get the dictionary of the data file loaded on this task's connection.  The dataMatrix
+	 * row and column names are fetched from R in one round trip if no task has fetched them 
+	 * since the data file last changed.
+	 * @return the dictionary or null if dictionaries are not kept
+	 * @throws AnalysisServerException
+	 */
+	protected DataFileDictionary getDataFileDictionary() throws AnalysisServerException {
+		String dataFileName = computeConnection.getRdataFileName();
+		if ((dictionaryCache == null) || (dataFileName == null)) {
+			return null;
+		}
+		DataFileDictionary dictionary = dictionaryCache.get(dataFileName);
+		if (dictionary == null) {
+			REXP dimnames = doREval("list(dimnames(dataMatrix)[[1]], dimnames(dataMatrix)[[2]])");
+			Vector parts = (dimnames != null) ? dimnames.asVector() : null;
+			if ((parts == null) || (parts.size() != 2)) {
+				throw new AnalysisServerException("Internal Error. Could not get the dataMatrix IDs of data file=" + dataFileName);
+			}
+			dictionary = new DataFileDictionary(dataFileName, RResultFrame.asStringArray((REXP) parts.get(0)), 
+					                            RResultFrame.asStringArray((REXP) parts.get(1)));
+			dictionaryCache.put(dictionary);
+		}
+		return dictionary;
+	}
+
+	/**
+	 * Check, before anything is sent to R, that every sample in a group is a column of the 
+	 * data matrix and that no sample is in the group twice.  Nothing is checked if the 
+	 * dictionary of the data file is not known.
+	 * 
+	 * @param groupName the name of the group used in the error message
+	 * @param samples
+	 * @throws AnalysisServerException naming the samples that are not in the data file
+	 */
+	protected void checkSamplesInDataFile(String groupName, IdGroup samples) throws AnalysisServerException {
+		DataFileDictionary dictionary = getDataFileDictionary();
+		if (dictionary == null) {
+			return;
+		}
+		checkSamplesInDataFile(dictionary, groupName, samples);
+	}
+
+	/**
+	 * @see #checkSamplesInDataFile(String, IdGroup)
+	 */
+	protected void checkSamplesInDataFile(DataFileDictionary dictionary, String groupName, IdGroup samples) throws AnalysisServerException {
+		String[] ids = getIds(samples);
+		List<String> missing = dictionary.getMissingSamples(ids);
+		if (!missing.isEmpty()) {
+			List<String> shown = (missing.size() > MAX_IDS_IN_MESSAGE) ? missing.subList(0, MAX_IDS_IN_MESSAGE) : missing;
+			throw new AnalysisServerException("Some sample ids did not match R data file=" + dictionary.getDataFileName() + 
+					                          " group=" + groupName + " numMissing=" + missing.size() + " of " + ids.length + 
+					                          " missing=" + shown + ((shown.size() < missing.size()) ? "..." : ""));
+		}
+		if (dictionary.hasSamplePositions() && (dictionary.getSamplePositions(ids).length < ids.length)) {
+			throw new AnalysisServerException("Sample group=" + groupName + " contains duplicate sample ids.");
+		}
+	}
+
+	/**
+	 * Check two groups of samples against a data file and get their column positions for a 
+	 * Java statistics engine, in the same order as in the matrix getSubmatrix.twogrps returns.
+	 * @param dictionary
+	 * @param group1
+	 * @param group2
+	 * @return the sorted one based positions of group1 followed by those of group2
+	 * @throws AnalysisServerException naming the samples that are not in the data file
+	 */
+	protected int[] getTwoGroupSamplePositions(DataFileDictionary dictionary, SampleGroup group1, SampleGroup group2) throws AnalysisServerException {
+		checkSamplesInDataFile(dictionary, group1.getGroupName(), group1);
+		checkSamplesInDataFile(dictionary, group2.getGroupName(), group2);
+		int[] group1Positions = dictionary.getSamplePositions(getIds(group1));
+		int[] group2Positions = dictionary.getSamplePositions(getIds(group2));
+		int[] positions = new int[group1Positions.length + group2Positions.length];
+		System.arraycopy(group1Positions, 0, positions, 0, group1Positions.length);
+		System.arraycopy(group2Positions, 0, positions, group1Positions.length, group2Positions.length);
+		return positions;
+	}
+
+	/**
+	 * Assign a group of samples for the getSubmatrix functions.  When the dictionary of the data
+	 * file is known the samples are sent as their sorted column positions in the data matrix, so
+	 * the matrix they are used with must have every column of the data matrix.  Samples that are
+	 * not in the data file are left out, as the getSubmatrix functions do.
+	 * 
+	 * @param rName
+	 * @param ids
+	 * @throws AnalysisServerException
+	 */
+	protected void doRassignSamples(String rName, IdGroup samples) throws AnalysisServerException {
+		doRassignSamples(rName, getIds(samples));
+	}
+	
+	/**
+	 * @see #doRassignSamples(String, IdGroup)
+	 */
+	protected void doRassignSamples(String rName, String[] ids) throws AnalysisServerException {
+		DataFileDictionary dictionary = getDataFileDictionary();
+		if ((dictionary != null) && (dictionary.hasSamplePositions())) {
+			doRassign(rName, dictionary.getSamplePositions(ids));
+		}
+		else {
+			doRassign(rName, ids);
+		}
+	}
+
+	/**
+	 * Assign a group of reporters for the getSubmatrix functions.  When the dictionary of the data
+	 * file is known the reporters are sent as their sorted row positions in the data matrix, so
+	 * the matrix they are used with must have every row of the data matrix.  
+	 * 
+	 * @param rName
+	 * @param reporters
+	 * @throws AnalysisServerException
+	 */
+	protected void doRassignReporters(String rName, IdGroup reporters) throws AnalysisServerException {
+		String[] ids = getIds(reporters);
+		DataFileDictionary dictionary = getDataFileDictionary();
+		if ((dictionary != null) && (dictionary.hasReporterPositions())) {
+			doRassign(rName, dictionary.getReporterPositions(ids));
+		}
+		else {
+			doRassign(rName, ids);
+		}
+	}
 
 	/**
 	 * Evaluate an R command with no return value
@@ -109,6 +401,7 @@ public abstract class AnalysisTaskR extends AnalysisTask {
 		if (debugRcommands) {
 			logger.debug(command);
 		}
+		numRoundTrips++;
 		try {
 			computeConnection.voidEval(command);
 		} catch (RSrvException e) {
@@ -128,6 +421,7 @@ public abstract class AnalysisTaskR extends AnalysisTask {
 	 */
 	protected REXP doREval(String command) throws AnalysisServerException {
 		REXP returnVal = null;
+		numRoundTrips++;
 		try {
 			if (debugRcommands) {
 			  logger.debug(command);
@@ -141,6 +435,412 @@ public abstract class AnalysisTaskR extends AnalysisTask {
 		return returnVal;
 	}
 
+	/**
+	 * Evaluate the commands of a task phase in one round trip.
+	 * 
+	 * @param script
+	 * @return the value of the script's result expression or null if it has none
+	 * @throws AnalysisServerException if a step fails. The message of a failed check is its 
+	 * failure message, otherwise the message identifies the phase, the step and the R error.
+	 */
+	protected REXP doREval(RScript script) throws AnalysisServerException {
+		REXP returnVal = doREval(script.getScript());
+		Vector parts = (returnVal != null) ? returnVal.asVector() : null;
+		if ((parts == null) || (parts.size() < 2)) {
+			throw new AnalysisServerException("Internal Error. Unexpected return value from " + script + " value=" + returnVal);
+		}
+		String status = ((REXP) parts.get(0)).asString();
+		if (RScript.STATUS_OK.equals(status)) {
+			keepWorkspaceObjects(script);
+			return (REXP) parts.get(1);
+		}
+		removeWorkspaceObjects(script);
+		
+		int stepNumber = -1;
+		try {
+			stepNumber = Integer.parseInt(((REXP) parts.get(1)).asString());
+		}
+		catch (NumberFormatException ex) {
+			//reported below as an unknown step
+		}
+		String rMessage = (parts.size() > 2) ? ((REXP) parts.get(2)).asString() : null;
+		String stepDescription = script.getStepDescription(stepNumber);
+		logger.error("R script failed request=" + getRequest() + " phase=" + script.getPhaseName() + " " + 
+				     stepDescription + " rMessage=" + rMessage);
+		
+		String checkFailureMessage = script.getCheckFailureMessage(stepNumber);
+		if (checkFailureMessage != null) {
+			throw new AnalysisServerException(checkFailureMessage);
+		}
+		throw new AnalysisServerException("Internal Error. R script phase=" + script.getPhaseName() + 
+				                          " failed at " + stepDescription + ": " + rMessage);
+	}
+	
+	/**
+	 * Record the objects created by a successful script in the workspace objects of the 
+	 * connection and remove the objects that were evicted to stay within the budget.
+	 */
+	private void keepWorkspaceObjects(RScript script) {
+		if (script.getNumWorkspaceObjects() == 0) {
+			return;
+		}
+		RWorkspaceObjects objects = computeConnection.getWorkspaceObjects();
+		List<String> evicted = new ArrayList<String>();
+		for (int i = 0; i < script.getNumWorkspaceObjects(); i++) {
+			evicted.addAll(objects.put(script.getWorkspaceObjectKey(i), script.getWorkspaceObjectName(i), 
+					                   script.getWorkspaceObjectBytes(i)));
+		}
+		removeWorkspaceObjects(evicted);
+		logger.debug("Workspace objects request=" + getRequest() + " " + objects);
+	}
+	
+	/**
+	 * Remove the objects created by a failed script, they were never recorded.
+	 */
+	private void removeWorkspaceObjects(RScript script) {
+		List<String> created = new ArrayList<String>();
+		for (int i = 0; i < script.getNumWorkspaceObjects(); i++) {
+			created.add(script.getWorkspaceObjectName(i));
+		}
+		removeWorkspaceObjects(created);
+	}
+	
+	private void removeWorkspaceObjects(List<String> rNames) {
+		String removeCmd = RWorkspaceObjects.getRemoveCommand(rNames);
+		if (removeCmd == null) {
+			return;
+		}
+		try {
+			//suppress the warnings for objects a failed script did not get to create
+			doRvoidEval("suppressWarnings(" + removeCmd + ")");
+		}
+		catch (AnalysisServerException ex) {
+			logger.warn("Could not remove workspace objects=" + rNames + " msg=" + ex.getMessage());
+		}
+	}
+	
+	/**
+	 * Add the step that creates the submatrix of the data matrix for a group of samples to the
+	 * script, or reuse the submatrix left in the workspace by an earlier task on this connection.
+	 * 
+	 * @param script
+	 * @param rName the name to give the submatrix if it is not kept in the workspace
+	 * @param idsRName the name to give the sample ID vector if it has to be assigned
+	 * @param samples
+	 * @return the R name of the submatrix
+	 * @throws AnalysisServerException
+	 */
+	protected String addSampleSubmatrix(RScript script, String rName, String idsRName, IdGroup samples) throws AnalysisServerException {
+		return addSampleSubmatrix(script, rName, idsRName, samples, "dataMatrix", "getSubmatrix.onegrp");
+	}
+	
+	/**
+	 * Add the step that creates the submatrix of a matrix derived from the data matrix for a
+	 * group of samples, or reuse the submatrix left in the workspace by an earlier task.
+	 * 
+	 * @param script
+	 * @param rName the name to give the submatrix if it is not kept in the workspace
+	 * @param idsRName the name to give the sample ID vector if it has to be assigned
+	 * @param samples
+	 * @param matrixExpression the R expression for the matrix to subset, it must have every 
+	 * column of the data matrix
+	 * @param kind identifies how the matrix was derived from the data matrix, objects of 
+	 * the same kind and with the same samples are reused
+	 * @return the R name of the submatrix
+	 * @throws AnalysisServerException
+	 */
+	protected String addSampleSubmatrix(RScript script, String rName, String idsRName, IdGroup samples, 
+			                            String matrixExpression, String kind) throws AnalysisServerException {
+		String[] ids = getIds(samples);
+		String key = getWorkspaceObjectKey(kind, ids);
+		String keptName = getWorkspaceObject(key);
+		if (keptName != null) {
+			return keptName;
+		}
+		doRassignSamples(idsRName, ids);
+		return addWorkspaceObject(script, "subset samples", rName, 
+				                  "getSubmatrix.onegrp(" + matrixExpression + ", " + idsRName + getColumnIndexArgument() + ")", 
+				                  key, ids.length);
+	}
+	
+	/**
+	 * Add the step that creates the submatrix of the data matrix for two groups of samples 
+	 * (the samples of the first group followed by the samples of the second group) to the 
+	 * script, or reuse the submatrix left in the workspace by an earlier task on this connection.
+	 * 
+	 * @param script
+	 * @param rName the name to give the submatrix if it is not kept in the workspace
+	 * @param grp1RName the name to give the first sample ID vector if it has to be assigned
+	 * @param group1
+	 * @param grp2RName the name to give the second sample ID vector if it has to be assigned
+	 * @param group2
+	 * @return the R name of the submatrix
+	 * @throws AnalysisServerException
+	 */
+	protected String addTwoGroupSubmatrix(RScript script, String rName, String grp1RName, IdGroup group1, 
+			                              String grp2RName, IdGroup group2) throws AnalysisServerException {
+		String[] ids1 = getIds(group1);
+		String[] ids2 = getIds(group2);
+		String key = getWorkspaceObjectKey("getSubmatrix.twogrps", ids1, ids2);
+		String keptName = getWorkspaceObject(key);
+		if (keptName != null) {
+			return keptName;
+		}
+		doRassignSamples(grp1RName, ids1);
+		doRassignSamples(grp2RName, ids2);
+		return addWorkspaceObject(script, "create the input data matrix using the sample groups", rName, 
+				                  "getSubmatrix.twogrps(dataMatrix," + grp1RName + "," + grp2RName + getColumnIndexArgument() + ")", 
+				                  key, ids1.length + ids2.length);
+	}
+	
+	/**
+	 * Get the argument that passes the name to position index of the dataMatrix rows to 
+	 * getSubmatrix.rep or getSubmatrix.repNew, so the reporters are found without scanning
+	 * every row name.  The index can only be used with matrices that have every row of 
+	 * dataMatrix in the same order, for example a submatrix for a group of samples.
+	 * @return the argument or an empty string if there is no index
+	 */
+	protected String getRowIndexArgument() {
+		return computeConnection.hasDataMatrixRowIndex() ? ", dataMatrixRowIndex" : "";
+	}
+	
+	/**
+	 * Get the argument that passes the name to position index of the dataMatrix columns to 
+	 * getSubmatrix.onegrp or getSubmatrix.twogrps.  The index can only be used with matrices
+	 * that have every column of dataMatrix in the same order, for example a submatrix for a 
+	 * group of reporters.
+	 * @return the argument or an empty string if there is no index
+	 */
+	protected String getColumnIndexArgument() {
+		return computeConnection.hasDataMatrixColumnIndex() ? ", dataMatrixColumnIndex" : "";
+	}
+	
+	/**
+	 * Get the key of a submatrix of the data matrix loaded on the connection.
+	 * @return the key or null if objects are not kept in the workspace
+	 */
+	private String getWorkspaceObjectKey(String kind, String[]... idSets) {
+		if ((computeConnection.getWorkspaceObjects().getMaxBytes() <= 0L) || 
+			(computeConnection.getNumDataMatrixRows() < 0) || (computeConnection.getRdataFileName() == null)) {
+			return null;
+		}
+		return RWorkspaceObjects.getKey(kind, computeConnection.getRdataFileName(), idSets);
+	}
+	
+	private String getWorkspaceObject(String key) {
+		if (key == null) {
+			return null;
+		}
+		String rName = computeConnection.getWorkspaceObjects().get(key);
+		if (rName != null) {
+			logger.info("Reusing workspace object=" + rName + " request=" + getRequest() + " key=" + key);
+		}
+		return rName;
+	}
+	
+	/**
+	 * Add the step that creates a submatrix.  The submatrix is given a workspace object name
+	 * if it fits in the budget and the task's own name otherwise.
+	 * @return the name given to the submatrix
+	 */
+	private String addWorkspaceObject(RScript script, String description, String rName, String expression, String key, int numColumns) {
+		RWorkspaceObjects objects = computeConnection.getWorkspaceObjects();
+		//doubles, the row and column names are not counted
+		long estimatedBytes = 8L * computeConnection.getNumDataMatrixRows() * numColumns;
+		if ((key == null) || (estimatedBytes > objects.getMaxBytes())) {
+			script.add(description, rName + " <- " + expression);
+			return rName;
+		}
+		String objectName = objects.newName();
+		script.add(description, objectName + " <- " + expression);
+		script.addWorkspaceObject(key, objectName, estimatedBytes);
+		return objectName;
+	}
+	
+	protected static String[] getIds(IdGroup group) {
+		List<String> ids = new ArrayList<String>();
+		if (group != null) {
+			for (Iterator i = group.iterator(); i.hasNext();) {
+				ids.add((String) i.next());
+			}
+		}
+		return ids.toArray(new String[ids.size()]);
+	}
+	
+	/**
+	 * Evaluate the commands of a task phase in one round trip.
+	 * @param script
+	 * @throws AnalysisServerException if a step fails
+	 */
+	protected void doRvoidEval(RScript script) throws AnalysisServerException {
+		doREval(script);
+	}
+	
+	/**
+	 * Evaluate the commands of a task phase and fetch a numeric data frame or matrix 
+	 * created by the phase, all in one round trip.
+	 * @param script
+	 * @param frameName
+	 * @return the decoded frame
+	 * @throws AnalysisServerException
+	 */
+	protected RResultFrame doREvalFrame(RScript script, String frameName) throws AnalysisServerException {
+		script.setResultExpression(RResultFrame.getFetchCommand(frameName));
+		return RResultFrame.decode(doREval(script));
+	}
+
+	/**
+	 * Fetch the values of one reporter for a group of samples in one round trip after the 
+	 * sample IDs are assigned.  The values are left in R as the one column matrix RM.
+	 * 
+	 * @param reporterName
+	 * @param samples the samples to get values for, all samples in the data matrix if null or empty
+	 * @return a frame with the sample IDs as row names and the values as its only column, 
+	 * no rows if the reporter is not in the data matrix
+	 * @throws AnalysisServerException
+	 */
+	protected RResultFrame doREvalReporterValues(String reporterName, IdGroup samples) throws AnalysisServerException {
+		RScript script = new RScript("reporter values");
+		if ((samples != null) && (!samples.isEmpty())) {
+			doRassignSamples("sampleIds", getIds(samples));
+			script.add("subset samples", "SM <- getSubmatrix.onegrp(dataMatrix, sampleIds" + getColumnIndexArgument() + ")");
+		}
+		else {
+			//use the entire data matrix without restricting on samples
+			script.add("use all samples", "SM <- dataMatrix");
+		}
+		script.add("subset reporter", "RM <- getSubmatrix.rep(SM," + RScript.quote(reporterName) + getRowIndexArgument() + ")");
+		return doREvalFrame(script, "RM");
+	}
+
+	/**
+	 * Fetch a numeric data frame or matrix, with its row and column names, in one round trip.
+	 * 
+	 * @param frameName the name of the R data frame or matrix
+	 * @return the decoded frame
+	 * @throws AnalysisServerException
+	 */
+	protected RResultFrame doREvalFrame(String frameName) throws AnalysisServerException {
+		return RResultFrame.decode(doREval(RResultFrame.getFetchCommand(frameName)));
+	}
+
+	/**
+	 * Create a character vector in R from the IDs in a group.  The IDs are sent using the 
+	 * binary QAP1 encoding so R does not have to parse a command containing every ID.
+	 * 
+	 * @param rName The name that R should use for the group
+	 * @param group The group of IDs to use.
+	 * @throws AnalysisServerException
+	 */
+	protected void doRassignGroup(String rName, IdGroup group) throws AnalysisServerException {
+		doRassign(rName, getIds(group));
+	}
+	
+	/**
+	 * Create a character vector in R from the string values of a list of items.
+	 * 
+	 * @param rName The name that R should use for the vector
+	 * @param items
+	 * @throws AnalysisServerException
+	 */
+	protected void doRassignGroup(String rName, List items) throws AnalysisServerException {
+		String[] values = new String[items.size()];
+		int index = 0;
+		for (Iterator i = items.iterator(); i.hasNext(); ) {
+			values[index++] = i.next().toString();
+		}
+		doRassign(rName, values);
+	}
+	
+	/**
+	 * Create a character vector in R.  Falls back to evaluating the command built by
+	 * getRgroupCmd if the vector is empty or the Rserve of the connection does not accept 
+	 * string vectors.
+	 * 
+	 * @param rName
+	 * @param values
+	 * @throws AnalysisServerException
+	 */
+	protected void doRassign(String rName, String[] values) throws AnalysisServerException {
+		if ((!binaryIdAssignment) || (values.length == 0) || (!computeConnection.supportsStringVectorAssignment())) {
+			doRvoidEval(getRgroupCmd(rName, Arrays.asList(values)));
+			return;
+		}
+		if (debugRcommands) {
+			logger.debug(rName + " <- character vector of length " + values.length);
+		}
+		numRoundTrips++;
+		try {
+			computeConnection.assign(rName, new REXP(values));
+		} catch (RSrvException e) {
+			logger.error("doRassign threw RSrvException when assigning string vector name=" + rName + " msg=" + e.getMessage());
+			logStackTrace(logger, e);
+			throw new AnalysisServerException("Internal Error. Could not assign string vector name=" + rName);
+		}
+	}
+	
+	/**
+	 * Create an integer vector in R, for example the positions of a group of samples.
+	 * 
+	 * @param rName
+	 * @param values
+	 * @throws AnalysisServerException
+	 */
+	protected void doRassign(String rName, int[] values) throws AnalysisServerException {
+		if (values.length == 0) {
+			doRvoidEval(rName + " <- integer(0)");
+			return;
+		}
+		if (debugRcommands) {
+			logger.debug(rName + " <- integer vector of length " + values.length);
+		}
+		numRoundTrips++;
+		try {
+			computeConnection.assign(rName, new REXP(values));
+		} catch (RSrvException e) {
+			logger.error("doRassign threw RSrvException when assigning integer vector name=" + rName);
+			logStackTrace(logger, e);
+			throw new AnalysisServerException("Internal Error. Could not assign integer vector name=" + rName);
+		}
+	}
+	
+	/**
+	 * Create a numeric vector in R.
+	 * 
+	 * @param rName
+	 * @param values
+	 * @throws AnalysisServerException
+	 */
+	protected void doRassign(String rName, double[] values) throws AnalysisServerException {
+		if (values.length == 0) {
+			doRvoidEval(rName + " <- numeric(0)");
+			return;
+		}
+		if (debugRcommands) {
+			logger.debug(rName + " <- numeric vector of length " + values.length);
+		}
+		numRoundTrips++;
+		try {
+			computeConnection.assign(rName, new REXP(values));
+		} catch (RSrvException e) {
+			logger.error("doRassign threw RSrvException when assigning numeric vector name=" + rName);
+			logStackTrace(logger, e);
+			throw new AnalysisServerException("Internal Error. Could not assign numeric vector name=" + rName);
+		}
+	}
+	
+	/**
+	 * Set whether ID vectors are sent to R as binary string vectors or as R commands.
+	 * @param binaryIdAssignment
+	 */
+	public static void setBinaryIdAssignment(boolean binaryIdAssignment) {
+		AnalysisTaskR.binaryIdAssignment = binaryIdAssignment;
+	}
+	
+	public static boolean isBinaryIdAssignment() {
+		return binaryIdAssignment;
+	}
+
 	public static String getQuotedString(String inputStr) {
 		return "\"" + inputStr + "\"";
 	}
@@ -194,6 +894,9 @@ public abstract class AnalysisTaskR extends AnalysisTask {
 	/**
 	 * Get the byte representation of the image created with the plot command.
 	 * This code follows the example of how to transfer an image using Rserve in the Rserve examples. 
+	 * The plot, closing the device and getting the size of the image file are done in one round
+	 * trip and the image is read straight into an array of that size.  The image file is removed 
+	 * from the Rserve host (and the device closed) even if the plot fails.
 	 * 
 	 * @param plotCmd
 	 * @param imgHeight the height of the image to create
@@ -206,10 +909,12 @@ public abstract class AnalysisTaskR extends AnalysisTask {
 		byte[] imgCode = new byte[0];
 		
 		String fileName = null;
+		
+		boolean fileRemoved = false;
 
 		try {
 			fileName = "image_" + getRequest().getSessionId() + "_"
-					+ System.currentTimeMillis() + ".png";
+					+ System.currentTimeMillis() + "_" + imageNumber.incrementAndGet() + ".png";
 			
 		    fileName = fileName.replace(' ','_');  //should never have spaces but just to be sure
 			
@@ -230,14 +935,23 @@ public abstract class AnalysisTaskR extends AnalysisTask {
 				return new byte[0];
 			}
 
-			//do the plot
-			doRvoidEval(plotCmd);
-			doRvoidEval("dev.off()");
+			//do the plot and get the size of the image file
+			RScript script = new RScript("image");
+			script.add("plot", plotCmd);
+			script.add("close the graphics device", "dev.off()");
+			script.setResultExpression("as.double(file.info(" + RScript.quote(fileName) + ")$size)");
+			double[] size = RResultFrame.asDoubleArray(doREval(script));
+			int numBytes = ((size.length == 1) && (!Double.isNaN(size[0]))) ? (int) size[0] : -1;
 
 			RFileInputStream is = computeConnection.openFile(fileName);
-			imgCode = getBytes(is);
-			is.close();
+			try {
+				imgCode = getBytes(is, numBytes);
+			}
+			finally {
+				is.close();
+			}
 			computeConnection.removeFile(fileName);
+			fileRemoved = true;
 		} catch (IOException ex) {
 			logger.error("Caught IOException in getImageCode. FileName=" + fileName);
 			logStackTrace(logger, ex);
@@ -251,34 +965,62 @@ public abstract class AnalysisTaskR extends AnalysisTask {
 			logStackTrace(logger, exg);
 			throw new AnalysisServerException("Internal Error. Caught Exception in getImageCode plotCmd=" + plotCmd);
 		}
+		finally {
+			if ((fileName != null) && (!fileRemoved)) {
+				removeImageFile(fileName);
+			}
+		}
 
 		logger.info("getImageCode returning image numBytes=" + imgCode.length);
 		return imgCode;
 
 	}
+	
+	/**
+	 * Close any graphics device left open by a failed plot and remove the image file.
+	 * @param fileName
+	 */
+	private void removeImageFile(String fileName) {
+		try {
+			computeConnection.voidEval("{ while (dev.cur() > 1) dev.off(); unlink(" + RScript.quote(fileName) + ") }");
+		}
+		catch (RSrvException ex) {
+			logger.warn("Could not remove image file=" + fileName + " msg=" + ex.getMessage());
+		}
+	}
 
 	/**
 	 * Get an array of bytes from a stream
 	 * @param is
+	 * @param numBytes the number of bytes in the stream or -1 if it is not known.  When it
+	 * is known the bytes are read straight into the returned array.
 	 * @return
+	 * @throws IOException
 	 */
-	private byte[] getBytes(InputStream is) {
-	  ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-	  int numRead = -1;
-	  try {
-		  //using the buffer size from the Rserve example. Not sure why they are
-		  //setting it to this value.
-		  byte[] buff = new byte[65536];
-		  while ((numRead = is.read(buff)) != -1) {
-		    byteStream.write(buff, 0, numRead);
+	private byte[] getBytes(InputStream is, int numBytes) throws IOException {
+	  if (numBytes >= 0) {
+		  byte[] returnArray = new byte[numBytes];
+		  int offset = 0;
+		  int numRead = 0;
+		  while ((offset < numBytes) && ((numRead = is.read(returnArray, offset, numBytes - offset)) != -1)) {
+			  offset += numRead;
 		  }
+		  if (offset < numBytes) {
+			  throw new IOException("Image file size=" + numBytes + " but read numBytes=" + offset);
+		  }
+		  logger.debug("getBytes returning numbytes=" + returnArray.length);
+		  return returnArray;
 	  }
-	  catch (IOException ex) {
-		logger.error("Caught IOException in getBytes method.");
-	    logStackTrace(logger, ex);
+	  
+	  ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+	  //using the buffer size from the Rserve example, the buffer is reused by the thread
+	  byte[] buff = readBuffer.get();
+	  int numRead = -1;
+	  while ((numRead = is.read(buff)) != -1) {
+	    byteStream.write(buff, 0, numRead);
 	  }
 	  byte[] returnArray = byteStream.toByteArray();
 	  logger.debug("getBytes returning numbytes=" + returnArray.length);
-	  return byteStream.toByteArray();
+	  return returnArray;
 	}
 }
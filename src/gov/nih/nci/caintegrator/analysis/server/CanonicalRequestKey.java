@@ -0,0 +1,241 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import gov.nih.nci.caintegrator.analysis.messaging.AnalysisRequest;
+import gov.nih.nci.caintegrator.analysis.messaging.IdGroup;
+
+import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Builds a key that is the same for two requests that ask for the same analysis.
+ * The key is built from the bean properties of the request, sorted by name, with the
+ * sessionId and taskId left out at every level.  The elements of sets, such as the IDs in 
+ * sample and reporter groups, are sorted so the order they were selected in does not matter.
+ * Lists and arrays keep their order. The canonical form is 
+ * hashed so the key stays small for requests with large groups.
+ * 
+ * @author caIntegrator Team
+ *
+ */
+public class CanonicalRequestKey {
+
+	private static final String[] EXCLUDED_PROPERTIES = { "sessionId", "taskId", "class" };
+	
+	private static final Comparator<PropertyDescriptor> PROPERTY_NAME_ORDER = new Comparator<PropertyDescriptor>() {
+		public int compare(PropertyDescriptor p1, PropertyDescriptor p2) {
+			return p1.getName().compareTo(p2.getName());
+		}
+	};
+	
+	private CanonicalRequestKey() {
+	}
+	
+	/**
+	 * Get the key for a request.
+	 * @param request
+	 * @return the hex encoded SHA-256 hash of the canonical form of the request
+	 */
+	public static String getKey(AnalysisRequest request) {
+		return getKey(request, new String[0]);
+	}
+	
+	/**
+	 * Get the key for a request ignoring some of its properties, for example to find 
+	 * requests that differ only in their filtering thresholds.
+	 * @param request
+	 * @param ignoredProperties the names of the properties to leave out at every level
+	 * @return the hex encoded SHA-256 hash of the canonical form of the request
+	 */
+	public static String getKey(AnalysisRequest request, String... ignoredProperties) {
+		String canonicalForm = getCanonicalForm(request, ignoredProperties);
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] hash = digest.digest(canonicalForm.getBytes("UTF-8"));
+			StringBuffer key = new StringBuffer(hash.length * 2);
+			for (byte b : hash) {
+				key.append(Character.forDigit((b >> 4) & 0xf, 16));
+				key.append(Character.forDigit(b & 0xf, 16));
+			}
+			return key.toString();
+		}
+		catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException("SHA-256 not available", ex);
+		}
+		catch (UnsupportedEncodingException ex) {
+			throw new IllegalStateException("UTF-8 not available", ex);
+		}
+	}
+	
+	/**
+	 * Get the canonical form of a request.
+	 * @param request
+	 * @return a string that describes every property of the request that affects the result
+	 */
+	public static String getCanonicalForm(AnalysisRequest request) {
+		return getCanonicalForm(request, new String[0]);
+	}
+	
+	/**
+	 * Get the canonical form of a request ignoring some of its properties.
+	 * @param request
+	 * @param ignoredProperties the names of the properties to leave out at every level
+	 * @return a string that describes every other property of the request that affects the result
+	 */
+	public static String getCanonicalForm(AnalysisRequest request, String... ignoredProperties) {
+		List<String> excluded = new ArrayList<String>(Arrays.asList(EXCLUDED_PROPERTIES));
+		excluded.addAll(Arrays.asList(ignoredProperties));
+		StringBuffer sb = new StringBuffer();
+		appendValue(sb, request, new IdentityHashMap<Object, Object>(), excluded);
+		return sb.toString();
+	}
+	
+	/**
+	 * Get the value of a bean property of a request.
+	 * @param request
+	 * @param propertyName
+	 * @return the value or null if the request has no readable property of that name
+	 */
+	public static Object getPropertyValue(AnalysisRequest request, String propertyName) {
+		try {
+			BeanInfo beanInfo = Introspector.getBeanInfo(request.getClass(), getFirstJdkSuperclass(request.getClass()));
+			for (PropertyDescriptor property : beanInfo.getPropertyDescriptors()) {
+				if ((property.getName().equals(propertyName)) && (property.getReadMethod() != null)) {
+					return property.getReadMethod().invoke(request);
+				}
+			}
+		}
+		catch (Exception ex) {
+			//treated as a missing property
+		}
+		return null;
+	}
+	
+	private static void appendValue(StringBuffer sb, Object value, Map<Object, Object> visited, Collection<String> excluded) {
+		if (value == null) {
+			sb.append("null");
+		}
+		else if ((value instanceof String) || (value instanceof Number) || (value instanceof Boolean) || 
+				 (value instanceof Character) || (value instanceof Enum)) {
+			sb.append(value.getClass().getSimpleName()).append(':').append(value);
+		}
+		else if (value.getClass().isArray()) {
+			List<Object> elements = new ArrayList<Object>();
+			for (int i = 0; i < Array.getLength(value); i++) {
+				elements.add(Array.get(value, i));
+			}
+			appendCollection(sb, elements, false, visited, excluded);
+		}
+		else if (visited.containsKey(value)) {
+			sb.append("cycle");
+		}
+		else {
+			visited.put(value, value);
+			sb.append(value.getClass().getName()).append('{');
+			appendProperties(sb, value, visited, excluded);
+			if (value instanceof Collection) {
+				appendCollection(sb, (Collection<?>) value, (value instanceof Set) || (value instanceof IdGroup), visited, excluded);
+			}
+			else if (value instanceof Map) {
+				appendMap(sb, (Map<?, ?>) value, visited, excluded);
+			}
+			sb.append('}');
+			visited.remove(value);
+		}
+	}
+	
+	/**
+	 * Append a collection.  The elements of an unordered collection are sorted by their
+	 * canonical form, the elements of lists and arrays keep their order.
+	 */
+	private static void appendCollection(StringBuffer sb, Collection<?> values, boolean unordered, Map<Object, Object> visited, 
+			                             Collection<String> excluded) {
+		List<String> elements = new ArrayList<String>(values.size());
+		for (Object value : values) {
+			StringBuffer elementSb = new StringBuffer();
+			appendValue(elementSb, value, visited, excluded);
+			elements.add(elementSb.toString());
+		}
+		if (unordered) {
+			Collections.sort(elements);
+		}
+		sb.append('[');
+		for (String element : elements) {
+			sb.append(element).append(',');
+		}
+		sb.append(']');
+	}
+	
+	private static void appendMap(StringBuffer sb, Map<?, ?> map, Map<Object, Object> visited, Collection<String> excluded) {
+		List<String> entries = new ArrayList<String>();
+		for (Map.Entry<?, ?> entry : map.entrySet()) {
+			StringBuffer entrySb = new StringBuffer();
+			appendValue(entrySb, entry.getKey(), visited, excluded);
+			entrySb.append('=');
+			appendValue(entrySb, entry.getValue(), visited, excluded);
+			entries.add(entrySb.toString());
+		}
+		Collections.sort(entries);
+		sb.append(entries);
+	}
+	
+	/**
+	 * Append the bean properties declared by the application classes of the object.
+	 */
+	private static void appendProperties(StringBuffer sb, Object value, Map<Object, Object> visited, Collection<String> excluded) {
+		BeanInfo beanInfo;
+		try {
+			beanInfo = Introspector.getBeanInfo(value.getClass(), getFirstJdkSuperclass(value.getClass()));
+		}
+		catch (IntrospectionException ex) {
+			sb.append(value);
+			return;
+		}
+		PropertyDescriptor[] properties = beanInfo.getPropertyDescriptors();
+		Arrays.sort(properties, PROPERTY_NAME_ORDER);
+		for (PropertyDescriptor property : properties) {
+			Method readMethod = property.getReadMethod();
+			if ((readMethod == null) || (excluded.contains(property.getName()))) {
+				continue;
+			}
+			sb.append(property.getName()).append('=');
+			try {
+				appendValue(sb, readMethod.invoke(value), visited, excluded);
+			}
+			catch (Exception ex) {
+				sb.append("error:").append(ex.getClass().getSimpleName());
+			}
+			sb.append(';');
+		}
+	}
+	
+	private static Class<?> getFirstJdkSuperclass(Class<?> cls) {
+		Class<?> superclass = cls.getSuperclass();
+		while ((superclass != null) && (!superclass.getName().startsWith("java."))) {
+			superclass = superclass.getSuperclass();
+		}
+		return (superclass != null) ? superclass : Object.class;
+	}
+}
@@ -81,6 +81,21 @@ public class CategoricalCorrelationTaskR extends AnalysisTaskR {
 		}
 	}
 
+	/**
+	 * The data file used by a categorical correlation request is specified by the reporters.
+	 */
+	@Override
+	public String getDataFileName() {
+		CategoricalCorrelationRequest request = (CategoricalCorrelationRequest) getRequest();
+		if ((request.getDataVectors() != null) && (!request.getDataVectors().isEmpty())) {
+		  return null;
+		}
+		if ((request.getReporters() == null) || (request.getReporters().isEmpty())) {
+		  return null;
+		}
+		return request.getReporters().get(0).getDataFileName();
+	}
+
 	/**
 	 * Get the expression values for the reporter specified in the ReporterInfo object.
 	 * @param ri
@@ -92,39 +107,21 @@ public class CategoricalCorrelationTaskR extends AnalysisTaskR {
 		try {
 			DataPointVector dpVector = new DataPointVector(ri.getSampleGroup().getGroupName());
 			setDataFile(ri.getDataFileName());
-		    String cmd;
 		    SampleGroup sampleIds = ri.getSampleGroup();
-		
-			if ((sampleIds != null)&&(!sampleIds.isEmpty())) {
-			  String sampleIdscmd = getRgroupCmd("sampleIds", sampleIds);
-			  doRvoidEval(sampleIdscmd);
 			
-			  cmd = "SM <- getSubmatrix.onegrp(dataMatrix, sampleIds)";
-			  doRvoidEval(cmd);			  
-			}
-			else {
-			  //use the entire data matrix without restricting on samples
-			  cmd = "SM <- dataMatrix";
-			  doRvoidEval(cmd);
-			}
-			
-			
-			cmd = "RM <- getSubmatrix.rep(SM,\"" + ri.getReporterName() + "\")";
-			double[] vec =  doREval(cmd).asDoubleArray();
 			//need to make sure that the vectors are in the same order wrt sample ids
-			cmd = "RMlabels <- dimnames(RM)[[1]]";
-			Vector RM_ids = doREval(cmd).asVector();
+			RResultFrame reporterValues = doREvalReporterValues(ri.getReporterName(), sampleIds);
 			
-		    if (RM_ids == null) {
+		    if (reporterValues.getNumRows() == 0) {
 		      throw new AnalysisServerException("No expression data found for reporter " + ri.getReporterName() + " in data file=" + ri.getDataFileName() + ".");
 		    }
 			
+			double[] vec = reporterValues.getColumn(0);
+			String[] RM_ids = reporterValues.getRowNames();
 			DataPoint point;
 			String id;
-			REXP exp;
-			for (int i=0; i < RM_ids.size(); i++) {
-			  exp = (REXP) RM_ids.get(i);
-			  id = exp.asString();
+			for (int i=0; i < RM_ids.length; i++) {
+			  id = RM_ids[i];
 			  
 			  //logger.info("Adding data point with id=" + id);
 			  point = new DataPoint(id);	
@@ -171,6 +168,11 @@ public class CategoricalCorrelationTaskR extends AnalysisTaskR {
 		}
 	}
 
+	@Override
+	public TaskCostClass getCostClass() {
+		return TaskCostClass.INTERACTIVE;
+	}
+
 	@Override
 	public AnalysisResult getResult() {
 		return result;
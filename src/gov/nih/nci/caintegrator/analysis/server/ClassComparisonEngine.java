@@ -0,0 +1,42 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import gov.nih.nci.caintegrator.exceptions.AnalysisServerException;
+
+/**
+ * A Java implementation of one of the two group tests of a class comparison.  The result has
+ * the columns of the data frame the R test function returns, in the same order, so it can be
+ * used in place of the frame fetched from R.
+ *
+ * @author caIntegrator Team
+ *
+ */
+public interface ClassComparisonEngine {
+
+	//the result columns, means are medians for the Wilcoxon test
+	public static final int MEAN1 = 0;
+	public static final int MEAN2 = 1;
+	public static final int MEAN_DIF = 2;
+	public static final int FC = 3;
+	public static final int PVAL = 4;
+	public static final int STD1 = 5;
+	public static final int STD2 = 6;
+	public static final int NUM_COLUMNS = 7;
+
+	/**
+	 * Run the test for every row of a block.
+	 * @param values the row major numRows x numColumns block, with the group1 columns first and NA as NaN
+	 * @param numRows
+	 * @param numColumns
+	 * @param numGroup1Columns
+	 * @return the result columns indexed by column and then by row
+	 * @throws AnalysisServerException
+	 */
+	public double[][] compute(double[] values, int numRows, int numColumns, int numGroup1Columns) throws AnalysisServerException;
+}
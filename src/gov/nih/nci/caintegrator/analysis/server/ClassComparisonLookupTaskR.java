@@ -68,22 +68,6 @@ public class ClassComparisonLookupTaskR extends AnalysisTaskR {
 
 		
 		
-		//set the data file
-//		check to see if the data file on the compute connection is the 
-		//same as that for the analysis task
-		
-		
-		try {
-			setDataFile(ccLookupRequest.getDataFileName());
-		} catch (AnalysisServerException e) {
-			e.setFailedRequest(ccLookupRequest);
-			logger.error("Internal Error. Error setting data file to fileName=" + ccLookupRequest.getDataFileName());
-			logStackTrace(logger, e);
-			setException(e);
-			return;
-		}
-		
-		
 		SampleGroup group1 = ccLookupRequest.getGroup1();
 		SampleGroup baselineGroup = ccLookupRequest.getBaselineGroup();
 		ReporterGroup reporterGroup = ccLookupRequest.getReporterGroup();
@@ -157,189 +141,99 @@ public class ClassComparisonLookupTaskR extends AnalysisTaskR {
 		String baselineGrpRName = "BLGRPIDS";
 		
 		
-		String rCmd = null;
-	
+		String testFunction;
+		if (ccLookupRequest.getStatisticalMethod() == StatisticalMethodType.TTest) {
+			testFunction = "myttest";
+		} else if (ccLookupRequest.getStatisticalMethod() == StatisticalMethodType.Wilcoxin) {
+			testFunction = "mywilcox";
+		}
+		else {
+		  logger.error("ClassComparision unrecognized statistical method.");
+		  this.setException(new AnalysisServerException("Internal error: unrecognized adjustment type."));
+		  return;
+		}
+		
+		MultiGroupComparisonAdjustmentType adjMethod = ccLookupRequest
+				.getMultiGroupComparisonAdjustmentType();
+		if (PValueAdjuster.getMethod(adjMethod) == null) {
+			logger.error("ClassComparision Adjustment Type unrecognized.");
+			this.setException(new AnalysisServerException("Internal error: unrecognized adjustment type."));
+			return;
+		}
+		
+		try {
+			ClassComparisonEngine engine = ClassComparisonTaskR.getNativeEngine(ccLookupRequest.getStatisticalMethod());
+			if ((engine != null) && (runNative(engine, ccLookupRequest))) {
+				return;
+			}
+		}
+		catch (AnalysisServerException asex) {
+			AnalysisServerException aex = new AnalysisServerException(
+			"Internal Error. Caught AnalysisServerException in ClassComparisonTaskR." + asex.getMessage());
+	        aex.setFailedRequest(ccLookupRequest);
+	        setException(aex);
+	        logStackTrace(logger, asex);
+	        return;  
+		}
+		catch (Exception ex) {
+			AnalysisServerException asex = new AnalysisServerException(
+			"Internal Error. Caught AnalysisServerException in ClassComparisonTaskR." + ex.getMessage());
+	        asex.setFailedRequest(ccLookupRequest);
+	        setException(asex);	       
+	        logStackTrace(logger, ex);
+	        return;  
+		}
+		
+		//set the data file
+//		check to see if the data file on the compute connection is the 
+		//same as that for the analysis task
+		
+		
+		try {
+			setDataFile(ccLookupRequest.getDataFileName());
+		} catch (AnalysisServerException e) {
+			e.setFailedRequest(ccLookupRequest);
+			logger.error("Internal Error. Error setting data file to fileName=" + ccLookupRequest.getDataFileName());
+			logStackTrace(logger, e);
+			setException(e);
+			return;
+		}
+		
 		
 
 		try {
 	
-			//get the submatirx based on the reporter group
+			doRassignReporters("reporterIds", reporterGroup);
 			
-			rCmd = getRgroupCmd("reporterIds", reporterGroup);
-						
-			doRvoidEval(rCmd);
-			rCmd = "ccInputMatrix <- getSubmatrix.repNew(dataMatrix, reporterIds)";
-			doRvoidEval(rCmd);
-			
-			
-			//Get the group1 ids
-			rCmd = getRgroupCmd(grp1RName, group1);
-			doRvoidEval(rCmd);
-			
-			if (baselineGroup != null) {
-				// two group comparison
-				baselineGrpLen = baselineGroup.size();
-				
-				rCmd = getRgroupCmd(baselineGrpRName, baselineGroup);
-				doRvoidEval(rCmd);
-	
-				// create the input data matrix using the sample groups
-				rCmd = "ccInputMatrix <- getSubmatrix.twogrps(ccInputMatrix,"
-						+ grp1RName + "," + baselineGrpRName + ")";
-				doRvoidEval(rCmd);
-	
-				// check to make sure all identifiers matched in the R data file
-				rCmd = "dim(ccInputMatrix)[2]";
-				int numMatched = doREval(rCmd).asInt();
-				if (numMatched != (grp1Len + baselineGrpLen)) {
-					AnalysisServerException ex = new AnalysisServerException(
-							"Some sample ids did not match R data file for class comparison request.");
-					ex.setFailedRequest(ccLookupRequest);
-					setException(ex);
-					logger.error(ex.getMessage());
-					return;
-				}
-			} else {
+			if (baselineGroup == null) {
 				// single group comparison
-//				baselineGrpLen = 0;
-//				rCmd = "ccInputMatrix <- getSubmatrix.onegrp(dataMatrix,"
-//						+ grp1RName + ")";
-//				doRvoidEval(rCmd);
 				logger.error("Single group comparison is not currently supported.");
 				throw new AnalysisServerException("Unsupported operation: Attempted to do a single group comparison.");
 			}
-	
-			rCmd = "dim(ccInputMatrix)[2]";
-			int numMatched = doREval(rCmd).asInt();
-			if (numMatched != (grp1Len + baselineGrpLen)) {
-				AnalysisServerException ex = new AnalysisServerException(
-						"Some sample ids did not match R data file for class comparison request.");
-				ex.setFailedRequest(ccLookupRequest);
-				ex.setFailedRequest(ccLookupRequest);
-				setException(ex);
-				logger.error(ex.getMessage());
-				return;
-			}
-	
-			if (ccLookupRequest.getStatisticalMethod() == StatisticalMethodType.TTest) {
-				// do the TTest computation
-				rCmd = "ccResult <- myttest(ccInputMatrix, " + grp1Len + ","
-						+ baselineGrpLen + ")";
-				doRvoidEval(rCmd);
-			} else if (ccLookupRequest.getStatisticalMethod() == StatisticalMethodType.Wilcoxin) {
-				// do the Wilcox computation
-				rCmd = "ccResult <- mywilcox(ccInputMatrix, " + grp1Len + ","
-						+ baselineGrpLen + ")";
-				doRvoidEval(rCmd);
-			}
-			else {
-			  logger.error("ClassComparision unrecognized statistical method.");
-			  this.setException(new AnalysisServerException("Internal error: unrecognized adjustment type."));
-			  return;
-			}
-	
-			// do filtering
-			double foldChangeThreshold = ccLookupRequest.getFoldChangeThreshold();
-			double pValueThreshold = ccLookupRequest.getPvalueThreshold();
-			MultiGroupComparisonAdjustmentType adjMethod = ccLookupRequest
-					.getMultiGroupComparisonAdjustmentType();
-			if (adjMethod == MultiGroupComparisonAdjustmentType.NONE) {
-				// get differentially expressed reporters using
-				// unadjusted Pvalue
-	
-				// shouldn't need to pass in ccInputMatrix
-				rCmd = "ccResult  <- mydiferentiallygenes(ccResult,"
-						+ foldChangeThreshold + "," + pValueThreshold + ")";
-				doRvoidEval(rCmd);
-				ccResult.setPvaluesAreAdjusted(false);
-			} else if (adjMethod == MultiGroupComparisonAdjustmentType.FDR) {
-				// do adjustment
-				rCmd = "adjust.result <- adjustP.Benjamini.Hochberg(ccResult)";
-				doRvoidEval(rCmd);
-				// get differentially expressed reporters using adjusted Pvalue
-				rCmd = "ccResult  <- mydiferentiallygenes.adjustP(adjust.result,"
-						+ foldChangeThreshold + "," + pValueThreshold + ")";
-				doRvoidEval(rCmd);
-				ccResult.setPvaluesAreAdjusted(true);
-			} else if (adjMethod == MultiGroupComparisonAdjustmentType.FWER) {
-				// do adjustment
-				rCmd = "adjust.result <- adjustP.Bonferroni(ccResult)";
-				doRvoidEval(rCmd);
-				// get differentially expresseed reporters using adjusted Pvalue
-				rCmd = "ccResult  <- mydiferentiallygenes.adjustP(adjust.result,"
-						+ foldChangeThreshold + "," + pValueThreshold + ")";
-				doRvoidEval(rCmd);
-				ccResult.setPvaluesAreAdjusted(true);
-			}
-			else {
-				logger.error("ClassComparision Adjustment Type unrecognized.");
-				this.setException(new AnalysisServerException("Internal error: unrecognized adjustment type."));
-				return;
-			}
-	
-			// get the results and send
-	
-//			double[] meanGrp1 = doREval("mean1 <- ccResult[,1]").asDoubleArray();
-//			double[] meanBaselineGrp = doREval("meanBaseline <- ccResult[,2]").asDoubleArray();
-//			double[] meanDif = doREval("meanDif <- ccResult[,3]").asDoubleArray();
-//			double[] absoluteFoldChange = doREval("fc <- ccResult[,4]").asDoubleArray();
-//			double[] pva = doREval("pva <- ccResult[,5]").asDoubleArray();
-	
-			double[] meanGrp1 = doREval("mean1 <- ccResult$mean1").asDoubleArray();
-			double[] meanBaselineGrp = doREval("meanBaseline <- ccResult$mean2").asDoubleArray();
-			double[] meanDif = doREval("meanDif <- ccResult$mean.dif").asDoubleArray();
-			double[] absoluteFoldChange = doREval("fc <- ccResult$fc").asDoubleArray();
-			double[] pva = doREval("pva <- ccResult$pval").asDoubleArray();
-			double[] stdG1 = doREval("stdG1 <- ccResult$std1").asDoubleArray();
-			double[] stdBaseline = doREval("stdBL <- ccResult$std2").asDoubleArray();
 			
+			// two group comparison
+			baselineGrpLen = baselineGroup.size();
 			
-			// get the labels
-			Vector reporterIds = doREval("ccLabels <- dimnames(ccResult)[[1]]")
-					.asVector();
-	
-			// load the result object
-			// need to see if this works for single group comparison
-			List<ClassComparisonResultEntry> resultEntries = new ArrayList<ClassComparisonResultEntry>(
-					reporterGroup.size());
-			ClassComparisonResultEntry resultEntry;
-			
-			//logger.debug("reporterGroup.size=" + reporterGroup.size());
-			//logger.debug("reporterIds.size=" + reporterIds.size());
-			//logger.debug("meanBaselineGrp.size=" + meanBaselineGrp.length);
-			//logger.debug("meanDiff.size=" + meanDif.length);
-	
-			int numReporters = reporterGroup.size();
+			// report any samples that are not in the data file before sending the groups to R
+			checkSamplesInDataFile(group1.getGroupName(), group1);
+			checkSamplesInDataFile(baselineGroup.getGroupName(), baselineGroup);
+			doRassignSamples(grp1RName, group1);
+			doRassignSamples(baselineGrpRName, baselineGroup);
 			
-			for (int i = 0; i < numReporters; i++) {
-				resultEntry = new ClassComparisonResultEntry();
-				
-				if (numReporters == 1) {
-				  resultEntry.setReporterId(reporterGroup.getIdsAsCommaDelimitedString());
-				}
-				else {
-				  resultEntry.setReporterId(((REXP) reporterIds.get(i)).asString());					
-				}
-				
-				resultEntry.setMeanGrp1(meanGrp1[i]);
-				resultEntry.setMeanBaselineGrp(meanBaselineGrp[i]);
-				resultEntry.setMeanDiff(meanDif[i]);
-				resultEntry.setAbsoluteFoldChange(absoluteFoldChange[i]);
-				resultEntry.setPvalue(pva[i]);
-				resultEntry.setStdGrp1(stdG1[i]);
-				resultEntry.setStdBaselineGrp(stdBaseline[i]);
-				resultEntries.add(resultEntry);
-			}
-			
-			
-			Collections.sort(resultEntries, classComparisonComparator);
-	
-			ccResult.setResultEntries(resultEntries);
+			RScript script = new RScript("class comparison lookup");
+			script.add("get the submatrix based on the reporter group", 
+					   "ccInputMatrix <- getSubmatrix.repNew(dataMatrix, reporterIds" + getRowIndexArgument() + ")");
+			script.add("create the input data matrix using the sample groups", 
+					   "ccInputMatrix <- getSubmatrix.twogrps(ccInputMatrix," + grp1RName + "," + baselineGrpRName + getColumnIndexArgument() + ")");
+			script.addCheck("check to make sure all identifiers matched in the R data file", 
+					        "dim(ccInputMatrix)[2] == " + (grp1Len + baselineGrpLen), 
+					        "Some sample ids did not match R data file for class comparison request.");
+			script.add(testFunction, "ccResult <- " + testFunction + "(ccInputMatrix, " + grp1Len + "," + baselineGrpLen + 
+					   ClassComparisonTaskR.getRTestArguments(ccLookupRequest.getStatisticalMethod()) + ")");
 	
-			ccResult.setGroup1(group1);
-			if (baselineGroup != null) {
-				ccResult.setBaselineGroup(baselineGroup);
-			}
+			//fetch the whole result frame in one round trip and adjust and filter it in Java
+			RResultFrame frame = doREvalFrame(script, "ccResult");
+			filterResult(ccLookupRequest, ClassComparisonTaskR.getUnfilteredStatistics(frame), testFunction);
 		}
 		catch (AnalysisServerException asex) {
 			AnalysisServerException aex = new AnalysisServerException(
@@ -359,6 +253,74 @@ public class ClassComparisonLookupTaskR extends AnalysisTaskR {
 		}
 	}
 
+	/**
+	 * Run the test with a Java engine on the reporters and samples of the request in the Java
+	 * copy of the data matrix, then adjust the p-values and apply the thresholds in Java.  The 
+	 * rows and columns are put in the same order as in ccInputMatrix, so the result is the one
+	 * the R functions give.
+	 * @return true if the result was computed or false if it has to be computed in R
+	 */
+	private boolean runNative(ClassComparisonEngine engine, ClassComparisonLookupRequest ccLookupRequest) throws AnalysisServerException {
+		DataMatrix matrix = getDataMatrix(ccLookupRequest.getDataFileName());
+		if ((matrix == null) || (!matrix.getDictionary().hasSamplePositions()) || (!matrix.getDictionary().hasReporterPositions())) {
+			return false;
+		}
+		DataFileDictionary dictionary = matrix.getDictionary();
+		SampleGroup group1 = ccLookupRequest.getGroup1();
+		SampleGroup baselineGroup = ccLookupRequest.getBaselineGroup();
+		int[] positions = getTwoGroupSamplePositions(dictionary, group1, baselineGroup);
+		int[] rows = dictionary.getReporterPositions(getIds(ccLookupRequest.getReporterGroup()));
+		String[] reporterIds = new String[rows.length];
+		for (int i = 0; i < rows.length; i++) {
+			reporterIds[i] = dictionary.getReporterIds()[rows[i] - 1];
+		}
+		
+		double[] block = matrix.getBlock(rows, positions);
+		double[][] columns = engine.compute(block, rows.length, positions.length, group1.size());
+		UnfilteredStatistics statistics = ClassComparisonTaskR.getUnfilteredStatistics(reporterIds, columns);
+		filterResult(ccLookupRequest, statistics, "Java " + engine.getClass().getSimpleName());
+		return true;
+	}
+
+	/**
+	 * Adjust the p-values and apply the thresholds of the request in Java and load the result object.
+	 * @param ccLookupRequest
+	 * @param statistics
+	 * @param source where the statistics were computed, for the log
+	 */
+	private void filterResult(ClassComparisonLookupRequest ccLookupRequest, UnfilteredStatistics statistics, String source) throws AnalysisServerException {
+		MultiGroupComparisonAdjustmentType adjMethod = ccLookupRequest.getMultiGroupComparisonAdjustmentType();
+		double[] pvalues = statistics.getAdjustedPvalues(adjMethod);
+		List<Integer> selected = statistics.select(ccLookupRequest.getFoldChangeThreshold(), ccLookupRequest.getPvalueThreshold(), pvalues);
+		List<ClassComparisonResultEntry> resultEntries = new ArrayList<ClassComparisonResultEntry>(selected.size());
+		ClassComparisonResultEntry resultEntry;
+		for (int i : selected) {
+			resultEntry = new ClassComparisonResultEntry();
+			resultEntry.setReporterId(statistics.getReporterId(i));
+			resultEntry.setMeanGrp1(statistics.getValue(0, i));
+			resultEntry.setMeanBaselineGrp(statistics.getValue(1, i));
+			resultEntry.setMeanDiff(statistics.getValue(2, i));
+			resultEntry.setAbsoluteFoldChange(statistics.getFoldChange(i));
+			resultEntry.setPvalue(pvalues[i]);
+			resultEntry.setStdGrp1(statistics.getValue(3, i));
+			resultEntry.setStdBaselineGrp(statistics.getValue(4, i));
+			resultEntries.add(resultEntry);
+		}
+		logger.info(source + " filtered " + statistics.size() + " reporters to " + resultEntries.size() + 
+				    " adjustment=" + adjMethod + " method=" + PValueAdjuster.getMethod(adjMethod));
+		
+		Collections.sort(resultEntries, classComparisonComparator);
+		
+		ccResult.setPvaluesAreAdjusted(adjMethod != MultiGroupComparisonAdjustmentType.NONE);
+		ccResult.setResultEntries(resultEntries);
+		ccResult.setGroup1(ccLookupRequest.getGroup1());
+		ccResult.setBaselineGroup(ccLookupRequest.getBaselineGroup());
+	}
+
+	public TaskCostClass getCostClass() {
+		return TaskCostClass.INTERACTIVE;
+	}
+
 	public AnalysisResult getResult() {
 		return ccResult;
 	}
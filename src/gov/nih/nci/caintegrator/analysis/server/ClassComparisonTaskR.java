@@ -40,6 +40,15 @@ public class ClassComparisonTaskR extends AnalysisTaskR {
 	private Comparator classComparisonComparator = new ClassComparisonComparator();
 	public static final int MIN_GROUP_SIZE = 3;
 	
+	//compute t-tests with the Java engine instead of myttest in R
+	private static volatile boolean nativeTTest = false;
+	
+	//compute t-tests, in Java or in R, with the Welch test instead of the pooled variance test
+	private static volatile boolean welchTTest = false;
+	
+	//compute Wilcoxon tests with the Java engine instead of mywilcox in R
+	private static volatile boolean nativeWilcoxon = false;
+	
 	private static Logger logger = Logger.getLogger(ClassComparisonTaskR.class);
 
 	public ClassComparisonTaskR(ClassComparisonRequest request) {
@@ -61,22 +70,16 @@ public class ClassComparisonTaskR extends AnalysisTaskR {
 
 		logger.info(getExecutingThreadName() + ": processing class comparison request=" + ccRequest);
 
-		
-		
-		//set the data file
-//		check to see if the data file on the compute connection is the 
-		//same as that for the analysis task
-		
-		
-		try {
-			setDataFile(ccRequest.getDataFileName());
-		} catch (AnalysisServerException e) {
-			e.setFailedRequest(ccRequest);
-			logger.error("Internal Error. Error setting data file to fileName=" + ccRequest.getDataFileName());
-			logStackTrace(logger, e);
-			setException(e);
-			return;
+		if (getStatisticsCache() != null) {
+			UnfilteredStatistics statistics = getStatisticsCache().get(ccRequest, getTestName(ccRequest.getStatisticalMethod(), 
+					                                                                           getNativeEngine(ccRequest.getStatisticalMethod())));
+			if (statistics != null) {
+				//an earlier request differed only in its thresholds, no need to run the test again
+				filterResult(ccRequest, statistics);
+				return;
+			}
 		}
+
 		
 		
 		SampleGroup group1 = ccRequest.getGroup1();
@@ -142,196 +145,100 @@ public class ClassComparisonTaskR extends AnalysisTaskR {
 		String baselineGrpRName = "BLGRPIDS";
 		
 		
-		String rCmd = null;
+		String testFunction;
+		if (ccRequest.getStatisticalMethod() == StatisticalMethodType.TTest) {
+			testFunction = "myttest";
+		} else if (ccRequest.getStatisticalMethod() == StatisticalMethodType.Wilcoxin) {
+			testFunction = "mywilcox";
+		}
+		else {
+		  logger.error("ClassComparision unrecognized statistical method.");
+		  this.setException(new AnalysisServerException("Internal error: unrecognized adjustment type."));
+		  return;
+		}
 	
-		rCmd = getRgroupCmd(grp1RName, group1);
-
+		UnfilteredStatistics statistics = null;
+		ClassComparisonEngine engine = null;
+		
 		try {
 		
-			doRvoidEval(rCmd);
-	
-			if (baselineGroup != null) {
-				// two group comparison
-				baselineGrpLen = baselineGroup.size();
-				
-				rCmd = getRgroupCmd(baselineGrpRName, baselineGroup);
-				doRvoidEval(rCmd);
-	
-				// create the input data matrix using the sample groups
-				rCmd = "ccInputMatrix <- getSubmatrix.twogrps(dataMatrix,"
-						+ grp1RName + "," + baselineGrpRName + ")";
-				doRvoidEval(rCmd);
-	
-				// check to make sure all identifiers matched in the R data file
-				rCmd = "dim(ccInputMatrix)[2]";
-				int numMatched = doREval(rCmd).asInt();
-				if (numMatched != (grp1Len + baselineGrpLen)) {
-					AnalysisServerException ex = new AnalysisServerException(
-							"Some sample ids did not match R data file for class comparison request.");
-					ex.setFailedRequest(ccRequest);
-					setException(ex);
-					logger.error(ex.getMessage());
-					return;
-				}
-			} else {
+			if (baselineGroup == null) {
 				// single group comparison
-//				baselineGrpLen = 0;
-//				rCmd = "ccInputMatrix <- getSubmatrix.onegrp(dataMatrix,"
-//						+ grp1RName + ")";
-//				doRvoidEval(rCmd);
 				logger.error("Single group comparison is not currently supported.");
 				throw new AnalysisServerException("Unsupported operation: Attempted to do a single group comparison.");
 			}
-	
-			rCmd = "dim(ccInputMatrix)[2]";
-			int numMatched = doREval(rCmd).asInt();
-			if (numMatched != (grp1Len + baselineGrpLen)) {
-				AnalysisServerException ex = new AnalysisServerException(
-						"Some sample ids did not match R data file for class comparison request.");
-				ex.setFailedRequest(ccRequest);
-				ex.setFailedRequest(ccRequest);
-				setException(ex);
-				logger.error(ex.getMessage());
-				return;
-			}
-	
-			if (ccRequest.getStatisticalMethod() == StatisticalMethodType.TTest) {
-				// do the TTest computation
-				rCmd = "ccResult <- myttest(ccInputMatrix, " + grp1Len + ","
-						+ baselineGrpLen + ")";
-				doRvoidEval(rCmd);
-			} else if (ccRequest.getStatisticalMethod() == StatisticalMethodType.Wilcoxin) {
-				// do the Wilcox computation
-				rCmd = "ccResult <- mywilcox(ccInputMatrix, " + grp1Len + ","
-						+ baselineGrpLen + ")";
-				doRvoidEval(rCmd);
-			}
-			else {
-			  logger.error("ClassComparision unrecognized statistical method.");
-			  this.setException(new AnalysisServerException("Internal error: unrecognized adjustment type."));
-			  return;
-			}
-	
-			// do filtering
-			double foldChangeThreshold = ccRequest.getFoldChangeThreshold();
-			double pValueThreshold = ccRequest.getPvalueThreshold();
-			MultiGroupComparisonAdjustmentType adjMethod = ccRequest
-					.getMultiGroupComparisonAdjustmentType();
-			if (adjMethod == MultiGroupComparisonAdjustmentType.NONE) {
-				// get differentially expressed reporters using
-				// unadjusted Pvalue
-	
-				// shouldn't need to pass in ccInputMatrix
-				rCmd = "ccResult  <- mydiferentiallygenes(ccResult,"
-						+ foldChangeThreshold + "," + pValueThreshold + ")";
-				doRvoidEval(rCmd);
-				ccResult.setPvaluesAreAdjusted(false);
-			} else if (adjMethod == MultiGroupComparisonAdjustmentType.FDR) {
-				// do adjustment
-				rCmd = "adjust.result <- adjustP.Benjamini.Hochberg(ccResult)";
-				doRvoidEval(rCmd);
-				// get differentially expressed reporters using adjusted Pvalue
-				rCmd = "ccResult  <- mydiferentiallygenes.adjustP(adjust.result,"
-						+ foldChangeThreshold + "," + pValueThreshold + ")";
-				doRvoidEval(rCmd);
-				ccResult.setPvaluesAreAdjusted(true);
-			} else if (adjMethod == MultiGroupComparisonAdjustmentType.FWER) {
-				// do adjustment
-				rCmd = "adjust.result <- adjustP.Bonferroni(ccResult)";
-				doRvoidEval(rCmd);
-				// get differentially expresseed reporters using adjusted Pvalue
-				rCmd = "ccResult  <- mydiferentiallygenes.adjustP(adjust.result,"
-						+ foldChangeThreshold + "," + pValueThreshold + ")";
-				doRvoidEval(rCmd);
-				ccResult.setPvaluesAreAdjusted(true);
-			}
-			else {
-				logger.error("ClassComparision Adjustment Type unrecognized.");
-				this.setException(new AnalysisServerException("Internal error: unrecognized adjustment type."));
-				return;
-			}
-	
-			// get the results and send
-	
-//			double[] meanGrp1 = doREval("mean1 <- ccResult[,1]").asDoubleArray();
-//			double[] meanBaselineGrp = doREval("meanBaseline <- ccResult[,2]").asDoubleArray();
-//			double[] meanDif = doREval("meanDif <- ccResult[,3]").asDoubleArray();
-//			double[] absoluteFoldChange = doREval("fc <- ccResult[,4]").asDoubleArray();
-//			double[] pva = doREval("pva <- ccResult[,5]").asDoubleArray();
-	
-//			double[] meanGrp1 = doREval("mean1 <- ccResult$mean1").asDoubleArray();
-//			double[] meanBaselineGrp = doREval("meanBaseline <- ccResult$mean2").asDoubleArray();
-//			double[] meanDif = doREval("meanDif <- ccResult$mean.dif").asDoubleArray();
-			
-			double[] meanGrp1 = doREval("mean1 <- ccResult[,1]").asDoubleArray();
-			double[] meanBaselineGrp = doREval("meanBaseline <- ccResult[,2]").asDoubleArray();
-			double[] meanDif = doREval("meanDif <- ccResult[,3]").asDoubleArray();
-			double[] absoluteFoldChange = doREval("fc <- ccResult[,4]").asDoubleArray();
-			double[] pva = doREval("pva <- ccResult[,5]").asDoubleArray();
-			double[] stdG1 = doREval("stdG1 <- ccResult$std1").asDoubleArray();
-			double[] stdBaseline = doREval("stdBL <- ccResult$std2").asDoubleArray();
-			
-			//double[] absoluteFoldChange = doREval("fc <- ccResult$fc").asDoubleArray();
-			//double[] pva = doREval("pva <- ccResult$pval").asDoubleArray();
-			//double[] pva = doREval("pva <- ccResult[,5]").asDoubleArray();
-			
 			
-			
-			// get the labels
-			Vector reporterIds = doREval("ccLabels <- dimnames(ccResult)[[1]]")
-					.asVector();
-	
-			// load the result object
-			// need to see if this works for single group comparison
-			List<ClassComparisonResultEntry> resultEntries = new ArrayList<ClassComparisonResultEntry>(
-					meanGrp1.length);
-			ClassComparisonResultEntry resultEntry;
-	
-			logger.info("meanGrp1.length=" + meanGrp1.length);
-			
-			if (reporterIds==null) {
-			  logger.error(">> reporterIds vector is null <<");	
-			  String reporterId = doREval("rId <- dimnames(ccResult)[[1]]").asString();
-			  logger.error(">> Work around method reporter id=" + reporterId);
+			engine = getNativeEngine(ccRequest.getStatisticalMethod());
+			if (engine != null) {
+				statistics = getNativeStatistics(engine, ccRequest.getDataFileName(), group1, baselineGroup);
 			}
-			else {
-			  logger.info("reporterIds vector.length=" + reporterIds.size());
+		}
+		catch (AnalysisServerException asex) {
+			AnalysisServerException aex = new AnalysisServerException(
+			"Internal Error. Caught AnalysisServerException in ClassComparisonTaskR." + asex.getMessage());
+	        aex.setFailedRequest(ccRequest);
+	        setException(aex);
+	        logStackTrace(logger, asex);
+	        return;  
+		}
+		catch (Exception ex) {
+			AnalysisServerException asex = new AnalysisServerException(
+			"Internal Error. Caught AnalysisServerException in ClassComparisonTaskR." + ex.getMessage());
+	        asex.setFailedRequest(ccRequest);
+	        setException(asex);	        
+	        logStackTrace(logger, ex);
+	        return;  
+		}
+		
+		if (statistics != null) {
+			if (getStatisticsCache() != null) {
+				getStatisticsCache().put(ccRequest, getTestName(ccRequest.getStatisticalMethod(), engine), statistics);
 			}
+			filterResult(ccRequest, statistics);
+			return;
+		}
+		
+		//set the data file
+//		check to see if the data file on the compute connection is the 
+		//same as that for the analysis task
+		
+		
+		try {
+			setDataFile(ccRequest.getDataFileName());
+		} catch (AnalysisServerException e) {
+			e.setFailedRequest(ccRequest);
+			logger.error("Internal Error. Error setting data file to fileName=" + ccRequest.getDataFileName());
+			logStackTrace(logger, e);
+			setException(e);
+			return;
+		}
+		
+		try {
 			
-			for (int i = 0; i < meanGrp1.length; i++) {
-				resultEntry = new ClassComparisonResultEntry();
-				
-				if (meanGrp1.length == 1) {
-				   //had to do this work around because rServce doesn't seem to handle
-				   //vectors of size one correctly
-				   String reporterId = doREval("rId <- dimnames(ccResult)[[1]]").asString();
-				   resultEntry.setReporterId(reporterId);
-				}
-				else {
-				   resultEntry.setReporterId(((REXP) reporterIds.get(i)).asString());
-				}
-				
-				resultEntry.setMeanGrp1(meanGrp1[i]);
-				resultEntry.setMeanBaselineGrp(meanBaselineGrp[i]);
-				resultEntry.setMeanDiff(meanDif[i]);
-				resultEntry.setAbsoluteFoldChange(absoluteFoldChange[i]);
-				resultEntry.setPvalue(pva[i]);
-				resultEntry.setStdGrp1(stdG1[i]);
-				resultEntry.setStdBaselineGrp(stdBaseline[i]);
-				resultEntries.add(resultEntry);
-			}
-				
-				
+			// two group comparison
+			baselineGrpLen = baselineGroup.size();
 			
+			// report any samples that are not in the data file before running anything in R
+			checkSamplesInDataFile(group1.getGroupName(), group1);
+			checkSamplesInDataFile(baselineGroup.getGroupName(), baselineGroup);
 			
-			Collections.sort(resultEntries, classComparisonComparator);
+			// subset the data matrix (or reuse the submatrix of an earlier task on this connection), 
+			// run the test and fetch the unfiltered result in one round trip
+			RScript script = new RScript("class comparison");
+			String inputMatrix = addTwoGroupSubmatrix(script, "ccInputMatrix", grp1RName, group1, baselineGrpRName, baselineGroup);
+			script.addCheck("check to make sure all identifiers matched in the R data file", 
+					        "dim(" + inputMatrix + ")[2] == " + (grp1Len + baselineGrpLen), 
+					        "Some sample ids did not match R data file for class comparison request.");
+			script.add(testFunction, "ccResult <- " + testFunction + "(" + inputMatrix + ", " + grp1Len + "," + baselineGrpLen + 
+					   getRTestArguments(ccRequest.getStatisticalMethod()) + ")");
+			RResultFrame frame = doREvalFrame(script, "ccResult");
 	
-			ccResult.setResultEntries(resultEntries);
-	
-			ccResult.setGroup1(group1);
-			if (baselineGroup != null) {
-				ccResult.setBaselineGroup(baselineGroup);
+			statistics = getUnfilteredStatistics(frame);
+			if (getStatisticsCache() != null) {
+				getStatisticsCache().put(ccRequest, getTestName(ccRequest.getStatisticalMethod(), null), statistics);
 			}
+			
+			filterResult(ccRequest, statistics);
 		}
 		catch (AnalysisServerException asex) {
 			AnalysisServerException aex = new AnalysisServerException(
@@ -351,10 +258,203 @@ public class ClassComparisonTaskR extends AnalysisTaskR {
 		}
 	}
 
+	/**
+	 * Run the test with a Java engine on the Java copy of the data matrix.  The columns are
+	 * put in the same order as in ccInputMatrix, so the result is the one the R function gives.
+	 * @return the statistics or null if the test has to be run in R
+	 */
+	private UnfilteredStatistics getNativeStatistics(ClassComparisonEngine engine, String dataFileName, SampleGroup group1, 
+			                                         SampleGroup baselineGroup) throws AnalysisServerException {
+		DataMatrix matrix = getDataMatrix(dataFileName);
+		if ((matrix == null) || (!matrix.getDictionary().hasSamplePositions())) {
+			return null;
+		}
+		int[] positions = getTwoGroupSamplePositions(matrix.getDictionary(), group1, baselineGroup);
+		
+		long start = System.currentTimeMillis();
+		double[] block = matrix.getColumns(positions);
+		double[][] columns = engine.compute(block, matrix.getNumRows(), positions.length, group1.size());
+		logger.info("Java " + engine.getClass().getSimpleName() + " reporters=" + matrix.getNumRows() + " samples=" + positions.length + 
+				    " threads=" + ReporterBlockExecutor.getNumThreads() + " timeMS=" + (System.currentTimeMillis() - start));
+		return getUnfilteredStatistics(matrix.getDictionary().getReporterIds(), columns);
+	}
+
+	/**
+	 * Get the unfiltered per-reporter statistics from the ccResult data frame fetched from R.
+	 * The columns are mean1, meanBaseline, meanDif, std1 and stdBaseline.
+	 */
+	static UnfilteredStatistics getUnfilteredStatistics(RResultFrame frame) throws AnalysisServerException {
+		//the columns are (mean1 or median1), (mean2 or median2), dif, fc, pval, std1, std2
+		if (frame.getNumColumns() < 7) {
+			throw new AnalysisServerException("Class comparison result has " + frame.getNumColumns() + " columns, expected 7.");
+		}
+		double[][] columns = new double[7][];
+		for (int i = 0; i < columns.length; i++) {
+			columns[i] = frame.getColumn(i);
+		}
+		return getUnfilteredStatistics(frame.getRowNames(), columns);
+	}
+
+	/**
+	 * Get the unfiltered per-reporter statistics from the columns of a class comparison result.
+	 * @param reporterIds
+	 * @param columns the columns (mean1 or median1), (mean2 or median2), dif, fc, pval, std1, std2
+	 */
+	static UnfilteredStatistics getUnfilteredStatistics(String[] reporterIds, double[][] columns) {
+		double[] meanGrp1 = columns[0];
+		double[] meanBaselineGrp = columns[1];
+		double[] meanDif = columns[2];
+		double[] absoluteFoldChange = columns[3];
+		double[] pva = columns[4];
+		double[] stdG1 = columns[5];
+		double[] stdBaseline = columns[6];
+		
+		logger.info("unfiltered meanGrp1.length=" + meanGrp1.length);
+		
+		return new UnfilteredStatistics(reporterIds, absoluteFoldChange, pva, 
+				new double[][] { meanGrp1, meanBaselineGrp, meanDif, stdG1, stdBaseline });
+	}
+	
+	/**
+	 * Adjust the p-values and apply the thresholds of the request in Java and load the result object.
+	 * @param ccRequest
+	 * @param statistics
+	 */
+	private void filterResult(ClassComparisonRequest ccRequest, UnfilteredStatistics statistics) {
+		MultiGroupComparisonAdjustmentType adjMethod = ccRequest.getMultiGroupComparisonAdjustmentType();
+		if (PValueAdjuster.getMethod(adjMethod) == null) {
+			logger.error("ClassComparision Adjustment Type unrecognized.");
+			AnalysisServerException ex = new AnalysisServerException("Internal error: unrecognized adjustment type.");
+			ex.setFailedRequest(ccRequest);
+			setException(ex);
+			return;
+		}
+		
+		double[] pvalues;
+		try {
+			pvalues = statistics.getAdjustedPvalues(adjMethod);
+		} catch (AnalysisServerException ex) {
+			ex.setFailedRequest(ccRequest);
+			setException(ex);
+			logStackTrace(logger, ex);
+			return;
+		}
+		List<Integer> selected = statistics.select(ccRequest.getFoldChangeThreshold(), ccRequest.getPvalueThreshold(), pvalues);
+		
+		List<ClassComparisonResultEntry> resultEntries = new ArrayList<ClassComparisonResultEntry>(selected.size());
+		ClassComparisonResultEntry resultEntry;
+		for (int i : selected) {
+			resultEntry = new ClassComparisonResultEntry();
+			resultEntry.setReporterId(statistics.getReporterId(i));
+			resultEntry.setMeanGrp1(statistics.getValue(0, i));
+			resultEntry.setMeanBaselineGrp(statistics.getValue(1, i));
+			resultEntry.setMeanDiff(statistics.getValue(2, i));
+			resultEntry.setAbsoluteFoldChange(statistics.getFoldChange(i));
+			resultEntry.setPvalue(pvalues[i]);
+			resultEntry.setStdGrp1(statistics.getValue(3, i));
+			resultEntry.setStdBaselineGrp(statistics.getValue(4, i));
+			resultEntries.add(resultEntry);
+		}
+		logger.info("filtered " + statistics.size() + " reporters to " + resultEntries.size() + " adjustment=" + adjMethod + " method=" + PValueAdjuster.getMethod(adjMethod));
+		
+		Collections.sort(resultEntries, classComparisonComparator);
+		
+		ccResult.setPvaluesAreAdjusted(adjMethod != MultiGroupComparisonAdjustmentType.NONE);
+		ccResult.setResultEntries(resultEntries);
+		ccResult.setGroup1(ccRequest.getGroup1());
+		if (ccRequest.getBaselineGroup() != null) {
+			ccResult.setBaselineGroup(ccRequest.getBaselineGroup());
+		}
+	}
+
 	public AnalysisResult getResult() {
 		return ccResult;
 	}
 
+	/**
+	 * Set whether t-tests are computed with the Java engine.  They are still computed in R
+	 * when the data matrix is not kept in Java.
+	 * @param nativeTTest
+	 */
+	public static void setNativeTTest(boolean nativeTTest) {
+		ClassComparisonTaskR.nativeTTest = nativeTTest;
+	}
+
+	public static boolean isNativeTTest() {
+		return nativeTTest;
+	}
+
+	/**
+	 * Set whether t-tests are Welch tests, which do not assume the groups have equal variances,
+	 * instead of pooled variance tests.  This applies to the Java engine and to myttest, so a
+	 * request gets the same test whether or not the data matrix is kept in Java.
+	 * @param welchTTest
+	 */
+	public static void setWelchTTest(boolean welchTTest) {
+		ClassComparisonTaskR.welchTTest = welchTTest;
+	}
+
+	public static boolean isWelchTTest() {
+		return welchTTest;
+	}
+
+	/**
+	 * Get the arguments, after the group sizes, of the R function for a statistical method.
+	 * @param method
+	 * @return the arguments, each preceded by a comma
+	 */
+	static String getRTestArguments(StatisticalMethodType method) {
+		if (welchTTest && (method == StatisticalMethodType.TTest)) {
+			return ", var.equal=FALSE";
+		}
+		return "";
+	}
+
+	/**
+	 * Describe the test that computes the statistics of a request, for the UnfilteredStatisticsCache
+	 * key, so statistics of a pooled variance t-test are not used for a Welch t-test and statistics
+	 * computed in R are not used for a request the server computes in Java, or the other way round.
+	 * @param method
+	 * @param engine the Java engine or null if the test is run with the R function
+	 */
+	static String getTestName(StatisticalMethodType method, ClassComparisonEngine engine) {
+		if (engine instanceof TTestEngine) {
+			return ((TTestEngine) engine).isEqualVariance() ? "TTestEngine" : "TTestEngine welch";
+		}
+		if (engine != null) {
+			return engine.getClass().getSimpleName();
+		}
+		return method + getRTestArguments(method);
+	}
+
+	/**
+	 * Set whether Wilcoxon tests are computed with the Java engine.  They are still computed 
+	 * in R when the data matrix is not kept in Java.
+	 * @param nativeWilcoxon
+	 */
+	public static void setNativeWilcoxon(boolean nativeWilcoxon) {
+		ClassComparisonTaskR.nativeWilcoxon = nativeWilcoxon;
+	}
+
+	public static boolean isNativeWilcoxon() {
+		return nativeWilcoxon;
+	}
+
+	/**
+	 * Get the Java engine for a statistical method.
+	 * @param method
+	 * @return the engine or null if the method is computed in R
+	 */
+	static ClassComparisonEngine getNativeEngine(StatisticalMethodType method) {
+		if (nativeTTest && (method == StatisticalMethodType.TTest)) {
+			return new TTestEngine(!welchTTest);
+		}
+		if (nativeWilcoxon && (method == StatisticalMethodType.Wilcoxin)) {
+			return new WilcoxonEngine();
+		}
+		return null;
+	}
+
 	public ClassComparisonResult getClassComparisonResult() {
 		return ccResult;
 	}
@@ -0,0 +1,113 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+/**
+ * The parts of an R hclust object needed to plot its dendrogram again without reclustering:
+ * the merge matrix, the merge heights, the order of the leaves and the leaf labels.
+ *
+ * @see gov.nih.nci.caintegrator.analysis.server.DendrogramCache
+ *
+ * @author caIntegrator Team
+ *
+ */
+public class ClusterDendrogram {
+
+	private int[] merge;
+
+	private double[] height;
+
+	private int[] order;
+
+	private String[] labels;
+
+	private String method;
+
+	/**
+	 *
+	 * @param merge the (n-1) x 2 merge matrix in column major order
+	 * @param height the n-1 merge heights
+	 * @param order the one based leaf positions in plotting order
+	 * @param labels the n leaf labels
+	 * @param method the linkage method
+	 */
+	public ClusterDendrogram(int[] merge, double[] height, int[] order, String[] labels, String method) {
+		this.merge = merge;
+		this.height = height;
+		this.order = order;
+		this.labels = labels;
+		this.method = method;
+	}
+
+	public int[] getMerge() {
+		return merge;
+	}
+
+	public double[] getHeight() {
+		return height;
+	}
+
+	public int[] getOrder() {
+		return order;
+	}
+
+	public String[] getLabels() {
+		return labels;
+	}
+
+	public String getMethod() {
+		return method;
+	}
+
+	/**
+	 * @return the labels of the leaves in plotting order
+	 */
+	public String[] getOrderedLabels() {
+		String[] orderedLabels = new String[order.length];
+		for (int i = 0; i < order.length; i++) {
+			orderedLabels[i] = labels[order[i] - 1];
+		}
+		return orderedLabels;
+	}
+
+	/**
+	 * Get the R command that rebuilds the hclust object from the vectors assigned under the
+	 * given names.
+	 * @param mergeRName
+	 * @param heightRName
+	 * @param orderRName
+	 * @param labelsRName
+	 * @return the command
+	 */
+	public String getRebuildCommand(String mergeRName, String heightRName, String orderRName, String labelsRName) {
+		return "structure(list(merge=matrix(" + mergeRName + ", ncol=2), height=" + heightRName + ", order=" + orderRName +
+		       ", labels=" + labelsRName + ", method=" + RScript.quote(method) + "), class=\"hclust\")";
+	}
+
+	/**
+	 * Check that the parts describe a dendrogram of labels.length leaves.
+	 * @return true if the sizes of the parts agree
+	 */
+	public boolean isValid() {
+		int numLeaves = labels.length;
+		return (numLeaves >= 2) && (merge.length == 2 * (numLeaves - 1)) && (height.length == numLeaves - 1) &&
+		       (order.length == numLeaves);
+	}
+
+	/**
+	 * Get the estimated heap size of the dendrogram.
+	 * @return the size in bytes
+	 */
+	public long getEstimatedBytes() {
+		long bytes = (4L * merge.length) + (8L * height.length) + (4L * order.length);
+		for (String label : labels) {
+			bytes += 40L + (2L * label.length());
+		}
+		return bytes;
+	}
+}
@@ -7,6 +7,10 @@
 
 package gov.nih.nci.caintegrator.analysis.server;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadPoolExecutor;
+
 import org.apache.log4j.Logger;
 
 import gov.nih.nci.caintegrator.analysis.messaging.AnalysisRequest;
@@ -28,6 +32,8 @@ public class CompoundRequestTaskR extends AnalysisTaskR {
 	
 	private CompoundAnalysisResult result = null;
 	
+	private ThreadPoolExecutor subTaskExecutor = null;
+	
 	private static Logger logger = Logger.getLogger(CompoundRequestTaskR.class);
 
 	
@@ -42,74 +48,212 @@ public class CompoundRequestTaskR extends AnalysisTaskR {
 		
 	}
 
+	/**
+	 * Run the sub-requests.  When an executor has been set the sub-requests after the first
+	 * are also queued as CompoundSubTasks so that idle threads can run them in parallel. This task
+	 * runs, in order, every sub-request that has not been claimed by another thread, then waits 
+	 * for the others.  The results are added in the order of the sub-requests.  When a sub-request
+	 * fails the remaining unstarted sub-requests are skipped.
+	 */
 	@Override
 	public void run() {
 		CompoundAnalysisRequest compoundRequest = (CompoundAnalysisRequest) getRequest();
 		
 		result = new CompoundAnalysisResult(compoundRequest.getSessionId(), compoundRequest.getTaskId());
 		
-		for (AnalysisRequest request : compoundRequest.getRequests()) {
-			//execute the request
-			logger.info("CompoundRequestTaskR: running request: " + request);
-			runRequest(request);
+		List<CompoundSubTaskR> subTasks = new ArrayList<CompoundSubTaskR>();
+		try {
+			for (AnalysisRequest request : compoundRequest.getRequests()) {
+				subTasks.add(new CompoundSubTaskR(createTask(request), this));
+			}
+		}
+		catch (AnalysisServerException e) {
+			setFailed(e);
+			logger.error(getException());
+			return;
+		}
+		
+		if (subTaskExecutor != null) {
+			//the first sub-request uses the data file this task was scheduled for, run it here
+			for (int i = 1; i < subTasks.size(); i++) {
+				subTaskExecutor.execute(subTasks.get(i));
+			}
+		}
+		
+		List<CompoundSubTaskR> runOnOtherThreads = new ArrayList<CompoundSubTaskR>();
+		for (CompoundSubTaskR subTask : subTasks) {
 			if (getException() != null) {
-			  logger.error(getException());
-			  return;
+				break;
+			}
+			if (subTask.claim()) {
+				//execute the request
+				logger.info("CompoundRequestTaskR: running request: " + subTask.getRequest());
+				if (subTaskExecutor != null) {
+					subTaskExecutor.remove(subTask);
+				}
+				runRequest(subTask.getTask());
+			}
+			else {
+				runOnOtherThreads.add(subTask);
 			}
 		}
+		
+		for (CompoundSubTaskR subTask : runOnOtherThreads) {
+			try {
+				awaitSubTask(subTask);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				setFailed(new AnalysisServerException("Interrupted waiting for compound sub-request request=" + subTask.getRequest()));
+				break;
+			}
+			if (getException() != null) {
+				break;
+			}
+		}
+		
+		if ((getException() != null) && (subTaskExecutor != null)) {
+			//sub-tasks that have not started yet are not needed
+			for (CompoundSubTaskR subTask : subTasks) {
+				subTaskExecutor.remove(subTask);
+			}
+		}
+		
+		if (getException() != null) {
+			logger.error(getException());
+			return;
+		}
+		
+		for (CompoundSubTaskR subTask : subTasks) {
+			result.addResult(subTask.getResult());
+		}
+	}
+
+	/**
+	 * Set the executor used to run sub-requests on other threads.  When no executor is
+	 * set the sub-requests are run one after another on this task's thread.
+	 * @param subTaskExecutor
+	 */
+	public void setSubTaskExecutor(ThreadPoolExecutor subTaskExecutor) {
+		this.subTaskExecutor = subTaskExecutor;
+	}
+
+	/**
+	 * The compound task is scheduled using the data file of its first sub-request.
+	 */
+	@Override
+	public String getDataFileName() {
+		CompoundAnalysisRequest compoundRequest = (CompoundAnalysisRequest) getRequest();
+		if ((compoundRequest.getRequests() == null) || (compoundRequest.getRequests().isEmpty())) {
+		  return null;
+		}
+		return compoundRequest.getRequests().get(0).getDataFileName();
 	}
 
-	private void runRequest(AnalysisRequest request) {
+	/**
+	 * Create the task for a sub-request.
+	 * @param request
+	 * @return the task
+	 * @throws AnalysisServerException if the request type is not recognized
+	 */
+	private AnalysisTaskR createTask(AnalysisRequest request) throws AnalysisServerException {
 		
 	  //need to revisit the way we are mapping tasks to requests
 		
-	  AnalysisTaskR task = null;	
+	  if (request instanceof ClassComparisonLookupRequest) {
+		return new ClassComparisonLookupTaskR((ClassComparisonLookupRequest) request, getDebugRcommands());
+	  }
+	  else if (request instanceof ClassComparisonRequest) {
+	    return new ClassComparisonTaskR((ClassComparisonRequest) request, getDebugRcommands());
+	  }
+	  else if (request instanceof PrincipalComponentAnalysisRequest) {
+	    return new PrincipalComponentAnalysisTaskR((PrincipalComponentAnalysisRequest)request, getDebugRcommands());
+	  }
+	  else if (request instanceof HierarchicalClusteringRequest){
+		return new HierarchicalClusteringTaskR((HierarchicalClusteringRequest) request, getDebugRcommands());
+	  }
+	  else if (request instanceof FTestRequest){
+		return new FTestTaskR((FTestRequest)request, getDebugRcommands());
+	  }
+	  else if (request instanceof GeneralizedLinearModelRequest){
+		return new GeneralizedLinearModelTaskR((GeneralizedLinearModelRequest)request, getDebugRcommands());
+	  }
+	  else if (request instanceof ExpressionLookupRequest) {
+		return new ExpressionLookupTaskR((ExpressionLookupRequest) request, getDebugRcommands());
+	  }
+	  else if (request instanceof CopyNumberLookupRequest) {
+		return new CopyNumberLookupTaskR((CopyNumberLookupRequest) request, getDebugRcommands()); 
+	  }
+	  else if (request instanceof GenomeCorrelationRequest) {
+		return new GenomeCorrelationTaskR((GenomeCorrelationRequest) request, getDebugRcommands());
+	  }
+	  logger.error("Unrecognized request type :" + request.getClass());
+	  throw new AnalysisServerException("Unrecognized request type");
+	}
+
+	/**
+	 * Run a sub-request task on this task's connection.
+	 * @param task
+	 */
+	private void runRequest(AnalysisTaskR task) {
 	  try {
-		  if (request instanceof ClassComparisonLookupRequest) {
-			task = new ClassComparisonLookupTaskR((ClassComparisonLookupRequest) request, getDebugRcommands());
-		  }
-		  else if (request instanceof ClassComparisonRequest) {
-		    task = new ClassComparisonTaskR((ClassComparisonRequest) request, getDebugRcommands());
-		  }
-		  else if (request instanceof PrincipalComponentAnalysisRequest) {
-		    task = new PrincipalComponentAnalysisTaskR((PrincipalComponentAnalysisRequest)request, getDebugRcommands());
-		  }
-		  else if (request instanceof HierarchicalClusteringRequest){
-			task = new HierarchicalClusteringTaskR((HierarchicalClusteringRequest) request, getDebugRcommands());
-		  }
-		  else if (request instanceof FTestRequest){
-			task = new FTestTaskR((FTestRequest)request, getDebugRcommands());
-		  }
-		  else if (request instanceof GeneralizedLinearModelRequest){
-			task = new GeneralizedLinearModelTaskR((GeneralizedLinearModelRequest)request, getDebugRcommands());
-		  }
-		  else if (request instanceof ExpressionLookupRequest) {
-			task = new ExpressionLookupTaskR((ExpressionLookupRequest) request, getDebugRcommands());
-		  }
-		  else if (request instanceof CopyNumberLookupRequest) {
-			task = new CopyNumberLookupTaskR((CopyNumberLookupRequest) request, getDebugRcommands()); 
-		  }
-		  else {
-			logger.error("Unrecognized request type :" + request.getClass());
-		    throw new AnalysisServerException("Unrecognized request type");
-		  }
 		  task.setRComputeConnection(this.getRComputeConnection());
+		  task.setStatisticsCache(getStatisticsCache());
+		  task.setDictionaryCache(getDictionaryCache());
+		  task.setDendrogramCache(getDendrogramCache());
+		  task.setDataMatrixCache(getDataMatrixCache());
+		  task.setCorrelationRowStatisticsCache(getCorrelationRowStatisticsCache());
 		  task.run();
 		  if (task.getException() != null) {
 		    throw task.getException();
 		  }
-		  result.addResult(task.getResult());
 	  } catch (AnalysisServerException e) {
-		
-		  AnalysisServerException ex2 = new AnalysisServerException(e.getMessage());
-		  ex2.setFailedRequest(getRequest());
-		  this.setException(ex2);
-		  
-		  
+		  setFailed(e);
 	  } finally {
 		task.cleanUp();
 	  }
 	}
+	
+	/**
+	 * Record the failure of a sub-request as the failure of the compound request.
+	 * Only the first failure is kept.  Called by sub-tasks running on other threads, 
+	 * it wakes this task if it is waiting for a sub-task.
+	 * @param e
+	 */
+	synchronized void setFailed(AnalysisServerException e) {
+		if (getException() == null) {
+		  AnalysisServerException ex2 = new AnalysisServerException(e.getMessage());
+		  ex2.setFailedRequest(getRequest());
+		  this.setException(ex2);
+		}
+		notifyAll();
+	}
+	
+	/**
+	 * Called by a sub-task running on another thread when it has finished.
+	 */
+	synchronized void subTaskFinished() {
+		notifyAll();
+	}
+	
+	/**
+	 * Wait until a sub-task claimed by another thread has finished or any sub-task has failed.
+	 * @param subTask
+	 * @throws InterruptedException
+	 */
+	private synchronized void awaitSubTask(CompoundSubTaskR subTask) throws InterruptedException {
+		while ((!subTask.isDone()) && (getException() == null)) {
+			wait();
+		}
+	}
+
+	/**
+	 * Synchronized so that failures recorded by sub-tasks on other threads are seen.
+	 */
+	@Override
+	public synchronized AnalysisServerException getException() {
+		return super.getException();
+	}
 
 	@Override
 	public void cleanUp() {
@@ -122,6 +266,11 @@ public class CompoundRequestTaskR extends AnalysisTaskR {
 		}
 	}
 
+	@Override
+	public TaskCostClass getCostClass() {
+		return TaskCostClass.BATCH;
+	}
+
 	@Override
 	public AnalysisResult getResult() {
 		return result;
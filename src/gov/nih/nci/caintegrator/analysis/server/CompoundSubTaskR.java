@@ -0,0 +1,148 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import gov.nih.nci.caintegrator.analysis.messaging.AnalysisResult;
+import gov.nih.nci.caintegrator.exceptions.AnalysisServerException;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs one sub-request of a compound request on another RThread.  The sub-task and 
+ * the CompoundRequestTaskR that created it both try to claim the sub-task, whichever 
+ * claims it first runs it.  The result is not sent by the executor, it is gathered
+ * by the compound task.
+ * 
+ * @see gov.nih.nci.caintegrator.analysis.server.CompoundRequestTaskR
+ * 
+ * @author caIntegrator Team
+ *
+ */
+public class CompoundSubTaskR extends AnalysisTaskR {
+
+	private AnalysisTaskR task;
+	
+	private CompoundRequestTaskR parent;
+	
+	private AtomicBoolean claimed = new AtomicBoolean(false);
+	
+	private CountDownLatch done = new CountDownLatch(1);
+	
+	private static Logger logger = Logger.getLogger(CompoundSubTaskR.class);
+	
+	public CompoundSubTaskR(AnalysisTaskR task, CompoundRequestTaskR parent) {
+		super(task.getRequest(), task.getDebugRcommands());
+		this.task = task;
+		this.parent = parent;
+	}
+	
+	/**
+	 * Claim the sub-task so that it is only run once.
+	 * @return true if the caller should run the sub-task
+	 */
+	public boolean claim() {
+		return claimed.compareAndSet(false, true);
+	}
+	
+	/**
+	 * Run the sub-task on the executing thread's connection if the compound task has 
+	 * not already claimed it and has not failed.
+	 */
+	@Override
+	public void run() {
+		if (!claim()) {
+			return;
+		}
+		try {
+			if (parent.getException() != null) {
+				//fail fast, an earlier step of the compound request failed
+				logger.info("CompoundSubTaskR: skipping request=" + getRequest() + " compound request failed");
+				return;
+			}
+			logger.info("CompoundSubTaskR: running request: " + getRequest());
+			task.setRComputeConnection(getRComputeConnection());
+			task.setStatisticsCache(getStatisticsCache());
+			task.setDictionaryCache(getDictionaryCache());
+			task.setDendrogramCache(getDendrogramCache());
+			task.setDataMatrixCache(getDataMatrixCache());
+			task.setCorrelationRowStatisticsCache(getCorrelationRowStatisticsCache());
+			task.run();
+			if (task.getException() != null) {
+				setFailed(task.getException());
+			}
+		}
+		catch (AnalysisServerException ex) {
+			setFailed(ex);
+		}
+		finally {
+			if (isTimedOut()) {
+				AnalysisServerException ex = new AnalysisServerException("Analysis task timed out request=" + getRequest().getClass().getSimpleName());
+				ex.setFailedRequest(getRequest());
+				setFailed(ex);
+			}
+			task.cleanUp();
+			done.countDown();
+			parent.subTaskFinished();
+		}
+	}
+	
+	/**
+	 * Record the failure on the sub-task and fail the compound request right away, so
+	 * that its remaining sub-requests are skipped without waiting for this one to be
+	 * gathered.
+	 * @param ex
+	 */
+	private void setFailed(AnalysisServerException ex) {
+		setException(ex);
+		parent.setFailed(ex);
+	}
+	
+	/**
+	 * @return true if the sub-task has finished running, or was skipped
+	 */
+	public boolean isDone() {
+		return done.getCount() == 0L;
+	}
+	
+	public AnalysisTaskR getTask() {
+		return task;
+	}
+	
+	@Override
+	public String getDataFileName() {
+		return task.getDataFileName();
+	}
+	
+	/**
+	 * Sub-tasks are scheduled in the class of the compound request.
+	 */
+	@Override
+	public TaskCostClass getCostClass() {
+		return parent.getCostClass();
+	}
+
+	@Override
+	public void cleanUp() {
+		try {
+			setRComputeConnection(null);
+		} catch (AnalysisServerException e) {
+			logger.error("Error in cleanUp method.");
+			logStackTrace(logger, e);
+			setException(e);
+		}
+	}
+
+	@Override
+	public AnalysisResult getResult() {
+		return task.getResult();
+	}
+
+}
@@ -95,39 +95,20 @@ public class CopyNumberLookupTaskR extends AnalysisTaskR {
 		try {
 			DataPointVector dpVector = new DataPointVector(reporterName);
 			setDataFile(rBinaryFileName);
-		    String cmd;
-		   
-		
-			if ((samples != null)&&(!samples.isEmpty())) {
-			  String sampleIdscmd = getRgroupCmd("sampleIds", samples);
-			  doRvoidEval(sampleIdscmd);
-			
-			  cmd = "SM <- getSubmatrix.onegrp(dataMatrix, sampleIds)";
-			  doRvoidEval(cmd);			  
-			}
-			else {
-			  //use the entire data matrix without restricting on samples
-			  cmd = "SM <- dataMatrix";
-			  doRvoidEval(cmd);
-			}
 			
-			
-			cmd = "RM <- getSubmatrix.rep(SM,\"" + reporterName + "\")";
-			double[] vec =  doREval(cmd).asDoubleArray();
 			//need to make sure that the vectors are in the same order wrt sample ids
-			cmd = "RMlabels <- dimnames(RM)[[1]]";
-			Vector RM_ids = doREval(cmd).asVector();
+			RResultFrame reporterValues = doREvalReporterValues(reporterName, samples);
 			
-		    if (RM_ids == null) {
+		    if (reporterValues.getNumRows() == 0) {
 		      throw new AnalysisServerException("No expression data found for reporter " + reporterName + " in data file=" + rBinaryFileName + ".");
 		    }
 			
+			double[] vec = reporterValues.getColumn(0);
+			String[] RM_ids = reporterValues.getRowNames();
 			DataPoint point;
 			String id;
-			REXP exp;
-			for (int i=0; i < RM_ids.size(); i++) {
-			  exp = (REXP) RM_ids.get(i);
-			  id = exp.asString();
+			for (int i=0; i < RM_ids.length; i++) {
+			  id = RM_ids[i];
 			  
 			  //logger.info("Adding data point with id=" + id);
 			  point = new DataPoint(id);	
@@ -174,6 +155,11 @@ public class CopyNumberLookupTaskR extends AnalysisTaskR {
 		}
 	}
 
+	@Override
+	public TaskCostClass getCostClass() {
+		return TaskCostClass.INTERACTIVE;
+	}
+
 	@Override
 	public AnalysisResult getResult() {
 		return result;
@@ -0,0 +1,51 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+/**
+ * The mean and norm (the square root of the sum of squared deviations from the mean) of every
+ * row of a data matrix over one set of samples, of the values for Pearson correlations or of
+ * their ranks for Spearman correlations.  Rows with a missing value in the set have NaN for
+ * both, since their correlations are computed over the samples that have values.
+ *
+ * @see gov.nih.nci.caintegrator.analysis.server.GenomeCorrelationEngine
+ * @see gov.nih.nci.caintegrator.analysis.server.CorrelationRowStatisticsCache
+ *
+ * @author caIntegrator Team
+ *
+ */
+public class CorrelationRowStatistics {
+
+	private double[] means;
+
+	private double[] norms;
+
+	public CorrelationRowStatistics(double[] means, double[] norms) {
+		this.means = means;
+		this.norms = norms;
+	}
+
+	public int getNumRows() {
+		return means.length;
+	}
+
+	public double getMean(int row) {
+		return means[row];
+	}
+
+	public double getNorm(int row) {
+		return norms[row];
+	}
+
+	/**
+	 * @return true if the row has a value for every sample of the set
+	 */
+	public boolean isComplete(int row) {
+		return !Double.isNaN(means[row]);
+	}
+}
@@ -0,0 +1,132 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import gov.nih.nci.caintegrator.enumeration.CorrelationType;
+
+import java.util.LinkedHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A least recently used cache of the per row means and norms computed for recent genome
+ * correlation requests, keyed by the data file, the correlation type and the sample set, so
+ * a later query over the same samples only makes one pass over the data matrix.  Entries are
+ * not used once the data file changes.
+ *
+ * @see gov.nih.nci.caintegrator.analysis.server.CorrelationRowStatistics
+ *
+ * @author caIntegrator Team
+ *
+ */
+public class CorrelationRowStatisticsCache {
+
+	private String rDataFileDirectory;
+
+	private int maxEntries;
+
+	private LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+
+	private long hits = 0L;
+	private long misses = 0L;
+
+	private static Logger logger = Logger.getLogger(CorrelationRowStatisticsCache.class);
+
+	/**
+	 *
+	 * @param rDataFileDirectory the directory the data files are loaded from
+	 * @param maxEntries the maximum number of sample sets to keep the statistics of
+	 */
+	public CorrelationRowStatisticsCache(String rDataFileDirectory, int maxEntries) {
+		this.rDataFileDirectory = rDataFileDirectory;
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Get the statistics of a sample set.
+	 * @param dataFileName
+	 * @param correlationType
+	 * @param columns the sorted one based positions of the samples
+	 * @return the statistics or null if there are none for the current version of the data file
+	 */
+	public CorrelationRowStatistics get(String dataFileName, CorrelationType correlationType, int[] columns) {
+		String key = getKey(dataFileName, correlationType, columns);
+		String dataFileVersion = AnalysisResultCache.getDataFileVersion(rDataFileDirectory, dataFileName);
+		synchronized (this) {
+			CacheEntry entry = entries.get(key);
+			if ((entry != null) && (!entry.dataFileVersion.equals(dataFileVersion))) {
+				entries.remove(key);
+				entry = null;
+			}
+			if (entry == null) {
+				misses++;
+				return null;
+			}
+			hits++;
+			logger.info("Correlation row statistics cache hit dataFileName=" + dataFileName + " correlationType=" + correlationType +
+					    " samples=" + columns.length + " hits=" + hits + " misses=" + misses);
+			return entry.statistics;
+		}
+	}
+
+	/**
+	 * Keep the statistics of a sample set.
+	 * @param dataFileName
+	 * @param correlationType
+	 * @param columns the sorted one based positions of the samples
+	 * @param statistics
+	 */
+	public void put(String dataFileName, CorrelationType correlationType, int[] columns, CorrelationRowStatistics statistics) {
+		String key = getKey(dataFileName, correlationType, columns);
+		String dataFileVersion = AnalysisResultCache.getDataFileVersion(rDataFileDirectory, dataFileName);
+		if (dataFileVersion == null) {
+			//entries for a data file of unknown version could never be invalidated
+			return;
+		}
+		CacheEntry entry = new CacheEntry(statistics, dataFileVersion);
+		synchronized (this) {
+			entries.put(key, entry);
+			while (entries.size() > maxEntries) {
+				String eldest = entries.keySet().iterator().next();
+				entries.remove(eldest);
+			}
+		}
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized int getNumEntries() {
+		return entries.size();
+	}
+
+	private String getKey(String dataFileName, CorrelationType correlationType, int[] columns) {
+		StringBuffer sb = new StringBuffer(dataFileName).append("|").append(correlationType).append("|");
+		for (int i = 0; i < columns.length; i++) {
+			sb.append((i > 0) ? "," : "").append(columns[i]);
+		}
+		return sb.toString();
+	}
+
+	private static class CacheEntry {
+
+		private CorrelationRowStatistics statistics;
+
+		private String dataFileVersion;
+
+		private CacheEntry(CorrelationRowStatistics statistics, String dataFileVersion) {
+			this.statistics = statistics;
+			this.dataFileVersion = dataFileVersion;
+		}
+	}
+}
@@ -21,7 +21,6 @@ import gov.nih.nci.caintegrator.exceptions.AnalysisServerException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
@@ -125,6 +124,21 @@ public class CorrelationTaskR extends AnalysisTaskR {
 		}
 	}
 
+	/**
+	 * The data file used by a correlation request is specified by the reporters.
+	 */
+	@Override
+	public String getDataFileName() {
+		CorrelationRequest request = (CorrelationRequest) getRequest();
+		if (request.getReporter1() != null) {
+		  return request.getReporter1().getDataFileName();
+		}
+		else if (request.getReporter2() != null) {
+		  return request.getReporter2().getDataFileName();
+		}
+		return null;
+	}
+
 	private List<DataPoint> getComputePoints(Collection<DataPoint> points) {
 		List<DataPoint> computePoints = new ArrayList<DataPoint>();
 		for (DataPoint point: points) {
@@ -136,28 +150,32 @@ public class CorrelationTaskR extends AnalysisTaskR {
 	}
 
 	/**
-	 * Compute the correlation coefficient based on the specified compute points.
+	 * Compute the correlation coefficient based on the specified compute points.  The
+	 * coefficient is computed in Java, so a request with two vectors is answered without R.
 	 * @param computePoints
-	 * @return
+	 * @return the coefficient, NaN for fewer than two points or a constant vector, or null
+	 * for an unrecognized correlation type
 	 * @throws AnalysisServerException
 	 */
 	private Double computeCorrelationCofficient(List<DataPoint> computePoints) throws AnalysisServerException {
-		String v1str = "v1 <- c(" + getDataString(computePoints, true,false);
-		  String v2str = "v2 <- c(" + getDataString(computePoints,false,true);
+		  double[] x = new double[computePoints.size()];
+		  double[] y = new double[computePoints.size()];
+		  int i = 0;
+		  for (DataPoint point : computePoints) {
+			x[i] = point.getX().doubleValue();
+			y[i] = point.getY().doubleValue();
+			i++;
+		  }
 		  Double r = null;
-		  String cmd;
 		  		  
-		  doRvoidEval(v1str);
-		  doRvoidEval(v2str);
 		  if (corrRequest.getCorrelationType() == CorrelationType.PEARSON) {
-		    cmd = "r <- correlation(v1,v2,\"pearson\")";
-		    r = doREval(cmd).asDouble();
+		    r = Double.valueOf(Correlations.pearson(x, y));
 		  }
 		  else if (corrRequest.getCorrelationType() == CorrelationType.SPEARMAN) {
-		    cmd = "r <- correlation(v1,v2, \"spearman\")";
-		    r = doREval(cmd).asDouble();
+		    r = Double.valueOf(Correlations.spearman(x, y));
 		  }
 		  
+		  logger.info("correlation type=" + corrRequest.getCorrelationType() + " points=" + x.length + " r=" + r);
 		  return r;
 	}
 	
@@ -218,38 +236,20 @@ public class CorrelationTaskR extends AnalysisTaskR {
 		try {
 			
 			setDataFile(reporter.getDataFileName());
-		    String cmd;
-			
-			if ((sampleIds != null)&&(!sampleIds.isEmpty())) {
-			  String sampleIdscmd = getRgroupCmd("sampleIds", sampleIds);
-			  doRvoidEval(sampleIdscmd);
-			
-			  cmd = "SM <- getSubmatrix.onegrp(dataMatrix, sampleIds)";
-			  doRvoidEval(cmd);			  
-			}
-			else {
-			  //use the entire data matrix without restricting on samples
-			  cmd = "SM <- dataMatrix";
-			  doRvoidEval(cmd);
-			}
-			
 			
-			cmd = "RM <- getSubmatrix.rep(SM,\"" + reporter.getReporterName() + "\")";
-			double[] vec =  doREval(cmd).asDoubleArray();
 			//need to make sure that the vectors are in the same order wrt sample ids
-			cmd = "RMlabels <- dimnames(RM)[[1]]";
-			Vector RM_ids = doREval(cmd).asVector();
+			RResultFrame reporterValues = doREvalReporterValues(reporter.getReporterName(), sampleIds);
 			
-		    if (RM_ids == null) {
+		    if (reporterValues.getNumRows() == 0) {
 		      throw new AnalysisServerException("No expression data found for reporter " + reporter.getReporterName() + " in data file=" + reporter.getDataFileName() + ".");
 		    }
 			
+			double[] vec = reporterValues.getColumn(0);
+			String[] RM_ids = reporterValues.getRowNames();
 			DataPoint point;
 			String id;
-			REXP exp;
-			for (int i=0; i < RM_ids.size(); i++) {
-			  exp = (REXP) RM_ids.get(i);
-			  id = exp.asString();
+			for (int i=0; i < RM_ids.length; i++) {
+			  id = RM_ids[i];
 			  
 			  //logger.info("Adding data point with id=" + id);
 			  
@@ -294,43 +294,14 @@ public class CorrelationTaskR extends AnalysisTaskR {
 		}
 	}
 
+	@Override
+	public TaskCostClass getCostClass() {
+		return TaskCostClass.INTERACTIVE;
+	}
+
 	@Override
 	public AnalysisResult getResult() {
 		return result;
 	}
-	
-	/**
-	 * 
-	 * @param points
-	 * @param useX
-	 * @param useY
-	 * @return Quoted string for use in R command
-	 */
-	private String getDataString(List<DataPoint> points, boolean useX, boolean useY) {
-	  StringBuffer sb = new StringBuffer();
-	  DataPoint point;
-	  boolean pointAppended = false;
-	  for (Iterator i=points.iterator(); i.hasNext(); ) {
-		 point = (DataPoint) i.next();
-		 
-		 if ((point.getX()!=null)&&(point.getY()!=null)) {
-			 if (pointAppended) {
-		       sb.append(",");
-			 }
-			 if (useX) {
-			   sb.append("\"").append(point.getX()).append("\"");
-			 } 
-			 
-			 
-			 if (useY) {
-			   sb.append("\"").append(point.getY()).append("\"");
-			 }
-			 pointAppended = true;
-		 }
-	  }
-	  sb.append(")");
-	  return sb.toString();
-      
-	}
 	  
 }
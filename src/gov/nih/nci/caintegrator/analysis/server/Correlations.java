@@ -0,0 +1,168 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import java.util.Arrays;
+
+/**
+ * Pearson and Spearman correlation coefficients computed in Java, giving the same answer as
+ * cor(x, y, use="complete.obs", method=...) in R: pairs with a NaN (NA) value are dropped, the
+ * Spearman coefficient is the Pearson coefficient of the ranks with tied values given their
+ * average rank, and the coefficient is NaN when fewer than two pairs are left or a vector is
+ * constant.
+ *
+ * The Pearson coefficient is computed as R does: the means are corrected with a second pass
+ * over the deviations, the sums of products are taken about the corrected means and the result
+ * is clamped to [-1, 1].
+ *
+ * @author caIntegrator Team
+ *
+ */
+public class Correlations {
+
+	private Correlations() {
+	}
+
+	/**
+	 * @param x
+	 * @param y a vector of the same length as x
+	 * @return the Pearson correlation coefficient of the pairs without a NaN value
+	 */
+	public static double pearson(double[] x, double[] y) {
+		double[][] complete = getCompletePairs(x, y);
+		return pearson(complete[0], complete[1], complete[0].length);
+	}
+
+	/**
+	 * @param x
+	 * @param y a vector of the same length as x
+	 * @return the Spearman correlation coefficient of the pairs without a NaN value
+	 */
+	public static double spearman(double[] x, double[] y) {
+		double[][] complete = getCompletePairs(x, y);
+		int n = complete[0].length;
+		return pearson(rank(complete[0], n), rank(complete[1], n), n);
+	}
+
+	/**
+	 * Compute the Pearson correlation coefficient of the first n values of two vectors
+	 * without NaN values.
+	 */
+	static double pearson(double[] x, double[] y, int n) {
+		if (n < 2) {
+			return Double.NaN;
+		}
+		double xMean = getMean(x, n);
+		double yMean = getMean(y, n);
+		double sxx = 0.0, syy = 0.0, sxy = 0.0;
+		for (int i = 0; i < n; i++) {
+			double dx = x[i] - xMean;
+			double dy = y[i] - yMean;
+			sxx += dx * dx;
+			syy += dy * dy;
+			sxy += dx * dy;
+		}
+		if ((sxx == 0.0) || (syy == 0.0)) {
+			//the standard deviation is zero
+			return Double.NaN;
+		}
+		double r = sxy / (Math.sqrt(sxx) * Math.sqrt(syy));
+		return Math.max(-1.0, Math.min(1.0, r));
+	}
+
+	/**
+	 * Rank the first n values of a vector without NaN values, giving tied values the average
+	 * of their ranks as rank(x, ties.method="average") does in R.
+	 * @return the one based ranks
+	 */
+	static double[] rank(double[] values, int n) {
+		double[] ranks = new double[n];
+		rank(values, n, new double[n], ranks);
+		return ranks;
+	}
+
+	/**
+	 * Rank the first n values of a vector without NaN values into a buffer, giving tied values
+	 * the average of their ranks.
+	 * @param values
+	 * @param n
+	 * @param sorted a scratch buffer of at least n values
+	 * @param ranks the buffer the one based ranks are written to
+	 */
+	static void rank(double[] values, int n, double[] sorted, double[] ranks) {
+		System.arraycopy(values, 0, sorted, 0, n);
+		Arrays.sort(sorted, 0, n);
+		for (int i = 0; i < n; i++) {
+			//the tied values are at the positions from to to - 1 of the sorted values
+			int from = getFirstPosition(sorted, n, values[i], false);
+			int to = getFirstPosition(sorted, n, values[i], true);
+			ranks[i] = (from + 1 + to) / 2.0;
+		}
+	}
+
+	/**
+	 * @return the position of the first sorted value that is at least value, or greater than
+	 * value if above is true
+	 */
+	private static int getFirstPosition(double[] sorted, int n, double value, boolean above) {
+		int low = 0, high = n;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if ((sorted[middle] < value) || (above && (sorted[middle] == value))) {
+				low = middle + 1;
+			}
+			else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @return the mean of the first n values, corrected by the mean of the deviations as in R
+	 */
+	static double getMean(double[] values, int n) {
+		double sum = 0.0;
+		for (int i = 0; i < n; i++) {
+			sum += values[i];
+		}
+		double mean = sum / n;
+		double correction = 0.0;
+		for (int i = 0; i < n; i++) {
+			correction += values[i] - mean;
+		}
+		return mean + correction / n;
+	}
+
+	/**
+	 * @return the x and y values of the pairs without a NaN value
+	 */
+	private static double[][] getCompletePairs(double[] x, double[] y) {
+		if (x.length != y.length) {
+			throw new IllegalArgumentException("Vectors have different lengths x=" + x.length + " y=" + y.length);
+		}
+		double[] xComplete = new double[x.length];
+		double[] yComplete = new double[y.length];
+		int n = 0;
+		for (int i = 0; i < x.length; i++) {
+			if ((!Double.isNaN(x[i])) && (!Double.isNaN(y[i]))) {
+				xComplete[n] = x[i];
+				yComplete[n] = y[i];
+				n++;
+			}
+		}
+		if (n < x.length) {
+			double[] xTrimmed = new double[n];
+			double[] yTrimmed = new double[n];
+			System.arraycopy(xComplete, 0, xTrimmed, 0, n);
+			System.arraycopy(yComplete, 0, yTrimmed, 0, n);
+			return new double[][] { xTrimmed, yTrimmed };
+		}
+		return new double[][] { xComplete, yComplete };
+	}
+}
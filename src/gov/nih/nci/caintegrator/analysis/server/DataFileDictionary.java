@@ -0,0 +1,200 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The reporter (row) and sample (column) IDs of the dataMatrix in one data file, with a map
+ * from each ID to its position.  Groups of IDs are resolved to positions in Java, so that
+ * IDs that are not in the data file can be reported before anything is sent to R and only
+ * integer position vectors have to be sent.
+ *
+ * Positions are one based and returned sorted without duplicates, so selecting with them
+ * gives the same rows or columns in the same order as selecting with allids %in% ids in
+ * the getSubmatrix functions.  An axis with duplicate IDs cannot be resolved to positions.
+ *
+ * @see gov.nih.nci.caintegrator.analysis.server.DataFileDictionaryCache
+ *
+ * @author caIntegrator Team
+ *
+ */
+public class DataFileDictionary {
+
+	private String dataFileName;
+
+	private String[] reporterIds;
+
+	private String[] sampleIds;
+
+	//null if the axis has duplicate IDs
+	private Map<String, Integer> reporterPositions;
+
+	private Map<String, Integer> samplePositions;
+
+	/**
+	 *
+	 * @param dataFileName
+	 * @param reporterIds the row names of the dataMatrix
+	 * @param sampleIds the column names of the dataMatrix
+	 */
+	public DataFileDictionary(String dataFileName, String[] reporterIds, String[] sampleIds) {
+		this.dataFileName = dataFileName;
+		this.reporterIds = reporterIds;
+		this.sampleIds = sampleIds;
+		this.reporterPositions = getPositionMap(reporterIds);
+		this.samplePositions = getPositionMap(sampleIds);
+	}
+
+	public String getDataFileName() {
+		return dataFileName;
+	}
+
+	public int getNumReporters() {
+		return reporterIds.length;
+	}
+
+	public int getNumSamples() {
+		return sampleIds.length;
+	}
+
+	/**
+	 * @return the row names of the dataMatrix
+	 */
+	public String[] getReporterIds() {
+		return reporterIds;
+	}
+
+	/**
+	 * @return the column names of the dataMatrix
+	 */
+	public String[] getSampleIds() {
+		return sampleIds;
+	}
+
+	/**
+	 * @return true if the reporter IDs are unique and can be resolved to positions
+	 */
+	public boolean hasReporterPositions() {
+		return reporterPositions != null;
+	}
+
+	/**
+	 * @return true if the sample IDs are unique and can be resolved to positions
+	 */
+	public boolean hasSamplePositions() {
+		return samplePositions != null;
+	}
+
+	/**
+	 * Get the positions of the reporters that are in the data file.
+	 * @param ids
+	 * @return the sorted one based row positions
+	 */
+	public int[] getReporterPositions(String[] ids) {
+		return getPositions(reporterPositions, ids);
+	}
+
+	/**
+	 * Get the positions of the samples that are in the data file.
+	 * @param ids
+	 * @return the sorted one based column positions
+	 */
+	public int[] getSamplePositions(String[] ids) {
+		return getPositions(samplePositions, ids);
+	}
+
+	/**
+	 * @param ids
+	 * @return the IDs that are not reporters in the data file, in the order given
+	 */
+	public List<String> getMissingReporters(String[] ids) {
+		return getMissing(reporterIds, reporterPositions, ids);
+	}
+
+	/**
+	 * @param ids
+	 * @return the IDs that are not samples in the data file, in the order given
+	 */
+	public List<String> getMissingSamples(String[] ids) {
+		return getMissing(sampleIds, samplePositions, ids);
+	}
+
+	/**
+	 * Get the estimated heap size of the dictionary.
+	 * @return the size in bytes
+	 */
+	public long getEstimatedBytes() {
+		long bytes = 0L;
+		for (String id : reporterIds) {
+			//string, its characters and a map entry
+			bytes += 40L + (2L * id.length()) + 40L;
+		}
+		for (String id : sampleIds) {
+			bytes += 40L + (2L * id.length()) + 40L;
+		}
+		return bytes;
+	}
+
+	public String toString() {
+		return "DataFileDictionary dataFileName=" + dataFileName + " reporters=" + reporterIds.length +
+		       " samples=" + sampleIds.length;
+	}
+
+	private static Map<String, Integer> getPositionMap(String[] ids) {
+		Map<String, Integer> positions = new HashMap<String, Integer>(ids.length * 2);
+		for (int i = 0; i < ids.length; i++) {
+			if ((ids[i] == null) || (positions.put(ids[i], i + 1) != null)) {
+				return null;
+			}
+		}
+		return positions;
+	}
+
+	private static int[] getPositions(Map<String, Integer> positions, String[] ids) {
+		if (positions == null) {
+			throw new IllegalStateException("IDs are not unique and can not be resolved to positions");
+		}
+		int[] found = new int[ids.length];
+		int numFound = 0;
+		for (String id : ids) {
+			Integer position = positions.get(id);
+			if (position != null) {
+				found[numFound++] = position.intValue();
+			}
+		}
+		Arrays.sort(found, 0, numFound);
+		//drop duplicates
+		int numUnique = 0;
+		for (int i = 0; i < numFound; i++) {
+			if ((numUnique == 0) || (found[i] != found[numUnique - 1])) {
+				found[numUnique++] = found[i];
+			}
+		}
+		int[] unique = new int[numUnique];
+		System.arraycopy(found, 0, unique, 0, numUnique);
+		return unique;
+	}
+
+	private static List<String> getMissing(String[] allIds, Map<String, Integer> positions, String[] ids) {
+		List<String> missing = new ArrayList<String>();
+		Set<String> all = (positions != null) ? positions.keySet() : new HashSet<String>(Arrays.asList(allIds));
+		for (String id : ids) {
+			if (!all.contains(id)) {
+				missing.add(id);
+			}
+		}
+		return missing;
+	}
+}
@@ -0,0 +1,98 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import java.util.LinkedHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A least recently used cache of the DataFileDictionary of recently used data files, shared
+ * by all compute threads so the reporter and sample IDs of a data file are only fetched from
+ * R once.  Entries are not used once the data file changes.
+ *
+ * @see gov.nih.nci.caintegrator.analysis.server.DataFileDictionary
+ *
+ * @author caIntegrator Team
+ *
+ */
+public class DataFileDictionaryCache {
+
+	private String rDataFileDirectory;
+
+	private int maxEntries;
+
+	private LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+
+	private static Logger logger = Logger.getLogger(DataFileDictionaryCache.class);
+
+	/**
+	 *
+	 * @param rDataFileDirectory the directory the data files are loaded from
+	 * @param maxEntries the maximum number of data files to keep dictionaries for
+	 */
+	public DataFileDictionaryCache(String rDataFileDirectory, int maxEntries) {
+		this.rDataFileDirectory = rDataFileDirectory;
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Get the dictionary of a data file.
+	 * @param dataFileName
+	 * @return the dictionary or null if there is none for the current version of the data file
+	 */
+	public DataFileDictionary get(String dataFileName) {
+		String dataFileVersion = AnalysisResultCache.getDataFileVersion(rDataFileDirectory, dataFileName);
+		synchronized (this) {
+			CacheEntry entry = entries.get(dataFileName);
+			if ((entry != null) && (!entry.dataFileVersion.equals(dataFileVersion))) {
+				entries.remove(dataFileName);
+				entry = null;
+			}
+			return (entry != null) ? entry.dictionary : null;
+		}
+	}
+
+	/**
+	 * Keep the dictionary of a data file.
+	 * @param dictionary
+	 */
+	public void put(DataFileDictionary dictionary) {
+		String dataFileName = dictionary.getDataFileName();
+		String dataFileVersion = AnalysisResultCache.getDataFileVersion(rDataFileDirectory, dataFileName);
+		if (dataFileVersion == null) {
+			//entries for a data file of unknown version could never be invalidated
+			return;
+		}
+		CacheEntry entry = new CacheEntry(dictionary, dataFileVersion);
+		synchronized (this) {
+			entries.put(dataFileName, entry);
+			while (entries.size() > maxEntries) {
+				String eldest = entries.keySet().iterator().next();
+				entries.remove(eldest);
+			}
+		}
+		logger.info("Cached " + dictionary + " estimatedBytes=" + dictionary.getEstimatedBytes());
+	}
+
+	public synchronized int getNumEntries() {
+		return entries.size();
+	}
+
+	private static class CacheEntry {
+
+		private DataFileDictionary dictionary;
+
+		private String dataFileVersion;
+
+		private CacheEntry(DataFileDictionary dictionary, String dataFileVersion) {
+			this.dictionary = dictionary;
+			this.dataFileVersion = dataFileVersion;
+		}
+	}
+}
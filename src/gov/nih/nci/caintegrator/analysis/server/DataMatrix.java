@@ -0,0 +1,120 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import gov.nih.nci.caintegrator.exceptions.AnalysisServerException;
+
+/**
+ * A Java copy of the dataMatrix of one data file for the Java statistics engines.  The values
+ * are kept in one row major array (reporters in rows, samples in columns) with NA as NaN, and
+ * the IDs in the DataFileDictionary of the data file.
+ *
+ * @see gov.nih.nci.caintegrator.analysis.server.DataMatrixCache
+ *
+ * @author caIntegrator Team
+ *
+ */
+public class DataMatrix {
+
+	private DataFileDictionary dictionary;
+
+	private int numRows;
+
+	private int numColumns;
+
+	//values[row * numColumns + column]
+	private double[] values;
+
+	/**
+	 *
+	 * @param dictionary the IDs of the data file
+	 * @param columnMajorValues the values as R stores them, one column after the other
+	 * @throws AnalysisServerException if the number of values does not match the dictionary
+	 */
+	public DataMatrix(DataFileDictionary dictionary, double[] columnMajorValues) throws AnalysisServerException {
+		this.dictionary = dictionary;
+		this.numRows = dictionary.getNumReporters();
+		this.numColumns = dictionary.getNumSamples();
+		if (columnMajorValues.length != (long) numRows * numColumns) {
+			throw new AnalysisServerException("Internal Error. dataMatrix of data file=" + dictionary.getDataFileName() + " has " +
+					                          columnMajorValues.length + " values, expected " + numRows + "x" + numColumns);
+		}
+		values = new double[columnMajorValues.length];
+		for (int column = 0; column < numColumns; column++) {
+			int from = column * numRows;
+			for (int row = 0; row < numRows; row++) {
+				values[row * numColumns + column] = columnMajorValues[from + row];
+			}
+		}
+	}
+
+	public DataFileDictionary getDictionary() {
+		return dictionary;
+	}
+
+	public String getDataFileName() {
+		return dictionary.getDataFileName();
+	}
+
+	public int getNumRows() {
+		return numRows;
+	}
+
+	public int getNumColumns() {
+		return numColumns;
+	}
+
+	public double getValue(int row, int column) {
+		return values[row * numColumns + column];
+	}
+
+	/**
+	 * Copy some of the columns of every row into a row major block.
+	 * @param positions the one based column positions, in the order wanted in the block
+	 * @return the numRows x positions.length block
+	 */
+	public double[] getColumns(int[] positions) {
+		return getBlock(null, positions);
+	}
+
+	/**
+	 * Copy some of the columns of some of the rows into a row major block.
+	 * @param rowPositions the one based row positions, in the order wanted in the block, or null for every row
+	 * @param columnPositions the one based column positions, in the order wanted in the block
+	 * @return the rowPositions.length x columnPositions.length block
+	 */
+	public double[] getBlock(int[] rowPositions, int[] columnPositions) {
+		int height = (rowPositions != null) ? rowPositions.length : numRows;
+		int width = columnPositions.length;
+		int[] offsets = new int[width];
+		for (int i = 0; i < width; i++) {
+			offsets[i] = columnPositions[i] - 1;
+		}
+		double[] block = new double[height * width];
+		for (int row = 0; row < height; row++) {
+			int from = ((rowPositions != null) ? rowPositions[row] - 1 : row) * numColumns;
+			int to = row * width;
+			for (int i = 0; i < width; i++) {
+				block[to + i] = values[from + offsets[i]];
+			}
+		}
+		return block;
+	}
+
+	/**
+	 * Get the estimated heap size of the values and IDs.
+	 * @return the size in bytes
+	 */
+	public long getEstimatedBytes() {
+		return (8L * values.length) + dictionary.getEstimatedBytes();
+	}
+
+	public String toString() {
+		return "DataMatrix dataFileName=" + dictionary.getDataFileName() + " rows=" + numRows + " columns=" + numColumns;
+	}
+}
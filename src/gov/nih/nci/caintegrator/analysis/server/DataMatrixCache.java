@@ -0,0 +1,139 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A least recently used cache of the Java copies of the dataMatrix of recently used data
+ * files, shared by all compute threads so a data file's values are only fetched from R once
+ * for the Java statistics engines.  The estimated size of the kept matrices is limited to a
+ * budget and entries are not used once the data file changes.
+ *
+ * @see gov.nih.nci.caintegrator.analysis.server.DataMatrix
+ *
+ * @author caIntegrator Team
+ *
+ */
+public class DataMatrixCache {
+
+	private String rDataFileDirectory;
+
+	private long maxBytes;
+
+	private long numBytes = 0L;
+
+	private LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+
+	private long hits = 0L;
+	private long misses = 0L;
+
+	private static Logger logger = Logger.getLogger(DataMatrixCache.class);
+
+	/**
+	 *
+	 * @param rDataFileDirectory the directory the data files are loaded from
+	 * @param maxBytes the maximum estimated size of the kept matrices
+	 */
+	public DataMatrixCache(String rDataFileDirectory, long maxBytes) {
+		this.rDataFileDirectory = rDataFileDirectory;
+		this.maxBytes = maxBytes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Get the matrix of a data file.
+	 * @param dataFileName
+	 * @return the matrix or null if there is none for the current version of the data file
+	 */
+	public DataMatrix get(String dataFileName) {
+		String dataFileVersion = AnalysisResultCache.getDataFileVersion(rDataFileDirectory, dataFileName);
+		synchronized (this) {
+			CacheEntry entry = entries.get(dataFileName);
+			if ((entry != null) && (!entry.dataFileVersion.equals(dataFileVersion))) {
+				remove(dataFileName);
+				entry = null;
+			}
+			if (entry == null) {
+				misses++;
+				return null;
+			}
+			hits++;
+			return entry.matrix;
+		}
+	}
+
+	/**
+	 * Keep the matrix of a data file, evicting the least recently used matrices to stay within
+	 * the budget.  A matrix larger than the budget is not kept.
+	 * @param matrix
+	 */
+	public void put(DataMatrix matrix) {
+		long bytes = matrix.getEstimatedBytes();
+		if (bytes > maxBytes) {
+			logger.info("Not caching " + matrix + " estimatedBytes=" + bytes + " maxBytes=" + maxBytes);
+			return;
+		}
+		String dataFileName = matrix.getDataFileName();
+		String dataFileVersion = AnalysisResultCache.getDataFileVersion(rDataFileDirectory, dataFileName);
+		if (dataFileVersion == null) {
+			//entries for a data file of unknown version could never be invalidated
+			return;
+		}
+		CacheEntry entry = new CacheEntry(matrix, bytes, dataFileVersion);
+		synchronized (this) {
+			remove(dataFileName);
+			entries.put(dataFileName, entry);
+			numBytes += bytes;
+			for (Iterator<Map.Entry<String, CacheEntry>> i = entries.entrySet().iterator(); (numBytes > maxBytes) && (i.hasNext()); ) {
+				CacheEntry eldest = i.next().getValue();
+				i.remove();
+				numBytes -= eldest.bytes;
+			}
+		}
+		logger.info("Cached " + matrix + " estimatedBytes=" + bytes + " " + toString());
+	}
+
+	public synchronized int getNumEntries() {
+		return entries.size();
+	}
+
+	public synchronized String toString() {
+		return "DataMatrixCache entries=" + entries.size() + " bytes=" + numBytes + " maxBytes=" + maxBytes +
+		       " hits=" + hits + " misses=" + misses;
+	}
+
+	private void remove(String dataFileName) {
+		CacheEntry entry = entries.remove(dataFileName);
+		if (entry != null) {
+			numBytes -= entry.bytes;
+		}
+	}
+
+	private static class CacheEntry {
+
+		private DataMatrix matrix;
+
+		private long bytes;
+
+		private String dataFileVersion;
+
+		private CacheEntry(DataMatrix matrix, long bytes, String dataFileVersion) {
+			this.matrix = matrix;
+			this.bytes = bytes;
+			this.dataFileVersion = dataFileVersion;
+		}
+	}
+}
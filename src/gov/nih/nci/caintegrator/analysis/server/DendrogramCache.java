@@ -0,0 +1,131 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import gov.nih.nci.caintegrator.analysis.messaging.AnalysisRequest;
+
+import java.util.LinkedHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A least recently used cache of the dendrograms computed for recent hierarchical clustering
+ * requests.  Entries are keyed by the CanonicalRequestKey of the request with the image size
+ * properties left out, so a request that differs from an earlier one only in the size of the
+ * image is answered by plotting the cached dendrogram again without reclustering and without
+ * loading the request's data file.  Entries are not used once the request's data file changes.
+ *
+ * @see gov.nih.nci.caintegrator.analysis.server.ClusterDendrogram
+ *
+ * @author caIntegrator Team
+ *
+ */
+public class DendrogramCache {
+
+	/**
+	 * The properties of HierarchicalClusteringRequest that only affect the image, the ones
+	 * HierarchicalClusteringTaskR plots the image with.
+	 */
+	private static final String[] IMAGE_PROPERTIES = { HierarchicalClusteringTaskR.IMAGE_HEIGHT_PROPERTY, 
+		HierarchicalClusteringTaskR.IMAGE_WIDTH_PROPERTY };
+
+	private String rDataFileDirectory;
+
+	private int maxEntries;
+
+	private LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+
+	private long hits = 0L;
+	private long misses = 0L;
+
+	private static Logger logger = Logger.getLogger(DendrogramCache.class);
+
+	/**
+	 *
+	 * @param rDataFileDirectory the directory the data files are loaded from
+	 * @param maxEntries the maximum number of dendrograms to keep
+	 */
+	public DendrogramCache(String rDataFileDirectory, int maxEntries) {
+		this.rDataFileDirectory = rDataFileDirectory;
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Get the dendrogram computed for an earlier request that differed at most in its image size.
+	 * @param request
+	 * @return the dendrogram or null if there is none for the current version of the data file
+	 */
+	public ClusterDendrogram get(AnalysisRequest request) {
+		String key = getKey(request);
+		String dataFileVersion = AnalysisResultCache.getDataFileVersion(rDataFileDirectory, request.getDataFileName());
+		synchronized (this) {
+			CacheEntry entry = entries.get(key);
+			if ((entry != null) && (!entry.dataFileVersion.equals(dataFileVersion))) {
+				entries.remove(key);
+				entry = null;
+			}
+			if (entry == null) {
+				misses++;
+				return null;
+			}
+			hits++;
+			logger.info("Dendrogram cache hit request=" + request + " hits=" + hits + " misses=" + misses);
+			return entry.dendrogram;
+		}
+	}
+
+	/**
+	 * Keep the dendrogram computed for a request.
+	 * @param request
+	 * @param dendrogram
+	 */
+	public void put(AnalysisRequest request, ClusterDendrogram dendrogram) {
+		String key = getKey(request);
+		String dataFileVersion = AnalysisResultCache.getDataFileVersion(rDataFileDirectory, request.getDataFileName());
+		if (dataFileVersion == null) {
+			//entries for a data file of unknown version could never be invalidated
+			return;
+		}
+		CacheEntry entry = new CacheEntry(dendrogram, dataFileVersion);
+		synchronized (this) {
+			entries.put(key, entry);
+			while (entries.size() > maxEntries) {
+				String eldest = entries.keySet().iterator().next();
+				entries.remove(eldest);
+			}
+		}
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized int getNumEntries() {
+		return entries.size();
+	}
+
+	private String getKey(AnalysisRequest request) {
+		return CanonicalRequestKey.getKey(request, IMAGE_PROPERTIES);
+	}
+
+	private static class CacheEntry {
+
+		private ClusterDendrogram dendrogram;
+
+		private String dataFileVersion;
+
+		private CacheEntry(ClusterDendrogram dendrogram, String dataFileVersion) {
+			this.dendrogram = dendrogram;
+			this.dataFileVersion = dataFileVersion;
+		}
+	}
+}
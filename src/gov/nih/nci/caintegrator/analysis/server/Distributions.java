@@ -0,0 +1,248 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+/**
+ * The distribution functions needed by the Java statistics engines to compute the same
+ * p-values as R.  The t and F tail probabilities are computed from the regularized incomplete
+ * beta function and the normal tail probability from the regularized incomplete gamma
+ * function, each to close to double precision.
+ *
+ * Tail probabilities are computed directly, so a very small p-value that R reports as 0
+ * (R computes 1 - pt(t, df), which rounds to 0 below about 1e-16) is returned here as
+ * the small value.
+ *
+ * @author caIntegrator Team
+ *
+ */
+public class Distributions {
+
+	private static final double EPSILON = 1.0E-16;
+
+	private static final double MIN_DOUBLE = 1.0E-300;
+
+	private static final int MAX_ITERATIONS = 10000;
+
+	//Lanczos approximation coefficients, g = 671/128
+	private static final double[] LANCZOS = { 57.1562356658629235, -59.5979603554754912, 14.1360979747417471,
+		-0.491913816097620199, 0.339946499848118887E-4, 0.465236289270485756E-4, -0.983744753048795646E-4,
+		0.158088703224912494E-3, -0.210264441724104883E-3, 0.217439618115212643E-3, -0.164318106536763890E-3,
+		0.844182239838527433E-4, -0.261908384015814087E-4, 0.368991826595316234E-5 };
+
+	private static final double LOG_SQRT_PI = 0.5 * Math.log(Math.PI);
+
+	private Distributions() {
+	}
+
+	/**
+	 * @param x a positive number
+	 * @return the natural logarithm of the gamma function
+	 */
+	public static double logGamma(double x) {
+		if (Double.isNaN(x) || (x <= 0.0)) {
+			return Double.NaN;
+		}
+		double y = x;
+		double tmp = x + 5.24218750000000000;
+		tmp = (x + 0.5) * Math.log(tmp) - tmp;
+		double series = 0.999999999999997092;
+		for (int j = 0; j < LANCZOS.length; j++) {
+			series += LANCZOS[j] / ++y;
+		}
+		return tmp + Math.log(2.5066282746310005 * series / x);
+	}
+
+	/**
+	 * Compute the regularized incomplete beta function I_x(a, b).
+	 * @param x
+	 * @param a
+	 * @param b
+	 * @return the value or NaN if an argument is out of range
+	 */
+	public static double regularizedBeta(double x, double a, double b) {
+		return regularizedBeta(x, 1.0 - x, a, b);
+	}
+
+	/**
+	 * Get the two-tailed p-value of a t statistic, 2 * (1 - pt(|t|, df)) in R.
+	 * @param t
+	 * @param df the degrees of freedom, not necessarily a whole number
+	 * @return the p-value or NaN if t or df is NaN or df is not positive
+	 */
+	public static double tTwoTailedPvalue(double t, double df) {
+		if (Double.isNaN(t) || Double.isNaN(df) || (df <= 0.0)) {
+			return Double.NaN;
+		}
+		if (Double.isInfinite(t)) {
+			return 0.0;
+		}
+		double t2 = t * t;
+		//2 * (1 - pt(|t|, df)) = I_x(df/2, 1/2) with x = df / (df + t^2)
+		return regularizedBeta(df / (df + t2), t2 / (df + t2), 0.5 * df, 0.5);
+	}
+
+	/**
+	 * Get the upper tail probability of an F statistic, 1 - pf(f, df1, df2) in R.
+	 * @param f
+	 * @param df1 the numerator degrees of freedom
+	 * @param df2 the denominator degrees of freedom
+	 * @return the probability or NaN if an argument is NaN or a degree of freedom is not positive
+	 */
+	public static double fUpperTail(double f, double df1, double df2) {
+		if (Double.isNaN(f) || Double.isNaN(df1) || Double.isNaN(df2) || (df1 <= 0.0) || (df2 <= 0.0)) {
+			return Double.NaN;
+		}
+		if (f <= 0.0) {
+			return 1.0;
+		}
+		if (Double.isInfinite(f)) {
+			return 0.0;
+		}
+		double denominator = df2 + df1 * f;
+		return regularizedBeta(df2 / denominator, df1 * f / denominator, 0.5 * df2, 0.5 * df1);
+	}
+
+	/**
+	 * Get the upper tail probability of a standard normal statistic, 1 - pnorm(z) in R.
+	 * @param z
+	 * @return the probability
+	 */
+	public static double normalUpperTail(double z) {
+		if (Double.isNaN(z)) {
+			return Double.NaN;
+		}
+		//1 - pnorm(z) = erfc(z / sqrt(2)) / 2 = Q(1/2, z^2 / 2) / 2 for z >= 0
+		double q = 0.5 * regularizedGammaQ(0.5, 0.5 * z * z, LOG_SQRT_PI);
+		return (z >= 0.0) ? q : 1.0 - q;
+	}
+
+	/**
+	 * Compute I_x(a, b) given both x and y = 1 - x, so that a y close to 0 computed without
+	 * cancellation keeps its precision.
+	 */
+	private static double regularizedBeta(double x, double y, double a, double b) {
+		if (Double.isNaN(x) || Double.isNaN(y) || (x < 0.0) || (y < 0.0) || (a <= 0.0) || (b <= 0.0)) {
+			return Double.NaN;
+		}
+		if (x == 0.0) {
+			return 0.0;
+		}
+		if (y == 0.0) {
+			return 1.0;
+		}
+		double logFront = a * Math.log(x) + b * Math.log(y) - logBeta(a, b);
+		//the continued fraction converges quickly for x < (a + 1) / (a + b + 2), use the symmetry otherwise
+		if (x < (a + 1.0) / (a + b + 2.0)) {
+			return Math.exp(logFront) * betaContinuedFraction(x, a, b) / a;
+		}
+		return 1.0 - Math.exp(logFront) * betaContinuedFraction(y, b, a) / b;
+	}
+
+	private static double logBeta(double a, double b) {
+		return logGamma(a) + logGamma(b) - logGamma(a + b);
+	}
+
+	/**
+	 * Evaluate the continued fraction of the incomplete beta function by the modified Lentz method.
+	 */
+	private static double betaContinuedFraction(double x, double a, double b) {
+		double qab = a + b;
+		double qap = a + 1.0;
+		double qam = a - 1.0;
+		double c = 1.0;
+		double d = 1.0 - qab * x / qap;
+		if (Math.abs(d) < MIN_DOUBLE) {
+			d = MIN_DOUBLE;
+		}
+		d = 1.0 / d;
+		double h = d;
+		for (int m = 1; m <= MAX_ITERATIONS; m++) {
+			int m2 = 2 * m;
+			double aa = m * (b - m) * x / ((qam + m2) * (a + m2));
+			d = 1.0 + aa * d;
+			if (Math.abs(d) < MIN_DOUBLE) {
+				d = MIN_DOUBLE;
+			}
+			c = 1.0 + aa / c;
+			if (Math.abs(c) < MIN_DOUBLE) {
+				c = MIN_DOUBLE;
+			}
+			d = 1.0 / d;
+			h *= d * c;
+			aa = -(a + m) * (qab + m) * x / ((a + m2) * (qap + m2));
+			d = 1.0 + aa * d;
+			if (Math.abs(d) < MIN_DOUBLE) {
+				d = MIN_DOUBLE;
+			}
+			c = 1.0 + aa / c;
+			if (Math.abs(c) < MIN_DOUBLE) {
+				c = MIN_DOUBLE;
+			}
+			d = 1.0 / d;
+			double delta = d * c;
+			h *= delta;
+			if (Math.abs(delta - 1.0) < EPSILON) {
+				break;
+			}
+		}
+		return h;
+	}
+
+	/**
+	 * Compute the regularized upper incomplete gamma function Q(a, x).
+	 * @param logGammaA the log of the gamma function of a
+	 */
+	private static double regularizedGammaQ(double a, double x, double logGammaA) {
+		if (x <= 0.0) {
+			return 1.0;
+		}
+		if (Double.isInfinite(x)) {
+			return 0.0;
+		}
+		double logFront = -x + a * Math.log(x) - logGammaA;
+		if (x < a + 1.0) {
+			//series for P(a, x)
+			double ap = a;
+			double delta = 1.0 / a;
+			double sum = delta;
+			for (int n = 1; n <= MAX_ITERATIONS; n++) {
+				ap += 1.0;
+				delta *= x / ap;
+				sum += delta;
+				if (Math.abs(delta) < Math.abs(sum) * EPSILON) {
+					break;
+				}
+			}
+			return 1.0 - sum * Math.exp(logFront);
+		}
+		//continued fraction for Q(a, x) by the modified Lentz method
+		double b = x + 1.0 - a;
+		double c = 1.0 / MIN_DOUBLE;
+		double d = 1.0 / b;
+		double h = d;
+		for (int i = 1; i <= MAX_ITERATIONS; i++) {
+			double an = -i * (i - a);
+			b += 2.0;
+			d = an * d + b;
+			if (Math.abs(d) < MIN_DOUBLE) {
+				d = MIN_DOUBLE;
+			}
+			c = b + an / c;
+			if (Math.abs(c) < MIN_DOUBLE) {
+				c = MIN_DOUBLE;
+			}
+			d = 1.0 / d;
+			double delta = d * c;
+			h *= delta;
+			if (Math.abs(delta - 1.0) < EPSILON) {
+				break;
+			}
+		}
+		return Math.exp(logFront) * h;
+	}
+}
@@ -0,0 +1,167 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import gov.nih.nci.caintegrator.exceptions.AnalysisServerException;
+
+/**
+ * Computes the one-way ANOVA F-test of every reporter of a block in Java, giving the same
+ * result as Ftests in Ftest.R.  The group means and sums of squares only count the values
+ * that are not NA, a group without values lowers the degrees of freedom, and the p-value is
+ * NA when the F value is NA, a degree of freedom is 0 or a group has fewer than two values.
+ *
+ * The result has the columns of the data frame Ftests returns: the mean of each group, then
+ * mfc (2 to the power of the largest difference between group means) and pval.
+ *
+ * @author caIntegrator Team
+ *
+ */
+public class FTestEngine {
+
+	/**
+	 * Run the test for every row of a block.
+	 * @param values the row major numRows x numColumns block, with the columns of each group
+	 * together in group order and NA as NaN
+	 * @param numRows
+	 * @param numColumns
+	 * @param groupSizes the number of columns of each group
+	 * @return the result columns indexed by column and then by row
+	 * @throws AnalysisServerException
+	 */
+	public double[][] compute(final double[] values, final int numRows, final int numColumns, final int[] groupSizes) throws AnalysisServerException {
+		int totalSize = 0;
+		for (int size : groupSizes) {
+			totalSize += size;
+		}
+		if ((groupSizes.length < 2) || (totalSize != numColumns) || (values.length != numRows * numColumns)) {
+			throw new AnalysisServerException("Internal Error. F-test block has " + values.length + " values for " + numRows +
+					                          " rows and " + numColumns + " columns in " + groupSizes.length + " groups of " + totalSize);
+		}
+		final double[][] result = new double[groupSizes.length + 2][numRows];
+		ReporterBlockExecutor.run(numRows, new ReporterBlockExecutor.WorkerFactory() {
+			public ReporterBlockExecutor.Worker newWorker() {
+				return new RowWorker(values, numColumns, groupSizes, result);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Computes the rows of blocks with scratch buffers for the per group values.
+	 */
+	private static class RowWorker implements ReporterBlockExecutor.Worker {
+
+		private double[] values;
+
+		private int numColumns;
+
+		private int[] groupSizes;
+
+		private double[][] result;
+
+		private int[] counts;
+
+		private double[] means;
+
+		private RowWorker(double[] values, int numColumns, int[] groupSizes, double[][] result) {
+			this.values = values;
+			this.numColumns = numColumns;
+			this.groupSizes = groupSizes;
+			this.result = result;
+			this.counts = new int[groupSizes.length];
+			this.means = new double[groupSizes.length];
+		}
+
+		public void compute(int fromRow, int toRow) {
+			for (int row = fromRow; row < toRow; row++) {
+				computeRow(row);
+			}
+		}
+
+		private void computeRow(int row) {
+			int numGroups = groupSizes.length;
+			int offset = row * numColumns;
+
+			//group sizes, means and the within group sum of squares
+			int total = 0;
+			double totalSum = 0.0;
+			double within = 0.0;
+			int numDegenerate = 0;
+			boolean hasSmallGroup = false;
+			int from = offset;
+			for (int g = 0; g < numGroups; g++) {
+				int to = from + groupSizes[g];
+				int n = 0;
+				double sum = 0.0;
+				for (int i = from; i < to; i++) {
+					double value = values[i];
+					if (!Double.isNaN(value)) {
+						n++;
+						sum += value;
+					}
+				}
+				double mean = sum / n;
+				if (n > 0) {
+					double squares = 0.0;
+					for (int i = from; i < to; i++) {
+						double value = values[i];
+						if (!Double.isNaN(value)) {
+							double deviation = value - mean;
+							squares += deviation * deviation;
+						}
+					}
+					within += squares;
+				}
+				else {
+					numDegenerate++;
+				}
+				hasSmallGroup |= (n <= 1);
+				counts[g] = n;
+				means[g] = mean;
+				total += n;
+				totalSum += sum;
+				from = to;
+			}
+
+			//the between group sum of squares is the total sum of squares less the within
+			double between = Double.NaN;
+			if (total > 1) {
+				double grandMean = totalSum / total;
+				double squares = 0.0;
+				for (int i = offset; i < offset + numColumns; i++) {
+					double value = values[i];
+					if (!Double.isNaN(value)) {
+						double deviation = value - grandMean;
+						squares += deviation * deviation;
+					}
+				}
+				between = squares - within;
+			}
+			int df1 = numGroups - numDegenerate - 1;
+			int df2 = total - numGroups + numDegenerate;
+			double f = (between * df2) / (within * df1);
+			double pvalue = Double.NaN;
+			if ((!Double.isNaN(f)) && (df1 != 0) && (df2 != 0) && (!hasSmallGroup)) {
+				pvalue = Distributions.fUpperTail(f, df1, df2);
+			}
+
+			//the largest difference between the means of the groups that have values
+			double max = Double.NEGATIVE_INFINITY;
+			double min = Double.POSITIVE_INFINITY;
+			for (int g = 0; g < numGroups; g++) {
+				result[g][row] = means[g];
+				if (counts[g] > 0) {
+					max = Math.max(max, means[g]);
+					min = Math.min(min, means[g]);
+				}
+			}
+			result[numGroups][row] = Math.pow(2.0, max - min);
+			result[numGroups + 1][row] = pvalue;
+		}
+	}
+}
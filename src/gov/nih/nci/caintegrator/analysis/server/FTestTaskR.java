@@ -30,6 +30,9 @@ public class FTestTaskR extends AnalysisTaskR {
     private FTestResult result;
 	private static Logger logger = Logger.getLogger(FTestTaskR.class);
 	private Comparator ftComparator = new FTestComparator();
+	
+	//compute F-tests with the Java engine instead of Ftests in R
+	private static volatile boolean nativeFTest = false;
 
 	public FTestTaskR(AnalysisRequest request) {
 		this(request, false);
@@ -46,6 +49,15 @@ public class FTestTaskR extends AnalysisTaskR {
 		logger.info(getExecutingThreadName() + " processing FTestRequest request="
 						+ ftRequest);
 		
+		if (getStatisticsCache() != null) {
+			UnfilteredStatistics statistics = getStatisticsCache().get(ftRequest, getTestName(nativeFTest && (ftRequest.getDataFileName() != null)));
+			if (statistics != null) {
+				//an earlier request differed only in its thresholds, no need to run the test again
+				filterResult(ftRequest, statistics);
+				return;
+			}
+		}
+		
 		
 		//check for overlap between the groups and for groups with too few members
 		List<SampleGroup> groups = ftRequest.getSampleGroups();
@@ -79,6 +91,37 @@ public class FTestTaskR extends AnalysisTaskR {
 		}
 		
 		
+		if (nativeFTest && (ftRequest.getDataFileName() != null)) {
+			try {
+				UnfilteredStatistics statistics = getNativeStatistics(ftRequest.getDataFileName(), groups);
+				if (statistics != null) {
+					if (getStatisticsCache() != null) {
+						getStatisticsCache().put(ftRequest, getTestName(true), statistics);
+					}
+					filterResult(ftRequest, statistics);
+					return;
+				}
+			}
+			catch (AnalysisServerException asex) {
+				AnalysisServerException aex = new AnalysisServerException(
+				"Problem computing FTest. Caught AnalysisServerException in FTestTaskR." + asex.getMessage());
+		        aex.setFailedRequest(ftRequest);
+		        setException(aex);
+		        logger.error("Caught AnalysisServerException in FTestTaskR");
+		        logStackTrace(logger, asex);
+		        return;  
+			}
+			catch (Exception ex) {
+				AnalysisServerException asex = new AnalysisServerException(
+				"Internal Error. Caught Exception in FTestTaskR exClass=" + ex.getClass() + " msg=" + ex.getMessage());
+		        asex.setFailedRequest(ftRequest);
+		        setException(asex);
+		        logger.error("Caught Exception in FTestTaskR");
+		        logStackTrace(logger, ex);
+		        return;  
+			}
+		}
+		
 		try {
 			
 			String dataFileName = ftRequest.getDataFileName();
@@ -103,7 +146,6 @@ public class FTestTaskR extends AnalysisTaskR {
 		
 			List<SampleGroup> sampleGroups = ftRequest.getSampleGroups();
 			SampleGroup grp = null;
-			String cmd;
 			String grpName = null;
 			String bindCmd = "compMat <- cbind(";
 		    String matName = null;
@@ -111,14 +153,11 @@ public class FTestTaskR extends AnalysisTaskR {
 		    
 		    result.setSampleGroups(sampleGroups);
 		    
+		    RScript script = new RScript("FTest");
 			for (int i=0; i < sampleGroups.size(); i++) {
 			  grp = (SampleGroup)sampleGroups.get(i);
 			  grpName = "GRP" + i;
-			  cmd = getRgroupCmd(grpName, grp);
-			  doRvoidEval(cmd);
-			  matName = "M" + grpName;
-			  cmd = matName + " <- getSubmatrix.onegrp(dataMatrix," + grpName + ")";
-			  doRvoidEval(cmd);
+			  matName = addSampleSubmatrix(script, "M" + grpName, grpName, grp);
 			 
 			  bindCmd += matName;
 			  
@@ -138,145 +177,20 @@ public class FTestTaskR extends AnalysisTaskR {
 			  //then outside the loop use pheno <- as.factor(pheno)
 			}
 			
-			doRvoidEval(bindCmd);
-			doRvoidEval(phenoCmd);
-			
-			//now call the Ftest function
-			cmd ="ftResult <- Ftests(compMat,pheno)";
-			
-			doRvoidEval(cmd);
+			script.add("bind the group submatrices", bindCmd);
+			script.add("build the phenotype factor", phenoCmd);
 			
-			
-			// do filtering
-            String rCmd;
-			double foldChangeThreshold = ftRequest.getFoldChangeThreshold();
-			double pValueThreshold = ftRequest.getPValueThreshold();
-			MultiGroupComparisonAdjustmentType adjMethod = ftRequest.getMultiGrpComparisonAdjType();
-
-			if (adjMethod == MultiGroupComparisonAdjustmentType.NONE) {
-				// get differentially expressed reporters using
-				// unadjusted Pvalue
-					
-				rCmd = "ftResult  <- filterDiffExpressedGenes.FTest(ftResult,"
-						+ foldChangeThreshold + "," + pValueThreshold + ")";
-				doRvoidEval(rCmd);
-				result.setArePvaluesAdjusted(false);
-			} else if (adjMethod == MultiGroupComparisonAdjustmentType.FDR) {
-				// do adjustment
-				rCmd = "adjust.result <- adjustP.Benjamini.Hochberg.Ftest(ftResult)";
-				doRvoidEval(rCmd);
-				// get differentially expressed reporters using adjusted Pvalue
-				rCmd = "ftResult  <- filterDiffExpressedGenes.FTest.adjustP(adjust.result,"
-						+ foldChangeThreshold + "," + pValueThreshold + ")";
-				doRvoidEval(rCmd);
-				result.setArePvaluesAdjusted(true);
-			} else if (adjMethod == MultiGroupComparisonAdjustmentType.FWER) {
-				// do adjustment
-				rCmd = "adjust.result <- adjustP.Bonferroni.Ftest(ftResult)";
-				doRvoidEval(rCmd);
-				// get differentially expresseed reporters using adjusted Pvalue
-				rCmd = "ftResult  <- filterDiffExpressedGenes.FTest.adjustP(adjust.result,"
-						+ foldChangeThreshold + "," + pValueThreshold + ")";
-				doRvoidEval(rCmd);
-				result.setArePvaluesAdjusted(true);
-			}
-			else {
-				logger.error("FTest Adjustment Type unrecognized.");
-				this.setException(new AnalysisServerException("Internal error: unrecognized adjustment type."));
-				return;
-			}
+			//now call the Ftest function and fetch the unfiltered result in the same round trip
+			script.add("Ftests", "ftResult <- Ftests(compMat,pheno)");
+			RResultFrame frame = doREvalFrame(script, "ftResult");
 			
 			
-			double[][] grpMean = new double[sampleGroups.size()][];
-			int ind;
-			for (int i=0; i < sampleGroups.size(); i++) {
-			  ind = i+1;
-		      grpMean[i] = doREval("mean <- ftResult[," + ind + "]").asDoubleArray();
+			UnfilteredStatistics statistics = getUnfilteredStatistics(frame, sampleGroups.size());
+			if (getStatisticsCache() != null) {
+				getStatisticsCache().put(ftRequest, getTestName(false), statistics);
 			}
 			
-			//double[][] grpMean = doREval("mean <- as.matrix(ftResult[,1:" + sampleGroups.size()  + "])").asDoubleMatrix();
-	
-			logger.info("grpMean[0].length=" + grpMean[0].length);
-			
-			
-			double[] maxFoldChange = doREval("maxFC <- ftResult$mfc").asDoubleArray();
-			
-			double[] pval;
-			
-			if (adjMethod==MultiGroupComparisonAdjustmentType.NONE) {
-			  pval = doREval("pval <- ftResult$pval").asDoubleArray();
-			}
-			else {
-			  pval = doREval("pval <- ftResult$adjustP").asDoubleArray();
-			}
-			
-			//double[] pval = doREval("pval <- ftResult$pval").asDoubleArray();
-		
-			logger.info("FTest: maxFoldChange.length=" + maxFoldChange.length);
-			logger.info("FTest: pval.length=" + pval.length);
-			
-
-			// load the result object
-			// need to see if this works for single group comparison
-			List<FTestResultEntry> resultEntries = new ArrayList<FTestResultEntry>(
-					maxFoldChange.length);
-			FTestResultEntry resultEntry;
-	        int numEntries = maxFoldChange.length;
-	        double[] grpm;
-	        
-	        Vector reporterIds = null;
-	        if (numEntries > 1) {
-	           //R does not handle vectors of size 1 well so we need to handle the 
-	           //case where only one reporter is returned as a special case.
-	        	
-			   reporterIds = doREval("ftLabels <- dimnames(ftResult)[[1]]")
-					.asVector();
-			   logger.info("reporterIds.size=" + reporterIds.size());
-	        }
-	        
-	       
-			for (int i = 0; i < numEntries; i++) {
-				resultEntry = new FTestResultEntry();
-				
-				if (numEntries == 1) {
-				   //had to do this work around because rServe doesn't seem to handle
-				   //vectors of size one correctly
-				   String reporterId = doREval("rId <- dimnames(ftResult)[[1]]").asString();
-				   resultEntry.setReporterId(reporterId);
-				}
-				else {
-				   resultEntry.setReporterId(((REXP) reporterIds.get(i)).asString());
-				}
-				
-				grpm = new double[sampleGroups.size()];
-				for (int j=0; j <  sampleGroups.size(); j++) {
-				  grpm[j] = grpMean[j][i];
-				  resultEntry.setGroupMeans(grpm);
-				}
-				
-				resultEntry.setMaximumFoldChange(maxFoldChange[i]);
-				resultEntry.setPvalue(pval[i]);
-				resultEntries.add(resultEntry);
-			}
-			
-			
-			Collections.sort(resultEntries, ftComparator);
-	
-			result.setResultEntries(resultEntries);
-	
-			
-			
-			//create the data matrix
-			//computeMatrix 
-			//for (each group) {
-			  //submat[i] <- getSubmatrix(dataMatrix, groupIds[i])
-			  //computeMatix <- cbind(submat[i])
-			//pheno <- as.factor(i,rep(length(group)[i])
-			//perform the FTest 
-			
-			
-			
-			
+			filterResult(ftRequest, statistics);
 		}
 		catch (AnalysisServerException asex) {
 			AnalysisServerException aex = new AnalysisServerException(
@@ -299,6 +213,141 @@ public class FTestTaskR extends AnalysisTaskR {
 
 	}
 
+	/**
+	 * Run the F-test with the Java engine on the Java copy of the data matrix.  The columns of
+	 * each group are put in the same order as in compMat, so the result is the one Ftests gives.
+	 * Unlike in R, where the phenotype vector would no longer match compMat, a sample that is
+	 * not in the data file is reported as an error.
+	 * @return the statistics or null if the test has to be run in R
+	 */
+	private UnfilteredStatistics getNativeStatistics(String dataFileName, List<SampleGroup> sampleGroups) throws AnalysisServerException {
+		DataMatrix matrix = getDataMatrix(dataFileName);
+		if ((matrix == null) || (!matrix.getDictionary().hasSamplePositions())) {
+			return null;
+		}
+		DataFileDictionary dictionary = matrix.getDictionary();
+		int[][] groupPositions = new int[sampleGroups.size()][];
+		int[] groupSizes = new int[sampleGroups.size()];
+		int numColumns = 0;
+		for (int i = 0; i < groupPositions.length; i++) {
+			SampleGroup group = sampleGroups.get(i);
+			checkSamplesInDataFile(dictionary, group.getGroupName(), group);
+			groupPositions[i] = dictionary.getSamplePositions(getIds(group));
+			groupSizes[i] = groupPositions[i].length;
+			numColumns += groupSizes[i];
+		}
+		int[] positions = new int[numColumns];
+		int column = 0;
+		for (int[] group : groupPositions) {
+			System.arraycopy(group, 0, positions, column, group.length);
+			column += group.length;
+		}
+		
+		long start = System.currentTimeMillis();
+		double[] block = matrix.getColumns(positions);
+		double[][] columns = new FTestEngine().compute(block, matrix.getNumRows(), numColumns, groupSizes);
+		logger.info("Java FTestEngine reporters=" + matrix.getNumRows() + " samples=" + numColumns + " groups=" + groupSizes.length + 
+				    " threads=" + ReporterBlockExecutor.getNumThreads() + " timeMS=" + (System.currentTimeMillis() - start));
+		
+		int numGroups = groupSizes.length;
+		double[][] grpMean = new double[numGroups][];
+		System.arraycopy(columns, 0, grpMean, 0, numGroups);
+		return new UnfilteredStatistics(dictionary.getReporterIds(), columns[numGroups], columns[numGroups + 1], grpMean);
+	}
+
+	/**
+	 * Get the unfiltered per-reporter statistics from the ftResult data frame fetched from R.
+	 * There is one column for the mean of each group.
+	 */
+	private UnfilteredStatistics getUnfilteredStatistics(RResultFrame frame, int numGroups) throws AnalysisServerException {
+		//the columns are the group means, mfc and pval
+		if (frame.getNumColumns() != numGroups + 2) {
+			throw new AnalysisServerException("FTest result has " + frame.getNumColumns() + " columns, expected " + (numGroups + 2));
+		}
+		double[][] grpMean = new double[numGroups][];
+		for (int i=0; i < numGroups; i++) {
+		  grpMean[i] = frame.getColumn(i);
+		}
+		double[] maxFoldChange = frame.getColumn(numGroups);
+		double[] pval = frame.getColumn(numGroups + 1);
+		String[] reporterIds = frame.getRowNames();
+		
+		logger.info("FTest: unfiltered maxFoldChange.length=" + maxFoldChange.length);
+		
+		return new UnfilteredStatistics(reporterIds, maxFoldChange, pval, grpMean);
+	}
+	
+	/**
+	 * Adjust the p-values and apply the thresholds of the request in Java and load the result object.
+	 * @param ftRequest
+	 * @param statistics
+	 */
+	private void filterResult(FTestRequest ftRequest, UnfilteredStatistics statistics) {
+		MultiGroupComparisonAdjustmentType adjMethod = ftRequest.getMultiGrpComparisonAdjType();
+		if (PValueAdjuster.getMethod(adjMethod) == null) {
+			logger.error("FTest Adjustment Type unrecognized.");
+			AnalysisServerException ex = new AnalysisServerException("Internal error: unrecognized adjustment type.");
+			ex.setFailedRequest(ftRequest);
+			setException(ex);
+			return;
+		}
+		
+		double[] pvalues;
+		try {
+			pvalues = statistics.getAdjustedPvalues(adjMethod);
+		} catch (AnalysisServerException ex) {
+			ex.setFailedRequest(ftRequest);
+			setException(ex);
+			logStackTrace(logger, ex);
+			return;
+		}
+		List<Integer> selected = statistics.select(ftRequest.getFoldChangeThreshold(), ftRequest.getPValueThreshold(), pvalues);
+		
+		List<FTestResultEntry> resultEntries = new ArrayList<FTestResultEntry>(selected.size());
+		FTestResultEntry resultEntry;
+		double[] grpm;
+		for (int i : selected) {
+			resultEntry = new FTestResultEntry();
+			resultEntry.setReporterId(statistics.getReporterId(i));
+			grpm = new double[statistics.getNumColumns()];
+			for (int j = 0; j < grpm.length; j++) {
+			  grpm[j] = statistics.getValue(j, i);
+			}
+			resultEntry.setGroupMeans(grpm);
+			resultEntry.setMaximumFoldChange(statistics.getFoldChange(i));
+			resultEntry.setPvalue(pvalues[i]);
+			resultEntries.add(resultEntry);
+		}
+		logger.info("FTest: filtered " + statistics.size() + " reporters to " + resultEntries.size() + " adjustment=" + adjMethod + " method=" + PValueAdjuster.getMethod(adjMethod));
+		
+		Collections.sort(resultEntries, ftComparator);
+		
+		result.setSampleGroups(ftRequest.getSampleGroups());
+		result.setArePvaluesAdjusted(adjMethod != MultiGroupComparisonAdjustmentType.NONE);
+		result.setResultEntries(resultEntries);
+	}
+
+	/**
+	 * Set whether F-tests are computed with the Java engine.  They are still computed in R
+	 * when the data matrix is not kept in Java.
+	 * @param nativeFTest
+	 */
+	public static void setNativeFTest(boolean nativeFTest) {
+		FTestTaskR.nativeFTest = nativeFTest;
+	}
+
+	public static boolean isNativeFTest() {
+		return nativeFTest;
+	}
+
+	/**
+	 * Describe the test that computes the statistics, for the UnfilteredStatisticsCache key.
+	 * @param inJava true if the statistics are computed with the Java engine
+	 */
+	private static String getTestName(boolean inJava) {
+		return inJava ? "FTestEngine" : "Ftests";
+	}
+
 	@Override
 	public void cleanUp() {
 		try {
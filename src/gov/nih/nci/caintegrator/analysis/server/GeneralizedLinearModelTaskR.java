@@ -130,19 +130,17 @@ public class GeneralizedLinearModelTaskR extends AnalysisTaskR {
             logger.debug("building");
             List<String> allPatients = null;
             allPatients = createPatientList(baselineGroup, sampleGroups);
-            String groupPatientCmd = getGlmPatientGroupCommand(glmPatients,
-                    allPatients);
-            String groupNameCommand = getGlmGroupNameCommand(glmGroups,
-                    allPatients, baselineGroup, sampleGroups);
             logger.debug("about to invoke r");
-            doRvoidEval(groupPatientCmd);
-            doRvoidEval(groupNameCommand);
+            doRassignGroup(glmPatients, allPatients);
+            doRassignGroup(glmGroups, getGlmGroupNames(allPatients,
+                    baselineGroup, sampleGroups));
             logger.debug("invoking r");
             
             // Filter by gene variance to invrease performance
             Double geneVariance = glmRequest.getGeneVariance();
             String varianceCommand = "subMatrix<-GeneFilterVariance(dataMatrix," + geneVariance.toString() + ")";
-            doRvoidEval(varianceCommand);
+            RScript script = new RScript("GLM");
+            script.add("variance filter", varianceCommand);
             String glmCommand = null;
             String commandName = null;
             
@@ -161,49 +159,42 @@ public class GeneralizedLinearModelTaskR extends AnalysisTaskR {
                         + glmPatients + ", " + glmGroups + ", FALSE, " + "null"
                         + ")";
             } else {
-                String matrixName = constructDataMatrix(allPatients,
+                String matrixName = constructDataMatrix(script, allPatients,
                         (GLMSampleGroup) baselineGroup, sampleGroups);
                 glmCommand = "glmResult<-" + commandName + "(subMatrix, "
                         + glmPatients + ", " + glmGroups + ", TRUE, "
                         + matrixName + ")";
             }
 
-            doRvoidEval(glmCommand);
+            script.add(commandName, glmCommand);
 
-            // get the labels
-            Vector reporterIds = doREval(
-                    "glmReporters <- dimnames(glmResult)[[1]]").asVector();
+            // run the model and fetch the p-value matrix with its dimnames in one
+            // transfer, rows are reporters and columns are groups
+            RResultFrame frame = doREvalFrame(script, "glmResult");
             List<SampleGroup> resultSampleGroups = new ArrayList<SampleGroup>();
-            
-            if(glmRequest.getComparisonGroups().size() < 2 && (glmRequest.getCoVariateTypes() == null || glmRequest.getCoVariateTypes().size() < 1)) {
-                String groupId = doREval("glmGroups <- dimnames(glmResult)[[2]]").asString();
+            for (String groupId : frame.getColumnNames()) {
                 resultSampleGroups.add(new SampleGroup(groupId));
-            } else {
-                Vector groupIds = new Vector();
-                groupIds = doREval("glmGroups <- dimnames(glmResult)[[2]]")
-                    .asVector();
-                for (Object groupId : groupIds) {
-                    resultSampleGroups.add(new SampleGroup(((REXP) groupId)
-                            .asString()));
-                }
             }
 
-
             glmResult.setSampleGroups(resultSampleGroups);
 
-            List<GeneralizedLinearModelResultEntry> entries = new ArrayList<GeneralizedLinearModelResultEntry>();
-            for (int i = 0; i < reporterIds.size(); i++) {
+            String[] reporterIds = frame.getRowNames();
+            int numGroups = frame.getNumColumns();
+            List<GeneralizedLinearModelResultEntry> entries = new ArrayList<GeneralizedLinearModelResultEntry>(
+                    reporterIds.length);
+            for (int i = 0; i < reporterIds.length; i++) {
 
                 GeneralizedLinearModelResultEntry entry = new GeneralizedLinearModelResultEntry();
-                String reporter = ((REXP) reporterIds.get(i)).asString();
-                entry.setReporterId(reporter);
-                double[] pvals = doREval("pval <- glmResult[" + (i+ 1) + ",]")
-                        .asDoubleArray();
+                entry.setReporterId(reporterIds[i]);
+                double[] pvals = new double[numGroups];
+                for (int j = 0; j < numGroups; j++) {
+                    pvals[j] = frame.getColumn(j)[i];
+                }
                 entry.setGroupPvalues(pvals);
                 entries.add(entry);
             }
             glmResult.setGlmResultEntries(entries);
-            logger.debug("reporterIds.size=" + reporterIds.size());
+            logger.debug("reporterIds.size=" + reporterIds.length);
             logger.debug("groupIds.size=" + resultSampleGroups.size());
 
             // glmResult.setSampleGroups(sampleGroups);
@@ -231,16 +222,17 @@ public class GeneralizedLinearModelTaskR extends AnalysisTaskR {
     }
 
     /**
-     * This method constructs a datamatrix for the confounding
-     * factors in the GLM analysis.
+     * This method adds the commands that construct a datamatrix for the 
+     * confounding factors in the GLM analysis to the script.
      * 
+     * @param script
      * @param allPatients
      * @param baselineGroup
      * @param sampleGroups
      * @return
      * @throws AnalysisServerException
      */
-    private String constructDataMatrix(List<String> allPatients,
+    private String constructDataMatrix(RScript script, List<String> allPatients,
             GLMSampleGroup baselineGroup, List<GLMSampleGroup> sampleGroups)
             throws AnalysisServerException {
 
@@ -283,7 +275,7 @@ public class GeneralizedLinearModelTaskR extends AnalysisTaskR {
             rowValues = StringUtils.join(values.toArray(), ",") ;
             rowVarNames.add(varName + count);
             String rCommand = varName + count + command + rowValues + ")";
-            doRvoidEval(rCommand);
+            script.add("covariates for patient " + currPatient, rCommand);
             count++;
 
         }
@@ -306,14 +298,14 @@ public class GeneralizedLinearModelTaskR extends AnalysisTaskR {
         String columns = "DIMCOLUMNS";
         String rows = "DIMROWS";
 
-        doRvoidEval(columns + command + columnDimNames + ")");
-        doRvoidEval(rows + command + rowDimNames + ")");
+        script.add("covariate names", columns + command + columnDimNames + ")");
+        script.add("patient names", rows + command + rowDimNames + ")");
 
-        doRvoidEval(cbindCommand);
-        doRvoidEval(matrixCommand);
+        script.add("bind covariates", cbindCommand);
+        script.add("covariate matrix", matrixCommand);
 
-        doRvoidEval(dimColumns + columns);
-        doRvoidEval(dimRows + rows);
+        script.add("covariate matrix column names", dimColumns + columns);
+        script.add("covariate matrix row names", dimRows + rows);
 
         return matrixName;
     }
@@ -373,6 +365,24 @@ public class GeneralizedLinearModelTaskR extends AnalysisTaskR {
     public String getGlmGroupNameCommand(String groupName,
             List<String> patients, SampleGroup baseline,
             List<GLMSampleGroup> comparisons) {
+        List<String> groupNames = getGlmGroupNames(patients, baseline,
+                comparisons);
+        String command = groupName + " <- c(" + "\""
+                + StringUtils.join(groupNames.toArray(), "\",\"") + "\")";
+        return command;
+    }
+
+    /**
+     * This creates the vector of group names, one for each patient,
+     * prepending a 0 to the baseline group, which the R task requires.
+     * 
+     * @param patients
+     * @param baseline
+     * @param comparisons
+     * @return
+     */
+    public List<String> getGlmGroupNames(List<String> patients,
+            SampleGroup baseline, List<GLMSampleGroup> comparisons) {
         List<String> groupNames = new ArrayList<String>();
         for (String patientId : patients) {
             if (baseline.contains(patientId)) {
@@ -387,9 +397,11 @@ public class GeneralizedLinearModelTaskR extends AnalysisTaskR {
             }
 
         }
-        String command = groupName + " <- c(" + "\""
-                + StringUtils.join(groupNames.toArray(), "\",\"") + "\")";
-        return command;
+        return groupNames;
+    }
+
+    public TaskCostClass getCostClass() {
+        return TaskCostClass.BATCH;
     }
 
     public AnalysisResult getResult() {
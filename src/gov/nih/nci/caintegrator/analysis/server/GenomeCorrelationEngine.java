@@ -0,0 +1,225 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import gov.nih.nci.caintegrator.enumeration.CorrelationType;
+import gov.nih.nci.caintegrator.exceptions.AnalysisServerException;
+
+/**
+ * Correlates a query vector with every row of a data matrix over a set of sample columns in
+ * Java.  The rows are processed in blocks of ReporterBlockExecutor.BLOCK_SIZE on several
+ * threads.  A row with a value for every sample is correlated with one dot product of its
+ * deviations from its precomputed mean and the query's, divided by the precomputed norms.
+ * A row with missing values is correlated over the samples it has values for, as
+ * Correlations does.  Either way the coefficient is the one cor(use="complete.obs") gives.
+ *
+ * @see gov.nih.nci.caintegrator.analysis.server.CorrelationRowStatistics
+ *
+ * @author caIntegrator Team
+ *
+ */
+public class GenomeCorrelationEngine {
+
+	/**
+	 * The result columns: the correlation coefficient and the number of samples it is computed over.
+	 */
+	public static final int R = 0, NUM_SAMPLES = 1;
+
+	private CorrelationType correlationType;
+
+	/**
+	 *
+	 * @param correlationType PEARSON or SPEARMAN
+	 */
+	public GenomeCorrelationEngine(CorrelationType correlationType) {
+		if ((correlationType != CorrelationType.PEARSON) && (correlationType != CorrelationType.SPEARMAN)) {
+			throw new IllegalArgumentException("Unrecognized correlation type=" + correlationType);
+		}
+		this.correlationType = correlationType;
+	}
+
+	/**
+	 * Compute the mean and norm of every row over a set of sample columns.
+	 * @param matrix
+	 * @param columns the one based column positions of the samples
+	 * @return the statistics
+	 * @throws AnalysisServerException
+	 */
+	public CorrelationRowStatistics getRowStatistics(final DataMatrix matrix, final int[] columns) throws AnalysisServerException {
+		final int numRows = matrix.getNumRows();
+		final double[] means = new double[numRows];
+		final double[] norms = new double[numRows];
+		ReporterBlockExecutor.run(numRows, new ReporterBlockExecutor.WorkerFactory() {
+			public ReporterBlockExecutor.Worker newWorker() {
+				return new RowWorker(matrix, columns) {
+					public void compute(int fromRow, int toRow) {
+						for (int row = fromRow; row < toRow; row++) {
+							if (getRow(row)) {
+								means[row] = Correlations.getMean(values, length);
+								norms[row] = getNorm(values, length, means[row]);
+							}
+							else {
+								means[row] = Double.NaN;
+								norms[row] = Double.NaN;
+							}
+						}
+					}
+				};
+			}
+		});
+		return new CorrelationRowStatistics(means, norms);
+	}
+
+	/**
+	 * Correlate a query with every row.
+	 * @param matrix
+	 * @param columns the one based column positions of the samples
+	 * @param statistics the statistics of the rows over the columns
+	 * @param query the query value of each column, without NaN values
+	 * @return the result columns R and NUM_SAMPLES indexed by column and then by row
+	 * @throws AnalysisServerException
+	 */
+	public double[][] compute(final DataMatrix matrix, final int[] columns, final CorrelationRowStatistics statistics,
+			                  final double[] query) throws AnalysisServerException {
+		final int numRows = matrix.getNumRows();
+		if ((query.length != columns.length) || (statistics.getNumRows() != numRows)) {
+			throw new AnalysisServerException("Internal Error. Correlation query has " + query.length + " values for " + columns.length +
+					                          " columns and statistics of " + statistics.getNumRows() + " rows for " + numRows + " rows");
+		}
+		//the deviations of the query, or of its ranks, from their mean
+		final int length = columns.length;
+		double[] transformed = (correlationType == CorrelationType.SPEARMAN) ? Correlations.rank(query, length) : query;
+		final double[] deviations = new double[length];
+		double mean = Correlations.getMean(transformed, length);
+		for (int i = 0; i < length; i++) {
+			deviations[i] = transformed[i] - mean;
+		}
+		final double queryNorm = getNorm(transformed, length, mean);
+
+		final double[][] result = new double[2][numRows];
+		ReporterBlockExecutor.run(numRows, new ReporterBlockExecutor.WorkerFactory() {
+			public ReporterBlockExecutor.Worker newWorker() {
+				return new RowWorker(matrix, columns) {
+					public void compute(int fromRow, int toRow) {
+						for (int row = fromRow; row < toRow; row++) {
+							if (!statistics.isComplete(row)) {
+								//correlate over the samples the row has values for
+								getRow(row);
+								result[R][row] = (correlationType == CorrelationType.SPEARMAN) ? Correlations.spearman(values, query) :
+									                                                             Correlations.pearson(values, query);
+								result[NUM_SAMPLES][row] = getNumComplete(values);
+								continue;
+							}
+							getRow(row);
+							double rowMean = statistics.getMean(row);
+							double sum = 0.0;
+							for (int i = 0; i < length; i++) {
+								sum += (values[i] - rowMean) * deviations[i];
+							}
+							double norm = statistics.getNorm(row);
+							double r = Double.NaN;
+							if ((norm != 0.0) && (queryNorm != 0.0)) {
+								r = Math.max(-1.0, Math.min(1.0, sum / (norm * queryNorm)));
+							}
+							result[R][row] = r;
+							result[NUM_SAMPLES][row] = length;
+						}
+					}
+				};
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Get the two sided p-value of a correlation coefficient from the t distribution with n - 2
+	 * degrees of freedom, as cor.test does for Pearson correlations.  It is used for Spearman
+	 * correlations too.
+	 * @param r
+	 * @param n the number of samples
+	 * @return the p-value or NaN for fewer than three samples or a NaN coefficient
+	 */
+	public static double getPvalue(double r, int n) {
+		if ((n < 3) || Double.isNaN(r)) {
+			return Double.NaN;
+		}
+		if (Math.abs(r) >= 1.0) {
+			return 0.0;
+		}
+		double df = n - 2;
+		double t = r * Math.sqrt(df / (1.0 - r * r));
+		return Distributions.tTwoTailedPvalue(t, df);
+	}
+
+	private static double getNorm(double[] values, int length, double mean) {
+		double squares = 0.0;
+		for (int i = 0; i < length; i++) {
+			double deviation = values[i] - mean;
+			squares += deviation * deviation;
+		}
+		return Math.sqrt(squares);
+	}
+
+	private int getNumComplete(double[] values) {
+		int n = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (!Double.isNaN(values[i])) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Computes the rows of blocks with scratch buffers for the values of a row and their ranks.
+	 */
+	private abstract class RowWorker implements ReporterBlockExecutor.Worker {
+
+		private DataMatrix matrix;
+
+		private int[] columns;
+
+		protected int length;
+
+		//the values of the current row, or their ranks for Spearman correlations of a complete row
+		protected double[] values;
+
+		private double[] raw;
+
+		private double[] sorted;
+
+		private RowWorker(DataMatrix matrix, int[] columns) {
+			this.matrix = matrix;
+			this.columns = columns;
+			this.length = columns.length;
+			this.values = new double[length];
+			this.raw = new double[length];
+			this.sorted = new double[length];
+		}
+
+		/**
+		 * Load the values of a row, ranked for Spearman correlations if there are no missing values.
+		 * @return true if the row has a value for every column
+		 */
+		protected boolean getRow(int row) {
+			boolean complete = true;
+			for (int i = 0; i < length; i++) {
+				double value = matrix.getValue(row, columns[i] - 1);
+				raw[i] = value;
+				complete &= !Double.isNaN(value);
+			}
+			if (complete && (correlationType == CorrelationType.SPEARMAN)) {
+				Correlations.rank(raw, length, sorted, values);
+			}
+			else {
+				System.arraycopy(raw, 0, values, 0, length);
+			}
+			return complete;
+		}
+	}
+}
@@ -0,0 +1,149 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import gov.nih.nci.caintegrator.analysis.messaging.AnalysisRequest;
+import gov.nih.nci.caintegrator.analysis.messaging.DataPoint;
+import gov.nih.nci.caintegrator.analysis.messaging.ReporterInfo;
+import gov.nih.nci.caintegrator.analysis.messaging.SampleGroup;
+import gov.nih.nci.caintegrator.enumeration.CorrelationType;
+import gov.nih.nci.caintegrator.enumeration.MultiGroupComparisonAdjustmentType;
+
+import java.util.List;
+
+/**
+ * A request to correlate one query, a reporter of the data file or a vector of per sample
+ * values such as a clinical variable, against every reporter of the data file and return the
+ * reporters with the largest absolute correlation.  The correlation is computed over the
+ * samples of the sample group (or every sample of the data file when there is no group) for
+ * which the query has a value.
+ *
+ * The query reporter takes precedence over the query vector.  The points of the query vector
+ * are identified by sample ID and have their value in X.
+ *
+ * @see gov.nih.nci.caintegrator.analysis.server.GenomeCorrelationTaskR
+ *
+ * @author caIntegrator Team
+ *
+ */
+public class GenomeCorrelationRequest extends AnalysisRequest {
+
+	private static final long serialVersionUID = 1L;
+
+	private ReporterInfo queryReporter = null;
+
+	private List<DataPoint> queryVector = null;
+
+	private String queryVectorName = null;
+
+	private SampleGroup sampleGroup = null;
+
+	private CorrelationType correlationType = CorrelationType.PEARSON;
+
+	private int maxResults = 100;
+
+	private MultiGroupComparisonAdjustmentType multiGroupComparisonAdjustmentType = MultiGroupComparisonAdjustmentType.NONE;
+
+	private double pvalueThreshold = 1.0;
+
+	public GenomeCorrelationRequest(String sessionId, String taskId) {
+		super(sessionId, taskId);
+	}
+
+	public ReporterInfo getQueryReporter() {
+		return queryReporter;
+	}
+
+	public void setQueryReporter(ReporterInfo queryReporter) {
+		this.queryReporter = queryReporter;
+	}
+
+	public List<DataPoint> getQueryVector() {
+		return queryVector;
+	}
+
+	public void setQueryVector(List<DataPoint> queryVector) {
+		this.queryVector = queryVector;
+	}
+
+	public String getQueryVectorName() {
+		return queryVectorName;
+	}
+
+	public void setQueryVectorName(String queryVectorName) {
+		this.queryVectorName = queryVectorName;
+	}
+
+	public SampleGroup getSampleGroup() {
+		return sampleGroup;
+	}
+
+	/**
+	 * @param sampleGroup the samples to correlate over, or null for every sample of the data file
+	 */
+	public void setSampleGroup(SampleGroup sampleGroup) {
+		this.sampleGroup = sampleGroup;
+	}
+
+	public CorrelationType getCorrelationType() {
+		return correlationType;
+	}
+
+	public void setCorrelationType(CorrelationType correlationType) {
+		this.correlationType = correlationType;
+	}
+
+	public int getMaxResults() {
+		return maxResults;
+	}
+
+	/**
+	 * @param maxResults the number of reporters with the largest absolute correlation to return
+	 */
+	public void setMaxResults(int maxResults) {
+		this.maxResults = maxResults;
+	}
+
+	public MultiGroupComparisonAdjustmentType getMultiGroupComparisonAdjustmentType() {
+		return multiGroupComparisonAdjustmentType;
+	}
+
+	/**
+	 * @param multiGroupComparisonAdjustmentType the adjustment of the p-values over all the
+	 * reporters of the data file, FDR for the false discovery rate
+	 */
+	public void setMultiGroupComparisonAdjustmentType(MultiGroupComparisonAdjustmentType multiGroupComparisonAdjustmentType) {
+		this.multiGroupComparisonAdjustmentType = multiGroupComparisonAdjustmentType;
+	}
+
+	public double getPvalueThreshold() {
+		return pvalueThreshold;
+	}
+
+	/**
+	 * @param pvalueThreshold only reporters with an (adjusted) p-value of at most this are
+	 * returned, 1.0 returns reporters without a p-value too
+	 */
+	public void setPvalueThreshold(double pvalueThreshold) {
+		this.pvalueThreshold = pvalueThreshold;
+	}
+
+	public String getQueryName() {
+		if (queryReporter != null) {
+			return queryReporter.getGeneSymbol() + "_" + queryReporter.getReporterName();
+		}
+		return queryVectorName;
+	}
+
+	public String toString() {
+		return "GenomeCorrelationRequest sessionId=" + getSessionId() + " taskId=" + getTaskId() + " dataFileName=" + getDataFileName() +
+		       " query=" + getQueryName() + " sampleGroup=" + ((sampleGroup != null) ? sampleGroup.getGroupName() : null) +
+		       " correlationType=" + correlationType + " maxResults=" + maxResults + " adjustment=" + multiGroupComparisonAdjustmentType +
+		       " pvalueThreshold=" + pvalueThreshold;
+	}
+}
@@ -0,0 +1,107 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import gov.nih.nci.caintegrator.analysis.messaging.AnalysisResult;
+import gov.nih.nci.caintegrator.analysis.messaging.SampleGroup;
+import gov.nih.nci.caintegrator.enumeration.CorrelationType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The reporters most correlated with the query of a GenomeCorrelationRequest, in decreasing
+ * order of absolute correlation.
+ *
+ * @author caIntegrator Team
+ *
+ */
+public class GenomeCorrelationResult extends AnalysisResult {
+
+	private static final long serialVersionUID = 1L;
+
+	private String queryName;
+
+	private CorrelationType correlationType;
+
+	private SampleGroup sampleGroup;
+
+	private int numSamples;
+
+	private int numReporters;
+
+	private boolean pvaluesAreAdjusted = false;
+
+	private List<GenomeCorrelationResultEntry> resultEntries = new ArrayList<GenomeCorrelationResultEntry>();
+
+	public GenomeCorrelationResult(String sessionId, String taskId) {
+		super(sessionId, taskId);
+	}
+
+	public String getQueryName() {
+		return queryName;
+	}
+
+	public void setQueryName(String queryName) {
+		this.queryName = queryName;
+	}
+
+	public CorrelationType getCorrelationType() {
+		return correlationType;
+	}
+
+	public void setCorrelationType(CorrelationType correlationType) {
+		this.correlationType = correlationType;
+	}
+
+	public SampleGroup getSampleGroup() {
+		return sampleGroup;
+	}
+
+	public void setSampleGroup(SampleGroup sampleGroup) {
+		this.sampleGroup = sampleGroup;
+	}
+
+	/**
+	 * @return the number of samples the query has a value for
+	 */
+	public int getNumSamples() {
+		return numSamples;
+	}
+
+	public void setNumSamples(int numSamples) {
+		this.numSamples = numSamples;
+	}
+
+	/**
+	 * @return the number of reporters correlated with the query
+	 */
+	public int getNumReporters() {
+		return numReporters;
+	}
+
+	public void setNumReporters(int numReporters) {
+		this.numReporters = numReporters;
+	}
+
+	public boolean getPvaluesAreAdjusted() {
+		return pvaluesAreAdjusted;
+	}
+
+	public void setPvaluesAreAdjusted(boolean pvaluesAreAdjusted) {
+		this.pvaluesAreAdjusted = pvaluesAreAdjusted;
+	}
+
+	public List<GenomeCorrelationResultEntry> getResultEntries() {
+		return resultEntries;
+	}
+
+	public void setResultEntries(List<GenomeCorrelationResultEntry> resultEntries) {
+		this.resultEntries = resultEntries;
+	}
+}
@@ -0,0 +1,62 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import java.io.Serializable;
+
+/**
+ * The correlation of one reporter with the query of a GenomeCorrelationRequest.
+ *
+ * @author caIntegrator Team
+ *
+ */
+public class GenomeCorrelationResultEntry implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private String reporterId;
+
+	private double correlation;
+
+	private double pvalue;
+
+	private int numSamples;
+
+	public GenomeCorrelationResultEntry(String reporterId, double correlation, double pvalue, int numSamples) {
+		this.reporterId = reporterId;
+		this.correlation = correlation;
+		this.pvalue = pvalue;
+		this.numSamples = numSamples;
+	}
+
+	public String getReporterId() {
+		return reporterId;
+	}
+
+	public double getCorrelation() {
+		return correlation;
+	}
+
+	/**
+	 * @return the p-value of the correlation, adjusted if the result says so, NaN if there is none
+	 */
+	public double getPvalue() {
+		return pvalue;
+	}
+
+	/**
+	 * @return the number of samples with a value for both the reporter and the query
+	 */
+	public int getNumSamples() {
+		return numSamples;
+	}
+
+	public String toString() {
+		return "GenomeCorrelationResultEntry reporterId=" + reporterId + " r=" + correlation + " pvalue=" + pvalue + " numSamples=" + numSamples;
+	}
+}
@@ -0,0 +1,295 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import gov.nih.nci.caintegrator.analysis.messaging.AnalysisRequest;
+import gov.nih.nci.caintegrator.analysis.messaging.AnalysisResult;
+import gov.nih.nci.caintegrator.analysis.messaging.DataPoint;
+import gov.nih.nci.caintegrator.analysis.messaging.ReporterInfo;
+import gov.nih.nci.caintegrator.analysis.messaging.SampleGroup;
+import gov.nih.nci.caintegrator.enumeration.MultiGroupComparisonAdjustmentType;
+import gov.nih.nci.caintegrator.exceptions.AnalysisServerException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Performs a GenomeCorrelationRequest: correlates the query with every reporter of the data
+ * file over the samples of the request's group in Java and returns the reporters with the
+ * largest absolute correlation.  The p-values come from the t distribution and are adjusted
+ * over all the reporters with PValueAdjuster.
+ *
+ * The data matrix is taken from the DataMatrixCache, so the values of a data file are only
+ * fetched from R once, and the per row means and norms of a sample set are kept in the
+ * CorrelationRowStatisticsCache, so a later query over the same samples only needs the
+ * correlation pass.
+ *
+ * @see gov.nih.nci.caintegrator.analysis.server.GenomeCorrelationEngine
+ *
+ * @author caIntegrator Team
+ *
+ */
+public class GenomeCorrelationTaskR extends AnalysisTaskR {
+
+	private GenomeCorrelationResult result;
+
+	private static Logger logger = Logger.getLogger(GenomeCorrelationTaskR.class);
+
+	public GenomeCorrelationTaskR(AnalysisRequest request) {
+		super(request);
+	}
+
+	public GenomeCorrelationTaskR(AnalysisRequest request, boolean debugRcommands) {
+		super(request, debugRcommands);
+	}
+
+	@Override
+	public void run() {
+		GenomeCorrelationRequest gcRequest = (GenomeCorrelationRequest) getRequest();
+		result = new GenomeCorrelationResult(gcRequest.getSessionId(), gcRequest.getTaskId());
+		logger.info(getExecutingThreadName() + " processing genome correlation request=" + gcRequest);
+
+		try {
+			if ((gcRequest.getQueryReporter() == null) && (gcRequest.getQueryVector() == null)) {
+				throw new AnalysisServerException("Genome correlation request has no query reporter or vector.");
+			}
+			if (gcRequest.getMaxResults() < 1) {
+				throw new AnalysisServerException("Genome correlation request maxResults=" + gcRequest.getMaxResults() + " must be at least 1.");
+			}
+			MultiGroupComparisonAdjustmentType adjMethod = gcRequest.getMultiGroupComparisonAdjustmentType();
+			if (PValueAdjuster.getMethod(adjMethod) == null) {
+				logger.error("Genome correlation Adjustment Type unrecognized.");
+				throw new AnalysisServerException("Internal error: unrecognized adjustment type.");
+			}
+			GenomeCorrelationEngine engine = new GenomeCorrelationEngine(gcRequest.getCorrelationType());
+
+			String dataFileName = getDataFileName();
+			DataMatrix matrix = getDataMatrix(dataFileName);
+			if (matrix == null) {
+				throw new AnalysisServerException("Genome correlation needs the data matrix of data file=" + dataFileName +
+						                          " in Java, increase data_matrix_cache_max_bytes.");
+			}
+			DataFileDictionary dictionary = matrix.getDictionary();
+			if ((!dictionary.hasSamplePositions()) || (!dictionary.hasReporterPositions())) {
+				throw new AnalysisServerException("Data file=" + dataFileName + " has duplicate reporter or sample ids.");
+			}
+
+			//the samples of the group, less those the query has no value for
+			int[] groupColumns = getGroupColumns(dictionary, gcRequest.getSampleGroup());
+			double[] groupQuery = getQuery(matrix, gcRequest, groupColumns);
+			int numSamples = 0;
+			for (double value : groupQuery) {
+				numSamples += Double.isNaN(value) ? 0 : 1;
+			}
+			if (numSamples < 3) {
+				throw new AnalysisServerException("Genome correlation query=" + gcRequest.getQueryName() + " has values for " + numSamples +
+						                          " samples, at least 3 are needed.");
+			}
+			int[] columns = new int[numSamples];
+			double[] query = new double[numSamples];
+			for (int i = 0, j = 0; i < groupColumns.length; i++) {
+				if (!Double.isNaN(groupQuery[i])) {
+					columns[j] = groupColumns[i];
+					query[j] = groupQuery[i];
+					j++;
+				}
+			}
+
+			CorrelationRowStatistics statistics = getRowStatistics(engine, matrix, gcRequest, columns);
+			double[][] correlations = engine.compute(matrix, columns, statistics, query);
+			double[] pvalues = new double[matrix.getNumRows()];
+			for (int row = 0; row < pvalues.length; row++) {
+				pvalues[row] = GenomeCorrelationEngine.getPvalue(correlations[GenomeCorrelationEngine.R][row],
+						                                          (int) correlations[GenomeCorrelationEngine.NUM_SAMPLES][row]);
+			}
+			pvalues = PValueAdjuster.adjust(pvalues, PValueAdjuster.getMethod(adjMethod));
+
+			List<GenomeCorrelationResultEntry> resultEntries = getTopEntries(gcRequest, dictionary, correlations, pvalues);
+			logger.info("Genome correlation query=" + gcRequest.getQueryName() + " correlated " + pvalues.length + " reporters over " +
+					    numSamples + " samples, returning " + resultEntries.size());
+
+			result.setQueryName(gcRequest.getQueryName());
+			result.setCorrelationType(gcRequest.getCorrelationType());
+			result.setSampleGroup(gcRequest.getSampleGroup());
+			result.setNumSamples(numSamples);
+			result.setNumReporters(pvalues.length);
+			result.setPvaluesAreAdjusted(adjMethod != MultiGroupComparisonAdjustmentType.NONE);
+			result.setResultEntries(resultEntries);
+		}
+		catch (AnalysisServerException asex) {
+			asex.setFailedRequest(gcRequest);
+			setException(asex);
+			logger.error("Caught AnalysisServerException");
+			logStackTrace(logger, asex);
+			return;
+		}
+		catch (Exception ex) {
+			AnalysisServerException asex = new AnalysisServerException(
+			"Internal Error. Caught Exception in GenomeCorrelationTaskR exClass=" + ex.getClass() + " msg=" + ex.getMessage());
+			asex.setFailedRequest(gcRequest);
+			setException(asex);
+			logger.error("Caught Exception in GenomeCorrelationTaskR");
+			logStackTrace(logger, ex);
+			return;
+		}
+	}
+
+	/**
+	 * The data file of the request, or of the query reporter if the request has none.
+	 */
+	@Override
+	public String getDataFileName() {
+		GenomeCorrelationRequest gcRequest = (GenomeCorrelationRequest) getRequest();
+		if ((gcRequest.getDataFileName() == null) && (gcRequest.getQueryReporter() != null)) {
+			return gcRequest.getQueryReporter().getDataFileName();
+		}
+		return gcRequest.getDataFileName();
+	}
+
+	/**
+	 * @return the sorted one based positions of the samples of the group, or of every sample if there is no group
+	 */
+	private int[] getGroupColumns(DataFileDictionary dictionary, SampleGroup sampleGroup) throws AnalysisServerException {
+		if (sampleGroup == null) {
+			int[] columns = new int[dictionary.getNumSamples()];
+			for (int i = 0; i < columns.length; i++) {
+				columns[i] = i + 1;
+			}
+			return columns;
+		}
+		checkSamplesInDataFile(dictionary, sampleGroup.getGroupName(), sampleGroup);
+		return dictionary.getSamplePositions(getIds(sampleGroup));
+	}
+
+	/**
+	 * @return the value of the query for each column, NaN where it has none
+	 */
+	private double[] getQuery(DataMatrix matrix, GenomeCorrelationRequest gcRequest, int[] columns) throws AnalysisServerException {
+		double[] query = new double[columns.length];
+		ReporterInfo reporter = gcRequest.getQueryReporter();
+		if (reporter != null) {
+			int row = getReporterRow(matrix.getDictionary(), reporter.getReporterName());
+			for (int i = 0; i < columns.length; i++) {
+				query[i] = matrix.getValue(row, columns[i] - 1);
+			}
+			return query;
+		}
+
+		Map<String, Double> values = new HashMap<String, Double>();
+		for (DataPoint point : gcRequest.getQueryVector()) {
+			if ((point != null) && (point.getX() != null)) {
+				values.put(point.getId(), point.getX());
+			}
+		}
+		String[] sampleIds = matrix.getDictionary().getSampleIds();
+		for (int i = 0; i < columns.length; i++) {
+			Double value = values.get(sampleIds[columns[i] - 1]);
+			query[i] = (value != null) ? value.doubleValue() : Double.NaN;
+		}
+		return query;
+	}
+
+	/**
+	 * @return the zero based row of a reporter
+	 */
+	private int getReporterRow(DataFileDictionary dictionary, String reporterName) throws AnalysisServerException {
+		int[] positions = dictionary.getReporterPositions(new String[] { reporterName });
+		if (positions.length == 0) {
+			throw new AnalysisServerException("No expression data found for reporter " + reporterName + " in data file=" +
+					                          dictionary.getDataFileName() + ".");
+		}
+		return positions[0] - 1;
+	}
+
+	private CorrelationRowStatistics getRowStatistics(GenomeCorrelationEngine engine, DataMatrix matrix, GenomeCorrelationRequest gcRequest,
+			                                          int[] columns) throws AnalysisServerException {
+		CorrelationRowStatisticsCache cache = getCorrelationRowStatisticsCache();
+		String dataFileName = matrix.getDataFileName();
+		CorrelationRowStatistics statistics = (cache != null) ? cache.get(dataFileName, gcRequest.getCorrelationType(), columns) : null;
+		if (statistics == null) {
+			statistics = engine.getRowStatistics(matrix, columns);
+			if (cache != null) {
+				cache.put(dataFileName, gcRequest.getCorrelationType(), columns, statistics);
+			}
+		}
+		return statistics;
+	}
+
+	/**
+	 * Select the reporters within the p-value threshold with the largest absolute correlation,
+	 * leaving out the query reporter, with a heap of at most maxResults reporters.
+	 * @return the entries in decreasing order of absolute correlation
+	 */
+	private List<GenomeCorrelationResultEntry> getTopEntries(GenomeCorrelationRequest gcRequest, DataFileDictionary dictionary,
+			                                                 final double[][] correlations, double[] pvalues) throws AnalysisServerException {
+		final double[] r = correlations[GenomeCorrelationEngine.R];
+		int queryRow = (gcRequest.getQueryReporter() != null) ? getReporterRow(dictionary, gcRequest.getQueryReporter().getReporterName()) : -1;
+		double pvalueThreshold = gcRequest.getPvalueThreshold();
+		int maxResults = gcRequest.getMaxResults();
+
+		//the weakest selected correlation is at the head, ties broken by keeping the earlier row
+		Comparator<Integer> weakestFirst = new Comparator<Integer>() {
+			public int compare(Integer row1, Integer row2) {
+				int c = Double.compare(Math.abs(r[row1.intValue()]), Math.abs(r[row2.intValue()]));
+				return (c != 0) ? c : row2.compareTo(row1);
+			}
+		};
+		PriorityQueue<Integer> selected = new PriorityQueue<Integer>(maxResults + 1, weakestFirst);
+		for (int row = 0; row < r.length; row++) {
+			if ((row == queryRow) || Double.isNaN(r[row])) {
+				continue;
+			}
+			if ((pvalueThreshold < 1.0) && (!(pvalues[row] <= pvalueThreshold))) {
+				continue;
+			}
+			selected.add(Integer.valueOf(row));
+			if (selected.size() > maxResults) {
+				selected.poll();
+			}
+		}
+
+		List<Integer> rows = new ArrayList<Integer>(selected);
+		Collections.sort(rows, Collections.reverseOrder(weakestFirst));
+		List<GenomeCorrelationResultEntry> resultEntries = new ArrayList<GenomeCorrelationResultEntry>(rows.size());
+		String[] reporterIds = dictionary.getReporterIds();
+		for (Integer row : rows) {
+			int i = row.intValue();
+			resultEntries.add(new GenomeCorrelationResultEntry(reporterIds[i], r[i], pvalues[i],
+					                                           (int) correlations[GenomeCorrelationEngine.NUM_SAMPLES][i]));
+		}
+		return resultEntries;
+	}
+
+	@Override
+	public void cleanUp() {
+		try {
+			setRComputeConnection(null);
+		} catch (AnalysisServerException e) {
+			logger.error("Error in cleanUp method.");
+			logStackTrace(logger, e);
+			setException(e);
+		}
+	}
+
+	@Override
+	public TaskCostClass getCostClass() {
+		return TaskCostClass.STANDARD;
+	}
+
+	@Override
+	public AnalysisResult getResult() {
+		return result;
+	}
+}
@@ -14,6 +14,7 @@ import gov.nih.nci.caintegrator.enumeration.ClusterByType;
 import gov.nih.nci.caintegrator.exceptions.AnalysisServerException;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Vector;
 
@@ -37,6 +38,12 @@ public class HierarchicalClusteringTaskR extends AnalysisTaskR {
 	
 	public static final int MAX_REPORTERS_FOR_GENE_CLUSTERING = 3000;
 	
+	/**
+	 * The properties of the request that set the height and width, in inches, of the dendrogram
+	 * image.  They only affect the plot, not the clustering.
+	 */
+	public static final String IMAGE_HEIGHT_PROPERTY = "imgHeight", IMAGE_WIDTH_PROPERTY = "imgWidth";
+	
 	private static Logger logger = Logger.getLogger(HierarchicalClusteringTaskR.class);
 
 	public HierarchicalClusteringTaskR(HierarchicalClusteringRequest request) {
@@ -92,6 +99,31 @@ public class HierarchicalClusteringTaskR extends AnalysisTaskR {
 		logger.info(getExecutingThreadName() + " processing hierarchical clustering analysis request="
 						+ hcRequest);
 		
+		// a request that differs from an earlier one only in its image size is plotted from 
+		// the earlier dendrogram without loading the data file or reclustering
+		ClusterDendrogram dendrogram = (getDendrogramCache() != null) ? getDendrogramCache().get(hcRequest) : null;
+		if (dendrogram != null) {
+			try {
+				doRassign(".hcMerge", dendrogram.getMerge());
+				doRassign(".hcHeight", dendrogram.getHeight());
+				doRassign(".hcOrder", dendrogram.getOrder());
+				doRassign("hcLabels", dendrogram.getLabels());
+				RScript script = new RScript("rebuild dendrogram");
+				script.add("rebuild the hclust object", "mycluster <- " + 
+						   dendrogram.getRebuildCommand(".hcMerge", ".hcHeight", ".hcOrder", "hcLabels"));
+				doRvoidEval(script);
+				setResult(dendrogram);
+			}
+			catch (AnalysisServerException asex) {
+				AnalysisServerException aex = new AnalysisServerException(
+				"Internal Error. Caught AnalysisServerException in HierarchicalClusteringTaskR plotting a cached dendrogram." + asex.getMessage());
+		        aex.setFailedRequest(hcRequest);
+		        setException(aex);
+		        logStackTrace(logger, asex);
+			}
+			return;
+		}
+		
 		try {
 			setDataFile(hcRequest.getDataFileName());
 		} catch (AnalysisServerException e) {
@@ -104,16 +136,6 @@ public class HierarchicalClusteringTaskR extends AnalysisTaskR {
 
 		try {
 		
-			// get the submatrix to operate on
-			doRvoidEval("hcInputMatrix <- dataMatrix");
-	
-			doRvoidEval("hcInputMatrix <- GeneFilterWithVariance(hcInputMatrix,"
-					+ hcRequest.getVarianceFilterValue() + ")");
-			
-			
-	
-			String rCmd = null;
-			
 			if ((hcRequest.getSampleGroup()==null)||(hcRequest.getSampleGroup().size() < 2)) {
 			   //sample group should never be null when passed from middle tier
 			   AnalysisServerException ex = new AnalysisServerException(
@@ -124,41 +146,50 @@ public class HierarchicalClusteringTaskR extends AnalysisTaskR {
 			   return;
 			}
 			
-			rCmd = getRgroupCmd("sampleIds", hcRequest.getSampleGroup());
-			doRvoidEval(rCmd);
-			rCmd = "hcInputMatrix <- getSubmatrix.onegrp(hcInputMatrix, sampleIds)";
-			doRvoidEval(rCmd);
-				
+			if ((hcRequest.getClusterBy() != ClusterByType.Samples) && (hcRequest.getClusterBy() != ClusterByType.Genes)) {
+				AnalysisServerException ex = new AnalysisServerException("Unrecognized cluster by type");
+				ex.setFailedRequest(hcRequest);
+				setException(ex);
+				logger.error("Unrecognized cluster by type");
+				return;
+			}
+			
 			if (hcRequest.getReporterGroup() != null) {
-				rCmd = getRgroupCmd("reporterIds", hcRequest.getReporterGroup());
-				doRvoidEval(rCmd);
-				rCmd = "hcInputMatrix <- getSubmatrix.rep(hcInputMatrix, reporterIds)";
-				doRvoidEval(rCmd);
+				doRassignGroup("reporterIds", hcRequest.getReporterGroup());
 			}
 			
+			// get the submatrix to operate on
+			RScript inputScript = new RScript("hierarchical clustering input");
+			// the variance filtered submatrix for the samples is kept for later requests that 
+			// use the same samples and variance filter value
+			String varianceFilterCmd = "GeneFilterWithVariance(dataMatrix," + hcRequest.getVarianceFilterValue() + ")";
+			String sampleMatrix = addSampleSubmatrix(inputScript, "hcInputMatrix", "sampleIds", hcRequest.getSampleGroup(), 
+					                                 varianceFilterCmd, varianceFilterCmd);
+			if (!sampleMatrix.equals("hcInputMatrix")) {
+				inputScript.add("use the sample submatrix kept in the workspace", "hcInputMatrix <- " + sampleMatrix);
+			}
+			if (hcRequest.getReporterGroup() != null) {
+				//no row index, the variance filter has removed rows
+				inputScript.add("subset reporters", "hcInputMatrix <- getSubmatrix.rep(hcInputMatrix, reporterIds)");
+			}
+			inputScript.setResultExpression("dim(hcInputMatrix)[1]");
+			int numReportersToUse = doREval(inputScript).asInt();
 			
-			String plotCmd = null;
+			RScript clusterScript = new RScript("hierarchical clustering");
 			// get the request parameters
 			if (hcRequest.getClusterBy() == ClusterByType.Samples) {
 				// cluster by samples
-				rCmd = "mycluster <- mysamplecluster(hcInputMatrix,"
+				clusterScript.add("mysamplecluster", "mycluster <- mysamplecluster(hcInputMatrix,"
 						+ getDistanceMatrixRparamStr()
 						+ ","
 						+ getLinkageMethodRparamStr()
-						+ ")";
-				doRvoidEval(rCmd);
-				plotCmd = "plot(mycluster, labels=dimnames(hcInputMatrix)[[2]], xlab=\"\", ylab=\"\",ps=8,sub=\"\", hang=-1)";
-			} else if (hcRequest.getClusterBy() == ClusterByType.Genes) {
+						+ ")");
+				clusterScript.add("sample labels", "hcLabels <- dimnames(hcInputMatrix)[[2]]");
+			} else {
 				// cluster by genes
 				
 				//check the hcInputMatrix size. If there are more than 1000 reporters then 
 				//throw an exception. 
-				
-	//			check to see if the number of reporters to be used for the clustering is 
-				//too large. If it is then return an error
-				
-				int numReportersToUse = doREval("dim(hcInputMatrix)[1]").asInt();
-				
 				if (numReportersToUse > MAX_REPORTERS_FOR_GENE_CLUSTERING) {
 					AnalysisServerException ex = new AnalysisServerException(
 					"Too many reporters to cluster , try increasing the variance filter value, attempted to use numReporters=" + numReportersToUse);
@@ -168,45 +199,31 @@ public class HierarchicalClusteringTaskR extends AnalysisTaskR {
 					return;
 				}
 				
-				
-				rCmd = "mycluster <- mygenecluster(hcInputMatrix,"
+				clusterScript.add("mygenecluster", "mycluster <- mygenecluster(hcInputMatrix,"
 						+ getDistanceMatrixRparamStr()
 						+ ","
 						+ getLinkageMethodRparamStr()
-						+ ")";
-				doRvoidEval(rCmd);
-				plotCmd = "plot(mycluster, labels=dimnames(hcInputMatrix)[[1]], xlab=\"\", ylab=\"\",ps=8,sub=\"\", hang=-1)";
-			}
-			else {
-				AnalysisServerException ex = new AnalysisServerException("Unrecognized cluster by type");
-				ex.setFailedRequest(hcRequest);
-				setException(ex);
-				logger.error("Unrecognized cluster by type");
-				return;
+						+ ")");
+				clusterScript.add("reporter labels", "hcLabels <- dimnames(hcInputMatrix)[[1]]");
 			}
-	
 			
-			Vector orderedLabels = doREval("clusterLabels <-  mycluster$labels[mycluster$order]").asVector();
-			float numPix = (float)orderedLabels.size() * 15.0f;
-			int imgWidth = Math.round(numPix/72.0f);
-			imgWidth = Math.max(3, imgWidth);
-			int imgHeight = 10;
-			
-			byte[] imgCode = getImageCode(plotCmd, imgHeight, imgWidth);
-			result.setImageCode(imgCode);
-			
-			List<String> orderedLabelList = new ArrayList<String>(orderedLabels.size());
-			String label = null;
-			for (int i=0; i < orderedLabels.size(); i++ ) {
-			  label = ((REXP) orderedLabels.get(i)).asString();
-			  orderedLabelList.add(i,label);
+			// fetch the parts of the dendrogram needed to plot it again
+			clusterScript.setResultExpression("list(as.integer(mycluster$merge), as.double(mycluster$height), " +
+					                          "as.integer(mycluster$order), as.character(hcLabels))");
+			Vector parts = doREval(clusterScript).asVector();
+			dendrogram = new ClusterDendrogram(RResultFrame.asIntArray((REXP) parts.get(0)), 
+					                           RResultFrame.asDoubleArray((REXP) parts.get(1)),
+					                           RResultFrame.asIntArray((REXP) parts.get(2)), 
+					                           RResultFrame.asStringArray((REXP) parts.get(3)),
+					                           getRequest().getLinkageMethod().toString().toLowerCase());
+			if (!dendrogram.isValid()) {
+				throw new AnalysisServerException("Unexpected hclust result numLabels=" + dendrogram.getLabels().length + 
+						                          " numMerges=" + dendrogram.getHeight().length);
 			}
 			
-			if (hcRequest.getClusterBy() == ClusterByType.Genes) {
-			  result.setClusteredReporterIDs(orderedLabelList);
-			}
-			else if (hcRequest.getClusterBy() == ClusterByType.Samples) {
-			  result.setClusteredSampleIDs(orderedLabelList);
+			setResult(dendrogram);
+			if (getDendrogramCache() != null) {
+				getDendrogramCache().put(hcRequest, dendrogram);
 			}
 		}
 		catch (AnalysisServerException asex) {
@@ -228,6 +245,55 @@ public class HierarchicalClusteringTaskR extends AnalysisTaskR {
 		
 	}
 
+	/**
+	 * Plot the dendrogram left in R as mycluster, with the labels in hcLabels, and set the result.
+	 * @param dendrogram
+	 * @throws AnalysisServerException
+	 */
+	private void setResult(ClusterDendrogram dendrogram) throws AnalysisServerException {
+		String[] orderedLabels = dendrogram.getOrderedLabels();
+		float numPix = (float)orderedLabels.length * 15.0f;
+		int imgWidth = Math.round(numPix/72.0f);
+		imgWidth = Math.max(3, imgWidth);
+		int imgHeight = 10;
+		
+		//the size the request asks for, if any, replaces the size fitted to the labels
+		imgWidth = getImageSize(IMAGE_WIDTH_PROPERTY, imgWidth);
+		imgHeight = getImageSize(IMAGE_HEIGHT_PROPERTY, imgHeight);
+		
+		String plotCmd = "plot(mycluster, labels=hcLabels, xlab=\"\", ylab=\"\",ps=8,sub=\"\", hang=-1)";
+		byte[] imgCode = getImageCode(plotCmd, imgHeight, imgWidth);
+		result.setImageCode(imgCode);
+		
+		List<String> orderedLabelList = new ArrayList<String>(Arrays.asList(orderedLabels));
+		
+		if (getRequest().getClusterBy() == ClusterByType.Genes) {
+		  result.setClusteredReporterIDs(orderedLabelList);
+		}
+		else if (getRequest().getClusterBy() == ClusterByType.Samples) {
+		  result.setClusteredSampleIDs(orderedLabelList);
+		}
+	}
+
+	/**
+	 * Get a dimension of the image from the request.
+	 * @param propertyName IMAGE_HEIGHT_PROPERTY or IMAGE_WIDTH_PROPERTY
+	 * @param defaultSize the size in inches to use if the request does not set one
+	 * @return the size in inches
+	 */
+	private int getImageSize(String propertyName, int defaultSize) {
+		Object size = CanonicalRequestKey.getPropertyValue(getRequest(), propertyName);
+		if ((size instanceof Number) && (((Number) size).intValue() > 0)) {
+			return ((Number) size).intValue();
+		}
+		return defaultSize;
+	}
+
+	@Override
+	public TaskCostClass getCostClass() {
+		return TaskCostClass.BATCH;
+	}
+
 	@Override
 	public AnalysisResult getResult() {
 		return result;
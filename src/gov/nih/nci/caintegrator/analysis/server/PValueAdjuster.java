@@ -0,0 +1,277 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import gov.nih.nci.caintegrator.enumeration.MultiGroupComparisonAdjustmentType;
+import gov.nih.nci.caintegrator.exceptions.AnalysisServerException;
+
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Adjusts arrays of raw p-values for multiple testing in Java, giving the same answer as
+ * p.adjust in R with n set to the number of p-values that are not NA, which is how the
+ * adjustP.* functions in FDR.ComparisonAdjustment.R and FWER.ComparisonAdjustment.R call it.
+ * NaN p-values (NA in R) stay NaN.
+ *
+ * The step up and step down methods order the p-values with an index merge sort whose runs
+ * are sorted and merged on ReporterBlockExecutor, so large arrays are sorted in parallel.
+ *
+ * Requests only carry the NONE, FDR and FWER adjustment types.  FDR and FWER are mapped to
+ * the method set with setFdrMethod and setFwerMethod, and an adjustment type with the name
+ * of a Method is mapped to that method.
+ *
+ * @author caIntegrator Team
+ *
+ */
+public class PValueAdjuster {
+
+	/**
+	 * The adjustment methods, named as in p.adjust.
+	 */
+	public enum Method {
+		/** no adjustment */
+		NONE,
+		/** "bonferroni", controls the family wise error rate */
+		BONFERRONI,
+		/** "holm", controls the family wise error rate and is uniformly more powerful than Bonferroni */
+		HOLM,
+		/** "BH", controls the false discovery rate for independent tests */
+		BH,
+		/** "BY", controls the false discovery rate under any dependence */
+		BY
+	}
+
+	private static volatile Method fdrMethod = Method.BH;
+
+	private static volatile Method fwerMethod = Method.BONFERRONI;
+
+	private static Logger logger = Logger.getLogger(PValueAdjuster.class);
+
+	private PValueAdjuster() {
+	}
+
+	/**
+	 * Get the method used for an adjustment type of a request.
+	 * @param adjustmentType
+	 * @return the method or null if the type is not recognized
+	 */
+	public static Method getMethod(MultiGroupComparisonAdjustmentType adjustmentType) {
+		if (adjustmentType == MultiGroupComparisonAdjustmentType.NONE) {
+			return Method.NONE;
+		}
+		if (adjustmentType == MultiGroupComparisonAdjustmentType.FDR) {
+			return fdrMethod;
+		}
+		if (adjustmentType == MultiGroupComparisonAdjustmentType.FWER) {
+			return fwerMethod;
+		}
+		if (adjustmentType == null) {
+			return null;
+		}
+		try {
+			return Method.valueOf(adjustmentType.name());
+		} catch (IllegalArgumentException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Set the method used for requests with the FDR adjustment type.
+	 * @param method BH or BY
+	 */
+	public static void setFdrMethod(Method method) {
+		if ((method != Method.BH) && (method != Method.BY)) {
+			throw new IllegalArgumentException("Not a false discovery rate method=" + method);
+		}
+		fdrMethod = method;
+	}
+
+	public static Method getFdrMethod() {
+		return fdrMethod;
+	}
+
+	/**
+	 * Set the method used for requests with the FWER adjustment type.
+	 * @param method BONFERRONI or HOLM
+	 */
+	public static void setFwerMethod(Method method) {
+		if ((method != Method.BONFERRONI) && (method != Method.HOLM)) {
+			throw new IllegalArgumentException("Not a family wise error rate method=" + method);
+		}
+		fwerMethod = method;
+	}
+
+	public static Method getFwerMethod() {
+		return fwerMethod;
+	}
+
+	/**
+	 * Adjust p-values.
+	 * @param pvalues the raw p-values, NaN for NA
+	 * @param method
+	 * @return the adjusted p-values, the same array for NONE
+	 * @throws AnalysisServerException if the parallel sort fails
+	 */
+	public static double[] adjust(final double[] pvalues, Method method) throws AnalysisServerException {
+		if (method == Method.NONE) {
+			return pvalues;
+		}
+		final double[] adjusted = new double[pvalues.length];
+		Arrays.fill(adjusted, Double.NaN);
+		int[] present = getPresent(pvalues);
+		final int n = present.length;
+		if (n == 0) {
+			return adjusted;
+		}
+
+		if (method == Method.BONFERRONI) {
+			ReporterBlockExecutor.run(pvalues.length, new ElementWorkerFactory() {
+				public void compute(int from, int to) {
+					for (int i = from; i < to; i++) {
+						//NaN stays NaN
+						adjusted[i] = Math.min(1.0, n * pvalues[i]);
+					}
+				}
+			});
+			return adjusted;
+		}
+
+		int[] order = sortByPvalue(pvalues, present);
+		if (method == Method.HOLM) {
+			//step down from the smallest p-value, pmin(1, cummax((n - i + 1) * p[o]))
+			double max = 0.0;
+			for (int rank = 1; rank <= n; rank++) {
+				int i = order[rank - 1];
+				max = Math.max(max, (n - rank + 1) * pvalues[i]);
+				adjusted[i] = Math.min(1.0, max);
+			}
+		}
+		else if ((method == Method.BH) || (method == Method.BY)) {
+			//step up from the largest p-value, pmin(1, cummin(q * n / i * p[o])) with q = 1 for BH
+			double q = 1.0;
+			if (method == Method.BY) {
+				q = 0.0;
+				for (int i = 1; i <= n; i++) {
+					q += 1.0 / i;
+				}
+			}
+			double min = Double.POSITIVE_INFINITY;
+			for (int rank = n; rank >= 1; rank--) {
+				int i = order[rank - 1];
+				min = Math.min(min, q * n / rank * pvalues[i]);
+				adjusted[i] = Math.min(1.0, min);
+			}
+		}
+		else {
+			throw new IllegalArgumentException("Unrecognized adjustment method=" + method);
+		}
+		return adjusted;
+	}
+
+	/**
+	 * @return the indexes of the p-values that are not NaN
+	 */
+	private static int[] getPresent(double[] pvalues) {
+		int[] present = new int[pvalues.length];
+		int n = 0;
+		for (int i = 0; i < pvalues.length; i++) {
+			if (!Double.isNaN(pvalues[i])) {
+				present[n++] = i;
+			}
+		}
+		if (n == present.length) {
+			return present;
+		}
+		int[] trimmed = new int[n];
+		System.arraycopy(present, 0, trimmed, 0, n);
+		return trimmed;
+	}
+
+	/**
+	 * Sort indexes by increasing p-value, keeping the order of equal p-values.  Runs of
+	 * BLOCK_SIZE indexes are sorted in parallel and then merged in pairs, with the pairs of
+	 * each pass merged in parallel.
+	 * @param pvalues
+	 * @param indexes the indexes to sort, reused as a buffer
+	 * @return the sorted indexes
+	 */
+	static int[] sortByPvalue(final double[] pvalues, int[] indexes) throws AnalysisServerException {
+		final int n = indexes.length;
+		final int[] first = indexes;
+		ReporterBlockExecutor.run(n, new ElementWorkerFactory() {
+			public void compute(int from, int to) {
+				//a single worker is given all the indexes at once, so sort each run of BLOCK_SIZE separately
+				for (int runStart = from; runStart < to; runStart += ReporterBlockExecutor.BLOCK_SIZE) {
+					int runEnd = Math.min(to, runStart + ReporterBlockExecutor.BLOCK_SIZE);
+					//insertion sort of one run
+					for (int i = runStart + 1; i < runEnd; i++) {
+						int index = first[i];
+						double p = pvalues[index];
+						int j = i - 1;
+						while ((j >= runStart) && (pvalues[first[j]] > p)) {
+							first[j + 1] = first[j];
+							j--;
+						}
+						first[j + 1] = index;
+					}
+				}
+			}
+		});
+
+		int[] source = first;
+		int[] target = new int[n];
+		for (int width = ReporterBlockExecutor.BLOCK_SIZE; width < n; width *= 2) {
+			final int runWidth = width;
+			final int[] from = source;
+			final int[] to = target;
+			int numPairs = (n + 2 * width - 1) / (2 * width);
+			ReporterBlockExecutor.run(numPairs, new ElementWorkerFactory() {
+				public void compute(int fromPair, int toPair) {
+					for (int pair = fromPair; pair < toPair; pair++) {
+						int left = pair * 2 * runWidth;
+						int middle = Math.min(n, left + runWidth);
+						int right = Math.min(n, middle + runWidth);
+						merge(pvalues, from, to, left, middle, right);
+					}
+				}
+			});
+			source = target;
+			target = from;
+		}
+		if (logger.isDebugEnabled()) {
+			logger.debug("sorted " + n + " p-values");
+		}
+		return source;
+	}
+
+	private static void merge(double[] pvalues, int[] from, int[] to, int left, int middle, int right) {
+		int i = left, j = middle, k = left;
+		while ((i < middle) && (j < right)) {
+			//take from the left run on ties so equal p-values keep their order
+			to[k++] = (pvalues[from[j]] < pvalues[from[i]]) ? from[j++] : from[i++];
+		}
+		while (i < middle) {
+			to[k++] = from[i++];
+		}
+		while (j < right) {
+			to[k++] = from[j++];
+		}
+	}
+
+	/**
+	 * A stateless worker that is shared by all threads of a computation.
+	 */
+	private static abstract class ElementWorkerFactory implements ReporterBlockExecutor.WorkerFactory, ReporterBlockExecutor.Worker {
+
+		public ReporterBlockExecutor.Worker newWorker() {
+			return this;
+		}
+	}
+}
@@ -70,8 +70,6 @@ public class PrincipalComponentAnalysisTaskR extends AnalysisTaskR {
 		
 		try {
 
-			doRvoidEval("pcaInputMatrix <- dataMatrix");
-	
 			if ((pcaRequest.getSampleGroup()==null)||(pcaRequest.getSampleGroup().size() < 2)) {
 			   //sample group should never be null when passed from middle tier
 			   AnalysisServerException ex = new AnalysisServerException(
@@ -81,18 +79,16 @@ public class PrincipalComponentAnalysisTaskR extends AnalysisTaskR {
 			   logger.error("pcaRequest has null sample group or not enough samples.");
 			   return;
 			}
-						
-			String rCmd = getRgroupCmd("sampleIds", pcaRequest.getSampleGroup());
-			doRvoidEval(rCmd);
-			rCmd = "pcaInputMatrix <- getSubmatrix.onegrp(pcaInputMatrix, sampleIds)";
-			doRvoidEval(rCmd);
+			
+			RScript script = new RScript("principal component analysis");
+			String sampleMatrix = addSampleSubmatrix(script, "pcaInputMatrix", "sampleIds", pcaRequest.getSampleGroup());
+			if (!sampleMatrix.equals("pcaInputMatrix")) {
+				script.add("use the sample submatrix kept in the workspace", "pcaInputMatrix <- " + sampleMatrix);
+			}
 		
 			if (pcaRequest.getReporterGroup() != null) {
-				rCmd = getRgroupCmd("reporterIds", pcaRequest
-						.getReporterGroup());
-				doRvoidEval(rCmd);
-				rCmd = "pcaInputMatrix <- getSubmatrix.rep(pcaInputMatrix, reporterIds)";
-				doRvoidEval(rCmd);
+				doRassignReporters("reporterIds", pcaRequest.getReporterGroup());
+				script.add("subset reporters", "pcaInputMatrix <- getSubmatrix.rep(pcaInputMatrix, reporterIds" + getRowIndexArgument() + ")");
 			}
 			else {
 			  logger.info("PCA request has null reporter group. Using all reporters.");
@@ -103,7 +99,7 @@ public class PrincipalComponentAnalysisTaskR extends AnalysisTaskR {
 				
 				logger.info("Processing principal component analysis request varianceFilterVal="
 								+ pcaRequest.getVarianceFilterValue());
-				doRvoidEval("pcaResult <- computePCAwithVariance(pcaInputMatrix,"
+				script.add("computePCAwithVariance", "pcaResult <- computePCAwithVariance(pcaInputMatrix,"
 						+ pcaRequest.getVarianceFilterValue() + " )");
 			} 
 			else if (pcaRequest.doFoldChangeFiltering()) {
@@ -111,7 +107,7 @@ public class PrincipalComponentAnalysisTaskR extends AnalysisTaskR {
 						.getFoldChangeFilterValue();
 				logger.info("Processing principal component analysis request foldChangeFilterVal="
 								+ foldChangeFilterValue);
-				doRvoidEval("pcaResult <- computePCAwithFC(pcaInputMatrix,"
+				script.add("computePCAwithFC", "pcaResult <- computePCAwithFC(pcaInputMatrix,"
 						+ foldChangeFilterValue + " )");
 			}
 			else {
@@ -124,35 +120,21 @@ public class PrincipalComponentAnalysisTaskR extends AnalysisTaskR {
 			}
 	
 			// check to make sure at least 3 components came back
-			int numComponents = doREval("length(pcaResult$x[1,])").asInt();
-			if (numComponents < 3) {
-				AnalysisServerException ex = new AnalysisServerException(
-						"PCA result has less than 3 components.");
-				ex.setFailedRequest(pcaRequest);
-				setException(ex);
-				return;
-			}
-	
-			pca1 = doREval("pcaMatrixX <- pcaResult$x[,1]").asDoubleArray();
-			pca2 = doREval("pcaMatrixY <- pcaResult$x[,2]").asDoubleArray();
-			pca3 = doREval("pcaMatrixZ <- pcaResult$x[,3]").asDoubleArray();
-			REXP exp = doREval("pcaLabels <- dimnames(pcaResult$x)");
-			// System.out.println("Got back xVals.len=" + xVals.length + "
-			// yVals.len=" + yVals.length + " zVals.len=" + zVals.length);
-			Vector labels = (Vector) exp.asVector();
-			Vector sampleIds = ((REXP) (labels.get(0))).asVector();
-	//		Vector pcaLabels = ((REXP) (labels.get(1))).asVector();
+			script.addCheck("check the number of components", "length(pcaResult$x[1,]) >= 3", 
+					        "PCA result has less than 3 components.");
+			script.add("first three components", "pcaX <- pcaResult$x[,1:3,drop=FALSE]");
+			RResultFrame frame = doREvalFrame(script, "pcaX");
+			pca1 = frame.getColumn(0);
+			pca2 = frame.getColumn(1);
+			pca3 = frame.getColumn(2);
+			String[] sampleIds = frame.getRowNames();
 	
 			List<PCAresultEntry> pcaResults = new ArrayList<PCAresultEntry>(
-					sampleIds.size());
+					sampleIds.length);
 	
-			String sampleId = null;
-			int index = 0;
-			for (Iterator i = sampleIds.iterator(); i.hasNext();) {
-				sampleId = ((REXP) i.next()).asString();
-				pcaResults.add(new PCAresultEntry(sampleId, pca1[index],
+			for (int index = 0; index < sampleIds.length; index++) {
+				pcaResults.add(new PCAresultEntry(sampleIds[index], pca1[index],
 						pca2[index], pca3[index]));
-				index++;
 			}
 	
 			result.setResultEntries(pcaResults);
@@ -9,10 +9,12 @@ package gov.nih.nci.caintegrator.analysis.server;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Vector;
 
 import gov.nih.nci.caintegrator.exceptions.AnalysisServerException;
 
 import org.apache.log4j.Logger;
+import org.rosuda.JRclient.REXP;
 import org.rosuda.JRclient.RSrvException;
 import org.rosuda.JRclient.Rconnection;
 
@@ -27,6 +29,21 @@ public class RComputeConnection extends Rconnection {
 
 	private String rDataFileName = null;
 	private String rDataFileDirectory = null;
+	private long lastLoadTimeMS = 0L;
+	private int rProcessId = -1;
+	private RserveEndpoint endpoint = null;
+	private boolean closed = false;
+	private int numDataMatrixRows = -1;
+	private int numDataMatrixColumns = -1;
+	private boolean dataMatrixRowIndex = false;
+	private boolean dataMatrixColumnIndex = false;
+	private RWorkspaceObjects workspaceObjects = new RWorkspaceObjects(workspaceObjectsMaxBytes);
+	//whether the Rserve accepts string vectors sent with assign, null until it has been checked
+	private Boolean stringVectorAssignment = null;
+	//the budget for derived objects kept in the workspace of each connection
+	private static volatile long workspaceObjectsMaxBytes = 0L;
+	//the Rserve request status codes of a request type the Rserve does not support
+	private static final int ERR_INVALID_PARAMETER = 0x44, ERR_UNSUPPORTED_COMMAND = 0x49, ERR_UNKNOWN_COMMAND = 0x4a;
 	private static Logger logger = Logger.getLogger(RComputeConnection.class);
 	
 //	public RComputeConnection(String rDataFileName) throws RSrvException   {
@@ -57,27 +74,206 @@ public class RComputeConnection extends Rconnection {
 	
 	public String getRdataFileName() { return rDataFileName; }
 	
+	/**
+	 * Get the number of rows (reporters) of the dataMatrix in the loaded data file.
+	 * @return the number of rows or -1 if it is not known
+	 */
+	public int getNumDataMatrixRows() { return numDataMatrixRows; }
+	
+	/**
+	 * Get the number of columns (samples) of the dataMatrix in the loaded data file.
+	 * @return the number of columns or -1 if it is not known
+	 */
+	public int getNumDataMatrixColumns() { return numDataMatrixColumns; }
+	
+	/**
+	 * Check whether the name to position index of the dataMatrix rows (dataMatrixRowIndex) 
+	 * was built when the data file was loaded.
+	 * @return true if the submatrix functions can be passed dataMatrixRowIndex
+	 */
+	public boolean hasDataMatrixRowIndex() { return dataMatrixRowIndex; }
+	
+	/**
+	 * Check whether the name to position index of the dataMatrix columns (dataMatrixColumnIndex) 
+	 * was built when the data file was loaded.
+	 * @return true if the submatrix functions can be passed dataMatrixColumnIndex
+	 */
+	public boolean hasDataMatrixColumnIndex() { return dataMatrixColumnIndex; }
+	
+	/**
+	 * Get the derived objects that tasks have left in the workspace of this connection.
+	 * @return the workspace objects of the loaded data file
+	 */
+	public RWorkspaceObjects getWorkspaceObjects() { return workspaceObjects; }
+	
+	/**
+	 * Set the budget for the derived objects kept in the workspace of connections created 
+	 * after this call.
+	 * @param maxBytes the maximum estimated size in bytes, 0 to keep no objects
+	 */
+	public static void setWorkspaceObjectsMaxBytes(long maxBytes) { workspaceObjectsMaxBytes = maxBytes; }
+	
+	public static long getWorkspaceObjectsMaxBytes() { return workspaceObjectsMaxBytes; }
+	
+	/**
+	 * Check whether the Rserve of this connection accepts character vectors sent with assign.
+	 * The first call assigns a small vector and checks it arrived intact.  An Rserve that does
+	 * not know the string array type rejects it as an invalid parameter or an unsupported or
+	 * unknown command; any other error is not a property of the Rserve and is reported.
+	 * @return true if string vectors can be assigned
+	 * @throws AnalysisServerException
+	 */
+	public boolean supportsStringVectorAssignment() throws AnalysisServerException {
+		if (stringVectorAssignment != null) {
+			return stringVectorAssignment.booleanValue();
+		}
+		boolean supported;
+		try {
+			assign("stringVectorProbe", new REXP(new String[] { "a", "b" }));
+			REXP same = eval("{ same <- identical(stringVectorProbe, c(\"a\", \"b\")); rm(stringVectorProbe); as.integer(same) }");
+			supported = (same != null) && (same.asInt() == 1);
+		} catch (RSrvException e) {
+			int status = e.getRequestReturnCode();
+			if ((status != ERR_INVALID_PARAMETER) && (status != ERR_UNSUPPORTED_COMMAND) && (status != ERR_UNKNOWN_COMMAND)) {
+				logStackTrace(e);
+				throw new AnalysisServerException("Internal Error. Could not check string vector assignment msg=" + e.getMessage());
+			}
+			supported = false;
+		}
+		if (!supported) {
+			logger.warn("The Rserve of this connection does not support string vectors, using R commands for ID vectors");
+		}
+		stringVectorAssignment = Boolean.valueOf(supported);
+		return supported;
+	}
+	
+	/**
+	 * Get the number of milliseconds the last call to setRDataFile took.
+	 * @return the elapsed time of the last data file load
+	 */
+	public long getLastLoadTimeMS() { return lastLoadTimeMS; }
+	
+	
+	/**
+	 * Get the process id of the R process serving this connection.
+	 * @return the process id or -1 if it is not known
+	 */
+	public int getRProcessId() { return rProcessId; }
+	
+	public void setRProcessId(int rProcessId) { this.rProcessId = rProcessId; }
+	
+	
+	/**
+	 * Get the endpoint this connection was opened to.
+	 * @return the endpoint or null if the connection was not opened through a RserveEndpointPool
+	 */
+	public RserveEndpoint getEndpoint() { return endpoint; }
+	
+	/**
+	 * Set the endpoint this connection was opened to. The endpoint counts the connection
+	 * and the data file it has loaded until the connection is closed.
+	 * @param endpoint
+	 */
+	public synchronized void setEndpoint(RserveEndpoint endpoint) {
+		this.endpoint = endpoint;
+		endpoint.connectionOpened();
+		endpoint.dataFileChanged(null, rDataFileName);
+	}
+	
+	/**
+	 * Close the connection. Safe to call more than once.
+	 */
+	public void close() {
+		synchronized (this) {
+			if ((!closed) && (endpoint != null)) {
+				endpoint.connectionClosed(rDataFileName);
+			}
+			closed = true;
+		}
+		super.close();
+	}
 	
 	public void setRDataFile(String rDataFileName) throws AnalysisServerException   {
 	  
 		//load the rDataFile from disk
 		long start = System.currentTimeMillis();
 		
-		this.rDataFileName = rDataFileName;
+		synchronized (this) {
+			if ((endpoint != null) && (!closed)) {
+				endpoint.dataFileChanged(this.rDataFileName, rDataFileName);
+			}
+			this.rDataFileName = rDataFileName;
+		}
 
 		String fullFileName = rDataFileDirectory + rDataFileName;
 		
-		String rCmd = "load(\"" + fullFileName  + "\")";
+		//objects derived from the previous data file are removed before the new file is loaded
+		String removeCmd = RWorkspaceObjects.getRemoveCommand(workspaceObjects.clear());
+		numDataMatrixRows = -1;
+		numDataMatrixColumns = -1;
+		dataMatrixRowIndex = false;
+		dataMatrixColumnIndex = false;
+		
+		String rCmd = "suppressWarnings(rm(dataMatrixRowIndex, dataMatrixColumnIndex)); load(\"" + fullFileName  + "\")";
+		if (removeCmd != null) {
+			rCmd = removeCmd + "; " + rCmd;
+		}
 		try {
-			voidEval(rCmd);
+			//the dimensions and the version of the data file on this host in one round trip
+			REXP loaded = eval("{" + rCmd + "; list(" + getIndexCommand() + ", " + getVersionCommand(fullFileName) + ")}");
+			Vector parts = (loaded != null) ? loaded.asVector() : null;
+			REXP dims = ((parts != null) && (parts.size() == 2)) ? (REXP) parts.get(0) : null;
+			String version = ((parts != null) && (parts.size() == 2)) ? ((REXP) parts.get(1)).asString() : null;
+			if ((version != null) && (version.length() > 0)) {
+				AnalysisResultCache.setLoadedDataFileVersion(rDataFileName, version);
+			}
+			int[] dimValues = (dims != null) ? dims.asIntArray() : null;
+			if ((dimValues != null) && (dimValues.length == 4)) {
+				numDataMatrixRows = dimValues[0];
+				numDataMatrixColumns = dimValues[1];
+				dataMatrixRowIndex = (dimValues[2] != 0);
+				dataMatrixColumnIndex = (dimValues[3] != 0);
+			}
 		} catch (RSrvException e) {
 			logger.error("Error (setRDataFile rDataFileName=" + rDataFileName);
 			logStackTrace(e);			
 			throw new AnalysisServerException("Error setting the RDataFile to rDataFileName=" + rDataFileName);
 		}
 		long elapsedTime = System.currentTimeMillis() - start;
-		logger.info("Successfully loaded rDataFile=" + fullFileName + " elapsedTimeMS=" + elapsedTime);
+		lastLoadTimeMS = elapsedTime;
+		logger.info("Successfully loaded rDataFile=" + fullFileName + " elapsedTimeMS=" + elapsedTime +
+				    " dataMatrixRows=" + numDataMatrixRows + " dataMatrixColumns=" + numDataMatrixColumns +
+				    " rowIndex=" + dataMatrixRowIndex + " columnIndex=" + dataMatrixColumnIndex);
 		
 	}
+	
+	/**
+	 * Get the R command that evaluates to the size and modification time of a data file on
+	 * the Rserve host, in the form of AnalysisResultCache.getDataFileVersion, or "" if R
+	 * cannot read them.
+	 */
+	private static String getVersionCommand(String fullFileName) {
+		return "local({ dataFileInfo <- file.info(\"" + fullFileName + "\"); " +
+		       "if (is.na(dataFileInfo$size)) \"\" else sprintf(\"%.0f:%.0f\", dataFileInfo$size, 1000 * as.numeric(dataFileInfo$mtime)) })";
+	}
+	
+	/**
+	 * Get the R command, run after the data file is loaded, that builds the name to position 
+	 * indexes of the dataMatrix rows and columns used by the getSubmatrix functions, unless
+	 * the data file contains them.  The indexes left by the previous data file are removed
+	 * before the load.  Nothing is built if the R initialization file does not define 
+	 * buildMatrixIndex.
+	 * @return a command that evaluates to the dataMatrix dimensions followed by whether each 
+	 * index exists, or NULL if there is no dataMatrix
+	 */
+	private static String getIndexCommand() {
+		return "if (exists(\"dataMatrix\")) { " +
+		       "if (exists(\"buildMatrixIndex\")) { " +
+		       "if (!exists(\"dataMatrixRowIndex\")) dataMatrixRowIndex <- buildMatrixIndex(dimnames(dataMatrix)[[1]]); " +
+		       "if (!exists(\"dataMatrixColumnIndex\")) dataMatrixColumnIndex <- buildMatrixIndex(dimnames(dataMatrix)[[2]]) " +
+		       "} else { dataMatrixRowIndex <- NULL; dataMatrixColumnIndex <- NULL }; " +
+		       "as.integer(c(dim(dataMatrix), !is.null(dataMatrixRowIndex), !is.null(dataMatrixColumnIndex))) " +
+		       "} else NULL";
+	}
 
 }
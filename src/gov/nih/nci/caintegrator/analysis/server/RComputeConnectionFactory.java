@@ -0,0 +1,172 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+import org.rosuda.JRclient.REXP;
+import org.rosuda.JRclient.RSrvException;
+import org.rosuda.JRclient.Rconnection;
+
+/**
+ * Creates initialized RComputeConnections.  The factory keeps one spare connection 
+ * that is prepared in the background, so that a thread whose connection had to be 
+ * closed (for example because its task timed out) can continue with a ready connection
+ * instead of waiting for the R initialization file to be sourced.
+ * 
+ * @see gov.nih.nci.caintegrator.analysis.server.RThread
+ * @see gov.nih.nci.caintegrator.analysis.server.RThreadPoolExecutor
+ * 
+ * @author caIntegrator Team
+ *
+ */
+public class RComputeConnectionFactory {
+
+	private RserveEndpointPool endpointPool;
+	
+	private String rInitializationFileName;
+	
+	private String rDataFileDirectory;
+	
+	private ExecutorService preparer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "RComputeConnectionPreparer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	private Future<RComputeConnection> spareConnection = null;
+	
+	private static Logger logger = Logger.getLogger(RComputeConnectionFactory.class);
+	
+	public RComputeConnectionFactory(RserveEndpointPool endpointPool, String rInitializationFileName, String rDataFileDirectory) {
+		this.endpointPool = endpointPool;
+		this.rInitializationFileName = rInitializationFileName;
+		this.rDataFileDirectory = rDataFileDirectory;
+	}
+	
+	/**
+	 * Start preparing a spare connection in the background if one is not already prepared.
+	 */
+	public synchronized void prepareSpareConnection() {
+		if (spareConnection == null) {
+			spareConnection = preparer.submit(new Callable<RComputeConnection>() {
+				public RComputeConnection call() throws Exception {
+					return endpointPool.openRComputeConnection(rInitializationFileName, rDataFileDirectory, null);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Get the spare connection and start preparing the next one. Waits if the spare is 
+	 * still being prepared.  If the spare could not be created a new connection is 
+	 * created on the calling thread.
+	 * @return an initialized connection
+	 * @throws RSrvException if a connection could not be created
+	 */
+	public RComputeConnection takeSpareConnection() throws RSrvException {
+		Future<RComputeConnection> spare;
+		synchronized (this) {
+			prepareSpareConnection();
+			spare = spareConnection;
+			spareConnection = null;
+			prepareSpareConnection();
+		}
+		try {
+			return spare.get();
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			logger.warn("Interrupted waiting for spare connection, creating a new connection.");
+		}
+		catch (ExecutionException ex) {
+			logger.warn("Could not prepare spare connection msg=" + ex.getCause().getMessage() + " creating a new connection.");
+		}
+		return endpointPool.openRComputeConnection(rInitializationFileName, rDataFileDirectory, null);
+	}
+	
+	/**
+	 * Close a connection and kill the R process serving it, so that a long running R 
+	 * evaluation does not keep using the CPU after the connection is closed.  The kill is
+	 * done in the background.
+	 * @param connection
+	 */
+	public void abortRComputeConnection(final RComputeConnection connection) {
+		if (connection == null) {
+			return;
+		}
+		connection.close();
+		final int rProcessId = connection.getRProcessId();
+		final RserveEndpoint endpoint = connection.getEndpoint();
+		if ((rProcessId <= 0) || (endpoint == null)) {
+			return;
+		}
+		preparer.execute(new Runnable() {
+			public void run() {
+				Rconnection killConnection = null;
+				try {
+					killConnection = new Rconnection(endpoint.getHost(), endpoint.getPort());
+					if (killConnection.needLogin()) {
+						killConnection.login("guest", "guest");
+					}
+					killConnection.voidEval("tools::pskill(" + rProcessId + ")");
+					logger.info("Killed R process pid=" + rProcessId + " endpoint=" + endpoint);
+				}
+				catch (RSrvException ex) {
+					logger.warn("Could not kill R process pid=" + rProcessId + " msg=" + ex.getMessage());
+				}
+				finally {
+					if (killConnection != null) {
+						killConnection.close();
+					}
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Create a connection to Rserve and source the R initialization file.
+	 * @return the initialized connection
+	 * @throws RSrvException
+	 */
+	public static RComputeConnection createRComputeConnection(String rServeIp, int rServePort, String rInitializationFileName, String rDataFileDirectory) throws RSrvException {
+		RComputeConnection computeConnection = new RComputeConnection(rServeIp, rServePort, rDataFileDirectory);
+		
+		if (computeConnection.needLogin()) { // if server requires
+										// authentication, send one
+			logger.info("authentication required.");
+			computeConnection.login("guest", "guest");
+		}
+
+		long start = System.currentTimeMillis();
+
+		String rCmd = "source(\"" + rInitializationFileName + "\")";
+		computeConnection.voidEval(rCmd);
+		
+		try {
+			REXP pid = computeConnection.eval("Sys.getpid()");
+			computeConnection.setRProcessId(pid.asInt());
+		}
+		catch (RSrvException ex) {
+			logger.warn("Could not get the R process id msg=" + ex.getMessage());
+		}
+		
+		long elapsedtime = System.currentTimeMillis() - start;
+		logger.info("\tDone initializing Rserver connection elapsedTime="
+						+ elapsedtime);
+		return computeConnection;
+	}
+}
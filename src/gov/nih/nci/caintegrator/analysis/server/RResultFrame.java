@@ -0,0 +1,168 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import gov.nih.nci.caintegrator.exceptions.AnalysisServerException;
+
+import java.util.Vector;
+
+import org.rosuda.JRclient.REXP;
+
+/**
+ * A numeric R data frame or matrix fetched in a single Rserve round trip.  The row names,
+ * column names and every column (converted to doubles) are packed into one R list by the
+ * command from getFetchCommand and decoded here into primitive arrays, instead of making
+ * one eval call per column.
+ *
+ * @see gov.nih.nci.caintegrator.analysis.server.AnalysisTaskR#doREvalFrame(String)
+ *
+ * @author caIntegrator Team
+ *
+ */
+public class RResultFrame {
+
+	private String[] rowNames;
+
+	private String[] columnNames;
+
+	//columns[column][row]
+	private double[][] columns;
+
+	private RResultFrame(String[] rowNames, String[] columnNames, double[][] columns) {
+		this.rowNames = rowNames;
+		this.columnNames = columnNames;
+		this.columns = columns;
+	}
+
+	/**
+	 * Get the R command that packs a data frame or matrix into a list of row names,
+	 * column names and columns.
+	 * @param frameName the name of the R data frame or matrix
+	 * @return the command
+	 */
+	public static String getFetchCommand(String frameName) {
+		return "list(rownames(" + frameName + "), colnames(" + frameName + "), lapply(seq(length=ncol(" + frameName +
+		       ")), function(j) as.double(" + frameName + "[,j])))";
+	}
+
+	/**
+	 * Decode the value returned by the command from getFetchCommand.
+	 * @param packed
+	 * @return the frame
+	 * @throws AnalysisServerException if the value does not have the expected structure
+	 */
+	public static RResultFrame decode(REXP packed) throws AnalysisServerException {
+		Vector parts = (packed != null) ? packed.asVector() : null;
+		if ((parts == null) || (parts.size() != 3)) {
+			throw new AnalysisServerException("Unexpected R result frame structure=" + packed);
+		}
+		String[] columnNames = asStringArray((REXP) parts.get(1));
+		Vector columnValues = ((REXP) parts.get(2)).asVector();
+		int numColumns = (columnValues != null) ? columnValues.size() : 0;
+		double[][] columns = new double[numColumns][];
+		for (int j = 0; j < numColumns; j++) {
+			columns[j] = asDoubleArray((REXP) columnValues.get(j));
+		}
+		String[] rowNames = asStringArray((REXP) parts.get(0));
+		int numRows = (numColumns > 0) ? columns[0].length : rowNames.length;
+		if (rowNames.length != numRows) {
+			throw new AnalysisServerException("R result frame has " + rowNames.length + " row names and " + numRows + " rows");
+		}
+		return new RResultFrame(rowNames, columnNames, columns);
+	}
+
+	public int getNumRows() {
+		return rowNames.length;
+	}
+
+	public int getNumColumns() {
+		return columns.length;
+	}
+
+	public String[] getRowNames() {
+		return rowNames;
+	}
+
+	public String[] getColumnNames() {
+		return columnNames;
+	}
+
+	/**
+	 * @param column the zero based column index
+	 * @return the values of the column, NA values are NaN
+	 */
+	public double[] getColumn(int column) {
+		return columns[column];
+	}
+
+	/**
+	 * @param columnName
+	 * @return the values of the column or null if there is no column with that name
+	 */
+	public double[] getColumn(String columnName) {
+		for (int j = 0; j < columnNames.length; j++) {
+			if (columnName.equals(columnNames[j])) {
+				return columns[j];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Convert a character vector.  Rserve sends a vector of length one as a single string
+	 * and longer vectors as a vector of strings.
+	 */
+	static String[] asStringArray(REXP rexp) {
+		if ((rexp == null) || (rexp.getType() == REXP.XT_NULL)) {
+			return new String[0];
+		}
+		if (rexp.getType() == REXP.XT_STR) {
+			return new String[] { rexp.asString() };
+		}
+		if (rexp.getType() == REXP.XT_ARRAY_STR) {
+			return (String[]) rexp.getContent();
+		}
+		Vector values = rexp.asVector();
+		if (values == null) {
+			return new String[0];
+		}
+		String[] strings = new String[values.size()];
+		for (int i = 0; i < strings.length; i++) {
+			strings[i] = ((REXP) values.get(i)).asString();
+		}
+		return strings;
+	}
+
+	static int[] asIntArray(REXP rexp) throws AnalysisServerException {
+		if ((rexp == null) || (rexp.getType() == REXP.XT_NULL)) {
+			return new int[0];
+		}
+		if (rexp.getType() == REXP.XT_INT) {
+			return new int[] { rexp.asInt() };
+		}
+		int[] values = rexp.asIntArray();
+		if (values == null) {
+			throw new AnalysisServerException("R result is not integer type=" + REXP.xtName(rexp.getType()));
+		}
+		return values;
+	}
+
+	static double[] asDoubleArray(REXP rexp) throws AnalysisServerException {
+		if ((rexp == null) || (rexp.getType() == REXP.XT_NULL)) {
+			return new double[0];
+		}
+		if (rexp.getType() == REXP.XT_DOUBLE) {
+			return new double[] { rexp.asDouble() };
+		}
+		double[] values = rexp.asDoubleArray();
+		if (values == null) {
+			throw new AnalysisServerException("R result frame column is not numeric type=" + REXP.xtName(rexp.getType()));
+		}
+		return values;
+	}
+}
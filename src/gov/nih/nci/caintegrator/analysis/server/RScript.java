@@ -0,0 +1,200 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The R commands for one phase of an analysis task (for example assign groups, subset the
+ * data matrix, check the subset and run the test), sent to the Rserve as a single script so
+ * the phase costs one round trip instead of one per command.
+ *
+ * The script records the number of each step before running it and catches any R error, so
+ * a failure is reported with the step that caused it.  A check step stops the script with its
+ * own failure message when its condition is false.  An optional result expression is evaluated
+ * after the last step and returned from the same round trip.
+ *
+ * @see gov.nih.nci.caintegrator.analysis.server.AnalysisTaskR#doREval(RScript)
+ *
+ * @author caIntegrator Team
+ *
+ */
+public class RScript {
+
+	static final String STATUS_OK = "OK";
+
+	static final String STATUS_ERROR = "ERROR";
+
+	private static final String STEP_VARIABLE = ".rscriptStep";
+
+	private String phaseName;
+
+	private List<Step> steps = new ArrayList<Step>();
+
+	private String resultExpression = null;
+
+	private List<WorkspaceObject> workspaceObjects = new ArrayList<WorkspaceObject>();
+
+	/**
+	 * @param phaseName the name of the phase, used when reporting errors
+	 */
+	public RScript(String phaseName) {
+		this.phaseName = phaseName;
+	}
+
+	/**
+	 * Add a command.
+	 * @param description what the step does, used when reporting errors
+	 * @param command the R command
+	 * @return this script
+	 */
+	public RScript add(String description, String command) {
+		steps.add(new Step(description, command, null));
+		return this;
+	}
+
+	/**
+	 * Add a condition that must be true for the script to continue.
+	 * @param description what is being checked, used when reporting errors
+	 * @param condition an R expression that evaluates to TRUE or FALSE
+	 * @param failureMessage the error message reported when the condition is false
+	 * @return this script
+	 */
+	public RScript addCheck(String description, String condition, String failureMessage) {
+		steps.add(new Step(description, "if (!isTRUE(" + condition + ")) stop(" + quote(failureMessage) + ")", failureMessage));
+		return this;
+	}
+
+	/**
+	 * Record that a step creates an object that is to be kept in the workspace for later tasks.
+	 * The object is only recorded in the connection's RWorkspaceObjects if the script succeeds.
+	 * @param key the key of the object
+	 * @param rName the R name of the object
+	 * @param estimatedBytes the estimated size of the object
+	 */
+	public void addWorkspaceObject(String key, String rName, long estimatedBytes) {
+		workspaceObjects.add(new WorkspaceObject(key, rName, estimatedBytes));
+	}
+
+	/**
+	 * Set the R expression whose value is returned after the last step.
+	 * @param resultExpression
+	 */
+	public void setResultExpression(String resultExpression) {
+		this.resultExpression = resultExpression;
+	}
+
+	public String getPhaseName() {
+		return phaseName;
+	}
+
+	public int size() {
+		return steps.size();
+	}
+
+	/**
+	 * @param stepNumber the one based step number reported by the script
+	 * @return a description of the step
+	 */
+	public String getStepDescription(int stepNumber) {
+		if ((stepNumber < 1) || (stepNumber > steps.size())) {
+			return "step " + stepNumber;
+		}
+		return "step " + stepNumber + " (" + steps.get(stepNumber - 1).description + ")";
+	}
+
+	/**
+	 * @param stepNumber the one based step number reported by the script
+	 * @return the failure message if the step is a check or null if it is a command
+	 */
+	public String getCheckFailureMessage(int stepNumber) {
+		if ((stepNumber < 1) || (stepNumber > steps.size())) {
+			return null;
+		}
+		return steps.get(stepNumber - 1).failureMessage;
+	}
+
+	int getNumWorkspaceObjects() {
+		return workspaceObjects.size();
+	}
+
+	String getWorkspaceObjectKey(int index) {
+		return workspaceObjects.get(index).key;
+	}
+
+	String getWorkspaceObjectName(int index) {
+		return workspaceObjects.get(index).rName;
+	}
+
+	long getWorkspaceObjectBytes(int index) {
+		return workspaceObjects.get(index).estimatedBytes;
+	}
+
+	/**
+	 * Build the script.  It evaluates to list("OK", result) when every step succeeds and to
+	 * list("ERROR", step number, error message) when a step fails.
+	 * @return the script text
+	 */
+	public String getScript() {
+		StringBuffer sb = new StringBuffer();
+		sb.append(STEP_VARIABLE).append(" <- 0\n");
+		sb.append("tryCatch({\n");
+		for (int i = 0; i < steps.size(); i++) {
+			sb.append(STEP_VARIABLE).append(" <- ").append(i + 1).append("\n");
+			sb.append(steps.get(i).command).append("\n");
+		}
+		sb.append("list(").append(quote(STATUS_OK)).append(", ");
+		sb.append((resultExpression != null) ? resultExpression : "NULL");
+		sb.append(")\n");
+		sb.append("}, error=function(e) list(").append(quote(STATUS_ERROR)).append(", as.character(").append(STEP_VARIABLE);
+		sb.append("), conditionMessage(e)))");
+		return sb.toString();
+	}
+
+	public String toString() {
+		return "RScript phase=" + phaseName + " steps=" + steps.size();
+	}
+
+	/**
+	 * Quote a string as an R string literal.
+	 */
+	static String quote(String value) {
+		return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	private static class WorkspaceObject {
+
+		private String key;
+
+		private String rName;
+
+		private long estimatedBytes;
+
+		private WorkspaceObject(String key, String rName, long estimatedBytes) {
+			this.key = key;
+			this.rName = rName;
+			this.estimatedBytes = estimatedBytes;
+		}
+	}
+
+	private static class Step {
+
+		private String description;
+
+		private String command;
+
+		private String failureMessage;
+
+		private Step(String description, String command, String failureMessage) {
+			this.description = description;
+			this.command = command;
+			this.failureMessage = failureMessage;
+		}
+	}
+}
@@ -32,56 +32,50 @@ import org.rosuda.JRclient.*;
 
 public class RThread extends Thread {
 
-	private String rServeIp;
-	
-	private int rServePort;
+	private RserveEndpointPool endpointPool;
 
 	private String rInitializationFileName;
 	
 	private String rDataFileDirectory;
 
-	private RComputeConnection computeConnection;
+	//may be replaced by the executor when a task running on this thread times out
+	private volatile RComputeConnection computeConnection;
+	
+	//data file to load before the thread takes its first task
+	private String prewarmDataFileName = null;
 	
 	private static Logger logger = Logger.getLogger(RThread.class);
 
 
 	public RThread(Runnable target, String rServeIp, int rServePort, String rInitializationFileName, String rDataFileDirectory) {
+		this(target, new RserveEndpointPool(rServeIp, rServePort), rInitializationFileName, rDataFileDirectory, null);
+	}
+	
+	/**
+	 * Create a thread with a connection to the best endpoint in the pool.
+	 * 
+	 * @param target
+	 * @param endpointPool the Rserve endpoints the connection may be opened to
+	 * @param rInitializationFileName
+	 * @param rDataFileDirectory
+	 * @param prewarmDataFileName the data file to load before the thread takes work, may be null
+	 */
+	public RThread(Runnable target, RserveEndpointPool endpointPool, String rInitializationFileName, String rDataFileDirectory, String prewarmDataFileName) {
 		super(target);
-		this.rServeIp = rServeIp;
-		this.rServePort = rServePort;
+		this.endpointPool = endpointPool;
 		this.rInitializationFileName = rInitializationFileName;
 		this.rDataFileDirectory = rDataFileDirectory;
+		this.prewarmDataFileName = prewarmDataFileName;
 		initializeRComputeConnection();
 		logger.info("RThread name=" + getName()
-				+ " successfully initialized R connection.");
+				+ " successfully initialized R connection host=" + getRServeIp() + " port=" + getRServePort());
 	}
 
 	public void initializeRComputeConnection() {
 		// load the test matrix and function definitions
 		try {
 			
-			computeConnection = new RComputeConnection(rServeIp, rServePort, rDataFileDirectory);
-			//rConnection = new Rconnection(rServeIp);
-
-			String rCmd;
-			// System.out.println("Server vesion: "+c.getServerVersion());
-			long start, elapsedtime;
-			if (computeConnection.needLogin()) { // if server requires
-											// authentication, send one
-				logger.info("authentication required.");
-				computeConnection.login("guest", "guest");
-			}
-
-			// System.out.println("\tInitializing the Rserver with data and
-			// functions");
-
-			start = System.currentTimeMillis();
-
-			rCmd = "source(\"" + rInitializationFileName + "\")";
-			computeConnection.voidEval(rCmd);
-			elapsedtime = System.currentTimeMillis() - start;
-			logger.info("\tDone initializing Rserver connection elapsedTime="
-							+ elapsedtime);
+			computeConnection = endpointPool.openRComputeConnection(rInitializationFileName, rDataFileDirectory, prewarmDataFileName);
 
 		} catch (RSrvException rse) {
 			logger.error("Rserve exception: " + rse.getMessage());
@@ -93,21 +87,77 @@ public class RThread extends Thread {
 		}
 	}
 
+	/**
+	 * Load the pre-warm data file, if there is one, before taking work and close the 
+	 * R connection when the thread exits.
+	 */
+	public void run() {
+		try {
+			prewarm();
+			super.run();
+		}
+		finally {
+			RComputeConnection connection = computeConnection;
+			if (connection != null) {
+				connection.close();
+			}
+			logger.info("RThread name=" + getName() + " exiting, closed R connection.");
+		}
+	}
+	
+	/**
+	 * Set the data file to load onto the connection before the thread takes work.
+	 * @param prewarmDataFileName
+	 */
+	public void setPrewarmDataFileName(String prewarmDataFileName) {
+		this.prewarmDataFileName = prewarmDataFileName;
+	}
+	
+	public String getPrewarmDataFileName() {
+		return prewarmDataFileName;
+	}
+	
+	private void prewarm() {
+		if ((prewarmDataFileName == null) || (computeConnection == null)) {
+			return;
+		}
+		try {
+			computeConnection.setRDataFile(prewarmDataFileName);
+			logger.info("RThread name=" + getName() + " pre-warmed with data file=" + prewarmDataFileName);
+		}
+		catch (Exception ex) {
+			//the data file will be loaded by the first task that needs it
+			logger.warn("RThread name=" + getName() + " could not pre-warm data file=" + prewarmDataFileName + " msg=" + ex.getMessage());
+		}
+	}
+
 	public RComputeConnection getRComputeConnection() {
 		return computeConnection;
 	}
+	
+	/**
+	 * Replace this thread's connection, for example after the old connection was closed 
+	 * to abort a task that timed out.
+	 * @param newConnection
+	 * @return the connection that was replaced
+	 */
+	public RComputeConnection replaceRComputeConnection(RComputeConnection newConnection) {
+		RComputeConnection oldConnection = computeConnection;
+		computeConnection = newConnection;
+		return oldConnection;
+	}
 
 	
 	public String getRInitializationFileName() {
 		return rInitializationFileName;
 	}
 
+	/**
+	 * @return the host of the Rserve this thread is connected to
+	 */
 	public String getRServeIp() {
-		return rServeIp;
-	}
-
-	public void setRServeIp(String serveIp) {
-		rServeIp = serveIp;
+		RComputeConnection connection = computeConnection;
+		return ((connection != null) && (connection.getEndpoint() != null)) ? connection.getEndpoint().getHost() : null;
 	}
 
 	public void finalize() {
@@ -130,12 +180,12 @@ public class RThread extends Thread {
 	  logger.error(sw.toString());
 	}
 
+	/**
+	 * @return the port of the Rserve this thread is connected to
+	 */
 	public int getRServePort() {
-		return rServePort;
-	}
-
-	public void setRServePort(int servePort) {
-		rServePort = servePort;
+		RComputeConnection connection = computeConnection;
+		return ((connection != null) && (connection.getEndpoint() != null)) ? connection.getEndpoint().getPort() : -1;
 	}
 
 }
@@ -26,28 +26,45 @@ import java.util.concurrent.ThreadFactory;
 
 public class RThreadFactory implements ThreadFactory {
 
-	private String rServeIp;
-	private int rServePort;
+	private RserveEndpointPool endpointPool;
 
 	private String rInitializationFileName;
 	private String rDataFileDirectory;
+	
+	private AnalysisTaskQueue taskQueue = null;
 
 	public RThreadFactory(String rServeIp, int rServePort, String rInitializationFileName, String rDataFileDirectory) {
+		this(new RserveEndpointPool(rServeIp, rServePort), rInitializationFileName, rDataFileDirectory);
+	}
+	
+	public RThreadFactory(RserveEndpointPool endpointPool, String rInitializationFileName, String rDataFileDirectory) {
 		super();
-		this.rServeIp = rServeIp;
-		this.rServePort = rServePort;
+		this.endpointPool = endpointPool;
 		this.rInitializationFileName = rInitializationFileName;
 		this.rDataFileDirectory = rDataFileDirectory;
 	}
 
 	
 	/**
-	 * Return a new RThread. 
+	 * Return a new RThread connected to the least loaded Rserve endpoint. 
 	 */
 	public Thread newThread(Runnable r) {
-		RThread thread = new RThread(r, rServeIp, rServePort, rInitializationFileName, rDataFileDirectory);
+		String prewarmDataFileName = null;
+		if (taskQueue != null) {
+			prewarmDataFileName = taskQueue.getMostRequestedDataFile();
+		}
+		RThread thread = new RThread(r, endpointPool, rInitializationFileName, rDataFileDirectory, prewarmDataFileName);
 		return thread;
 	}
+	
+	/**
+	 * Set the queue used to find the most requested data file.  New threads 
+	 * load that data file before they take work.
+	 * @param taskQueue
+	 */
+	public void setTaskQueue(AnalysisTaskQueue taskQueue) {
+		this.taskQueue = taskQueue;
+	}
 
 	public String getRInitializationFileName() {
 		return rInitializationFileName;
@@ -57,12 +74,8 @@ public class RThreadFactory implements ThreadFactory {
 	  return rDataFileDirectory;
 	}
 
-	public String getRServeIp() {
-		return rServeIp;
-	}
-	
-	public int getRServePort() {
-	    return rServePort;
+	public RserveEndpointPool getEndpointPool() {
+		return endpointPool;
 	}
 
 }
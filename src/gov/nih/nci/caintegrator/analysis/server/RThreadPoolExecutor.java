@@ -14,9 +14,16 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
@@ -39,9 +46,49 @@ public class RThreadPoolExecutor extends ThreadPoolExecutor {
 	private String hostName = null;
 	private boolean debugRcommands = false;
 	
-	//The rConnectionPool will contain a mapping from an Rbinary file name (a data file) to 
-	//an Rconnection.  The Rconnection will have the data file preloaded and ready to run an 
-	//analysis task. 
+	//The work queue serves the task cost classes by weighted fair scheduling and hands each 
+	//thread a task for the data file already loaded on its Rconnection when it can.
+	private AnalysisTaskQueue taskQueue;
+	
+	//number of tasks that found their data file already loaded / had to load it
+	private AtomicLong dataFileHits = new AtomicLong(0L);
+	private AtomicLong dataFileMisses = new AtomicLong(0L);
+	
+	private RequestAdmissionController admissionController = null;
+	
+	private RequestCoalescer requestCoalescer = null;
+	
+	private AnalysisResultCache resultCache = null;
+	
+	private UnfilteredStatisticsCache statisticsCache = null;
+	
+	private DataFileDictionaryCache dictionaryCache = null;
+	
+	private DendrogramCache dendrogramCache = null;
+	
+	private DataMatrixCache dataMatrixCache = null;
+	
+	private CorrelationRowStatisticsCache correlationRowStatisticsCache = null;
+	
+	//timeouts in ms keyed by the request class simple name, 0 means no timeout
+	private long defaultTaskTimeoutMS = 0L;
+	private Map<String, Long> taskTimeouts = new HashMap<String, Long>();
+	
+	//aborts tasks that run past their timeout
+	private ScheduledExecutorService timeoutWatchdog = null;
+	private Map<AnalysisTaskR, ScheduledFuture<?>> pendingTimeouts = new ConcurrentHashMap<AnalysisTaskR, ScheduledFuture<?>>();
+	
+	private RComputeConnectionFactory connectionFactory;
+	
+	//elastic pool settings, the pool is fixed when the minimum and maximum are equal
+	private int minThreads;
+	private long growQueueWaitTimeMS = 5000L;
+	private ScheduledExecutorService poolSizeMonitor = null;
+	private long nextGrowTime = 0L;
+	private static final long POOL_SIZE_CHECK_INTERVAL_MS = 1000L;
+	
+	//tasks that make more calls than this to the Rserve are logged as a warning
+	private static final int ROUND_TRIP_WARNING_THRESHOLD = 1000;
 	
 	private static Logger logger = Logger.getLogger(RThreadPoolExecutor.class);
 
@@ -49,14 +96,62 @@ public class RThreadPoolExecutor extends ThreadPoolExecutor {
 			AnalysisResultSender sender) {
 
 		// create a new fixed thread pool
-		super(nThreads, nThreads, Long.MAX_VALUE, TimeUnit.NANOSECONDS,
-				new LinkedBlockingQueue<Runnable>(), new RThreadFactory(
-						RserveIp, RservePort, RinitializationFile, RdataFileDirectory));
+		this(nThreads, nThreads, Long.MAX_VALUE, RserveIp, RservePort, RinitializationFile, RdataFileDirectory, sender);
+	}
+	
+	/**
+	 * Create an elastic thread pool.  The pool starts with minThreads threads and grows, up to
+	 * maxThreads, when tasks wait in the queue longer than the grow threshold 
+	 * (see setGrowQueueWaitTimeMS).  Threads above minThreads exit after being idle for keepAliveMS.
+	 * 
+	 * @param minThreads
+	 * @param maxThreads
+	 * @param keepAliveMS
+	 */
+	public RThreadPoolExecutor(int minThreads, int maxThreads, long keepAliveMS, String RserveIp, int RservePort, String RinitializationFile, 
+			String RdataFileDirectory, AnalysisResultSender sender) {
+		this(minThreads, maxThreads, keepAliveMS, new RserveEndpointPool(RserveIp, RservePort), RinitializationFile, RdataFileDirectory, sender);
+	}
+	
+	/**
+	 * Create a thread pool whose threads are spread across several Rserve endpoints.
+	 * 
+	 * @param minThreads
+	 * @param maxThreads
+	 * @param keepAliveMS
+	 * @param endpointPool the Rserve endpoints to open connections to
+	 */
+	public RThreadPoolExecutor(int minThreads, int maxThreads, long keepAliveMS, RserveEndpointPool endpointPool, String RinitializationFile, 
+			String RdataFileDirectory, AnalysisResultSender sender) {
+		
+		super(minThreads, maxThreads, keepAliveMS, TimeUnit.MILLISECONDS,
+				new AnalysisTaskQueue(), new RThreadFactory(
+						endpointPool, RinitializationFile, RdataFileDirectory));
 
+		this.minThreads = minThreads;
+		this.taskQueue = (AnalysisTaskQueue) getQueue();
+		((RThreadFactory) getThreadFactory()).setTaskQueue(taskQueue);
+		this.connectionFactory = new RComputeConnectionFactory(endpointPool, RinitializationFile, RdataFileDirectory);
 		this.sender = sender;
 		this.hostName = getHostName();
 		
 		prestartAllCoreThreads();
+		
+		if (maxThreads > minThreads) {
+		  poolSizeMonitor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+			  Thread thread = new Thread(r, "RThreadPoolSizeMonitor");
+			  thread.setDaemon(true);
+			  return thread;
+			}
+		  });
+		  poolSizeMonitor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+			  adjustPoolSize();
+			}
+		  }, POOL_SIZE_CHECK_INTERVAL_MS, POOL_SIZE_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+		  logger.info("Elastic thread pool minThreads=" + minThreads + " maxThreads=" + maxThreads + " keepAliveMS=" + keepAliveMS);
+		}
 	}
 
 	protected void beforeExecute(Thread thread, Runnable task) {
@@ -64,15 +159,37 @@ public class RThreadPoolExecutor extends ThreadPoolExecutor {
 		AnalysisTaskR rTask = (AnalysisTaskR) task;
 		RThread rThread = (RThread) thread;
 		rTask.setExecutingThreadName(rThread.getName());
+		recordDataFileAffinity(rTask, rThread);
+		taskQueue.setLoadedDataFile(rThread, rTask.getDataFileName());
+		RComputeConnection connection = rThread.getRComputeConnection();
+		if ((connection == null) || (!connection.isConnected())) {
+			//the endpoint failed or was unavailable when the thread was created, try the other endpoints
+			replaceRComputeConnection(rThread);
+			connection = rThread.getRComputeConnection();
+		}
+		if (connection == null) {
+			AnalysisServerException ex = new AnalysisServerException("No R connection available, could not connect to any Rserve endpoint");
+			ex.setFailedRequest(rTask.getRequest());
+			rTask.setException(ex);
+		}
+		else if (connection.getEndpoint() != null) {
+			connection.getEndpoint().taskStarted();
+		}
 		try {
-			rTask.setRComputeConnection(rThread.getRComputeConnection());
+			rTask.setRComputeConnection(connection);
 		} catch (AnalysisServerException e) {
 			rTask.setException(e);
 			logger.error("Caught AnalysisServerException when trying to set the RComputeConnection");
 			logStackTrace(e);
 		}
 		rTask.setDebugRcommands(debugRcommands);
+		rTask.setStatisticsCache(statisticsCache);
+		rTask.setDictionaryCache(dictionaryCache);
+		rTask.setDendrogramCache(dendrogramCache);
+		rTask.setDataMatrixCache(dataMatrixCache);
+		rTask.setCorrelationRowStatisticsCache(correlationRowStatisticsCache);
 		rTask.setStartTime(System.currentTimeMillis());
+		scheduleTimeout(rTask, rThread);
 		
 		super.beforeExecute(thread, task);
 		
@@ -83,24 +200,352 @@ public class RThreadPoolExecutor extends ThreadPoolExecutor {
 	protected void afterExecute(Runnable task, Throwable throwable) {
 		
 		AnalysisTaskR rTask = (AnalysisTaskR) task;
+		
+		//the task has returned, stop the watchdog before anything else so it can not abort a finished task
+		boolean timedOut;
+		synchronized (pendingTimeouts) {
+		  ScheduledFuture<?> timeout = pendingTimeouts.remove(rTask);
+		  if (timeout != null) {
+		    timeout.cancel(false);
+		  }
+		  timedOut = rTask.isTimedOut();
+		}
+		
 		rTask.setComputeTime(System.currentTimeMillis() - rTask.getStartTime());
 		
-		if (rTask.getException() != null) {
-		  logger.info(rTask.getExecutingThreadName() + " failed to complete task=" + rTask + " host=" + getHostName());
+		RComputeConnection connection = rTask.getRComputeConnection();
+		if ((connection != null) && (connection.getEndpoint() != null)) {
+		  connection.getEndpoint().taskFinished();
+		}
+		
+		if (timedOut) {
+		  if (rTask.getException() != null) {
+		    //the task failed because its connection was closed, report the timeout instead
+		    AnalysisServerException ex = new AnalysisServerException("Analysis task timed out after " + getTaskTimeoutMS(rTask) + 
+				  " ms request=" + rTask.getRequest().getClass().getSimpleName());
+		    ex.setFailedRequest(rTask.getRequest());
+		    rTask.setException(ex);
+		  }
+		  else {
+		    //the abort came after the task had computed its result, which is still good
+		    logger.info("Task=" + rTask + " completed before it was aborted, keeping the result");
+		  }
+		  replaceRComputeConnection((RThread) Thread.currentThread());
+		}
+		
+		if (rTask.getNumRoundTrips() > ROUND_TRIP_WARNING_THRESHOLD) {
+		  //usually a loop that fetches one value per reporter
+		  logger.warn("Task=" + rTask + " made " + rTask.getNumRoundTrips() + " calls to the Rserve");
+		}
+		
+		if (rTask.getLoadedDataFileName() != null) {
+		  taskQueue.recordDataFileLoadTime(rTask.getLoadedDataFileName(), rTask.getDataFileLoadTimeMS());
+		}
+		
+		if (rTask instanceof CompoundSubTaskR) {
+		  //the result is gathered by the compound task
+		  logger.info(rTask.getExecutingThreadName() + " finished compound sub-task=" + rTask + " host=" + getHostName() + " computeTime(ms)=" + rTask.getComputeTime() + 
+				      " queueTime(ms)=" + (rTask.getStartTime() - rTask.getQueueTime()));
+		}
+		else if (rTask.getException() != null) {
+		  logger.info(rTask.getExecutingThreadName() + " failed to complete task=" + rTask + " host=" + getHostName() + " rRoundTrips=" + rTask.getNumRoundTrips());
 		  sender.sendException(rTask.getException(), rTask.getJMSDestination());
 		}
 		else {
-		  logger.info(rTask.getExecutingThreadName() + " completed task=" + rTask + " host=" + getHostName() + " computeTime(ms)=" + rTask.getComputeTime());
+		  logger.info(rTask.getExecutingThreadName() + " completed task=" + rTask + " host=" + getHostName() + " costClass=" + rTask.getCostClass() + " computeTime(ms)=" + rTask.getComputeTime() + 
+				      " queueTime(ms)=" + (rTask.getStartTime() - rTask.getQueueTime()) + " dataFileLoadTime(ms)=" + rTask.getDataFileLoadTimeMS() + " rRoundTrips=" + rTask.getNumRoundTrips());
 		  sender.sendResult(rTask.getResult(), rTask.getJMSDestination());
 		}
 		
+		if (resultCache != null) {
+		  resultCache.put(rTask);
+		}
+		
+		if (requestCoalescer != null) {
+		  requestCoalescer.requestCompleted(rTask);
+		}
+		
 		rTask.cleanUp();
+		
+		if (admissionController != null) {
+		  admissionController.requestCompleted(rTask);
+		}
 	}
 
 	public void setDebugRcommmands(boolean debugRcommands) {
 	  this.debugRcommands = debugRcommands;
 	}
 	
+	/**
+	 * Set the controller that is told when tasks complete so that request consumption can be resumed.
+	 * @param admissionController
+	 */
+	public void setRequestAdmissionController(RequestAdmissionController admissionController) {
+	  this.admissionController = admissionController;
+	}
+	
+	/**
+	 * Set the coalescer that is told when tasks complete so that the result can be sent to identical requests.
+	 * @param requestCoalescer
+	 */
+	public void setRequestCoalescer(RequestCoalescer requestCoalescer) {
+	  this.requestCoalescer = requestCoalescer;
+	}
+	
+	/**
+	 * Set the cache that the results of completed tasks are stored in.
+	 * @param resultCache
+	 */
+	public void setResultCache(AnalysisResultCache resultCache) {
+	  this.resultCache = resultCache;
+	}
+	
+	/**
+	 * Set the cache of unfiltered statistics that is given to each task so that class comparison 
+	 * and F-test requests that differ only in their thresholds are filtered in Java.
+	 * @param statisticsCache
+	 */
+	public void setStatisticsCache(UnfilteredStatisticsCache statisticsCache) {
+	  this.statisticsCache = statisticsCache;
+	}
+	
+	/**
+	 * Set the cache of data file dictionaries that is given to each task so that sample and 
+	 * reporter IDs are resolved and checked in Java.
+	 * @param dictionaryCache
+	 */
+	public void setDictionaryCache(DataFileDictionaryCache dictionaryCache) {
+	  this.dictionaryCache = dictionaryCache;
+	}
+	
+	/**
+	 * Set the cache of clustering dendrograms that is given to each task so that clustering
+	 * requests that differ only in their image size are plotted without reclustering.
+	 * @param dendrogramCache
+	 */
+	public void setDendrogramCache(DendrogramCache dendrogramCache) {
+	  this.dendrogramCache = dendrogramCache;
+	}
+	
+	/**
+	 * Set the cache of Java copies of data matrices that is given to each task so that the
+	 * Java statistics engines only fetch the values of a data file from R once.
+	 * @param dataMatrixCache
+	 */
+	public void setDataMatrixCache(DataMatrixCache dataMatrixCache) {
+	  this.dataMatrixCache = dataMatrixCache;
+	}
+	
+	/**
+	 * Set the cache of the per row means and norms of genome correlation sample sets that is
+	 * given to each task.
+	 * @param correlationRowStatisticsCache
+	 */
+	public void setCorrelationRowStatisticsCache(CorrelationRowStatisticsCache correlationRowStatisticsCache) {
+	  this.correlationRowStatisticsCache = correlationRowStatisticsCache;
+	}
+	
+	/**
+	 * Set the task timeouts.  Tasks that run longer than their timeout are aborted by 
+	 * closing their R connection and an AnalysisServerException is sent in place of the result.
+	 * @param defaultTaskTimeoutMS the timeout for requests without their own timeout, 0 means no timeout
+	 * @param taskTimeouts timeouts keyed by the simple class name of the request, e.g. HierarchicalClusteringRequest
+	 */
+	public synchronized void setTaskTimeouts(long defaultTaskTimeoutMS, Map<String, Long> taskTimeouts) {
+	  this.defaultTaskTimeoutMS = defaultTaskTimeoutMS;
+	  this.taskTimeouts = new HashMap<String, Long>(taskTimeouts);
+	  
+	  boolean timeoutsEnabled = (defaultTaskTimeoutMS > 0L);
+	  for (Long timeoutMS : taskTimeouts.values()) {
+	    timeoutsEnabled |= (timeoutMS.longValue() > 0L);
+	  }
+	  
+	  if ((timeoutsEnabled) && (timeoutWatchdog == null)) {
+	    timeoutWatchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		  public Thread newThread(Runnable r) {
+		    Thread thread = new Thread(r, "AnalysisTaskTimeoutWatchdog");
+		    thread.setDaemon(true);
+		    return thread;
+		  }
+	    });
+	    //have a connection ready for the first thread that needs a replacement
+	    connectionFactory.prepareSpareConnection();
+	  }
+	}
+	
+	/**
+	 * Get the timeout for a task.
+	 * @param task
+	 * @return the timeout in milliseconds, 0 means no timeout
+	 */
+	public synchronized long getTaskTimeoutMS(AnalysisTask task) {
+	  Long timeoutMS = taskTimeouts.get(task.getRequest().getClass().getSimpleName());
+	  return (timeoutMS != null) ? timeoutMS.longValue() : defaultTaskTimeoutMS;
+	}
+	
+	/**
+	 * Turn data file affinity scheduling on or off. When off tasks are 
+	 * executed in FIFO order.
+	 * @param affinityEnabled
+	 */
+	public void setDataFileAffinityEnabled(boolean affinityEnabled) {
+	  taskQueue.setAffinityEnabled(affinityEnabled);
+	}
+	
+	/**
+	 * Set the data file load time to assume before any loads of a data file have been observed.
+	 * @param defaultDataFileLoadTimeMS
+	 */
+	public void setDefaultDataFileLoadTimeMS(long defaultDataFileLoadTimeMS) {
+	  taskQueue.setDefaultDataFileLoadTimeMS(defaultDataFileLoadTimeMS);
+	}
+	
+	/**
+	 * Set the scheduling weight of a task cost class.
+	 * @param costClass
+	 * @param weight
+	 */
+	public void setQueueWeight(TaskCostClass costClass, int weight) {
+	  taskQueue.setWeight(costClass, weight);
+	}
+	
+	/**
+	 * Set the number of threads that will only execute INTERACTIVE tasks.
+	 * At least one thread is always left to execute the other classes.
+	 * @param numReservedInteractiveThreads
+	 */
+	public void setNumReservedInteractiveThreads(int numReservedInteractiveThreads) {
+	  taskQueue.setNumReservedInteractiveThreads(numReservedInteractiveThreads);
+	}
+	
+	/**
+	 * @return the number of tasks that started on a thread that already had their data file loaded
+	 */
+	public long getDataFileHits() {
+	  return dataFileHits.get();
+	}
+	
+	/**
+	 * @return the number of tasks that started on a thread that had to load their data file
+	 */
+	public long getDataFileMisses() {
+	  return dataFileMisses.get();
+	}
+	
+	/**
+	 * Schedule the abort of a task if it has a timeout.
+	 * @param rTask
+	 * @param rThread
+	 */
+	private void scheduleTimeout(final AnalysisTaskR rTask, final RThread rThread) {
+	  long timeoutMS = getTaskTimeoutMS(rTask);
+	  if ((timeoutMS <= 0L) || (timeoutWatchdog == null)) {
+	    return;
+	  }
+	  final RComputeConnection connection = rThread.getRComputeConnection();
+	  Runnable abort = new Runnable() {
+		public void run() {
+		  synchronized (pendingTimeouts) {
+		    if (pendingTimeouts.remove(rTask) == null) {
+		      //the task already completed
+		      return;
+		    }
+		    //marked under the lock so afterExecute sees whether the connection is being closed
+		    rTask.setTimedOut(true);
+		  }
+		  logger.warn("Aborting task=" + rTask + " after timeout(ms)=" + getTaskTimeoutMS(rTask) + " thread=" + rThread.getName());
+		  //closing the connection makes the R evaluation in progress fail on the task thread
+		  connectionFactory.abortRComputeConnection(connection);
+		}
+	  };
+	  synchronized (pendingTimeouts) {
+	    pendingTimeouts.put(rTask, timeoutWatchdog.schedule(abort, timeoutMS, TimeUnit.MILLISECONDS));
+	  }
+	}
+	
+	/**
+	 * Give a thread a new connection after its connection was closed to abort a task.
+	 * The replacement is taken from the connection prepared in the background.
+	 * @param rThread
+	 */
+	private void replaceRComputeConnection(RThread rThread) {
+	  try {
+	    RComputeConnection newConnection = connectionFactory.takeSpareConnection();
+	    RComputeConnection oldConnection = rThread.replaceRComputeConnection(newConnection);
+	    if (oldConnection != null) {
+	      oldConnection.close();
+	    }
+	    logger.info("Replaced R connection for thread=" + rThread.getName() + " host=" + rThread.getRServeIp() + " port=" + rThread.getRServePort());
+	  }
+	  catch (Exception ex) {
+	    logger.error("Could not replace R connection for thread=" + rThread.getName());
+	    logStackTrace(ex);
+	  }
+	}
+	
+	/**
+	 * Set how long the oldest queued task may wait before an elastic pool adds a thread.
+	 * @param growQueueWaitTimeMS
+	 */
+	public void setGrowQueueWaitTimeMS(long growQueueWaitTimeMS) {
+	  this.growQueueWaitTimeMS = growQueueWaitTimeMS;
+	}
+	
+	/**
+	 * Add a thread when tasks have waited too long. Once the queue is empty the core size 
+	 * is set back to the minimum, the extra threads then exit after being idle for the keep-alive time.
+	 */
+	private void adjustPoolSize() {
+	  try {
+	    int corePoolSize = getCorePoolSize();
+	    int poolSize = getPoolSize();
+	    long now = System.currentTimeMillis();
+	    long longestWait = taskQueue.getLongestWaitTime();
+	    if (longestWait > growQueueWaitTimeMS) {
+	      if ((poolSize < getMaximumPoolSize()) && (now >= nextGrowTime)) {
+	        logger.info("Growing thread pool to size=" + (poolSize + 1) + " longestQueueWait(ms)=" + longestWait);
+	        //starts a new thread since there are queued tasks
+	        setCorePoolSize(poolSize + 1);
+	        //give the new thread time to pre-warm before deciding to grow again
+	        nextGrowTime = System.currentTimeMillis() + growQueueWaitTimeMS + 
+	                       taskQueue.getEstimatedDataFileLoadTime(taskQueue.getMostRequestedDataFile());
+	      }
+	    }
+	    else if ((corePoolSize > minThreads) && (taskQueue.isEmpty())) {
+	      logger.info("Thread pool idle, threads above minThreads=" + minThreads + " will exit after the keep-alive time. poolSize=" + getPoolSize());
+	      setCorePoolSize(minThreads);
+	    }
+	  }
+	  catch (Exception ex) {
+	    logger.error("Caught exception adjusting thread pool size");
+	    logStackTrace(ex);
+	  }
+	}
+	
+	/**
+	 * Count whether the thread picked up a task for the data file it already has loaded.
+	 * @param rTask
+	 * @param rThread
+	 */
+	private void recordDataFileAffinity(AnalysisTaskR rTask, RThread rThread) {
+	  String dataFileName = rTask.getDataFileName();
+	  if (dataFileName == null) {
+	    return;
+	  }
+	  RComputeConnection connection = rThread.getRComputeConnection();
+	  long hits, misses;
+	  if ((connection != null) && (dataFileName.equals(connection.getRdataFileName()))) {
+	    hits = dataFileHits.incrementAndGet();
+	    misses = dataFileMisses.get();
+	  }
+	  else {
+	    misses = dataFileMisses.incrementAndGet();
+	    hits = dataFileHits.get();
+	  }
+	  logger.info("Data file affinity dataFile=" + dataFileName + " thread=" + rThread.getName() + 
+			       " hits=" + hits + " misses=" + misses);
+	}
+	
 	
 	/**
 	 * Get the host name that is performing the execution 
@@ -0,0 +1,231 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Keeps track of the derived objects (for example the submatrix of the data matrix for a
+ * group of samples) that tasks have left in the R workspace of one RComputeConnection, so
+ * a later task on the same connection that needs the same object can use it instead of
+ * creating it again.  Objects are keyed by the kind of object, the data file and a hash of
+ * the ID sets used to create them.
+ *
+ * The estimated size of the kept objects is limited to a budget.  When an object is added
+ * that takes the total over the budget the least recently used objects are evicted and must
+ * be removed from the workspace by the caller.  All objects are forgotten when a different
+ * data file is loaded.
+ *
+ * Not thread safe, a connection is only used by one task at a time.
+ *
+ * @see gov.nih.nci.caintegrator.analysis.server.RComputeConnection#getWorkspaceObjects()
+ *
+ * @author caIntegrator Team
+ *
+ */
+public class RWorkspaceObjects {
+
+	private static final String NAME_PREFIX = ".ws";
+
+	private long maxBytes;
+
+	private long totalBytes = 0L;
+
+	private int nextNameNumber = 1;
+
+	private LinkedHashMap<String, WorkspaceObject> objects = new LinkedHashMap<String, WorkspaceObject>(16, 0.75f, true);
+
+	private long hits = 0L;
+	private long misses = 0L;
+
+	/**
+	 * @param maxBytes the maximum estimated size of the kept objects, 0 to keep no objects
+	 */
+	public RWorkspaceObjects(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Get the key of an object.
+	 * @param kind the kind of object, for example the function used to create it
+	 * @param dataFileName the data file the object was derived from
+	 * @param idSets the ID sets the object was created from, each set is sorted so the key does not
+	 * depend on the order of the IDs
+	 * @return the key
+	 */
+	public static String getKey(String kind, String dataFileName, String[]... idSets) {
+		StringBuffer sb = new StringBuffer();
+		sb.append(kind).append(':').append(dataFileName);
+		if (idSets.length > 0) {
+			sb.append(':').append(getHash(idSets));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Get the R name of an object that is in the workspace and mark it as recently used.
+	 * @param key
+	 * @return the R name or null if the object is not in the workspace
+	 */
+	public String get(String key) {
+		WorkspaceObject object = objects.get(key);
+		if (object == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return object.rName;
+	}
+
+	/**
+	 * Get a new R name for an object that is about to be created.
+	 * @return a name that is not used by any kept object
+	 */
+	public String newName() {
+		return NAME_PREFIX + (nextNameNumber++);
+	}
+
+	/**
+	 * Record that an object has been created.
+	 * @param key
+	 * @param rName
+	 * @param estimatedBytes
+	 * @return the R names of the objects that were evicted to stay within the budget, including
+	 * the new object if it does not fit in the budget on its own
+	 */
+	public List<String> put(String key, String rName, long estimatedBytes) {
+		List<String> evicted = new ArrayList<String>();
+		WorkspaceObject old = objects.remove(key);
+		if (old != null) {
+			totalBytes -= old.estimatedBytes;
+			if (!old.rName.equals(rName)) {
+				evicted.add(old.rName);
+			}
+		}
+		if (estimatedBytes > maxBytes) {
+			evicted.add(rName);
+			return evicted;
+		}
+		objects.put(key, new WorkspaceObject(rName, estimatedBytes));
+		totalBytes += estimatedBytes;
+		for (Iterator<WorkspaceObject> i = objects.values().iterator(); (totalBytes > maxBytes) && i.hasNext(); ) {
+			WorkspaceObject eldest = i.next();
+			i.remove();
+			totalBytes -= eldest.estimatedBytes;
+			evicted.add(eldest.rName);
+		}
+		return evicted;
+	}
+
+	/**
+	 * Forget every object, for example because a different data file was loaded.
+	 * @return the R names of the objects that were kept
+	 */
+	public List<String> clear() {
+		List<String> names = new ArrayList<String>();
+		for (WorkspaceObject object : objects.values()) {
+			names.add(object.rName);
+		}
+		objects.clear();
+		totalBytes = 0L;
+		return names;
+	}
+
+	/**
+	 * Get the R command that removes objects from the workspace.
+	 * @param rNames
+	 * @return the command or null if there are no objects to remove
+	 */
+	public static String getRemoveCommand(List<String> rNames) {
+		if (rNames.isEmpty()) {
+			return null;
+		}
+		StringBuffer sb = new StringBuffer("rm(list=c(");
+		for (Iterator<String> i = rNames.iterator(); i.hasNext(); ) {
+			sb.append(RScript.quote(i.next()));
+			if (i.hasNext()) {
+				sb.append(",");
+			}
+		}
+		sb.append("))");
+		return sb.toString();
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public long getTotalBytes() {
+		return totalBytes;
+	}
+
+	public int size() {
+		return objects.size();
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public String toString() {
+		return "RWorkspaceObjects objects=" + objects.size() + " totalBytes=" + totalBytes + " maxBytes=" + maxBytes +
+		       " hits=" + hits + " misses=" + misses;
+	}
+
+	private static String getHash(String[][] idSets) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for (String[] idSet : idSets) {
+				String[] ids = idSet.clone();
+				Arrays.sort(ids);
+				for (String id : ids) {
+					digest.update(id.getBytes("UTF-8"));
+					digest.update((byte) 0);
+				}
+				//separate the sets so moving an ID from one set to the next changes the hash
+				digest.update((byte) 1);
+			}
+			byte[] hash = digest.digest();
+			StringBuffer sb = new StringBuffer(hash.length * 2);
+			for (byte b : hash) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+				sb.append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.toString();
+		}
+		catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException("SHA-256 not available", ex);
+		}
+		catch (UnsupportedEncodingException ex) {
+			throw new IllegalStateException("UTF-8 not available", ex);
+		}
+	}
+
+	private static class WorkspaceObject {
+
+		private String rName;
+
+		private long estimatedBytes;
+
+		private WorkspaceObject(String rName, long estimatedBytes) {
+			this.rName = rName;
+			this.estimatedBytes = estimatedBytes;
+		}
+	}
+}
@@ -0,0 +1,176 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import gov.nih.nci.caintegrator.exceptions.AnalysisServerException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the per-reporter loop of the Java statistics engines in parallel.  The reporters
+ * (rows) are split into blocks of BLOCK_SIZE rows and a small number of workers take blocks
+ * until none are left, so a worker allocates its scratch buffers once and not once per row.
+ * The calling compute thread is one of the workers, so a computation always progresses even
+ * when the shared pool is busy with the computations of other compute threads.
+ *
+ * @author caIntegrator Team
+ *
+ */
+public class ReporterBlockExecutor {
+
+	/**
+	 * The number of reporters handed to a worker at a time.
+	 */
+	public static final int BLOCK_SIZE = 512;
+
+	private static int numThreads = Runtime.getRuntime().availableProcessors();
+
+	private static ExecutorService pool = null;
+
+	private static Logger logger = Logger.getLogger(ReporterBlockExecutor.class);
+
+	/**
+	 * Computes the statistics of the reporters of one block at a time.  A worker is only used
+	 * by one thread.
+	 */
+	public interface Worker {
+
+		/**
+		 * @param fromRow the first row of the block
+		 * @param toRow one past the last row of the block
+		 */
+		void compute(int fromRow, int toRow);
+	}
+
+	/**
+	 * Creates the workers of one computation.
+	 */
+	public interface WorkerFactory {
+
+		Worker newWorker();
+	}
+
+	private ReporterBlockExecutor() {
+	}
+
+	/**
+	 * Set the number of threads used for one computation, including the calling thread.
+	 * The shared pool is created by the first computation, so this must be called before then.
+	 * @param numThreads
+	 */
+	public static synchronized void setNumThreads(int numThreads) {
+		ReporterBlockExecutor.numThreads = Math.max(1, numThreads);
+	}
+
+	public static synchronized int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * Compute rows 0 to numRows - 1 and return when all are done.
+	 * @param numRows
+	 * @param factory
+	 * @throws AnalysisServerException if a worker fails or the calling thread is interrupted
+	 */
+	public static void run(int numRows, WorkerFactory factory) throws AnalysisServerException {
+		final int numBlocks = (numRows + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		int numWorkers = Math.min(getNumThreads(), numBlocks);
+		if (numWorkers <= 1) {
+			if (numRows > 0) {
+				factory.newWorker().compute(0, numRows);
+			}
+			return;
+		}
+
+		final int rows = numRows;
+		final AtomicInteger nextBlock = new AtomicInteger();
+		ExecutorService executor = getPool();
+		List<Future<Object>> futures = new ArrayList<Future<Object>>(numWorkers - 1);
+		for (int i = 1; i < numWorkers; i++) {
+			futures.add(executor.submit(new BlockCallable(factory.newWorker(), nextBlock, numBlocks, rows)));
+		}
+		try {
+			new BlockCallable(factory.newWorker(), nextBlock, numBlocks, rows).call();
+			for (Future<Object> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException ex) {
+			cancel(futures);
+			Thread.currentThread().interrupt();
+			throw new AnalysisServerException("Computation interrupted.");
+		} catch (ExecutionException ex) {
+			cancel(futures);
+			logger.error("Reporter block worker failed", ex.getCause());
+			throw new AnalysisServerException("Internal Error. Computation failed: " + ex.getCause());
+		} catch (RuntimeException ex) {
+			cancel(futures);
+			logger.error("Reporter block worker failed", ex);
+			throw new AnalysisServerException("Internal Error. Computation failed: " + ex);
+		}
+	}
+
+	private static void cancel(List<Future<Object>> futures) {
+		for (Future<Object> future : futures) {
+			future.cancel(true);
+		}
+	}
+
+	private static synchronized ExecutorService getPool() {
+		if (pool == null) {
+			//the calling thread is the remaining worker
+			pool = Executors.newFixedThreadPool(Math.max(1, numThreads - 1), new ThreadFactory() {
+				private AtomicInteger threadNumber = new AtomicInteger();
+
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ReporterBlockWorker-" + threadNumber.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			logger.info("Created reporter block pool numThreads=" + numThreads);
+		}
+		return pool;
+	}
+
+	private static class BlockCallable implements Callable<Object> {
+
+		private Worker worker;
+
+		private AtomicInteger nextBlock;
+
+		private int numBlocks;
+
+		private int numRows;
+
+		private BlockCallable(Worker worker, AtomicInteger nextBlock, int numBlocks, int numRows) {
+			this.worker = worker;
+			this.nextBlock = nextBlock;
+			this.numBlocks = numBlocks;
+			this.numRows = numRows;
+		}
+
+		public Object call() {
+			int block;
+			while (((block = nextBlock.getAndIncrement()) < numBlocks) && (!Thread.currentThread().isInterrupted())) {
+				int fromRow = block * BLOCK_SIZE;
+				worker.compute(fromRow, Math.min(numRows, fromRow + BLOCK_SIZE));
+			}
+			return null;
+		}
+	}
+}
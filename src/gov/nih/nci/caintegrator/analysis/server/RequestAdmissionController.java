@@ -0,0 +1,195 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Bounds the number of analysis requests, and the estimated memory they use, that
+ * are held in the server waiting for or undergoing execution.  When either limit is reached
+ * the listener is told to pause consumption of requests so that the remaining requests stay on the 
+ * JMS queue where other server instances can pick them up.  Consumption is resumed 
+ * once the pending requests drain below the resume level.
+ * 
+ * The limits are soft. Requests that were already delivered when consumption was paused are
+ * still admitted.
+ * 
+ * @author caIntegrator Team
+ *
+ */
+public class RequestAdmissionController {
+
+	private int maxPendingRequests;
+	
+	private long maxPendingBytes;
+	
+	private int resumePercent;
+	
+	private RequestAdmissionListener listener;
+	
+	private int numPendingRequests = 0;
+	
+	private long pendingBytes = 0L;
+	
+	private boolean paused = false;
+	
+	//the estimated size of each pending task's request
+	private Map<AnalysisTask, Long> requestSizes = new IdentityHashMap<AnalysisTask, Long>();
+	
+	private static Logger logger = Logger.getLogger(RequestAdmissionController.class);
+	
+	/**
+	 * 
+	 * @param maxPendingRequests the number of pending requests at which consumption is paused, 0 means no limit
+	 * @param maxPendingBytes the estimated size of pending requests at which consumption is paused, 0 means no limit
+	 * @param resumePercent consumption resumes when the pending requests are at or below this percent of the limits
+	 * @param listener the object that pauses and resumes consumption
+	 */
+	public RequestAdmissionController(int maxPendingRequests, long maxPendingBytes, int resumePercent, RequestAdmissionListener listener) {
+		this.maxPendingRequests = maxPendingRequests;
+		this.maxPendingBytes = maxPendingBytes;
+		this.resumePercent = Math.max(0, Math.min(100, resumePercent));
+		this.listener = listener;
+	}
+	
+	/**
+	 * @return true if either limit is set
+	 */
+	public boolean isEnabled() {
+		return (maxPendingRequests > 0) || (maxPendingBytes > 0L);
+	}
+	
+	/**
+	 * Record that a task has been accepted for execution.  Pauses consumption if a limit has been reached.
+	 * @param task
+	 */
+	public void requestAdmitted(AnalysisTask task) {
+		if (!isEnabled()) {
+			return;
+		}
+		
+		long requestSize = 0L;
+		if (maxPendingBytes > 0L) {
+			requestSize = estimateSize(task.getRequest());
+		}
+		
+		boolean pause = false;
+		synchronized (this) {
+			requestSizes.put(task, requestSize);
+			numPendingRequests++;
+			pendingBytes += requestSize;
+			if ((!paused) && (isOverLimit())) {
+				paused = true;
+				pause = true;
+			}
+		}
+		
+		if (pause) {
+			logger.info("Pausing request consumption numPendingRequests=" + numPendingRequests + " pendingBytes=" + pendingBytes);
+			listener.pauseRequestConsumption();
+		}
+	}
+	
+	/**
+	 * Record that a task has finished executing.  Resumes consumption if the pending requests 
+	 * have drained to the resume level.
+	 * @param task
+	 */
+	public void requestCompleted(AnalysisTask task) {
+		if (!isEnabled()) {
+			return;
+		}
+		
+		boolean resume = false;
+		synchronized (this) {
+			Long requestSize = requestSizes.remove(task);
+			if (requestSize == null) {
+				//not admitted through this controller (e.g. a sub task of a compound request)
+				return;
+			}
+			numPendingRequests--;
+			pendingBytes -= requestSize.longValue();
+			if ((paused) && (isAtResumeLevel())) {
+				paused = false;
+				resume = true;
+			}
+		}
+		
+		if (resume) {
+			logger.info("Resuming request consumption numPendingRequests=" + numPendingRequests + " pendingBytes=" + pendingBytes);
+			listener.resumeRequestConsumption();
+		}
+	}
+	
+	public synchronized boolean isPaused() {
+		return paused;
+	}
+	
+	public synchronized int getNumPendingRequests() {
+		return numPendingRequests;
+	}
+	
+	public synchronized long getPendingBytes() {
+		return pendingBytes;
+	}
+	
+	private boolean isOverLimit() {
+		return ((maxPendingRequests > 0) && (numPendingRequests >= maxPendingRequests)) ||
+		       ((maxPendingBytes > 0L) && (pendingBytes >= maxPendingBytes));
+	}
+	
+	private boolean isAtResumeLevel() {
+		return ((maxPendingRequests <= 0) || (numPendingRequests * 100L <= (long) maxPendingRequests * resumePercent)) &&
+		       ((maxPendingBytes <= 0L) || (pendingBytes * 100L <= maxPendingBytes * resumePercent));
+	}
+	
+	/**
+	 * Estimate the memory used by a request from its serialized size.
+	 * @param obj
+	 * @return the number of bytes in the serialized form of the object
+	 */
+	public static long estimateSize(Serializable obj) {
+		CountingOutputStream counter = new CountingOutputStream();
+		try {
+			ObjectOutputStream out = new ObjectOutputStream(counter);
+			out.writeObject(obj);
+			out.close();
+		}
+		catch (IOException ex) {
+			logger.warn("Could not estimate request size msg=" + ex.getMessage());
+		}
+		return counter.getCount();
+	}
+	
+	/**
+	 * An output stream that discards the bytes written to it and only counts them.
+	 */
+	private static class CountingOutputStream extends OutputStream {
+		
+		private long count = 0L;
+		
+		public void write(int b) {
+			count++;
+		}
+		
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+		
+		public long getCount() {
+			return count;
+		}
+	}
+}
@@ -0,0 +1,24 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+/**
+ * Classes that implement this interface can stop and restart the consumption of
+ * analysis requests when told to by a RequestAdmissionController.
+ * 
+ * @see gov.nih.nci.caintegrator.analysis.server.RequestAdmissionController
+ * 
+ * @author caIntegrator Team
+ *
+ */
+public interface RequestAdmissionListener {
+
+	public void pauseRequestConsumption();
+
+	public void resumeRequestConsumption();
+}
@@ -0,0 +1,123 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import gov.nih.nci.caintegrator.analysis.messaging.AnalysisResult;
+import gov.nih.nci.caintegrator.exceptions.AnalysisServerException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Lets requests for an analysis that is already queued or running share its result instead of being 
+ * computed again. Requests are matched by their CanonicalRequestKey. When the running task completes
+ * each attached request is sent a copy of the result stamped with its own sessionId and taskId.
+ * 
+ * @see gov.nih.nci.caintegrator.analysis.server.CanonicalRequestKey
+ * 
+ * @author caIntegrator Team
+ *
+ */
+public class RequestCoalescer {
+
+	private AnalysisResultSender sender;
+	
+	//the running task for each key
+	private Map<String, AnalysisTask> runningTasks = new HashMap<String, AnalysisTask>();
+	
+	//the key and attached duplicate tasks of each running task
+	private Map<AnalysisTask, String> runningTaskKeys = new IdentityHashMap<AnalysisTask, String>();
+	private Map<AnalysisTask, List<AnalysisTask>> attachedTasks = new IdentityHashMap<AnalysisTask, List<AnalysisTask>>();
+	
+	private long numCoalesced = 0L;
+	
+	private static Logger logger = Logger.getLogger(RequestCoalescer.class);
+	
+	public RequestCoalescer(AnalysisResultSender sender) {
+		this.sender = sender;
+	}
+	
+	/**
+	 * Attach a task to an identical running task if there is one, otherwise register the task as running.
+	 * @param task
+	 * @return true if the task was attached and must not be executed
+	 */
+	public synchronized boolean attachOrRegister(AnalysisTask task) {
+		String key = CanonicalRequestKey.getKey(task.getRequest());
+		AnalysisTask runningTask = runningTasks.get(key);
+		if (runningTask != null) {
+			attachedTasks.get(runningTask).add(task);
+			numCoalesced++;
+			logger.info("Coalesced request=" + task.getRequest() + " with running request=" + runningTask.getRequest() + " numCoalesced=" + numCoalesced);
+			return true;
+		}
+		runningTasks.put(key, task);
+		runningTaskKeys.put(task, key);
+		attachedTasks.put(task, new ArrayList<AnalysisTask>());
+		return false;
+	}
+	
+	/**
+	 * Send copies of the result, or of the exception, of a completed task to the attached tasks.
+	 * Requests that arrive after this call are computed again.
+	 * @param task
+	 */
+	public void requestCompleted(AnalysisTask task) {
+		List<AnalysisTask> attached;
+		synchronized (this) {
+			String key = runningTaskKeys.remove(task);
+			if (key == null) {
+				return;
+			}
+			runningTasks.remove(key);
+			attached = attachedTasks.remove(task);
+		}
+		
+		if (attached.isEmpty()) {
+			return;
+		}
+		
+		AnalysisServerException taskException = task.getException();
+		byte[] serializedResult = null;
+		if (taskException == null) {
+			try {
+				//serialize once, each attached request gets its own copy
+				serializedResult = ResultCopier.serialize(task.getResult());
+			}
+			catch (AnalysisServerException ex) {
+				taskException = ex;
+			}
+		}
+		
+		for (AnalysisTask attachedTask : attached) {
+			if (taskException != null) {
+				sender.sendException(ResultCopier.copyException(taskException, attachedTask.getRequest()), attachedTask.getJMSDestination());
+				continue;
+			}
+			try {
+				AnalysisResult copy = ResultCopier.copyResult(serializedResult, attachedTask.getRequest());
+				sender.sendResult(copy, attachedTask.getJMSDestination());
+			}
+			catch (AnalysisServerException ex) {
+				sender.sendException(ResultCopier.copyException(ex, attachedTask.getRequest()), attachedTask.getJMSDestination());
+			}
+		}
+	}
+	
+	/**
+	 * @return the number of requests that were answered with the result of an identical running request
+	 */
+	public synchronized long getNumCoalesced() {
+		return numCoalesced;
+	}
+}
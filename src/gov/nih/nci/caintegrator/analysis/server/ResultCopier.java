@@ -0,0 +1,105 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import gov.nih.nci.caintegrator.analysis.messaging.AnalysisRequest;
+import gov.nih.nci.caintegrator.analysis.messaging.AnalysisResult;
+import gov.nih.nci.caintegrator.analysis.messaging.CompoundAnalysisRequest;
+import gov.nih.nci.caintegrator.analysis.messaging.CompoundAnalysisResult;
+import gov.nih.nci.caintegrator.exceptions.AnalysisServerException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Copies analysis results computed for one request so they can be returned for another
+ * request that asked for the same analysis. The copy is stamped with the sessionId and taskId 
+ * of the other request.
+ * 
+ * @author caIntegrator Team
+ *
+ */
+public class ResultCopier {
+
+	private ResultCopier() {
+	}
+	
+	/**
+	 * Copy a result that has already been serialized.
+	 * @param serializedResult
+	 * @param request the request the copy is for
+	 * @return the result with the sessionId and taskId of the request
+	 * @throws AnalysisServerException if the result could not be read
+	 */
+	public static AnalysisResult copyResult(byte[] serializedResult, AnalysisRequest request) throws AnalysisServerException {
+		AnalysisResult copy = (AnalysisResult) deserialize(serializedResult);
+		stamp(copy, request);
+		return copy;
+	}
+	
+	/**
+	 * Copy an exception for a request.
+	 * @param ex
+	 * @param request the request the copy is for
+	 * @return an exception with the same message that names the request as the failed request
+	 */
+	public static AnalysisServerException copyException(AnalysisServerException ex, AnalysisRequest request) {
+		AnalysisServerException copy = new AnalysisServerException(ex.getMessage());
+		copy.setFailedRequest(request);
+		return copy;
+	}
+	
+	public static byte[] serialize(Serializable obj) throws AnalysisServerException {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(obj);
+			out.close();
+			return bytes.toByteArray();
+		}
+		catch (IOException ex) {
+			throw new AnalysisServerException("Could not copy result msg=" + ex.getMessage());
+		}
+	}
+	
+	private static Object deserialize(byte[] bytes) throws AnalysisServerException {
+		try {
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+			Object obj = in.readObject();
+			in.close();
+			return obj;
+		}
+		catch (IOException ex) {
+			throw new AnalysisServerException("Could not copy result msg=" + ex.getMessage());
+		}
+		catch (ClassNotFoundException ex) {
+			throw new AnalysisServerException("Could not copy result msg=" + ex.getMessage());
+		}
+	}
+	
+	/**
+	 * Set the sessionId and taskId of the result, and of the results of a compound request, 
+	 * to those of the request.
+	 */
+	private static void stamp(AnalysisResult result, AnalysisRequest request) {
+		result.setSessionId(request.getSessionId());
+		result.setTaskId(request.getTaskId());
+		if ((result instanceof CompoundAnalysisResult) && (request instanceof CompoundAnalysisRequest)) {
+			List<AnalysisResult> results = ((CompoundAnalysisResult) result).getResults();
+			List<AnalysisRequest> requests = ((CompoundAnalysisRequest) request).getRequests();
+			for (int i = 0; (i < results.size()) && (i < requests.size()); i++) {
+				stamp(results.get(i), requests.get(i));
+			}
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An Rserve host and port that compute connections can be opened to.  The endpoint keeps
+ * track of the connections open to it, the tasks running on those connections and the data
+ * files they have loaded so that new connections and tasks can be placed on the least loaded endpoint.
+ * 
+ * @see gov.nih.nci.caintegrator.analysis.server.RserveEndpointPool
+ * 
+ * @author caIntegrator Team
+ *
+ */
+public class RserveEndpoint {
+
+	private String host;
+	
+	private int port;
+	
+	private int weight;
+	
+	private int numConnections = 0;
+	
+	private int numActiveTasks = 0;
+	
+	//number of connections on this endpoint with each data file loaded
+	private Map<String, Integer> loadedDataFiles = new HashMap<String, Integer>();
+	
+	//the time before which no connections will be attempted after a failure
+	private long retryTime = 0L;
+	
+	public RserveEndpoint(String host, int port, int weight) {
+		if (weight < 1) {
+			throw new IllegalArgumentException("Weight must be at least 1 host=" + host + " weight=" + weight);
+		}
+		this.host = host;
+		this.port = port;
+		this.weight = weight;
+	}
+	
+	/**
+	 * Parse an endpoint of the form host[:port[:weight]].
+	 * @param endpoint
+	 * @param defaultPort
+	 * @return the endpoint
+	 */
+	public static RserveEndpoint parse(String endpoint, int defaultPort) {
+		String[] parts = endpoint.trim().split(":");
+		int port = (parts.length > 1) ? Integer.parseInt(parts[1].trim()) : defaultPort;
+		int weight = (parts.length > 2) ? Integer.parseInt(parts[2].trim()) : 1;
+		return new RserveEndpoint(parts[0].trim(), port, weight);
+	}
+	
+	public String getHost() {
+		return host;
+	}
+	
+	public int getPort() {
+		return port;
+	}
+	
+	public int getWeight() {
+		return weight;
+	}
+	
+	public synchronized int getNumConnections() {
+		return numConnections;
+	}
+	
+	public synchronized int getNumActiveTasks() {
+		return numActiveTasks;
+	}
+	
+	/**
+	 * Get the load of the endpoint relative to its weight.  Used to choose where to place
+	 * new connections.
+	 * @return (connections + active tasks) / weight
+	 */
+	public synchronized double getConnectionLoad() {
+		return (double) (numConnections + numActiveTasks) / weight;
+	}
+	
+	/**
+	 * Get the running tasks relative to the weight of the endpoint.
+	 * @return active tasks / weight
+	 */
+	public synchronized double getTaskLoad() {
+		return (double) numActiveTasks / weight;
+	}
+	
+	/**
+	 * @param dataFileName
+	 * @return true if a connection on this endpoint has the data file loaded
+	 */
+	public synchronized boolean hasDataFileLoaded(String dataFileName) {
+		return (dataFileName != null) && (loadedDataFiles.containsKey(dataFileName));
+	}
+	
+	public synchronized boolean isAvailable(long now) {
+		return now >= retryTime;
+	}
+	
+	/**
+	 * Do not open connections to this endpoint until the retry delay has passed.
+	 * @param retryDelayMS
+	 */
+	public synchronized void markFailed(long retryDelayMS) {
+		retryTime = System.currentTimeMillis() + retryDelayMS;
+	}
+	
+	public synchronized void connectionOpened() {
+		numConnections++;
+		retryTime = 0L;
+	}
+	
+	public synchronized void connectionClosed(String dataFileName) {
+		numConnections--;
+		dataFileUnloaded(dataFileName);
+	}
+	
+	public synchronized void taskStarted() {
+		numActiveTasks++;
+	}
+	
+	public synchronized void taskFinished() {
+		numActiveTasks--;
+	}
+	
+	/**
+	 * Record that a connection on this endpoint switched data files.
+	 * @param oldDataFileName
+	 * @param newDataFileName
+	 */
+	public synchronized void dataFileChanged(String oldDataFileName, String newDataFileName) {
+		dataFileUnloaded(oldDataFileName);
+		if (newDataFileName != null) {
+			Integer count = loadedDataFiles.get(newDataFileName);
+			loadedDataFiles.put(newDataFileName, (count == null) ? 1 : count.intValue() + 1);
+		}
+	}
+	
+	private void dataFileUnloaded(String dataFileName) {
+		if (dataFileName == null) {
+			return;
+		}
+		Integer count = loadedDataFiles.get(dataFileName);
+		if ((count == null) || (count.intValue() <= 1)) {
+			loadedDataFiles.remove(dataFileName);
+		}
+		else {
+			loadedDataFiles.put(dataFileName, count.intValue() - 1);
+		}
+	}
+	
+	public String toString() {
+		return host + ":" + port;
+	}
+}
@@ -0,0 +1,130 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.rosuda.JRclient.RSrvException;
+
+/**
+ * The set of Rserve endpoints that compute connections are opened to. New connections are 
+ * placed on the available endpoint with the lowest load relative to its weight, preferring an
+ * endpoint that already has the connection's data file loaded since the file is then likely
+ * to be in the host's file cache.  An endpoint that fails connection setup is skipped 
+ * until the retry delay has passed.
+ * 
+ * @see gov.nih.nci.caintegrator.analysis.server.RserveEndpoint
+ * 
+ * @author caIntegrator Team
+ *
+ */
+public class RserveEndpointPool {
+
+	private List<RserveEndpoint> endpoints;
+	
+	private long failedEndpointRetryMS = 60000L;
+	
+	private static Logger logger = Logger.getLogger(RserveEndpointPool.class);
+	
+	public RserveEndpointPool(List<RserveEndpoint> endpoints) {
+		if (endpoints.isEmpty()) {
+			throw new IllegalArgumentException("At least one Rserve endpoint is required");
+		}
+		this.endpoints = Collections.unmodifiableList(new ArrayList<RserveEndpoint>(endpoints));
+	}
+	
+	public RserveEndpointPool(String rServeIp, int rServePort) {
+		this(Collections.singletonList(new RserveEndpoint(rServeIp, rServePort, 1)));
+	}
+	
+	/**
+	 * Parse a comma separated list of endpoints of the form host[:port[:weight]].
+	 * @param endpointList
+	 * @param defaultPort
+	 * @return the endpoint pool
+	 */
+	public static RserveEndpointPool parse(String endpointList, int defaultPort) {
+		List<RserveEndpoint> endpoints = new ArrayList<RserveEndpoint>();
+		for (String endpoint : endpointList.split(",")) {
+			if (endpoint.trim().length() > 0) {
+				endpoints.add(RserveEndpoint.parse(endpoint, defaultPort));
+			}
+		}
+		return new RserveEndpointPool(endpoints);
+	}
+	
+	public List<RserveEndpoint> getEndpoints() {
+		return endpoints;
+	}
+	
+	public void setFailedEndpointRetryMS(long failedEndpointRetryMS) {
+		this.failedEndpointRetryMS = failedEndpointRetryMS;
+	}
+	
+	/**
+	 * Open a connection and source the R initialization file on the best endpoint.  If 
+	 * connection setup fails the endpoint is marked as failed and the next best endpoint is tried.
+	 * 
+	 * @param rInitializationFileName
+	 * @param rDataFileDirectory
+	 * @param preferredDataFileName the data file the connection will load first, may be null
+	 * @return the initialized connection
+	 * @throws RSrvException if no endpoint could be connected to
+	 */
+	public RComputeConnection openRComputeConnection(String rInitializationFileName, String rDataFileDirectory, String preferredDataFileName) throws RSrvException {
+		RSrvException lastException = null;
+		List<RserveEndpoint> tried = new ArrayList<RserveEndpoint>();
+		RserveEndpoint endpoint;
+		while ((endpoint = chooseEndpoint(preferredDataFileName, tried)) != null) {
+			tried.add(endpoint);
+			try {
+				RComputeConnection connection = RComputeConnectionFactory.createRComputeConnection(endpoint.getHost(), endpoint.getPort(), 
+						                          rInitializationFileName, rDataFileDirectory);
+				connection.setEndpoint(endpoint);
+				logger.info("Opened R connection to endpoint=" + endpoint + " numConnections=" + endpoint.getNumConnections());
+				return connection;
+			}
+			catch (RSrvException ex) {
+				logger.error("Could not open R connection to endpoint=" + endpoint + " will retry in " + failedEndpointRetryMS + " ms. msg=" + ex.getMessage());
+				endpoint.markFailed(failedEndpointRetryMS);
+				lastException = ex;
+			}
+		}
+		if (lastException == null) {
+			throw new RSrvException(null, "No Rserve endpoint available, all endpoints failed recently");
+		}
+		throw lastException;
+	}
+	
+	/**
+	 * Choose the available endpoint with the lowest connection load. An endpoint that 
+	 * already has the data file loaded counts as having half a connection less.
+	 */
+	private RserveEndpoint chooseEndpoint(String preferredDataFileName, List<RserveEndpoint> exclude) {
+		long now = System.currentTimeMillis();
+		RserveEndpoint best = null;
+		double bestLoad = Double.MAX_VALUE;
+		for (RserveEndpoint endpoint : endpoints) {
+			if ((exclude.contains(endpoint)) || (!endpoint.isAvailable(now))) {
+				continue;
+			}
+			double load = endpoint.getConnectionLoad();
+			if (endpoint.hasDataFileLoaded(preferredDataFileName)) {
+				load -= 0.5 / endpoint.getWeight();
+			}
+			if (load < bestLoad) {
+				best = endpoint;
+				bestLoad = load;
+			}
+		}
+		return best;
+	}
+}
@@ -0,0 +1,116 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import gov.nih.nci.caintegrator.exceptions.AnalysisServerException;
+
+/**
+ * Computes the two sample t-test of every reporter of a block in Java.  With equal variances
+ * the result is the same as myttest in ttest.R: the group sizes, means and variances only
+ * count the values that are not NA, the degrees of freedom are n1 + n2 - 2 and the p-value is
+ * NA unless n1 + n2 > 2.  With unequal variances the Welch test is computed, as t.test does
+ * with var.equal=FALSE, and the p-value is NA unless both groups have two values.
+ *
+ * The result has the columns of the data frame myttest returns: mean1, mean2, mean.dif,
+ * fc, pval, std1 and std2.
+ *
+ * @see gov.nih.nci.caintegrator.analysis.server.ClassComparisonEngine
+ *
+ * @author caIntegrator Team
+ *
+ */
+public class TTestEngine implements ClassComparisonEngine {
+
+	private boolean equalVariance;
+
+	/**
+	 * @param equalVariance true for the pooled variance test of myttest, false for the Welch test
+	 */
+	public TTestEngine(boolean equalVariance) {
+		this.equalVariance = equalVariance;
+	}
+
+	public boolean isEqualVariance() {
+		return equalVariance;
+	}
+
+	public double[][] compute(final double[] values, final int numRows, final int numColumns, final int numGroup1Columns) throws AnalysisServerException {
+		if ((numGroup1Columns < 1) || (numGroup1Columns >= numColumns) || (values.length != numRows * numColumns)) {
+			throw new AnalysisServerException("Internal Error. t-test block has " + values.length + " values for " + numRows +
+					                          " rows and " + numColumns + " columns with group1 columns=" + numGroup1Columns);
+		}
+		final double[][] result = new double[NUM_COLUMNS][numRows];
+		final ReporterBlockExecutor.Worker worker = new ReporterBlockExecutor.Worker() {
+			public void compute(int fromRow, int toRow) {
+				for (int row = fromRow; row < toRow; row++) {
+					computeRow(values, row * numColumns, numGroup1Columns, numColumns, row, result);
+				}
+			}
+		};
+		//the worker keeps no state so it is shared
+		ReporterBlockExecutor.run(numRows, new ReporterBlockExecutor.WorkerFactory() {
+			public ReporterBlockExecutor.Worker newWorker() {
+				return worker;
+			}
+		});
+		return result;
+	}
+
+	private void computeRow(double[] values, int offset, int numGroup1Columns, int numColumns, int row, double[][] result) {
+		double sum1 = 0.0, sumSquares1 = 0.0, sum2 = 0.0, sumSquares2 = 0.0;
+		int n1 = 0, n2 = 0;
+		for (int i = 0; i < numGroup1Columns; i++) {
+			double value = values[offset + i];
+			if (!Double.isNaN(value)) {
+				n1++;
+				sum1 += value;
+				sumSquares1 += value * value;
+			}
+		}
+		for (int i = numGroup1Columns; i < numColumns; i++) {
+			double value = values[offset + i];
+			if (!Double.isNaN(value)) {
+				n2++;
+				sum2 += value;
+				sumSquares2 += value * value;
+			}
+		}
+
+		//the same one pass formulas as rowMeans and rowVars in myttest, giving NaN for too few values
+		double mean1 = sum1 / n1;
+		double mean2 = sum2 / n2;
+		double var1 = (sumSquares1 - sum1 * sum1 / n1) / (n1 - 1);
+		double var2 = (sumSquares2 - sum2 * sum2 / n2) / (n2 - 1);
+		double dif = mean1 - mean2;
+
+		double pvalue = Double.NaN;
+		if (equalVariance) {
+			if (n1 + n2 > 2) {
+				double df = n1 + n2 - 2;
+				double pooled = (var1 * (n1 - 1) + var2 * (n2 - 1)) / df;
+				double sd = Math.sqrt(pooled * ((double) (n1 + n2) / ((double) n1 * n2)));
+				pvalue = Distributions.tTwoTailedPvalue(dif / sd, df);
+			}
+		}
+		else if ((n1 > 1) && (n2 > 1)) {
+			double se1 = var1 / n1;
+			double se2 = var2 / n2;
+			double se = se1 + se2;
+			double df = se * se / (se1 * se1 / (n1 - 1) + se2 * se2 / (n2 - 1));
+			pvalue = Distributions.tTwoTailedPvalue(dif / Math.sqrt(se), df);
+		}
+
+		result[MEAN1][row] = mean1;
+		result[MEAN2][row] = mean2;
+		result[MEAN_DIF][row] = dif;
+		result[FC][row] = Math.pow(2.0, Math.abs(dif));
+		result[PVAL][row] = pvalue;
+		result[STD1][row] = Math.sqrt(var1);
+		result[STD2][row] = Math.sqrt(var2);
+	}
+}
@@ -0,0 +1,37 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+/**
+ * The cost classes used to schedule analysis tasks. Each class has its own queue in the
+ * AnalysisTaskQueue and the queues are served using weighted fair scheduling so that cheap
+ * interactive lookups do not wait behind long running clustering or GLM jobs.
+ *
+ * @see gov.nih.nci.caintegrator.analysis.server.AnalysisTaskQueue
+ *
+ * @author caIntegrator Team
+ *
+ */
+public enum TaskCostClass {
+
+	/**
+	 * Sub-second lookups made while a user waits on a page (expression, copy number and correlation lookups).
+	 */
+	INTERACTIVE,
+
+	/**
+	 * Statistical tests such as class comparison, F-test and PCA.
+	 */
+	STANDARD,
+
+	/**
+	 * Long running jobs such as hierarchical clustering, GLM and compound requests.
+	 */
+	BATCH
+
+}
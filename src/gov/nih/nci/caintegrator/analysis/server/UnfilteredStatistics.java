@@ -0,0 +1,106 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import gov.nih.nci.caintegrator.enumeration.MultiGroupComparisonAdjustmentType;
+import gov.nih.nci.caintegrator.exceptions.AnalysisServerException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The per-reporter statistics of a class comparison or F-test before any p-value adjustment
+ * or filtering. Besides the fold change and raw p-value each reporter has a set of task
+ * specific values (group means, standard deviations) stored as columns.
+ *
+ * The adjustment and filtering done here give the same answer as the R functions
+ * adjustP.Benjamini.Hochberg, adjustP.Bonferroni, mydiferentiallygenes and
+ * mydiferentiallygenes.adjustP: reporters without a p-value are dropped and the
+ * adjustment, done by PValueAdjuster, counts only the reporters that have a p-value.
+ *
+ * @author caIntegrator Team
+ *
+ */
+public class UnfilteredStatistics {
+
+	private String[] reporterIds;
+
+	private double[] foldChanges;
+
+	private double[] pvalues;
+
+	//columns[column][reporter]
+	private double[][] columns;
+
+	/**
+	 *
+	 * @param reporterIds
+	 * @param foldChanges the fold changes the fold change threshold is applied to
+	 * @param pvalues the raw p-values, NaN for reporters without a p-value
+	 * @param columns the other per-reporter values indexed by column and then by reporter
+	 */
+	public UnfilteredStatistics(String[] reporterIds, double[] foldChanges, double[] pvalues, double[][] columns) {
+		this.reporterIds = reporterIds;
+		this.foldChanges = foldChanges;
+		this.pvalues = pvalues;
+		this.columns = columns;
+	}
+
+	public int size() {
+		return reporterIds.length;
+	}
+
+	public String getReporterId(int reporter) {
+		return reporterIds[reporter];
+	}
+
+	public double getFoldChange(int reporter) {
+		return foldChanges[reporter];
+	}
+
+	public double getValue(int column, int reporter) {
+		return columns[column][reporter];
+	}
+
+	public int getNumColumns() {
+		return columns.length;
+	}
+
+	/**
+	 * Adjust the raw p-values.
+	 * @param adjustmentType
+	 * @return the adjusted p-values, NaN for reporters without a p-value
+	 * @throws AnalysisServerException
+	 * @see PValueAdjuster#getMethod(MultiGroupComparisonAdjustmentType)
+	 */
+	public double[] getAdjustedPvalues(MultiGroupComparisonAdjustmentType adjustmentType) throws AnalysisServerException {
+		PValueAdjuster.Method method = PValueAdjuster.getMethod(adjustmentType);
+		if (method == null) {
+			throw new IllegalArgumentException("Unrecognized adjustment type=" + adjustmentType);
+		}
+		return PValueAdjuster.adjust(pvalues, method);
+	}
+
+	/**
+	 * Select the reporters that pass the thresholds.
+	 * @param foldChangeThreshold the minimum fold change
+	 * @param pvalueThreshold the maximum p-value
+	 * @param adjustedPvalues the p-values to apply the threshold to
+	 * @return the indexes of the reporters with a p-value that pass both thresholds, in reporter order
+	 */
+	public List<Integer> select(double foldChangeThreshold, double pvalueThreshold, double[] adjustedPvalues) {
+		List<Integer> selected = new ArrayList<Integer>();
+		for (int i = 0; i < reporterIds.length; i++) {
+			//comparisons with NaN are false so reporters without a p-value or fold change are dropped
+			if ((foldChanges[i] >= foldChangeThreshold) && (adjustedPvalues[i] <= pvalueThreshold)) {
+				selected.add(i);
+			}
+		}
+		return selected;
+	}
+}
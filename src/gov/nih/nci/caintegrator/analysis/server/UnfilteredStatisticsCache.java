@@ -0,0 +1,135 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import gov.nih.nci.caintegrator.analysis.messaging.AnalysisRequest;
+
+import java.util.LinkedHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A least recently used cache of the unfiltered statistics computed for recent class comparison
+ * and F-test requests.  Entries are keyed by the CanonicalRequestKey of the request with the
+ * fold change threshold, p-value threshold and adjustment type left out, so a request that
+ * differs from an earlier one only in those properties can be answered by re-adjusting and
+ * re-filtering the cached statistics in Java without running the test in R again.
+ * The key also names the test that computed the statistics, since the server can run
+ * a request's test in Java or in R and as a pooled variance or Welch t-test.
+ * Entries are not used once the request's data file changes.
+ *
+ * @see gov.nih.nci.caintegrator.analysis.server.UnfilteredStatistics
+ *
+ * @author caIntegrator Team
+ *
+ */
+public class UnfilteredStatisticsCache {
+
+	/**
+	 * The properties of ClassComparisonRequest and FTestRequest that only affect filtering.
+	 */
+	private static final String[] FILTER_PROPERTIES = { "foldChangeThreshold", "pvalueThreshold", "PValueThreshold",
+		"multiGroupComparisonAdjustmentType", "multiGrpComparisonAdjType" };
+
+	private String rDataFileDirectory;
+
+	private int maxEntries;
+
+	private LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+
+	private long hits = 0L;
+	private long misses = 0L;
+
+	private static Logger logger = Logger.getLogger(UnfilteredStatisticsCache.class);
+
+	/**
+	 *
+	 * @param rDataFileDirectory the directory the data files are loaded from
+	 * @param maxEntries the maximum number of sets of statistics to keep
+	 */
+	public UnfilteredStatisticsCache(String rDataFileDirectory, int maxEntries) {
+		this.rDataFileDirectory = rDataFileDirectory;
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Get the statistics computed for an earlier request that differed at most in its filtering properties.
+	 * @param request
+	 * @param test the test that would compute the statistics of the request
+	 * @return the statistics or null if there are none for the current version of the data file
+	 */
+	public UnfilteredStatistics get(AnalysisRequest request, String test) {
+		String key = getKey(request, test);
+		String dataFileVersion = AnalysisResultCache.getDataFileVersion(rDataFileDirectory, request.getDataFileName());
+		synchronized (this) {
+			CacheEntry entry = entries.get(key);
+			if ((entry != null) && (!entry.dataFileVersion.equals(dataFileVersion))) {
+				entries.remove(key);
+				entry = null;
+			}
+			if (entry == null) {
+				misses++;
+				return null;
+			}
+			hits++;
+			logger.info("Unfiltered statistics cache hit request=" + request + " hits=" + hits + " misses=" + misses);
+			return entry.statistics;
+		}
+	}
+
+	/**
+	 * Keep the statistics computed for a request.
+	 * @param request
+	 * @param test the test that computed the statistics
+	 * @param statistics
+	 */
+	public void put(AnalysisRequest request, String test, UnfilteredStatistics statistics) {
+		String key = getKey(request, test);
+		String dataFileVersion = AnalysisResultCache.getDataFileVersion(rDataFileDirectory, request.getDataFileName());
+		if (dataFileVersion == null) {
+			//entries for a data file of unknown version could never be invalidated
+			return;
+		}
+		CacheEntry entry = new CacheEntry(statistics, dataFileVersion);
+		synchronized (this) {
+			entries.put(key, entry);
+			while (entries.size() > maxEntries) {
+				String eldest = entries.keySet().iterator().next();
+				entries.remove(eldest);
+			}
+		}
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized int getNumEntries() {
+		return entries.size();
+	}
+
+	private String getKey(AnalysisRequest request, String test) {
+		return CanonicalRequestKey.getKey(request, FILTER_PROPERTIES) + "|" + test;
+	}
+
+	private static class CacheEntry {
+
+		private UnfilteredStatistics statistics;
+
+		private String dataFileVersion;
+
+		private CacheEntry(UnfilteredStatistics statistics, String dataFileVersion) {
+			this.statistics = statistics;
+			this.dataFileVersion = dataFileVersion;
+		}
+	}
+}
@@ -0,0 +1,268 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server;
+
+import gov.nih.nci.caintegrator.exceptions.AnalysisServerException;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Computes the Wilcoxon rank sum test of every reporter of a block in Java, giving the same
+ * result as mywilcox in Wilcox.R: the medians and standard deviations of the values that are
+ * not NA, and the two-sided p-value of wilcox.test with its defaults.  The p-value is exact
+ * when both groups have fewer than EXACT_LIMIT finite values and there are no ties, otherwise
+ * it comes from the normal approximation with the tie and continuity corrections.  A reporter
+ * with a group without finite values, for which wilcox.test stops with an error, gets an NA
+ * p-value.
+ *
+ * Each worker ranks a row by sorting the two groups separately in its own scratch buffers
+ * and merging them, so nothing is allocated per row.  The exact null distributions are
+ * shared by all computations, since the group sizes rarely change from row to row.
+ *
+ * @see gov.nih.nci.caintegrator.analysis.server.ClassComparisonEngine
+ *
+ * @author caIntegrator Team
+ *
+ */
+public class WilcoxonEngine implements ClassComparisonEngine {
+
+	/**
+	 * Exact p-values are computed when both groups are smaller than this, as in wilcox.test.
+	 */
+	public static final int EXACT_LIMIT = 50;
+
+	//cumulative lower half of the null distribution of the rank sum statistic keyed by the group sizes
+	private static ConcurrentHashMap<Integer, double[]> exactDistributions = new ConcurrentHashMap<Integer, double[]>();
+
+	public double[][] compute(final double[] values, final int numRows, final int numColumns, final int numGroup1Columns) throws AnalysisServerException {
+		if ((numGroup1Columns < 1) || (numGroup1Columns >= numColumns) || (values.length != numRows * numColumns)) {
+			throw new AnalysisServerException("Internal Error. Wilcoxon block has " + values.length + " values for " + numRows +
+					                          " rows and " + numColumns + " columns with group1 columns=" + numGroup1Columns);
+		}
+		final double[][] result = new double[NUM_COLUMNS][numRows];
+		ReporterBlockExecutor.run(numRows, new ReporterBlockExecutor.WorkerFactory() {
+			public ReporterBlockExecutor.Worker newWorker() {
+				return new RowWorker(values, numColumns, numGroup1Columns, result);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Get the probability that the rank sum statistic of groups of sizes m and n is at most q.
+	 * @param q at most m * n / 2
+	 * @param m
+	 * @param n
+	 * @return the probability, pwilcox(q, m, n) in R
+	 */
+	static double getExactLowerTail(int q, int m, int n) {
+		Integer key = Integer.valueOf(m * EXACT_LIMIT + n);
+		double[] cumulative = exactDistributions.get(key);
+		if (cumulative == null) {
+			cumulative = getExactLowerHalf(m, n);
+			exactDistributions.put(key, cumulative);
+		}
+		return cumulative[q];
+	}
+
+	/**
+	 * Compute the cumulative null distribution of the rank sum statistic up to m * n / 2.  The
+	 * number of subsets of each rank sum is a coefficient of the Gaussian binomial coefficient
+	 * [m + n choose m], built up one factor (1 - x^(k + i)) / (1 - x^i) at a time.  Only the
+	 * lower half is needed because the distribution is symmetric, and the counts there only
+	 * depend on smaller counts so the small counts in the tail are exact.
+	 */
+	private static double[] getExactLowerHalf(int m, int n) {
+		int k = Math.min(m, n);
+		int l = Math.max(m, n);
+		int half = (m * n) / 2;
+		double[] counts = new double[half + 1];
+		counts[0] = 1.0;
+		double total = 1.0;
+		for (int i = 1; i <= k; i++) {
+			//multiply by 1 - x^(l + i)
+			for (int j = half; j >= l + i; j--) {
+				counts[j] -= counts[j - l - i];
+			}
+			//divide by 1 - x^i
+			for (int j = i; j <= half; j++) {
+				counts[j] += counts[j - i];
+			}
+			total = total * (l + i) / i;
+		}
+		double[] cumulative = new double[half + 1];
+		double sum = 0.0;
+		for (int j = 0; j <= half; j++) {
+			sum += counts[j];
+			cumulative[j] = Math.min(1.0, sum / total);
+		}
+		return cumulative;
+	}
+
+	/**
+	 * Computes the rows of blocks with scratch buffers for the values of each group.
+	 */
+	private static class RowWorker implements ReporterBlockExecutor.Worker {
+
+		private double[] values;
+
+		private int numColumns;
+
+		private int numGroup1Columns;
+
+		private double[][] result;
+
+		private double[] group1;
+
+		private double[] group2;
+
+		private RowWorker(double[] values, int numColumns, int numGroup1Columns, double[][] result) {
+			this.values = values;
+			this.numColumns = numColumns;
+			this.numGroup1Columns = numGroup1Columns;
+			this.result = result;
+			this.group1 = new double[numGroup1Columns];
+			this.group2 = new double[numColumns - numGroup1Columns];
+		}
+
+		public void compute(int fromRow, int toRow) {
+			for (int row = fromRow; row < toRow; row++) {
+				computeRow(row);
+			}
+		}
+
+		private void computeRow(int row) {
+			int offset = row * numColumns;
+			int n1 = 0, n2 = 0;
+			for (int i = 0; i < numGroup1Columns; i++) {
+				double value = values[offset + i];
+				if (!Double.isNaN(value)) {
+					group1[n1++] = value;
+				}
+			}
+			for (int i = numGroup1Columns; i < numColumns; i++) {
+				double value = values[offset + i];
+				if (!Double.isNaN(value)) {
+					group2[n2++] = value;
+				}
+			}
+			Arrays.sort(group1, 0, n1);
+			Arrays.sort(group2, 0, n2);
+
+			double median1 = getMedian(group1, n1);
+			double median2 = getMedian(group2, n2);
+			double dif = median1 - median2;
+
+			result[MEAN1][row] = median1;
+			result[MEAN2][row] = median2;
+			result[MEAN_DIF][row] = dif;
+			result[FC][row] = Math.pow(2.0, Math.abs(dif));
+			result[PVAL][row] = getPvalue(n1, n2);
+			result[STD1][row] = getStandardDeviation(group1, n1);
+			result[STD2][row] = getStandardDeviation(group2, n2);
+		}
+
+		/**
+		 * Get the p-value of the finite values of the sorted groups.
+		 */
+		private double getPvalue(int n1, int n2) {
+			//wilcox.test drops the infinite values, they are at the ends of the sorted groups
+			int from1 = getFirstFinite(group1, n1);
+			int to1 = getLastFinite(group1, from1, n1);
+			int from2 = getFirstFinite(group2, n2);
+			int to2 = getLastFinite(group2, from2, n2);
+			int m = to1 - from1;
+			int n = to2 - from2;
+			if ((m < 1) || (n < 1)) {
+				return Double.NaN;
+			}
+
+			//merge the groups in value order, giving each run of tied values their average rank
+			double rankSum1 = 0.0;
+			double tieSum = 0.0;
+			int ranked = 0;
+			int i = from1, j = from2;
+			while ((i < to1) || (j < to2)) {
+				double value = (j >= to2) || ((i < to1) && (group1[i] <= group2[j])) ? group1[i] : group2[j];
+				int ties1 = 0, ties2 = 0;
+				while ((i < to1) && (group1[i] == value)) {
+					i++;
+					ties1++;
+				}
+				while ((j < to2) && (group2[j] == value)) {
+					j++;
+					ties2++;
+				}
+				double ties = ties1 + ties2;
+				rankSum1 += ties1 * (ranked + (ties + 1.0) / 2.0);
+				tieSum += (ties * ties * ties) - ties;
+				ranked += ties1 + ties2;
+			}
+
+			double mn = (double) m * n;
+			double statistic = rankSum1 - m * (m + 1.0) / 2.0;
+			if ((m < EXACT_LIMIT) && (n < EXACT_LIMIT) && (tieSum == 0.0)) {
+				int q = (int) Math.round((statistic > mn / 2.0) ? mn - statistic : statistic);
+				return Math.min(1.0, 2.0 * getExactLowerTail(q, m, n));
+			}
+			double N = m + n;
+			double sigma = Math.sqrt((mn / 12.0) * ((N + 1.0) - tieSum / (N * (N - 1.0))));
+			double z = statistic - mn / 2.0;
+			z = (z - Math.signum(z) * 0.5) / sigma;
+			return 2.0 * Distributions.normalUpperTail(Math.abs(z));
+		}
+	}
+
+	private static int getFirstFinite(double[] sorted, int length) {
+		int i = 0;
+		while ((i < length) && (sorted[i] == Double.NEGATIVE_INFINITY)) {
+			i++;
+		}
+		return i;
+	}
+
+	private static int getLastFinite(double[] sorted, int from, int length) {
+		int i = length;
+		while ((i > from) && (sorted[i - 1] == Double.POSITIVE_INFINITY)) {
+			i--;
+		}
+		return i;
+	}
+
+	/**
+	 * @return the median of the first length values of a sorted array, NaN if there are none
+	 */
+	private static double getMedian(double[] sorted, int length) {
+		if (length == 0) {
+			return Double.NaN;
+		}
+		int half = length / 2;
+		return ((length % 2) == 1) ? sorted[half] : (sorted[half - 1] + sorted[half]) / 2.0;
+	}
+
+	/**
+	 * @return the standard deviation of the first length values of an array, NaN for fewer than two
+	 */
+	private static double getStandardDeviation(double[] values, int length) {
+		if (length < 2) {
+			return Double.NaN;
+		}
+		double sum = 0.0;
+		for (int i = 0; i < length; i++) {
+			sum += values[i];
+		}
+		double mean = sum / length;
+		double sumSquares = 0.0;
+		for (int i = 0; i < length; i++) {
+			double deviation = values[i] - mean;
+			sumSquares += deviation * deviation;
+		}
+		return Math.sqrt(sumSquares / (length - 1));
+	}
+}
@@ -0,0 +1,74 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server.test;
+
+import gov.nih.nci.caintegrator.analysis.server.AnalysisTaskR;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.rosuda.JRclient.REXP;
+import org.rosuda.JRclient.Rconnection;
+
+/**
+ * Compares the time taken to create an ID vector in R by evaluating the command built by
+ * getRgroupCmd with the time taken to assign it as a binary string vector.
+ *
+ * Usage: IdAssignmentBenchmark [rserveHost] [rservePort] [repetitions]
+ *
+ * @author caIntegrator Team
+ *
+ */
+public class IdAssignmentBenchmark {
+
+  private static final int[] SIZES = { 100, 10000, 50000 };
+
+  public static void main(String args[]) {
+	String host = (args.length > 0) ? args[0] : "localhost";
+	int port = (args.length > 1) ? Integer.parseInt(args[1]) : 6311;
+	int repetitions = (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+
+	try {
+	  Rconnection connection = new Rconnection(host, port);
+
+	  for (int size : SIZES) {
+		List<String> ids = new ArrayList<String>(size);
+		for (int i = 0; i < size; i++) {
+		  ids.add("REPORTER_" + i + "_at");
+		}
+		String[] idArray = ids.toArray(new String[size]);
+
+		String cmd = AnalysisTaskR.getRgroupCmd("benchIds", ids);
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < repetitions; i++) {
+		  connection.voidEval(cmd);
+		}
+		long commandTime = System.currentTimeMillis() - start;
+		int commandLength = connection.eval("length(benchIds)").asInt();
+
+		start = System.currentTimeMillis();
+		for (int i = 0; i < repetitions; i++) {
+		  connection.assign("benchIds", new REXP(idArray));
+		}
+		long assignTime = System.currentTimeMillis() - start;
+		int assignLength = connection.eval("length(benchIds)").asInt();
+
+		System.out.println("ids=" + size + " commandBytes=" + cmd.length() +
+				           " command(ms/op)=" + ((double) commandTime / repetitions) +
+				           " assign(ms/op)=" + ((double) assignTime / repetitions) +
+				           " lengths=" + commandLength + "/" + assignLength);
+	  }
+
+	  connection.voidEval("remove(benchIds)");
+	  connection.close();
+	} catch (Exception e) {
+	  e.printStackTrace();
+	}
+  }
+
+}
@@ -0,0 +1,362 @@
+/*L
+ *  Copyright SAIC
+ *
+ *  Distributed under the OSI-approved BSD 3-Clause License.
+ *  See http://ncip.github.com/stats-analysis-server/LICENSE.txt for details.
+ */
+
+package gov.nih.nci.caintegrator.analysis.server.test;
+
+import gov.nih.nci.caintegrator.analysis.server.CorrelationRowStatistics;
+import gov.nih.nci.caintegrator.analysis.server.CorrelationRowStatisticsCache;
+import gov.nih.nci.caintegrator.analysis.server.Correlations;
+import gov.nih.nci.caintegrator.analysis.server.DataFileDictionary;
+import gov.nih.nci.caintegrator.analysis.server.DataMatrix;
+import gov.nih.nci.caintegrator.analysis.server.FTestEngine;
+import gov.nih.nci.caintegrator.analysis.server.GenomeCorrelationEngine;
+import gov.nih.nci.caintegrator.analysis.server.PValueAdjuster;
+import gov.nih.nci.caintegrator.analysis.server.ReporterBlockExecutor;
+import gov.nih.nci.caintegrator.analysis.server.TTestEngine;
+import gov.nih.nci.caintegrator.analysis.server.WilcoxonEngine;
+import gov.nih.nci.caintegrator.enumeration.CorrelationType;
+
+import java.io.File;
+import java.util.Random;
+
+import org.rosuda.JRclient.REXP;
+import org.rosuda.JRclient.Rconnection;
+
+/**
+ * Compares the results of the Java statistics engines, p-value adjustments and correlations
+ * with the results of the R functions they replace on random matrices with missing values,
+ * constant rows and groups with too few values, and prints the largest difference of each
+ * result column.  Each comparison fails when a difference is larger than TOLERANCE (or
+ * CORRELATION_TOLERANCE) or only one of the values is NA.
+ *
+ * Usage: NativeStatisticsComparison [rserveHost] [rservePort] [rSourceDirectory] [numRows]
+ *
+ * The R source directory must be readable by the Rserve.
+ *
+ * @author caIntegrator Team
+ *
+ */
+public class NativeStatisticsComparison {
+
+  private static final double TOLERANCE = 1.0E-10;
+
+  private static final double CORRELATION_TOLERANCE = 1.0E-12;
+
+  private static final long SEED = 20061018L;
+
+  private static boolean failed = false;
+
+  public static void main(String args[]) {
+	String host = (args.length > 0) ? args[0] : "localhost";
+	int port = (args.length > 1) ? Integer.parseInt(args[1]) : 6311;
+	String rSourceDirectory = (args.length > 2) ? args[2] : "R_source";
+	int numRows = (args.length > 3) ? Integer.parseInt(args[3]) : 5000;
+
+	try {
+	  Rconnection connection = new Rconnection(host, port);
+	  connection.voidEval("source(\"" + rSourceDirectory + "/ttest.R\")");
+	  connection.voidEval("source(\"" + rSourceDirectory + "/Wilcox.R\")");
+	  connection.voidEval("source(\"" + rSourceDirectory + "/Ftest.R\")");
+
+	  Random random = new Random(SEED);
+	  int[][] groupSizes = { { 3, 3 }, { 5, 12 }, { 40, 25 } };
+	  for (int[] sizes : groupSizes) {
+		compareTTest(connection, random, numRows, sizes[0], sizes[1]);
+	  }
+
+	  //exact p-values for small groups without ties, the normal approximation otherwise
+	  int[][] wilcoxonGroupSizes = { { 3, 4 }, { 12, 20 }, { 49, 30 }, { 60, 55 } };
+	  for (int[] sizes : wilcoxonGroupSizes) {
+		compareWilcoxon(connection, random, Math.min(numRows, 2000), sizes[0], sizes[1]);
+	  }
+
+	  int[][] fTestGroupSizes = { { 2, 2, 2 }, { 3, 8, 5, 4, 6 }, { 30, 12, 25, 9 } };
+	  for (int[] sizes : fTestGroupSizes) {
+		compareFTest(connection, random, numRows, sizes);
+	  }
+
+	  //tied p-values and NAs, with enough p-values for several parallel merge passes of the sort
+	  for (PValueAdjuster.Method method : PValueAdjuster.Method.values()) {
+		compareAdjustment(connection, random, Math.max(numRows, 64 * ReporterBlockExecutor.BLOCK_SIZE), method);
+	  }
+
+	  //the random rows have tied values (average ranks) and NAs (complete.obs)
+	  for (String method : new String[] { "pearson", "spearman" }) {
+		compareCorrelation(connection, random, Math.min(numRows, 2000), 12, method);
+		compareCorrelation(connection, random, Math.min(numRows, 2000), 60, method);
+	  }
+
+	  //rows with NAs are correlated over their complete samples, the others with the row statistics
+	  for (CorrelationType correlationType : new CorrelationType[] { CorrelationType.PEARSON, CorrelationType.SPEARMAN }) {
+		compareGenomeCorrelation(connection, random, numRows, 12, correlationType);
+		compareGenomeCorrelation(connection, random, numRows, 60, correlationType);
+	  }
+
+	  connection.close();
+	} catch (Exception e) {
+	  e.printStackTrace();
+	  failed = true;
+	}
+	System.out.println(failed ? "FAILED" : "PASSED");
+  }
+
+  /**
+   * Compare TTestEngine with myttest and the Welch TTestEngine with t.test(var.equal=FALSE)
+   * and myttest(var.equal=FALSE).
+   */
+  private static void compareTTest(Rconnection connection, Random random, int numRows, int m1, int m2) throws Exception {
+	int numColumns = m1 + m2;
+	double[] values = getRandomMatrix(random, numRows, numColumns, true);
+	assignMatrix(connection, "cmpMatrix", values, numRows, numColumns);
+
+	double[][] pooled = new TTestEngine(true).compute(values, numRows, numColumns, m1);
+	REXP expected = connection.eval("as.matrix(myttest(cmpMatrix, " + m1 + ", " + m2 + "))");
+	compare("myttest m1=" + m1 + " m2=" + m2, pooled, expected.asDoubleArray(), numRows,
+			new String[] { "mean1", "mean2", "mean.dif", "fc", "pval", "std1", "std2" });
+
+	double[][] welch = new TTestEngine(false).compute(values, numRows, numColumns, m1);
+	expected = connection.eval("apply(cmpMatrix, 1, function(x) { g1 <- x[1:" + m1 + "]; g2 <- x[" + (m1 + 1) + ":" + numColumns + "]; " +
+			                   "if ((sum(!is.na(g1)) < 2) || (sum(!is.na(g2)) < 2) || (sd(g1, na.rm=TRUE) + sd(g2, na.rm=TRUE) == 0)) NA else " +
+			                   "t.test(g1, g2, var.equal=FALSE)$p.value })");
+	compare("t.test var.equal=FALSE m1=" + m1 + " m2=" + m2, new double[][] { welch[TTestEngine.PVAL] }, expected.asDoubleArray(), numRows,
+			new String[] { "pval" });
+
+	//the R fallback of a Welch t-test
+	expected = connection.eval("as.matrix(myttest(cmpMatrix, " + m1 + ", " + m2 + ", var.equal=FALSE))");
+	compare("myttest var.equal=FALSE m1=" + m1 + " m2=" + m2, welch, expected.asDoubleArray(), numRows,
+			new String[] { "mean1", "mean2", "mean.dif", "fc", "pval", "std1", "std2" });
+  }
+
+  /**
+   * Compare WilcoxonEngine with mywilcox.
+   */
+  private static void compareWilcoxon(Rconnection connection, Random random, int numRows, int m1, int m2) throws Exception {
+	int numColumns = m1 + m2;
+	//mywilcox stops when a group of a row has no values
+	double[] values = getRandomMatrix(random, numRows, numColumns, false);
+	assignMatrix(connection, "cmpMatrix", values, numRows, numColumns);
+
+	double[][] actual = new WilcoxonEngine().compute(values, numRows, numColumns, m1);
+	REXP expected = connection.eval("as.matrix(mywilcox(cmpMatrix, " + m1 + ", " + m2 + "))");
+	compare("mywilcox m1=" + m1 + " m2=" + m2, actual, expected.asDoubleArray(), numRows,
+			new String[] { "median1", "median2", "median.dif", "fc", "pval", "std1", "std2" });
+  }
+
+  /**
+   * Compare FTestEngine with Ftests.
+   */
+  private static void compareFTest(Rconnection connection, Random random, int numRows, int[] groupSizes) throws Exception {
+	int numColumns = 0;
+	StringBuffer pheno = new StringBuffer("cmpPheno <- as.factor(c(");
+	String[] columnNames = new String[groupSizes.length + 2];
+	for (int i = 0; i < groupSizes.length; i++) {
+	  numColumns += groupSizes[i];
+	  pheno.append((i > 0) ? "," : "").append("rep(").append(i).append(",").append(groupSizes[i]).append(")");
+	  columnNames[i] = "means." + (i + 1);
+	}
+	pheno.append("))");
+	columnNames[groupSizes.length] = "mfc";
+	columnNames[groupSizes.length + 1] = "pval";
+	double[] values = getRandomMatrix(random, numRows, numColumns, true);
+	assignMatrix(connection, "cmpMatrix", values, numRows, numColumns);
+	connection.voidEval(pheno.toString());
+
+	double[][] actual = new FTestEngine().compute(values, numRows, numColumns, groupSizes);
+	REXP expected = connection.eval("as.matrix(Ftests(cmpMatrix, cmpPheno))");
+	StringBuffer name = new StringBuffer("Ftests groups=");
+	for (int size : groupSizes) {
+	  name.append(size).append(" ");
+	}
+	compare(name.toString().trim(), actual, expected.asDoubleArray(), numRows, columnNames);
+  }
+
+  /**
+   * Compare PValueAdjuster with p.adjust(n=number of p-values that are not NA).
+   */
+  private static void compareAdjustment(Rconnection connection, Random random, int numRows, PValueAdjuster.Method method) throws Exception {
+	double[] pvalues = new double[numRows];
+	for (int i = 0; i < numRows; i++) {
+	  pvalues[i] = (i % 23 == 0) ? Double.NaN : Math.rint(random.nextDouble() * random.nextDouble() * 1000.0) / 1000.0;
+	}
+	connection.assign("cmpP", new REXP(pvalues));
+	connection.voidEval("cmpP[is.nan(cmpP)] <- NA");
+	String rMethod = (method == PValueAdjuster.Method.BH) || (method == PValueAdjuster.Method.BY) ? method.name() : method.name().toLowerCase();
+	double[] actual = PValueAdjuster.adjust(pvalues, method);
+	REXP expected = connection.eval("p.adjust(cmpP, method=\"" + rMethod + "\", n=sum(!is.na(cmpP)))");
+	compare("p.adjust method=" + rMethod, new double[][] { actual }, expected.asDoubleArray(), numRows, new String[] { "p" });
+  }
+
+  /**
+   * Compare Correlations with cor(use="complete.obs") on the pairs of the two halves of each row.
+   */
+  private static void compareCorrelation(Rconnection connection, Random random, int numRows, int length, String method) throws Exception {
+	int numColumns = 2 * length;
+	double[] values = getRandomMatrix(random, numRows, numColumns, false);
+	assignMatrix(connection, "cmpMatrix", values, numRows, numColumns);
+
+	double[] actual = new double[numRows];
+	double[] x = new double[length];
+	double[] y = new double[length];
+	for (int row = 0; row < numRows; row++) {
+	  System.arraycopy(values, row * numColumns, x, 0, length);
+	  System.arraycopy(values, row * numColumns + length, y, 0, length);
+	  actual[row] = method.equals("spearman") ? Correlations.spearman(x, y) : Correlations.pearson(x, y);
+	}
+	REXP expected = connection.eval("suppressWarnings(apply(cmpMatrix, 1, function(v) cor(v[1:" + length + "], v[" + (length + 1) + ":" +
+			                        numColumns + "], use=\"complete.obs\", method=\"" + method + "\")))");
+	compare("cor method=" + method + " n=" + length, new double[][] { actual }, expected.asDoubleArray(), numRows, new String[] { "r" },
+			CORRELATION_TOLERANCE);
+  }
+
+  /**
+   * Compare GenomeCorrelationEngine with cor(use="complete.obs") of each row and a query, once
+   * with row statistics computed for the query and once with the statistics kept by a
+   * CorrelationRowStatisticsCache.  A temporary file stands in for the data file the cache
+   * entries are versioned by.
+   */
+  private static void compareGenomeCorrelation(Rconnection connection, Random random, int numRows, int numColumns,
+		                                       CorrelationType correlationType) throws Exception {
+	double[] values = getRandomMatrix(random, numRows, numColumns, true);
+	assignMatrix(connection, "cmpMatrix", values, numRows, numColumns);
+	double[] query = new double[numColumns];
+	for (int i = 0; i < numColumns; i++) {
+	  query[i] = random.nextGaussian();
+	}
+	connection.assign("cmpQuery", new REXP(query));
+
+	String[] reporterIds = new String[numRows];
+	for (int row = 0; row < numRows; row++) {
+	  reporterIds[row] = "reporter" + row;
+	}
+	String[] sampleIds = new String[numColumns];
+	int[] columns = new int[numColumns];
+	for (int column = 0; column < numColumns; column++) {
+	  sampleIds[column] = "sample" + column;
+	  columns[column] = column + 1;
+	}
+	double[] columnMajor = new double[values.length];
+	for (int row = 0; row < numRows; row++) {
+	  for (int column = 0; column < numColumns; column++) {
+		columnMajor[column * numRows + row] = values[row * numColumns + column];
+	  }
+	}
+	DataMatrix matrix = new DataMatrix(new DataFileDictionary("cmpMatrix", reporterIds, sampleIds), columnMajor);
+	GenomeCorrelationEngine engine = new GenomeCorrelationEngine(correlationType);
+	File dataFile = File.createTempFile("cmpMatrix", ".Rda");
+	dataFile.deleteOnExit();
+	CorrelationRowStatisticsCache cache = new CorrelationRowStatisticsCache(dataFile.getParent() + File.separator, 4);
+
+	String method = correlationType.name().toLowerCase();
+	REXP expected = connection.eval("suppressWarnings(apply(cmpMatrix, 1, function(v) if (sum(!is.na(v)) < 2) NA else " +
+			                        "cor(v, cmpQuery, use=\"complete.obs\", method=\"" + method + "\")))");
+	for (int pass = 0; pass < 2; pass++) {
+	  CorrelationRowStatistics statistics = cache.get(dataFile.getName(), correlationType, columns);
+	  if ((statistics != null) != (pass == 1)) {
+		System.out.println("genome correlation method=" + method + " n=" + numColumns + ": row statistics cache " +
+				           ((pass == 1) ? "missed" : "hit") + " on pass " + pass);
+		failed = true;
+	  }
+	  if (statistics == null) {
+		statistics = engine.getRowStatistics(matrix, columns);
+		cache.put(dataFile.getName(), correlationType, columns, statistics);
+	  }
+	  double[][] actual = engine.compute(matrix, columns, statistics, query);
+	  compare("genome correlation method=" + method + " n=" + numColumns + ((pass == 1) ? " cached" : ""),
+			  new double[][] { actual[GenomeCorrelationEngine.R] }, expected.asDoubleArray(), numRows, new String[] { "r" },
+			  CORRELATION_TOLERANCE);
+	}
+	dataFile.delete();
+  }
+
+  /**
+   * Get a row major matrix of log2 expression like values.  Some rows have missing values,
+   * some are constant, some have tied values and some have a group with only one value.
+   */
+  private static double[] getRandomMatrix(Random random, int numRows, int numColumns, boolean oneValueRows) {
+	double[] values = new double[numRows * numColumns];
+	for (int row = 0; row < numRows; row++) {
+	  double shift = random.nextGaussian();
+	  for (int column = 0; column < numColumns; column++) {
+		values[row * numColumns + column] = 8.0 + random.nextGaussian() + ((column % 2 == 0) ? shift : 0.0);
+	  }
+	  int kind = row % 50;
+	  if (kind == 1) {
+		for (int column = 0; column < numColumns; column++) {
+		  values[row * numColumns + column] = 5.0;
+		}
+	  }
+	  else if ((kind == 2) && oneValueRows) {
+		for (int column = 1; column < numColumns; column++) {
+		  values[row * numColumns + column] = Double.NaN;
+		}
+	  }
+	  else if ((kind > 2) && (kind < 12)) {
+		for (int column = 0; column < numColumns; column++) {
+		  //keep a value in each group unless rows with a group of one value are wanted
+		  if ((random.nextDouble() < 0.15) && (oneValueRows || ((column != 0) && (column != numColumns - 1)))) {
+			values[row * numColumns + column] = Double.NaN;
+		  }
+		}
+	  }
+	  else if (kind < 16) {
+		for (int column = 0; column < numColumns; column++) {
+		  values[row * numColumns + column] = Math.rint(values[row * numColumns + column] * 2.0) / 2.0;
+		}
+	  }
+	}
+	return values;
+  }
+
+  private static void assignMatrix(Rconnection connection, String rName, double[] values, int numRows, int numColumns) throws Exception {
+	connection.assign(rName, new REXP(values));
+	//NaN is sent as NaN, make it NA as in the data files
+	connection.voidEval(rName + "[is.nan(" + rName + ")] <- NA; " + rName + " <- matrix(" + rName + ", nrow=" + numRows +
+			            ", ncol=" + numColumns + ", byrow=TRUE)");
+  }
+
+  /**
+   * Compare result columns with an R matrix of the same columns in column major order.
+   */
+  private static void compare(String name, double[][] actual, double[] expected, int numRows, String[] columnNames) {
+	compare(name, actual, expected, numRows, columnNames, TOLERANCE);
+  }
+
+  private static void compare(String name, double[][] actual, double[] expected, int numRows, String[] columnNames, double tolerance) {
+	if ((expected == null) || (expected.length != numRows * columnNames.length)) {
+	  System.out.println(name + ": R result has the wrong size");
+	  failed = true;
+	  return;
+	}
+	StringBuffer sb = new StringBuffer(name);
+	for (int column = 0; column < columnNames.length; column++) {
+	  double maxDifference = 0.0;
+	  int numMismatches = 0;
+	  for (int row = 0; row < numRows; row++) {
+		double a = actual[column][row];
+		double e = expected[column * numRows + row];
+		if (Double.isNaN(a) || Double.isNaN(e)) {
+		  if (Double.isNaN(a) != Double.isNaN(e)) {
+			numMismatches++;
+		  }
+		  continue;
+		}
+		double difference = (a == e) ? 0.0 : Math.abs(a - e);
+		maxDifference = Math.max(maxDifference, difference);
+		if (!(difference <= tolerance)) {
+		  numMismatches++;
+		}
+	  }
+	  sb.append(" ").append(columnNames[column]).append("=").append(maxDifference);
+	  if (numMismatches > 0) {
+		sb.append("(").append(numMismatches).append(" mismatches)");
+		failed = true;
+	  }
+	}
+	System.out.println(sb.toString());
+  }
+
+}